@@ -78,6 +78,17 @@ public class SmartPattern {
     }
   }
   
+  /**
+   * Return the string matched by this pattern if it is an exact match, null otherwise
+   */
+  public String getString() {
+    return this.string;
+  }
+
+  public boolean isMatchAll() {
+    return this.matchall;
+  }
+  
   public boolean matches(String str) {
     if (this.matchall) {
       return true;
@@ -106,6 +106,8 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_GEOCELLS = "warpscript.maxgeocells";
   public static final String WARPSCRIPT_MAX_DEPTH = "warpscript.maxdepth";
   public static final String WARPSCRIPT_MAX_FETCH = "warpscript.maxfetch";
+  public static final String WARPSCRIPT_MAX_FETCH_RAW = "warpscript.maxfetch.raw";
+  public static final String WARPSCRIPT_MAX_FETCH_ASYNC = "warpscript.maxfetch.async";
   public static final String WARPSCRIPT_MAX_GTS = "warpscript.maxgts";
   public static final String WARPSCRIPT_MAX_LOOP_DURATION = "warpscript.maxloop";
   public static final String WARPSCRIPT_MAX_RECURSION = "warpscript.maxrecursion";
@@ -114,6 +116,7 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_PIXELS = "warpscript.maxpixels";
   public static final String WARPSCRIPT_URLFETCH_LIMIT = "warpscript.urlfetch.limit";
   public static final String WARPSCRIPT_URLFETCH_MAXSIZE = "warpscript.urlfetch.maxsize";
+  public static final String WARPSCRIPT_MAX_THREADS = "warpscript.maxthreads";
 
   // Hard limits for the above limits which can be changed via a function call
   public static final String WARPSCRIPT_MAX_OPS_HARD = "warpscript.maxops.hard";
@@ -128,6 +131,56 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_PIXELS_HARD = "warpscript.maxpixels.hard";
   public static final String WARPSCRIPT_URLFETCH_LIMIT_HARD = "warpscript.urlfetch.limit.hard";
   public static final String WARPSCRIPT_URLFETCH_MAXSIZE_HARD = "warpscript.urlfetch.maxsize.hard";
+  public static final String WARPSCRIPT_MAX_THREADS_HARD = "warpscript.maxthreads.hard";
+
+  /**
+   * Number of threads of the pool shared by all scripts to run MAP, BUCKETIZE, REDUCE, APPLY and FILTER
+   * in parallel, defaults to the number of available processors.
+   */
+  public static final String WARPSCRIPT_PARALLEL_THREADS = "warpscript.parallel.threads";
+
+  /**
+   * Maximum number of threads of the parallel pool used at once by the scripts of a single token,
+   * so one tenant cannot monopolize the pool, defaults to 'warpscript.parallel.threads'.
+   */
+  public static final String WARPSCRIPT_PARALLEL_TENANT_THREADS = "warpscript.parallel.tenant.threads";
+
+  /**
+   * Maximum number of threads of the parallel pool a single call to CEVAL uses to run its macros,
+   * the parallelism level passed to CEVAL being capped to this value, defaults to 'warpscript.parallel.threads'.
+   */
+  public static final String WARPSCRIPT_CEVAL_MAX_THREADS = "warpscript.ceval.maxthreads";
+
+  /**
+   * Number of threads performing the fetches started by FETCHASYNC for all scripts, defaults to 16.
+   */
+  public static final String WARPSCRIPT_FETCH_ASYNC_THREADS = "warpscript.fetch.async.threads";
+
+  /**
+   * Maximum number of fetches started by FETCHASYNC queued or running on the pool at once for the scripts
+   * of a single token, so one tenant cannot delay the fetches of the others. Fetches beyond that number
+   * are performed on the script thread. Defaults to a quarter of 'warpscript.fetch.async.threads'.
+   */
+  public static final String WARPSCRIPT_FETCH_ASYNC_TENANT_FETCHES = "warpscript.fetch.async.tenant";
+
+  /**
+   * Number of parsed WarpScript lines kept in the cache shared by all scripts, 0 disables the cache.
+   * Defaults to 10000.
+   */
+  public static final String WARPSCRIPT_PARSECACHE_SIZE = "warpscript.parsecache.size";
+
+  /**
+   * Set to 'true' to optimize macros when they are defined (constant folding, prebuilt lists and maps,
+   * calls bound to macros marked with MACROINLINE). Folded constants appear as such in SNAPSHOT.
+   * Optimized macros count the same number of operations as the original ones.
+   */
+  public static final String WARPSCRIPT_MACRO_OPTIMIZE = "warpscript.macro.optimize";
+
+  /**
+   * Number of executions after which a macro is compiled into a form which is faster to execute,
+   * 0 disables compilation. Defaults to 1000.
+   */
+  public static final String WARPSCRIPT_MACRO_COMPILE_THRESHOLD = "warpscript.macro.compile.threshold";
 
   /**
    * Flag to enable REXEC
@@ -243,6 +296,27 @@ public class Configuration {
    */
   public static final String CONFIG_WARPSCRIPT_RUNNER_BOOTSTRAP_PERIOD = "warpscript.runner.bootstrap.period";
 
+  /**
+   * Maximum number of idle stacks kept for reuse by the /exec endpoint, defaults to 16, 0 disables reuse
+   */
+  public static final String CONFIG_WARPSCRIPT_STACKPOOL_SIZE = "warpscript.stackpool.size";
+
+  /**
+   * Maximum number of scripts executed at once by the /exec endpoint, 0 (the default) for no limit
+   */
+  public static final String CONFIG_WARPSCRIPT_STACKPOOL_CHECKOUTS = "warpscript.stackpool.checkouts";
+
+  /**
+   * Maximum time in ms a request to /exec waits for another script to complete when 'warpscript.stackpool.checkouts'
+   * scripts are executing, the request is rejected with a 503 status past that delay, defaults to 0
+   */
+  public static final String CONFIG_WARPSCRIPT_STACKPOOL_WAIT = "warpscript.stackpool.wait";
+
+  /**
+   * Maximum number of idle stacks kept for reuse by the script runner, defaults to 16, 0 disables reuse
+   */
+  public static final String CONFIG_WARPSCRIPT_RUNNER_STACKPOOL_SIZE = "warpscript.runner.stackpool.size";
+
   /**
    * URL for the 'update' endpoint accessed in UPDATE
    */
@@ -1884,6 +1958,20 @@ public class Configuration {
    * Maximum number of subprogram instances which can be spawned
    */
   public static final String WARPSCRIPT_CALL_MAXCAPACITY = "warpscript.call.maxcapacity";
+  
+  /**
+   * Codec used to compress GTSWrapper content (WRAP, Plasma, pack and wrapper outputs).
+   * One of gzip (default), lz4, snappy, lz4gzip or adaptive. Codecs other than gzip produce
+   * wrappers which cannot be read by versions predating their introduction.
+   */
+  public static final String WARPSCRIPT_WRAPPER_CODEC = "warpscript.wrapper.codec";
+  
+  /**
+   * Set to true to encode the values of STRING GTS wrapped by WRAP, WRAPRAW and the other wrapper
+   * producers using a string dictionary (each distinct value is stored once and then referenced).
+   * Defaults to false as versions predating the dictionary cannot read such wrappers.
+   */
+  public static final String WARPSCRIPT_WRAPPER_STRING_DICTIONARY = "warpscript.wrapper.string.dictionary";
       
   /**
    * Macro Repository root directory
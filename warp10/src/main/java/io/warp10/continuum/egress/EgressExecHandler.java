@@ -16,6 +16,7 @@
 
 package io.warp10.continuum.egress;
 
+import io.warp10.WarpConfig;
 import io.warp10.continuum.BootstrapManager;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.LogUtil;
@@ -28,6 +29,8 @@ import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.thrift.data.LoggingEvent;
 import io.warp10.crypto.KeyStore;
+import io.warp10.script.BinaryStackCodec;
+import io.warp10.script.LazyGTSList;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
@@ -36,6 +39,8 @@ import io.warp10.script.WarpScriptStopException;
 import io.warp10.script.MemoryWarpScriptStack;
 import io.warp10.script.StackUtils;
 import io.warp10.script.WarpScriptStack.StackContext;
+import io.warp10.script.WarpScriptStackPool;
+import io.warp10.script.functions.FETCH;
 import io.warp10.sensision.Sensision;
 
 import java.io.BufferedReader;
@@ -43,6 +48,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -85,6 +91,46 @@ public class EgressExecHandler extends AbstractHandler {
 
   private final BootstrapManager bootstrapManager;
   
+  private final WarpScriptStackPool stackPool;
+  
+  /**
+   * Output stream of the response retrieved on the first write, so the content type is set and the response
+   * committed only once the binary encoding of the stack starts to be written
+   */
+  private static final class BinaryResponseOutputStream extends OutputStream {
+    private final HttpServletResponse resp;
+    private OutputStream out = null;
+    
+    private BinaryResponseOutputStream(HttpServletResponse resp) {
+      this.resp = resp;
+    }
+    
+    private OutputStream out() throws IOException {
+      if (null == this.out) {
+        this.resp.setContentType(BinaryStackCodec.CONTENT_TYPE);
+        this.out = this.resp.getOutputStream();
+      }
+      return this.out;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      out().write(b);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out().write(b, off, len);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+      if (null != this.out) {
+        this.out.flush();
+      }
+    }
+  }
+  
   public EgressExecHandler(KeyStore keyStore, Properties properties, DirectoryClient directoryClient, GeoDirectoryClient geoDirectoryClient, StoreClient storeClient) {
     this.keyStore = keyStore;
     this.storeClient = storeClient;
@@ -105,6 +151,11 @@ public class EgressExecHandler extends AbstractHandler {
       this.bootstrapManager = new BootstrapManager();
     }
     
+    this.stackPool = new WarpScriptStackPool(storeClient, directoryClient, geoDirectoryClient, WarpConfig.getProperties(),
+        Integer.parseInt(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_STACKPOOL_SIZE, Integer.toString(WarpScriptStackPool.DEFAULT_SIZE))),
+        Integer.parseInt(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_STACKPOOL_CHECKOUTS, "0")),
+        Long.parseLong(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_STACKPOOL_WAIT, "0")));
+    
     if ("true".equals(properties.getProperty(Configuration.EGRESS_CLIENTS_EXPOSE))) {
       exposedStoreClient = storeClient;
       exposedDirectoryClient = directoryClient;
@@ -152,7 +203,14 @@ public class EgressExecHandler extends AbstractHandler {
     // Create the stack to use
     //
     
-    WarpScriptStack stack = new MemoryWarpScriptStack(this.storeClient, this.directoryClient, this.geoDirectoryClient);
+    MemoryWarpScriptStack stack;
+    
+    try {
+      stack = this.stackPool.checkout();
+    } catch (WarpScriptException wse) {
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, wse.getMessage());
+      return;
+    }
 
     Throwable t = null;
 
@@ -165,22 +223,23 @@ public class EgressExecHandler extends AbstractHandler {
     
     try {
       //
-      // Replace the context with the bootstrap one
+      // Replace the context with the bootstrap one and execute the bootstrap code, the result
+      // of which is reused by the pool unless the headers are exposed to it
       //
       
       StackContext context = this.bootstrapManager.getBootstrapContext();
       
-      if (null != context) {
-        stack.push(context);
-        stack.restore();
-      }
-      
       //
       // Expose the headers if instructed to do so
       //
       String expose = req.getHeader(Constants.getHeader(Configuration.HTTP_HEADER_EXPOSE_HEADERS));
       
       if (null != expose) {
+        if (null != context) {
+          stack.push(context);
+          stack.restore();
+        }
+        
         Map<String,Object> headers = new HashMap<String,Object>();
         Enumeration<String> names = req.getHeaderNames();
         while(names.hasMoreElements()) {
@@ -194,13 +253,11 @@ public class EgressExecHandler extends AbstractHandler {
           headers.put(name, elts);
         }
         stack.store(expose, headers);
+        
+        stack.exec(WarpScriptLib.BOOTSTRAP);
+      } else {
+        this.stackPool.bootstrap(stack, context);
       }
-            
-      //
-      // Execute the bootstrap code
-      //
-
-      stack.exec(WarpScriptLib.BOOTSTRAP);
       
       //
       // Extract parameters from the path info and set their value as symbols
@@ -274,7 +331,7 @@ public class EgressExecHandler extends AbstractHandler {
         long nano = System.nanoTime();
         
         try {
-          if (Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_LINENO)) && !((MemoryWarpScriptStack) stack).inMultiline()) {
+          if (Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_LINENO)) && !stack.inMultiline()) {
             // We call 'exec' so statements are correctly put in macros if we are currently building one
             stack.exec("'[Line #" + Long.toString(lineno) + "]'");
             stack.exec(WarpScriptLib.SECTION);
@@ -295,6 +352,12 @@ public class EgressExecHandler extends AbstractHandler {
         times.add(end - nano);
       }
 
+      //
+      // Compute the lazy lists still pending so their errors are reported like those of the script
+      //
+      
+      LazyGTSList.materializeAll(stack);
+      
       //
       // Make sure stack is balanced
       //
@@ -346,7 +409,27 @@ public class EgressExecHandler extends AbstractHandler {
         stack.push(exports);
       }
       
-      StackUtils.toJSON(resp.getWriter(), stack);   
+      //
+      // The script has completed, release the symbols and output the stack levels one at a time
+      // so the levels already written can be reclaimed while the others are serialized
+      //
+      
+      stack.getSymbolTable().clear();
+      
+      //
+      // Clients may request the binary encoding of the stack instead of JSON
+      //
+      
+      if (BinaryStackCodec.accepts(req.getHeader("Accept"))) {
+        //
+        // The response is only committed once the encoding starts to be written, after the lazy lists
+        // have been computed, so an error computing them can still be reported in JSON
+        //
+        
+        BinaryStackCodec.drain(new BinaryResponseOutputStream(resp), stack);
+      } else {
+        StackUtils.drainToJSON(resp.getWriter(), stack);
+      }
     } catch (Throwable e) {
       t = e;      
 
@@ -422,6 +505,9 @@ public class EgressExecHandler extends AbstractHandler {
         return;
       }
     } finally {
+      // Fetches started by FETCHASYNC and never joined must not outlive the script
+      FETCH.cancelPending(stack);
+      
       // Clear this metric in case there was an exception
       Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_REQUESTS, Sensision.EMPTY_LABELS, 1);
       Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_TIME_US, Sensision.EMPTY_LABELS, (long) ((System.nanoTime() - now) / 1000));
@@ -455,6 +541,8 @@ public class EgressExecHandler extends AbstractHandler {
       } else {
         EVENTLOG.info(msg);
       }
+      
+      this.stackPool.release(stack);
     }
   }
   
@@ -108,6 +108,23 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
   private BigDecimal previousLastBDValue = lastBDValue;
   private String previousLastStringValue = lastStringValue;
 
+  /**
+   * STRING dictionary entries indexed by code, @see GTSEncoder.setStringDictionary
+   */
+  private String[] stringDictionary = null;
+  
+  /**
+   * Flag indicating whether the datapoint decoded by the last call to 'decodeNext' was outside the window
+   */
+  private boolean skipped = false;
+  
+  /**
+   * UTF-8 representation of lastStringValue when it was not materialized because its datapoint
+   * was skipped. The buffer cannot be read backwards so the bytes are copied in a reused array.
+   */
+  private byte[] pendingString = null;
+  private int pendingStringLength = -1;
+  
   /**
    * Flag indicating whether or not 'next' was called at least once
    */
@@ -172,6 +189,29 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
    * @return true if a measurement was successfully read, false if none were left in the buffer.
    */
   public boolean next() {
+    if (!this.windowed) {
+      return decodeNext();
+    }
+    
+    if (this.exhausted) {
+      return false;
+    }
+    
+    while(decodeNext()) {
+      if (!this.skipped) {
+        return true;
+      }
+      
+      if (this.chronological && this.lastTimestamp > this.windowEnd) {
+        this.exhausted = true;
+        return false;
+      }
+    }
+    
+    return false;
+  }
+  
+  private boolean decodeNext() {
     
     //
     // Update position prior to reading the next value, etc so we can 
@@ -211,7 +251,7 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
         buffer.position(buffer.position() + enclen);
         
         // WARNING(hbs): if there are many encrypted chunks this may lead to a stack overflow
-        return next();
+        return decodeNext();
       }
       
       byte[] encrypted = new byte[enclen];
@@ -253,7 +293,7 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
       //
       // WARNING(hbs): we may hit StackOverflow in some cases
       
-      return next();
+      return decodeNext();
     }
 
     //
@@ -307,6 +347,13 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
         throw new RuntimeException("Invalid timestamp format.");
     }
 
+    this.skipped = this.windowed && (lastTimestamp < windowStart || lastTimestamp > windowEnd);
+    
+    if (!this.skipped && this.pendingStringLength >= 0) {
+      lastStringValue = new String(this.pendingString, 0, this.pendingStringLength, Charsets.UTF_8);
+      this.pendingStringLength = -1;
+    }
+
     //
     // Read location/elevation
     //
@@ -409,7 +456,27 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
         
       case GTSEncoder.FLAGS_TYPE_STRING:
         lastType = TYPE.STRING;
-        if (GTSEncoder.FLAGS_VALUE_IDENTICAL != (tsTypeFlag & GTSEncoder.FLAGS_VALUE_IDENTICAL)) {
+        if (GTSEncoder.FLAGS_STRING_DICTIONARY_REFERENCE == (tsTypeFlag & GTSEncoder.FLAGS_STRING_DICTIONARY_REFERENCE)) {
+          long code = Varint.decodeUnsignedLong(buffer);
+          
+          if (null == stringDictionary || code < 0 || code >= stringDictionary.length || null == stringDictionary[(int) code]) {
+            throw new RuntimeException("Invalid string dictionary reference.");
+          }
+          
+          previousLastStringValue = lastStringValue;
+          lastStringValue = stringDictionary[(int) code];
+          this.pendingStringLength = -1;
+        } else if (GTSEncoder.FLAGS_VALUE_IDENTICAL != (tsTypeFlag & GTSEncoder.FLAGS_VALUE_IDENTICAL)) {
+          long code = -1L;
+          
+          if (GTSEncoder.FLAGS_STRING_DICTIONARY_DEFINITION == (tsTypeFlag & GTSEncoder.FLAGS_STRING_DICTIONARY_DEFINITION)) {
+            code = Varint.decodeUnsignedLong(buffer);
+            
+            if (code < 0 || code >= GTSStringDictionary.MAX_ENTRIES) {
+              throw new RuntimeException("Invalid string dictionary code.");
+            }
+          }
+          
           // Decode String length
           long len = Varint.decodeUnsignedLong(buffer);
           
@@ -418,11 +485,31 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
             throw new RuntimeException("Invalid string length.");
           }
           
-          byte[] utf8 = new byte[(int) len];
-          // Read String UTF8 representation
-          buffer.get(utf8);
           previousLastStringValue = lastStringValue;
-          lastStringValue = new String(utf8, Charsets.UTF_8);
+          
+          if (this.skipped && code < 0) {
+            // Only keep the UTF-8 bytes, the String will be built if a later datapoint needs it
+            if (null == this.pendingString || this.pendingString.length < len) {
+              this.pendingString = new byte[Math.max(64, (int) len)];
+            }
+            buffer.get(this.pendingString, 0, (int) len);
+            this.pendingStringLength = (int) len;
+          } else {
+            byte[] utf8 = new byte[(int) len];
+            // Read String UTF8 representation
+            buffer.get(utf8);
+            lastStringValue = new String(utf8, Charsets.UTF_8);
+            this.pendingStringLength = -1;
+          }
+          
+          if (code >= 0) {
+            if (null == stringDictionary) {
+              stringDictionary = new String[Math.max(16, (int) code + 1)];
+            } else if (code >= stringDictionary.length) {
+              stringDictionary = Arrays.copyOf(stringDictionary, Math.max((int) code + 1, Math.min(GTSStringDictionary.MAX_ENTRIES, stringDictionary.length << 1)));
+            }
+            stringDictionary[(int) code] = lastStringValue;
+          }
         }
         break;
         
@@ -512,8 +599,15 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
     this.lastDoubleValue = initialDoubleValue;
     this.lastBDValue = initialBDValue;
     this.lastStringValue = initialStringValue;
+    this.pendingStringLength = -1;
   } 
   
+  @Override
+  void initialize(long initialTimestamp, long initialGeoXPPoint, long initialElevation, long initialLongValue, double initialDoubleValue, BigDecimal initialBDValue, String initialStringValue, String[] initialStringDictionary) {
+    initialize(initialTimestamp, initialGeoXPPoint, initialElevation, initialLongValue, initialDoubleValue, initialBDValue, initialStringValue);
+    this.stringDictionary = null == initialStringDictionary ? null : Arrays.copyOf(initialStringDictionary, initialStringDictionary.length);
+  }
+  
   /**
    * Returns a new instance of GTSDecoder with duplicates removed
    * 
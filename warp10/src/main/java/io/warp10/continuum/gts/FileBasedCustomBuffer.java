@@ -154,7 +154,7 @@ public class FileBasedCustomBuffer implements CustomBuffer {
     
     // Read from the stream
     try {
-      int len = this.stream.read(buf, off, this.buffer.limit());
+      int len = this.stream.read(buf, off, buf.length - off);
     
       if (len > 0) {
         this.offset += len;
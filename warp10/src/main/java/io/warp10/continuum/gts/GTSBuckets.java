@@ -0,0 +1,161 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Dense, bucket indexed view of a bucketized GeoTimeSerie.
+ *
+ * The ticks of a bucketized GTS are implied by lastbucket, bucketspan and bucketcount, so
+ * the view maps each bucket to the index of its datapoint in the GTS and keeps a presence
+ * bitmap of the buckets, locating the datapoint of a tick is then O(1) instead of a binary
+ * search, and the view is built in a single pass without sorting the GTS.
+ *
+ * Buckets are numbered from 0 (the oldest one, ending at lastbucket - (bucketcount - 1) * bucketspan)
+ * to bucketcount - 1 (the one ending at lastbucket). Datapoints whose tick is not a bucket end are
+ * ignored. If several datapoints share a bucket, the last one in storage order is retained.
+ *
+ * The GTS MUST NOT be modified while the view is in use.
+ */
+final class GTSBuckets {
+
+  private final GeoTimeSerie gts;
+
+  /**
+   * Index of the datapoint of each bucket, -1 if the bucket is empty
+   */
+  private final int[] positions;
+
+  private final BitSet present;
+
+  /**
+   * Index of the most recent datapoint on the bucket grid older than bucket 0, -1 if none
+   */
+  private int before = -1;
+
+  /**
+   * Index of the oldest datapoint on the bucket grid more recent than lastbucket, -1 if none
+   */
+  private int after = -1;
+
+  GTSBuckets(GeoTimeSerie gts) {
+    this.gts = gts;
+    this.positions = new int[gts.bucketcount];
+    this.present = new BitSet(gts.bucketcount);
+
+    Arrays.fill(this.positions, -1);
+
+    for (int i = 0; i < gts.values; i++) {
+      long tick = gts.ticks[i];
+
+      if (!onGrid(gts, tick)) {
+        continue;
+      }
+
+      int bucket = bucket(gts, tick);
+
+      if (bucket >= 0) {
+        this.positions[bucket] = i;
+        this.present.set(bucket);
+      } else if (tick < firstbucket(gts)) {
+        if (-1 == this.before || tick > gts.ticks[this.before]) {
+          this.before = i;
+        }
+      } else if (-1 == this.after || tick < gts.ticks[this.after]) {
+        this.after = i;
+      }
+    }
+  }
+
+  /**
+   * @return the index of the bucket ending at 'tick' or -1 if 'tick' is not the end of one of the buckets of 'gts'
+   */
+  static int bucketIndex(GeoTimeSerie gts, long tick) {
+    if (!onGrid(gts, tick)) {
+      return -1;
+    }
+    return bucket(gts, tick);
+  }
+
+  int bucketcount() {
+    return this.positions.length;
+  }
+
+  long tick(int bucket) {
+    return this.gts.lastbucket - (this.positions.length - 1 - bucket) * this.gts.bucketspan;
+  }
+
+  boolean isPresent(int bucket) {
+    return this.present.get(bucket);
+  }
+
+  /**
+   * @return the index in the GTS of the datapoint of 'bucket' or -1 if the bucket is empty
+   */
+  int index(int bucket) {
+    return this.positions[bucket];
+  }
+
+  /**
+   * @return the number of non empty buckets
+   */
+  int cardinality() {
+    return this.present.cardinality();
+  }
+
+  /**
+   * @return the first non empty bucket at or after 'bucket', -1 if there is none
+   */
+  int nextPresent(int bucket) {
+    return this.present.nextSetBit(bucket);
+  }
+
+  /**
+   * @return the last non empty bucket at or before 'bucket', -1 if there is none
+   */
+  int previousPresent(int bucket) {
+    return this.present.previousSetBit(bucket);
+  }
+
+  int before() {
+    return this.before;
+  }
+
+  int after() {
+    return this.after;
+  }
+
+  private static long firstbucket(GeoTimeSerie gts) {
+    return gts.lastbucket - (gts.bucketcount - 1) * gts.bucketspan;
+  }
+
+  private static boolean onGrid(GeoTimeSerie gts, long tick) {
+    return 0 == (gts.lastbucket - tick) % gts.bucketspan;
+  }
+
+  /**
+   * @return the bucket of a tick on the grid, -1 if it is outside of the buckets
+   */
+  private static int bucket(GeoTimeSerie gts, long tick) {
+    if (tick > gts.lastbucket || tick < firstbucket(gts)) {
+      return -1;
+    }
+    return gts.bucketcount - 1 - (int) ((gts.lastbucket - tick) / gts.bucketspan);
+  }
+}
@@ -115,6 +115,51 @@ public class GTSDecoder {
   private BigDecimal previousLastBDValue = lastBDValue;
   private String previousLastStringValue = lastStringValue;
 
+  /**
+   * STRING dictionary entries indexed by code, @see GTSEncoder.setStringDictionary
+   */
+  private String[] stringDictionary = null;
+  
+  /**
+   * Code of the dictionary entry defined by the last call to 'next' (-1 if none)
+   * and previous value of this entry, needed to rebuild the dictionary in getEncoder
+   */
+  private int previousStringDictionaryCode = -1;
+  private String previousStringDictionaryEntry = null;
+  
+  /**
+   * Time window [windowStart,windowEnd] outside of which datapoints are skipped, @see setWindow
+   */
+  boolean windowed = false;
+  long windowStart = Long.MIN_VALUE;
+  long windowEnd = Long.MAX_VALUE;
+  
+  /**
+   * Flag indicating the ticks are known to be in chronological order, so decoding can stop
+   * as soon as a tick past 'windowEnd' is encountered
+   */
+  boolean chronological = false;
+  
+  /**
+   * Flag set when a chronological decoder went past 'windowEnd'
+   */
+  boolean exhausted = false;
+  
+  /**
+   * Flag indicating whether the datapoint decoded by the last call to 'decodeNext' was outside the window
+   */
+  private boolean skipped = false;
+  
+  /**
+   * Position and length in 'buffer' of the UTF-8 representation of lastStringValue/previousLastStringValue
+   * when the String was not materialized because its datapoint was skipped, offset is -1 if the String is
+   * materialized.
+   */
+  private int lastStringOffset = -1;
+  private int lastStringLength = 0;
+  private int previousLastStringOffset = -1;
+  private int previousLastStringLength = 0;
+  
   /**
    * Flag indicating whether or not 'next' was called at least once
    */
@@ -182,11 +227,53 @@ public class GTSDecoder {
     this.position = bb.position();
   }
 
+  /**
+   * Restrict the datapoints returned by 'next' to those whose tick lies in [start,end].
+   * 
+   * Datapoints outside the window are skipped without materializing their STRING values,
+   * only what is needed to follow the delta encoding chains is decoded.
+   * 
+   * @param start Lower bound of the window (inclusive)
+   * @param end Upper bound of the window (inclusive)
+   * @param chronological Set to true if the ticks are known to be in chronological order,
+   *                      decoding will then stop at the first tick past 'end'.
+   */
+  public void setWindow(long start, long end, boolean chronological) {
+    this.windowed = true;
+    this.windowStart = start;
+    this.windowEnd = end;
+    this.chronological = chronological;
+    this.exhausted = false;
+  }
+  
   /**
    * Attempt to read the next measurement and associated metadata (timestamp, location, elevation)
    * @return true if a measurement was successfully read, false if none were left in the buffer.
    */
   public boolean next() {
+    if (!this.windowed) {
+      return decodeNext();
+    }
+    
+    if (this.exhausted) {
+      return false;
+    }
+    
+    while(decodeNext()) {
+      if (!this.skipped) {
+        return true;
+      }
+      
+      if (this.chronological && this.lastTimestamp > this.windowEnd) {
+        this.exhausted = true;
+        return false;
+      }
+    }
+    
+    return false;
+  }
+  
+  private boolean decodeNext() {
     
     //
     // Update position prior to reading the next value, etc so we can 
@@ -226,7 +313,7 @@ public class GTSDecoder {
         buffer.position(buffer.position() + enclen);
         
         // WARNING(hbs): if there are many encrypted chunks this may lead to a stack overflow
-        return next();
+        return decodeNext();
       }
       
       byte[] encrypted = new byte[enclen];
@@ -257,6 +344,9 @@ public class GTSDecoder {
         
         ByteBuffer bb = ByteBuffer.allocate(decrypted.length - padcount + this.buffer.remaining());
         
+        // Skipped Strings refer to the current buffer, materialize them before replacing it
+        materializeStrings();
+        
         bb.put(decrypted, 0, decrypted.length - padcount);
         bb.put(this.buffer);
         bb.flip();
@@ -275,7 +365,7 @@ public class GTSDecoder {
       //
       // WARNING(hbs): we may hit StackOverflow in some cases
       
-      return next();
+      return decodeNext();
     }
 
     //
@@ -329,6 +419,12 @@ public class GTSDecoder {
         throw new RuntimeException("Invalid timestamp format.");
     }
 
+    this.skipped = this.windowed && (lastTimestamp < windowStart || lastTimestamp > windowEnd);
+    
+    if (!this.skipped) {
+      materializeStrings();
+    }
+
     //
     // Read location/elevation
     //
@@ -384,6 +480,8 @@ public class GTSDecoder {
     // Extract value
     //
     
+    previousStringDictionaryCode = -1;
+    
     switch (tsTypeFlag & GTSEncoder.FLAGS_MASK_TYPE) {
       case GTSEncoder.FLAGS_TYPE_LONG:
         lastType = TYPE.LONG;
@@ -436,7 +534,26 @@ public class GTSDecoder {
         
       case GTSEncoder.FLAGS_TYPE_STRING:
         lastType = TYPE.STRING;
-        if (GTSEncoder.FLAGS_VALUE_IDENTICAL != (tsTypeFlag & GTSEncoder.FLAGS_VALUE_IDENTICAL)) {
+        if (GTSEncoder.FLAGS_STRING_DICTIONARY_REFERENCE == (tsTypeFlag & GTSEncoder.FLAGS_STRING_DICTIONARY_REFERENCE)) {
+          long code = Varint.decodeUnsignedLong(buffer);
+          
+          if (null == stringDictionary || code < 0 || code >= stringDictionary.length || null == stringDictionary[(int) code]) {
+            throw new RuntimeException("Invalid string dictionary reference.");
+          }
+          
+          shiftString();
+          lastStringValue = stringDictionary[(int) code];
+        } else if (GTSEncoder.FLAGS_VALUE_IDENTICAL != (tsTypeFlag & GTSEncoder.FLAGS_VALUE_IDENTICAL)) {
+          long code = -1L;
+          
+          if (GTSEncoder.FLAGS_STRING_DICTIONARY_DEFINITION == (tsTypeFlag & GTSEncoder.FLAGS_STRING_DICTIONARY_DEFINITION)) {
+            code = Varint.decodeUnsignedLong(buffer);
+            
+            if (code < 0 || code >= GTSStringDictionary.MAX_ENTRIES) {
+              throw new RuntimeException("Invalid string dictionary code.");
+            }
+          }
+          
           // Decode String length
           long len = Varint.decodeUnsignedLong(buffer);
           
@@ -445,13 +562,27 @@ public class GTSDecoder {
             throw new RuntimeException("Invalid string length.");
           }
           
-          byte[] utf8 = new byte[(int) len];
-          // Read String UTF8 representation
-          buffer.get(utf8);
-          previousLastStringValue = lastStringValue;
-          lastStringValue = new String(utf8, Charsets.UTF_8);
+          shiftString();
+
+          if (this.skipped && code < 0) {
+            // Only remember where the String is, it will be materialized if needed
+            lastStringOffset = buffer.position();
+            lastStringLength = (int) len;
+            buffer.position(buffer.position() + (int) len);
+          } else {
+            byte[] utf8 = new byte[(int) len];
+            // Read String UTF8 representation
+            buffer.get(utf8);
+            lastStringValue = new String(utf8, Charsets.UTF_8);
+          }
+          
+          if (code >= 0) {
+            defineString((int) code, lastStringValue);
+          }
         } else {
-          previousLastStringValue = lastStringValue;          
+          shiftString();
+          lastStringOffset = previousLastStringOffset;
+          lastStringLength = previousLastStringLength;
         }
         break;
         
@@ -480,6 +611,53 @@ public class GTSDecoder {
     return true;
   }
   
+  /**
+   * Make the current String value the previous one
+   */
+  private void shiftString() {
+    previousLastStringValue = lastStringValue;
+    previousLastStringOffset = lastStringOffset;
+    previousLastStringLength = lastStringLength;
+    lastStringOffset = -1;
+  }
+  
+  /**
+   * Materialize the String values which were skipped
+   */
+  private void materializeStrings() {
+    if (lastStringOffset >= 0) {
+      lastStringValue = readString(lastStringOffset, lastStringLength);
+      lastStringOffset = -1;
+    }
+    if (previousLastStringOffset >= 0) {
+      previousLastStringValue = readString(previousLastStringOffset, previousLastStringLength);
+      previousLastStringOffset = -1;
+    }
+  }
+  
+  private String readString(int offset, int len) {
+    byte[] utf8 = new byte[len];
+    ByteBuffer bb = this.buffer.duplicate();
+    bb.position(offset);
+    bb.get(utf8);
+    return new String(utf8, Charsets.UTF_8);
+  }
+  
+  /**
+   * Record a STRING dictionary entry, keeping track of the entry it replaces
+   */
+  private void defineString(int code, String value) {
+    if (null == stringDictionary) {
+      stringDictionary = new String[Math.max(16, code + 1)];
+    } else if (code >= stringDictionary.length) {
+      stringDictionary = Arrays.copyOf(stringDictionary, Math.max(code + 1, Math.min(GTSStringDictionary.MAX_ENTRIES, stringDictionary.length << 1)));
+    }
+    
+    previousStringDictionaryCode = code;
+    previousStringDictionaryEntry = stringDictionary[code];
+    stringDictionary[code] = value;
+  }
+  
   public long getTimestamp() {
     return lastTimestamp;
   }
@@ -525,6 +703,14 @@ public class GTSDecoder {
       GTSHelper.setValue(gts, getTimestamp(), getLocation(), getElevation(), getValue(), false);
     }
     
+    //
+    // If the values were dictionary encoded, keep the GTS dictionary backed
+    //
+    
+    if (null != this.stringDictionary && TYPE.STRING == gts.getType()) {
+      GTSHelper.useStringDictionary(gts);
+    }
+    
     return gts;
   }
   
@@ -614,6 +800,13 @@ public class GTSDecoder {
       throw new IOException("Can only get an encoder for a decoder on which 'next' was called at least once.");
     }
     
+    //
+    // The last datapoints may have been skipped by a window (the decoder may be exhausted), the
+    // initial String value must then be read from the buffer
+    //
+    
+    materializeStrings();
+    
     //
     // Copy the remaining data into a new ByteBuffer
     //
@@ -646,9 +839,18 @@ public class GTSDecoder {
     }
 
     //
-    // Set initial values
+    // Set initial values, the STRING dictionary is the one in effect prior to the last value
     //
     
+    String[] dictionary = null;
+    
+    if (null != this.stringDictionary) {
+      dictionary = Arrays.copyOf(this.stringDictionary, this.stringDictionary.length);
+      if (this.previousStringDictionaryCode >= 0) {
+        dictionary[this.previousStringDictionaryCode] = this.previousStringDictionaryEntry;
+      }
+    }
+    
     encoder.initialize(
       this.previousLastTimestamp,
       this.previousLastGeoXPPoint,
@@ -656,7 +858,8 @@ public class GTSDecoder {
       this.previousLastLongValue,
       this.previousLastDoubleValue,
       this.previousLastBDValue,
-      this.previousLastStringValue);
+      this.previousLastStringValue,
+      dictionary);
         
     //
     // Copy the encoded data
@@ -697,6 +900,12 @@ public class GTSDecoder {
     this.lastStringValue = initialStringValue;
   } 
   
+  void initialize(long initialTimestamp, long initialGeoXPPoint, long initialElevation, long initialLongValue, double initialDoubleValue, BigDecimal initialBDValue, String initialStringValue, String[] initialStringDictionary) {
+    initialize(initialTimestamp, initialGeoXPPoint, initialElevation, initialLongValue, initialDoubleValue, initialBDValue, initialStringValue);
+    // Copy the dictionary as we may modify it
+    this.stringDictionary = null == initialStringDictionary ? null : Arrays.copyOf(initialStringDictionary, initialStringDictionary.length);
+  }
+  
   public long getCount() {
     return this.count;
   }
@@ -839,6 +1048,21 @@ public class GTSDecoder {
     decoder.lastBooleanValue = this.lastBooleanValue;
     decoder.lastType = this.lastType;
 
+    decoder.stringDictionary = null == this.stringDictionary ? null : Arrays.copyOf(this.stringDictionary, this.stringDictionary.length);
+    decoder.previousStringDictionaryCode = this.previousStringDictionaryCode;
+    decoder.previousStringDictionaryEntry = this.previousStringDictionaryEntry;
+    
+    decoder.windowed = this.windowed;
+    decoder.windowStart = this.windowStart;
+    decoder.windowEnd = this.windowEnd;
+    decoder.chronological = this.chronological;
+    decoder.exhausted = this.exhausted;
+    decoder.skipped = this.skipped;
+    decoder.lastStringOffset = this.lastStringOffset;
+    decoder.lastStringLength = this.lastStringLength;
+    decoder.previousLastStringOffset = this.previousLastStringOffset;
+    decoder.previousLastStringLength = this.previousLastStringLength;
+    
     return decoder;
   }
   
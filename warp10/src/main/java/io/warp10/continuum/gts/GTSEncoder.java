@@ -125,6 +125,14 @@ public class GTSEncoder {
 
   static final byte FLAGS_VALUE_IDENTICAL = 0x01;
 
+  //
+  // STRING values encoded using the encoder dictionary, @see setStringDictionary
+  // A definition is followed by the code and the inline value, a reference only by the code.
+  //
+  
+  static final byte FLAGS_STRING_DICTIONARY_DEFINITION = 0x02;
+  static final byte FLAGS_STRING_DICTIONARY_REFERENCE = 0x04;
+
   static final byte FLAGS_LOCATION = 0x40;
   static final byte FLAGS_LOCATION_GEOXPPOINT_ZIGZAG_DELTA = 0x20;
   static final byte FLAGS_LOCATION_IDENTICAL = 0x10;
@@ -210,6 +218,22 @@ public class GTSEncoder {
   
   private boolean noDeltaValue = false;
   
+  /**
+   * Flag indicating whether or not STRING values are encoded using a dictionary
+   */
+  private boolean stringDictionary = false;
+  
+  /**
+   * Codes of the STRING values defined in the current stream since the last call to safeDelta
+   */
+  private Map<String,Integer> stringCodes = null;
+  
+  /**
+   * Dictionary in effect at the start of the stream, needed to decode dictionary
+   * references when creating an encoder from a decoder. @see GTSDecoder.getEncoder
+   */
+  private String[] initialStringDictionary = null;
+  
   public GTSEncoder() {
     this.stream = new ByteArrayOutputStream();
     this.wrappingKey = null;
@@ -377,6 +401,13 @@ public class GTSEncoder {
       tsTypeFlag |= FLAGS_TYPE_STRING;
       if (((String) value).equals(lastStringValue)) {
         tsTypeFlag |= FLAGS_VALUE_IDENTICAL;
+      } else if (this.stringDictionary) {
+        if (null != stringCodes && stringCodes.containsKey(value)) {
+          tsTypeFlag |= FLAGS_STRING_DICTIONARY_REFERENCE;
+        } else if (null == stringCodes || stringCodes.size() < GTSStringDictionary.MAX_ENTRIES) {
+          tsTypeFlag |= FLAGS_STRING_DICTIONARY_DEFINITION;
+        }
+        // Otherwise the dictionary is full, store the value inline
       }
     } else if (value instanceof Double || value instanceof Float) {
       tsTypeFlag |= FLAGS_TYPE_DOUBLE;
@@ -617,7 +648,24 @@ public class GTSEncoder {
 
     switch (tsTypeFlag & FLAGS_MASK_TYPE) {
       case FLAGS_TYPE_STRING:
-        if (FLAGS_VALUE_IDENTICAL != (tsTypeFlag & FLAGS_VALUE_IDENTICAL)) {
+        if (FLAGS_STRING_DICTIONARY_REFERENCE == (tsTypeFlag & FLAGS_STRING_DICTIONARY_REFERENCE)) {
+          // Only store the code of the value
+          int l = Varint.encodeUnsignedLongInBuf(stringCodes.get(value), buf10);
+          this.stream.write(buf10, 0, l);
+          
+          // Keep track of last value
+          lastStringValue = (String) value;
+        } else if (FLAGS_VALUE_IDENTICAL != (tsTypeFlag & FLAGS_VALUE_IDENTICAL)) {
+          if (FLAGS_STRING_DICTIONARY_DEFINITION == (tsTypeFlag & FLAGS_STRING_DICTIONARY_DEFINITION)) {
+            if (null == stringCodes) {
+              stringCodes = new HashMap<String,Integer>();
+            }
+            int code = stringCodes.size();
+            stringCodes.put((String) value, code);
+            // Store the code prior to the value itself
+            int l = Varint.encodeUnsignedLongInBuf(code, buf10);
+            this.stream.write(buf10, 0, l);
+          }
           // Convert String to UTF8 byte array
           byte[] utf8 = ((String) value).getBytes(Charsets.UTF_8);
           // Store encoded byte array length as zig zag varint
@@ -847,7 +895,8 @@ public class GTSEncoder {
       this.initialLongValue,
       this.initialDoubleValue,
       this.initialBDValue,
-      this.initialStringValue);
+      this.initialStringValue,
+      this.initialStringDictionary);
     
     decoder.setCount(this.getCount());
     return decoder;
@@ -911,7 +960,8 @@ public class GTSEncoder {
       this.initialLongValue,
       this.initialDoubleValue,
       this.initialBDValue,
-      this.initialStringValue);
+      this.initialStringValue,
+      this.initialStringDictionary);
     
     decoder.setCount(this.getCount());
     
@@ -934,6 +984,15 @@ public class GTSEncoder {
    * @param initialStringValue
    */
   synchronized void initialize(long initialTimestamp, long initialGeoXPPoint, long initialElevation, long initialLongValue, double initialDoubleValue, BigDecimal initialBDValue, String initialStringValue) {
+    initialize(initialTimestamp, initialGeoXPPoint, initialElevation, initialLongValue, initialDoubleValue, initialBDValue, initialStringValue, null);
+  }
+  
+  /**
+   * Set the initial values of the encoder, including the STRING dictionary in effect at the start of the stream.
+   * 
+   * @param initialStringDictionary Dictionary entries indexed by code, the array is NOT copied.
+   */
+  synchronized void initialize(long initialTimestamp, long initialGeoXPPoint, long initialElevation, long initialLongValue, double initialDoubleValue, BigDecimal initialBDValue, String initialStringValue, String[] initialStringDictionary) {
     if (this.readonly) {
       throw new RuntimeException("Encoder is read-only.");
     }
@@ -944,6 +1003,7 @@ public class GTSEncoder {
     this.initialDoubleValue = initialDoubleValue;
     this.initialBDValue = initialBDValue;
     this.initialStringValue = initialStringValue;
+    this.initialStringDictionary = initialStringDictionary;
   }
   
   /**
@@ -956,7 +1016,7 @@ public class GTSEncoder {
     if (this.readonly) {
       throw new RuntimeException("Encoder is read-only.");
     }
-    this.initialize(encoder.initialTimestamp, encoder.initialGeoXPPoint, encoder.initialElevation, encoder.initialLongValue, encoder.initialDoubleValue, encoder.initialBDValue, encoder.initialStringValue);
+    this.initialize(encoder.initialTimestamp, encoder.initialGeoXPPoint, encoder.initialElevation, encoder.initialLongValue, encoder.initialDoubleValue, encoder.initialBDValue, encoder.initialStringValue, encoder.initialStringDictionary);
     
     this.baseTimestamp = encoder.baseTimestamp;
     this.count = encoder.count;
@@ -978,6 +1038,9 @@ public class GTSEncoder {
     this.noDeltaMetaElevation = encoder.noDeltaMetaElevation;
     this.noDeltaValue = encoder.noDeltaValue;
     
+    this.stringDictionary = encoder.stringDictionary;
+    this.stringCodes = null == encoder.stringCodes ? null : new HashMap<String,Integer>(encoder.stringCodes);
+    
     this.stream.reset();
     encoder.stream.writeTo(this.stream);
   }
@@ -1002,6 +1065,9 @@ public class GTSEncoder {
     initialDoubleValue = lastDoubleValue;
     initialBDValue = lastBDValue;
     initialStringValue = lastStringValue;
+    initialStringDictionary = null;
+    
+    stringCodes = null;
 
     metadata = null;
     count = 0L;
@@ -1071,7 +1137,8 @@ public class GTSEncoder {
         || this.lastLongValue != encoder.initialLongValue
         || this.lastDoubleValue != encoder.initialDoubleValue
         || this.lastBDValue != encoder.initialBDValue
-        || this.lastStringValue != encoder.initialStringValue) {
+        || this.lastStringValue != encoder.initialStringValue
+        || null != encoder.initialStringDictionary) {
       GTSDecoder decoder = encoder.getDecoder(true);
 
       while (decoder.next()) {
@@ -1094,6 +1161,13 @@ public class GTSEncoder {
       this.lastDoubleValue = encoder.lastDoubleValue;
       this.lastStringValue = encoder.lastStringValue;
       this.count += encoder.getCount();
+      
+      //
+      // The merged data may have redefined some of our dictionary codes, so
+      // forget about them, values will be defined again when first encountered
+      //
+      
+      this.stringCodes = null;
     }
   }
   
@@ -1189,6 +1263,30 @@ public class GTSEncoder {
     this.noDeltaMetaElevation = true;
     
     this.noDeltaValue = true;
+    
+    // Dictionary definitions may not be part of the stream anymore
+    this.stringCodes = null;
+  }
+  
+  /**
+   * Enable or disable the encoding of STRING values using a dictionary.
+   * 
+   * When enabled, the first occurrence of each distinct STRING value is stored along with a code,
+   * subsequent occurrences are stored as a varint encoded reference to that code. This drastically
+   * reduces the size of series with few distinct values which repeat non consecutively.
+   * 
+   * Note that the resulting data can only be decoded by decoders aware of dictionary encoding.
+   */
+  public synchronized void setStringDictionary(boolean enabled) {
+    if (this.readonly) {
+      throw new RuntimeException("Encoder is read-only.");
+    }
+
+    this.stringDictionary = enabled;
+  }
+  
+  public boolean hasStringDictionary() {
+    return this.stringDictionary;
   }
   
   public synchronized void setCount(long count) {
@@ -1273,6 +1371,7 @@ public class GTSEncoder {
     if (null != this.wrappingKey) {
       encoder.setWrappingKey(Arrays.copyOf(this.wrappingKey, this.wrappingKey.length));
     }
+    encoder.stringDictionary = this.stringDictionary;
     
     return encoder;
   }
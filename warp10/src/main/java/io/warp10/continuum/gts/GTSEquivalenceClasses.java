@@ -0,0 +1,199 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Group GTS instances into equivalence classes according to the values of some of their labels.
+ *
+ * Each class is identified by a 64 bit hash of its label values, computed from the cached hash
+ * codes of the label names and values, so no map is built nor hashed for the GTS which fall into
+ * an existing class. The label map of a class is only built once, when the first GTS of the class
+ * is encountered, and is then the canonical instance for that class. Hash collisions are resolved
+ * by comparing the labels of the GTS with the canonical map.
+ *
+ * The labels of the GTS are read in place, they MUST NOT be modified while the classes are built.
+ */
+final class GTSEquivalenceClasses {
+
+  private static final class EqClass {
+    /**
+     * Canonical map of the label values defining the class
+     */
+    private final Map<String,String> key;
+
+    /**
+     * Labels common to all members
+     */
+    private final Map<String,String> common;
+
+    private final List<GeoTimeSerie> members = new ArrayList<GeoTimeSerie>();
+
+    /**
+     * Next class with the same hash
+     */
+    private EqClass next;
+
+    private EqClass(Map<String,String> key, Map<String,String> labels) {
+      this.key = key;
+      this.common = new HashMap<String,String>(labels);
+    }
+  }
+
+  private final Collection<String> bylabels;
+
+  private final Map<Long,EqClass> classes = new HashMap<Long,EqClass>();
+
+  /**
+   * Classes in creation order
+   */
+  private final List<EqClass> ordered = new ArrayList<EqClass>();
+
+  /**
+   * @param bylabels Names of the labels defining the classes or null to use all labels of each GTS
+   */
+  GTSEquivalenceClasses(Collection<String> bylabels) {
+    this.bylabels = bylabels;
+  }
+
+  void add(GeoTimeSerie gts) {
+    Map<String,String> labels = gts.getMetadata().getLabels();
+
+    long hash = hash(labels);
+
+    EqClass head = this.classes.get(hash);
+    EqClass cls = head;
+
+    while (null != cls && !matches(cls.key, labels)) {
+      cls = cls.next;
+    }
+
+    if (null == cls) {
+      cls = new EqClass(key(labels), labels);
+      cls.next = head;
+      this.classes.put(hash, cls);
+      this.ordered.add(cls);
+    } else {
+      //
+      // Remove from the common labels those which 'gts' does not have
+      //
+
+      Iterator<Entry<String,String>> iter = cls.common.entrySet().iterator();
+
+      while (iter.hasNext()) {
+        Entry<String,String> entry = iter.next();
+        if (!entry.getValue().equals(labels.get(entry.getKey()))) {
+          iter.remove();
+        }
+      }
+    }
+
+    cls.members.add(gts);
+  }
+
+  /**
+   * @return a map of the common labels of each class to its members
+   */
+  Map<Map<String,String>, List<GeoTimeSerie>> partition() {
+    Map<Map<String,String>, List<GeoTimeSerie>> partition = new HashMap<Map<String,String>, List<GeoTimeSerie>>();
+
+    for (EqClass cls: this.ordered) {
+      partition.put(cls.common, cls.members);
+    }
+
+    return partition;
+  }
+
+  /**
+   * Compute the hash of the labels defining the class of a GTS.
+   * Entries are combined with a commutative operation so the hash does not depend on the iteration order.
+   */
+  private long hash(Map<String,String> labels) {
+    long hash = 0L;
+
+    if (null == this.bylabels) {
+      for (Entry<String,String> entry: labels.entrySet()) {
+        hash += mix(entry.getKey().hashCode(), entry.getValue().hashCode());
+      }
+    } else {
+      for (String label: this.bylabels) {
+        String value = labels.get(label);
+        if (null != value) {
+          hash += mix(label.hashCode(), value.hashCode());
+        }
+      }
+    }
+
+    return hash;
+  }
+
+  private static long mix(int name, int value) {
+    long h = ((long) name << 32) ^ (value & 0xFFFFFFFFL);
+
+    // Finalizer of MurmurHash3
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+
+  /**
+   * Check if the labels of a GTS define the class whose canonical map is 'key'
+   */
+  private boolean matches(Map<String,String> key, Map<String,String> labels) {
+    if (null == this.bylabels) {
+      return key.equals(labels);
+    }
+
+    for (String label: this.bylabels) {
+      String value = labels.get(label);
+
+      if (null == value ? key.containsKey(label) : !value.equals(key.get(label))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private Map<String,String> key(Map<String,String> labels) {
+    Map<String,String> key = new HashMap<String,String>();
+
+    if (null == this.bylabels) {
+      key.putAll(labels);
+    } else {
+      for (String label: this.bylabels) {
+        String value = labels.get(label);
+        if (null != value) {
+          key.put(label, value);
+        }
+      }
+    }
+
+    return key;
+  }
+}
@@ -33,10 +33,13 @@ import io.warp10.script.WarpScriptFilterFunction;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.functions.MACROMAPPER;
 import io.warp10.script.functions.METASORT;
 import io.warp10.script.functions.TOQUATERNION;
@@ -103,6 +106,11 @@ public class GTSHelper {
    * Maximum number of values for a GTS instance.
    */
   private static final int MAX_VALUES = 10000000;
+  
+  /**
+   * Minimum length of the runs merged when sorting, shorter runs are extended using an insertion sort
+   */
+  private static final int SORT_MIN_RUN = 32;
     
   /**
    * Sort the values (and associated locations/elevations) by order of their ticks
@@ -122,16 +130,45 @@ public class GTSHelper {
       gts.sorted = false;
     }    
 
+    if (gts.sorted) {
+      return gts;
+    }
+    
+    int n = gts.values;
+    
+    //
+    // Random ticks are sorted in place using the quicksort
     //
-    // Do not sort the GTS if it is already sorted as QS worst case is
-    // encountered when the array is already sorted and is O(n^2)
-    // 
     
-    if (gts.sorted) {
+    if (!isNearlySorted(gts.ticks, n)) {
+      quicksort(gts, 0, n - 1, reversed);
+      gts.sorted = true;
+      gts.reversed = reversed;
       return gts;
     }
     
-    quicksort(gts, 0, gts.values - 1, reversed);
+    //
+    // Ticks with long sorted (or reverse sorted) runs are merge sorted, inverted if 'reversed' is true so the
+    // result is in descending order, then the other arrays are moved according to the resulting permutation
+    //
+    
+    if (reversed) {
+      for (int i = 0; i < n; i++) {
+        gts.ticks[i] = ~gts.ticks[i];
+      }
+    }
+    
+    int[] perm = sortPermutation(gts.ticks, null, n);
+    
+    if (reversed) {
+      for (int i = 0; i < n; i++) {
+        gts.ticks[i] = ~gts.ticks[i];
+      }
+    }
+    
+    if (null != perm) {
+      permute(gts, perm, false);
+    }
     
     gts.sorted = true;
     gts.reversed = reversed;
@@ -150,7 +187,61 @@ public class GTSHelper {
   }
   
   public static final GeoTimeSerie valueSort(GeoTimeSerie gts, boolean reversed) {
-    quicksortByValue(gts, 0, gts.values - 1, reversed);
+    int n = gts.values;
+    
+    //
+    // LONG and DOUBLE values are sorted as longs (the bits of doubles are mapped so their order is preserved),
+    // ties being broken by ticks, NaNs have no order so GTS with NaNs are sorted using the quicksort
+    //
+    
+    long[] keys = null;
+    
+    if (TYPE.LONG == gts.type) {
+      keys = gts.longValues;
+    } else if (TYPE.DOUBLE == gts.type) {
+      keys = new long[n];
+      for (int i = 0; i < n; i++) {
+        double d = gts.doubleValues[i];
+        if (Double.isNaN(d)) {
+          keys = null;
+          break;
+        }
+        // -0.0 and 0.0 are equal
+        long bits = Double.doubleToLongBits(0.0D == d ? 0.0D : d);
+        keys[i] = bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+      }
+    }
+    
+    if (null == keys || n < 2 || !isNearlySorted(keys, n)) {
+      quicksortByValue(gts, 0, n - 1, reversed);
+    } else {
+      long[] ticks = gts.ticks;
+      
+      if (reversed) {
+        ticks = new long[n];
+        for (int i = 0; i < n; i++) {
+          keys[i] = ~keys[i];
+          ticks[i] = ~gts.ticks[i];
+        }
+      }
+      
+      int[] perm = sortPermutation(keys, ticks, n);
+      
+      if (reversed && TYPE.LONG == gts.type) {
+        for (int i = 0; i < n; i++) {
+          keys[i] = ~keys[i];
+        }
+      }
+      
+      if (null != perm) {
+        gts.ticks = permute(gts.ticks, perm);
+        permute(gts, perm, TYPE.LONG == gts.type);
+      }
+    }
+    
+    // The GTS is no longer sorted by ticks
+    gts.sorted = false;
+    
     return gts;
   }
 
@@ -234,6 +325,266 @@ public class GTSHelper {
     }
   }
   
+  /**
+   * Check if the first 'n' elements of 'keys' form runs of ascending or descending keys which are, on average,
+   * at least SORT_MIN_RUN long, merging such runs is faster than sorting the keys with the quicksort.
+   */
+  private static final boolean isNearlySorted(long[] keys, int n) {
+    int maxruns = Math.max(1, n / SORT_MIN_RUN);
+    int nruns = 0;
+    int i = 0;
+    
+    while (i < n) {
+      if (++nruns > maxruns) {
+        return false;
+      }
+      
+      int j = i + 1;
+      
+      if (j < n && keys[j] < keys[j - 1]) {
+        while (j < n && keys[j] < keys[j - 1]) {
+          j++;
+        }
+      } else {
+        while (j < n && keys[j] >= keys[j - 1]) {
+          j++;
+        }
+      }
+      
+      i = j;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Compute the permutation which sorts the first 'n' elements of 'keys' in ascending order, ties being broken by
+   * the ascending order of 'secondary' if it is not null, by index otherwise. 'keys' is sorted accordingly,
+   * 'secondary' is left untouched.
+   * 
+   * Runs of ascending or strictly descending keys are detected then merged pairwise, so already sorted, reverse
+   * sorted and nearly sorted keys, such as the concatenation of a few sorted chunks, are sorted in (close to) linear time.
+   * 
+   * @return the permutation, element i of the sorted keys being at index perm[i] in the original keys, or null if the keys were already sorted
+   */
+  private static final int[] sortPermutation(long[] keys, long[] secondary, int n) {
+    int[] perm = new int[n];
+    
+    for (int i = 0; i < n; i++) {
+      perm[i] = i;
+    }
+    
+    //
+    // Detect the runs, runs[r] is the index of the start of run r
+    //
+    
+    int[] runs = new int[n + 1];
+    int nruns = 0;
+    // Set to true as soon as keys are moved
+    boolean moved = false;
+    
+    int i = 0;
+    
+    while (i < n) {
+      runs[nruns++] = i;
+      
+      int j = i + 1;
+      
+      if (j < n && compare(keys, secondary, perm, j, j - 1) < 0) {
+        while (j < n && compare(keys, secondary, perm, j, j - 1) < 0) {
+          j++;
+        }
+        reverse(keys, perm, i, j);
+        moved = true;
+      } else {
+        while (j < n && compare(keys, secondary, perm, j, j - 1) >= 0) {
+          j++;
+        }
+      }
+      
+      //
+      // Extend short runs using an insertion sort so random keys do not lead to too many merge passes
+      //
+      
+      if (j - i < SORT_MIN_RUN && j < n) {
+        int end = Math.min(n, i + SORT_MIN_RUN);
+        
+        for (; j < end; j++) {
+          long key = keys[j];
+          int idx = perm[j];
+          int k = j - 1;
+          
+          while (k >= i && compare(keys[k], perm[k], key, idx, secondary) > 0) {
+            keys[k + 1] = keys[k];
+            perm[k + 1] = perm[k];
+            k--;
+          }
+          
+          keys[k + 1] = key;
+          perm[k + 1] = idx;
+        }
+        
+        moved = true;
+      }
+      
+      i = j;
+    }
+    
+    runs[nruns] = n;
+    
+    if (nruns < 2) {
+      return moved ? perm : null;
+    }
+    
+    //
+    // Merge the runs pairwise until there is a single one left
+    //
+    
+    long[] srcKeys = keys;
+    int[] srcPerm = perm;
+    long[] dstKeys = new long[n];
+    int[] dstPerm = new int[n];
+    
+    while (nruns > 1) {
+      int merged = 0;
+      int r = 0;
+      
+      for (; r + 1 < nruns; r += 2) {
+        int from = runs[r];
+        int mid = runs[r + 1];
+        int to = runs[r + 2];
+        
+        int left = from;
+        int right = mid;
+        int k = from;
+        
+        while (left < mid && right < to) {
+          long keyLeft = srcKeys[left];
+          long keyRight = srcKeys[right];
+          
+          if (keyLeft < keyRight || (keyLeft == keyRight && compare(keyLeft, srcPerm[left], keyRight, srcPerm[right], secondary) <= 0)) {
+            dstKeys[k] = srcKeys[left];
+            dstPerm[k++] = srcPerm[left++];
+          } else {
+            dstKeys[k] = srcKeys[right];
+            dstPerm[k++] = srcPerm[right++];
+          }
+        }
+        
+        System.arraycopy(srcKeys, left, dstKeys, k, mid - left);
+        System.arraycopy(srcPerm, left, dstPerm, k, mid - left);
+        k += mid - left;
+        System.arraycopy(srcKeys, right, dstKeys, k, to - right);
+        System.arraycopy(srcPerm, right, dstPerm, k, to - right);
+        
+        runs[merged++] = from;
+      }
+      
+      // Odd number of runs, the last one is copied as is
+      if (r < nruns) {
+        System.arraycopy(srcKeys, runs[r], dstKeys, runs[r], n - runs[r]);
+        System.arraycopy(srcPerm, runs[r], dstPerm, runs[r], n - runs[r]);
+        runs[merged++] = runs[r];
+      }
+      
+      runs[merged] = n;
+      nruns = merged;
+      
+      long[] tmpKeys = srcKeys;
+      srcKeys = dstKeys;
+      dstKeys = tmpKeys;
+      int[] tmpPerm = srcPerm;
+      srcPerm = dstPerm;
+      dstPerm = tmpPerm;
+    }
+    
+    if (srcKeys != keys) {
+      System.arraycopy(srcKeys, 0, keys, 0, n);
+    }
+    
+    return srcPerm;
+  }
+  
+  private static final int compare(long[] keys, long[] secondary, int[] perm, int i, int j) {
+    return compare(keys[i], perm[i], keys[j], perm[j], secondary);
+  }
+  
+  /**
+   * Compare two keys given with their original index
+   */
+  private static final int compare(long keyA, int idxA, long keyB, int idxB, long[] secondary) {
+    if (keyA != keyB) {
+      return keyA < keyB ? -1 : 1;
+    }
+    
+    if (null != secondary && secondary[idxA] != secondary[idxB]) {
+      return secondary[idxA] < secondary[idxB] ? -1 : 1;
+    }
+    
+    return idxA < idxB ? -1 : (idxA == idxB ? 0 : 1);
+  }
+  
+  private static final void reverse(long[] keys, int[] perm, int from, int to) {
+    for (int i = from, j = to - 1; i < j; i++, j--) {
+      long tmplong = keys[i];
+      keys[i] = keys[j];
+      keys[j] = tmplong;
+      int tmpint = perm[i];
+      perm[i] = perm[j];
+      perm[j] = tmpint;
+    }
+  }
+  
+  /**
+   * Reorder the locations, elevations and values (unless 'keepValues' is true) of a GTS according to 'perm',
+   * element i being moved from index perm[i]. The ticks are left untouched.
+   */
+  private static final void permute(GeoTimeSerie gts, int[] perm, boolean keepValues) {
+    if (null != gts.locations) {
+      gts.locations = permute(gts.locations, perm);
+    }
+    
+    if (null != gts.elevations) {
+      gts.elevations = permute(gts.elevations, perm);
+    }
+    
+    if (keepValues) {
+      return;
+    }
+    
+    if (TYPE.LONG == gts.type) {
+      gts.longValues = permute(gts.longValues, perm);
+    } else if (TYPE.DOUBLE == gts.type) {
+      double[] values = new double[gts.doubleValues.length];
+      for (int i = 0; i < perm.length; i++) {
+        values[i] = gts.doubleValues[perm[i]];
+      }
+      gts.doubleValues = values;
+    } else if (TYPE.STRING == gts.type) {
+      String[] values = new String[gts.stringValues.length];
+      for (int i = 0; i < perm.length; i++) {
+        values[i] = gts.stringValues[perm[i]];
+      }
+      gts.stringValues = values;
+    } else if (TYPE.BOOLEAN == gts.type) {
+      BitSet values = new BitSet(perm.length);
+      for (int i = 0; i < perm.length; i++) {
+        if (gts.booleanValues.get(perm[i])) {
+          values.set(i);
+        }
+      }
+      gts.booleanValues = values;
+    }
+  }
+  
+  private static final long[] permute(long[] array, int[] perm) {
+    long[] permuted = new long[array.length];
+    for (int i = 0; i < perm.length; i++) {
+      permuted[i] = array[perm[i]];
+    }
+    return permuted;
+  }
+
   /**
    * Sort a range of values/locations/elevations of a GeoTimeSerie instance
    * according to the ascending order of its ticks
@@ -625,7 +976,11 @@ public class GTSHelper {
     // Attempt to locate the tick
     //
     
-    int idx = Arrays.binarySearch(gts.ticks, 0, gts.values, tick);
+    int idx = denseIndex(gts, tick);
+    
+    if (idx < 0) {
+      idx = Arrays.binarySearch(gts.ticks, 0, gts.values, tick);
+    }
 
     if (idx < 0) {
       return -1;      
@@ -634,6 +989,25 @@ public class GTSHelper {
     return idx;
   }
   
+  /**
+   * Locate 'tick' in a sorted bucketized GTS in O(1) when there is no gap between its first tick and 'tick'
+   * 
+   * @return the index of 'tick' or -1 if it could not be located that way
+   */
+  private static int denseIndex(GeoTimeSerie gts, long tick) {
+    if (!isBucketized(gts) || -1 == GTSBuckets.bucketIndex(gts, tick) || tick < gts.ticks[0]) {
+      return -1;
+    }
+    
+    long idx = (tick - gts.ticks[0]) / gts.bucketspan;
+    
+    if (idx < gts.values && tick == gts.ticks[(int) idx]) {
+      return (int) idx;
+    }
+    
+    return -1;
+  }
+  
   /**
    * Return the value in a Geo Time Serie at a given timestamp.
    * 
@@ -659,7 +1033,11 @@ public class GTSHelper {
     // Attempt to locate the tick
     //
     
-    int idx = Arrays.binarySearch(gts.ticks, 0, gts.values, tick);
+    int idx = denseIndex(gts, tick);
+    
+    if (idx < 0) {
+      idx = Arrays.binarySearch(gts.ticks, 0, gts.values, tick);
+    }
 
     if (idx < 0) {
       return null;
@@ -703,6 +1081,30 @@ public class GTSHelper {
     }
   }
   
+  /**
+   * Return the value at a given index of a LONG Geo Time Serie without boxing it.
+   * The caller is responsible for checking the type and the index.
+   */
+  public static long longValueAtIndex(GeoTimeSerie gts, int idx) {
+    return gts.longValues[idx];
+  }
+  
+  /**
+   * Return the value at a given index of a DOUBLE Geo Time Serie without boxing it.
+   * The caller is responsible for checking the type and the index.
+   */
+  public static double doubleValueAtIndex(GeoTimeSerie gts, int idx) {
+    return gts.doubleValues[idx];
+  }
+  
+  /**
+   * Return the value at a given index of a BOOLEAN Geo Time Serie without boxing it.
+   * The caller is responsible for checking the type and the index.
+   */
+  public static boolean booleanValueAtIndex(GeoTimeSerie gts, int idx) {
+    return gts.booleanValues.get(idx);
+  }
+  
   /**
    * Return the location in a Geo Time Serie at a given timestamp.
    * 
@@ -935,7 +1337,7 @@ public class GTSHelper {
       } else if (TYPE.DOUBLE == gts.type) {
         gts.doubleValues[idx] = ((Boolean) value).booleanValue() ? 1.0D : 0.0D; 
       } else if (TYPE.STRING == gts.type) {
-        gts.stringValues[idx] = ((Boolean) value).booleanValue() ? "T" : "F"; 
+        gts.stringValues[idx] = null != gts.stringDictionary ? gts.stringDictionary.intern(((Boolean) value).booleanValue() ? "T" : "F") : (((Boolean) value).booleanValue() ? "T" : "F");
       } else if (TYPE.BOOLEAN == gts.type) {
         gts.booleanValues.set(idx, ((Boolean) value).booleanValue());
       }      
@@ -945,7 +1347,7 @@ public class GTSHelper {
       } else if (TYPE.DOUBLE == gts.type) {
         gts.doubleValues[idx] = ((Number) value).doubleValue();
       } else if (TYPE.STRING == gts.type) {
-        gts.stringValues[idx] = ((Number) value).toString();
+        gts.stringValues[idx] = null != gts.stringDictionary ? gts.stringDictionary.intern(((Number) value).toString()) : ((Number) value).toString();
       } else if (TYPE.BOOLEAN == gts.type) {
         gts.booleanValues.set(idx, 0L != ((Number) value).longValue());
       }
@@ -955,7 +1357,7 @@ public class GTSHelper {
       } else if (TYPE.DOUBLE == gts.type) {
         gts.doubleValues[idx] = ((Number) value).doubleValue();
       } else if (TYPE.STRING == gts.type) {
-        gts.stringValues[idx] = value.toString();
+        gts.stringValues[idx] = null != gts.stringDictionary ? gts.stringDictionary.intern(value.toString()) : value.toString();
       } else if (TYPE.BOOLEAN == gts.type) {
         gts.booleanValues.set(idx, 0.0D != ((Number) value).doubleValue());
       }      
@@ -986,8 +1388,8 @@ public class GTSHelper {
           }
         }
       } else if (TYPE.STRING == gts.type) {
-        // Using intern is really CPU intensive
-        gts.stringValues[idx] = (String) value; //.toString().intern();
+        // Using intern is really CPU intensive, only canonicalize values of dictionary backed GTS
+        gts.stringValues[idx] = null != gts.stringDictionary ? gts.stringDictionary.intern((String) value) : (String) value; //.toString().intern();
       } else if (TYPE.BOOLEAN == gts.type) {
         gts.booleanValues.set(idx, null != value && !"".equals(value));
       }      
@@ -1010,6 +1412,28 @@ public class GTSHelper {
     return gts.values;
   }
 
+  /**
+   * Back a GTS with a STRING dictionary. Identical STRING values will then share a single
+   * canonical instance, this includes the values already present in the GTS and those added
+   * later on via setValue.
+   * 
+   * @param gts GeoTimeSerie instance to back with a dictionary
+   * @return gts
+   */
+  public static final GeoTimeSerie useStringDictionary(GeoTimeSerie gts) {
+    if (null == gts.stringDictionary) {
+      gts.stringDictionary = new GTSStringDictionary();
+    }
+    
+    if (TYPE.STRING == gts.type) {
+      for (int i = 0; i < gts.values; i++) {
+        gts.stringValues[i] = gts.stringDictionary.intern(gts.stringValues[i]);
+      }
+    }
+    
+    return gts;
+  }
+  
   public static final int setValue(GeoTimeSerie gts, long timestamp, long geoxppoint, Object value) {
     return setValue(gts, timestamp, geoxppoint, GeoTimeSerie.NO_ELEVATION, value, false);
   }
@@ -1017,7 +1441,104 @@ public class GTSHelper {
   public static final int setValue(GeoTimeSerie gts, long timestamp, Object value) {
     return setValue(gts, timestamp, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, value, false);
   }
-  
+
+  /**
+   * Add the value held by a GTSWindowResult to a GeoTimeSerie, without overwriting.
+   *
+   * When no allocation is needed and the type of the value matches that of the GTS,
+   * the value is stored directly, otherwise this falls back to the generic setValue.
+   *
+   * @param gts GeoTimeSerie instance to which the value must be added
+   * @param timestamp Timestamp at which to add the value
+   * @param result Result holding location, elevation and value
+   * @return The number of values in the GeoTimeSerie
+   */
+  public static final int setValue(GeoTimeSerie gts, long timestamp, GTSWindowResult result) {
+
+    TYPE type = result.getType();
+
+    if (TYPE.UNDEFINED == type) {
+      return gts.values;
+    }
+
+    long location = result.getLocation();
+    long elevation = result.getElevation();
+
+    if (type != gts.type
+        || null == gts.ticks || gts.values >= gts.ticks.length
+        || (null == gts.locations && GeoTimeSerie.NO_LOCATION != location)
+        || (null == gts.elevations && GeoTimeSerie.NO_ELEVATION != elevation)) {
+      return setValue(gts, timestamp, location, elevation, result.getValue(), false);
+    }
+
+    int idx = gts.values;
+
+    gts.sorted = false;
+    gts.ticks[idx] = timestamp;
+
+    if (null != gts.locations) {
+      gts.locations[idx] = location;
+    }
+
+    if (null != gts.elevations) {
+      gts.elevations[idx] = elevation;
+    }
+
+    if (TYPE.LONG == type) {
+      gts.longValues[idx] = result.getLong();
+    } else if (TYPE.DOUBLE == type) {
+      gts.doubleValues[idx] = result.getDouble();
+    } else if (TYPE.BOOLEAN == type) {
+      gts.booleanValues.set(idx, result.getBoolean());
+    } else {
+      gts.stringValues[idx] = null != gts.stringDictionary ? gts.stringDictionary.intern(result.getString()) : result.getString();
+    }
+
+    gts.values++;
+
+    return gts.values;
+  }
+
+  /**
+   * Return the index of the first tick greater than or equal to 'timestamp'
+   * in a GTS sorted in ascending order, or the number of values if there is none.
+   */
+  private static final int ceilingIndex(GeoTimeSerie gts, long timestamp) {
+    int low = 0;
+    int high = gts.values;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (gts.ticks[mid] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  /**
+   * Return the index of the first tick strictly greater than 'timestamp'
+   * in a GTS sorted in ascending order, or the number of values if there is none.
+   */
+  private static final int higherIndex(GeoTimeSerie gts, long timestamp) {
+    int low = 0;
+    int high = gts.values;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (gts.ticks[mid] <= timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
   /**
    * Allocate memory so we can add one value to the Geo Time Serie.
    * 
@@ -1135,6 +1656,11 @@ public class GTSHelper {
         gts.type = TYPE.BOOLEAN;
         gts.booleanValues = new BitSet(gts.ticks.length);
       }
+      
+      // A dictionary inherited from a STRING GTS is of no use for other types
+      if (TYPE.STRING != gts.type) {
+        gts.stringDictionary = null;
+      }
     }    
   }
   
@@ -1186,45 +1712,115 @@ public class GTSHelper {
     GTSHelper.sort(gts);
         
     //
-    // Determine index to start at
+    // Determine the range of indices whose ticks lie in the requested interval
     //
     
-    int lastidx = Arrays.binarySearch(gts.ticks, 0, gts.values, stoptimestamp);
+    int firstidx = ceilingIndex(gts, starttimestamp);
+    int lastidx = higherIndex(gts, stoptimestamp);
+    
+    if (firstidx >= lastidx) {
+      return subgts;
+    }
     
     //
-    // The upper timestamp is less than the first tick, so subserie is necessarly empty
+    // Extract values/locations/elevations that lie in the requested interval
     //
     
-    if (-1 == lastidx) {
+    if (!overwrite) {
+      copyRange(gts, firstidx, lastidx, subgts);
       return subgts;
-    } else if (lastidx < 0) {
-      lastidx =  -lastidx - 1;
-      if (lastidx >= gts.values) {
-        lastidx = gts.values - 1;
-      }
     }
     
-    int firstidx = Arrays.binarySearch(gts.ticks, 0, lastidx + 1, starttimestamp);
-    
-    if (firstidx < 0) {
-      firstidx = -firstidx - 1;
+    for (int i = firstidx; i < lastidx; i++) {
+      setValue(subgts, gts.ticks[i], null != gts.locations ? gts.locations[i] : GeoTimeSerie.NO_LOCATION, null != gts.elevations ? gts.elevations[i] : GeoTimeSerie.NO_ELEVATION, valueAtIndex(gts, i), overwrite);
     }
-    if (firstidx >= gts.values) {
-      return subgts;
+
+    return subgts;
+  }
+
+  /**
+   * Return a GeoTimeSerie containing the datapoints of 'gts' at indices 'from' (inclusive) to 'to' (exclusive),
+   * 'gts' being sorted in ascending tick order.
+   * 
+   * If 'subgts' is not null it is reset and reused, as are its arrays if they are large enough, so calling
+   * this method repeatedly with the same 'subgts' does not allocate once the arrays have reached their final size.
+   * 
+   * The name of 'gts' is copied to the returned instance when it is allocated, labels are not.
+   */
+  static final GeoTimeSerie subSerie(GeoTimeSerie gts, int from, int to, GeoTimeSerie subgts) {
+    if (null == subgts) {
+      subgts = new GeoTimeSerie(Math.max(0, to - from));
+      subgts.setName(gts.getName());
+    } else {
+      GTSHelper.reset(subgts);
     }
     
-    //
-    // Extract values/locations/elevations that lie in the requested interval
-    //
-    
-    for (int i = firstidx; i <= lastidx; i++) {
-      if (gts.ticks[i] >= starttimestamp && gts.ticks[i] <= stoptimestamp) {
-        setValue(subgts, gts.ticks[i], null != gts.locations ? gts.locations[i] : GeoTimeSerie.NO_LOCATION, null != gts.elevations ? gts.elevations[i] : GeoTimeSerie.NO_ELEVATION, valueAtIndex(gts, i), overwrite);
-      }
+    if (from < to) {
+      copyRange(gts, from, to, subgts);
     }
-
+    
     return subgts;
   }
+  
+  /**
+   * Copy the datapoints of 'gts' at indices 'from' to 'to' (exclusive) into the empty instance 'subgts'
+   * using bulk array copies, existing arrays of 'subgts' are reused if they are large enough.
+   */
+  private static final void copyRange(GeoTimeSerie gts, int from, int to, GeoTimeSerie subgts) {
+    int n = to - from;
+    
+    subgts.ticks = copyRange(gts.ticks, from, n, subgts.ticks);
+    subgts.locations = null == gts.locations ? null : copyRange(gts.locations, from, n, subgts.locations);
+    subgts.elevations = null == gts.elevations ? null : copyRange(gts.elevations, from, n, subgts.elevations);
+    
+    switch (gts.type) {
+      case LONG:
+        subgts.longValues = copyRange(gts.longValues, from, n, subgts.longValues);
+        break;
+      case DOUBLE:
+        if (null == subgts.doubleValues || subgts.doubleValues.length < n) {
+          subgts.doubleValues = new double[n];
+        }
+        System.arraycopy(gts.doubleValues, from, subgts.doubleValues, 0, n);
+        break;
+      case STRING:
+        if (null == subgts.stringValues || subgts.stringValues.length < n) {
+          subgts.stringValues = new String[n];
+        }
+        System.arraycopy(gts.stringValues, from, subgts.stringValues, 0, n);
+        // Values of a GTS with a dictionary must be the instances held by that dictionary
+        if (null != subgts.stringDictionary && subgts.stringDictionary != gts.stringDictionary) {
+          for (int i = 0; i < n; i++) {
+            subgts.stringValues[i] = subgts.stringDictionary.intern(subgts.stringValues[i]);
+          }
+        }
+        break;
+      case BOOLEAN:
+        if (null == subgts.booleanValues) {
+          subgts.booleanValues = new BitSet(n);
+        } else {
+          subgts.booleanValues.clear();
+        }
+        for (int i = gts.booleanValues.nextSetBit(from); i >= 0 && i < to; i = gts.booleanValues.nextSetBit(i + 1)) {
+          subgts.booleanValues.set(i - from);
+        }
+        break;
+      default:
+    }
+    
+    subgts.type = gts.type;
+    subgts.values = n;
+    subgts.sorted = true;
+    subgts.reversed = false;
+  }
+  
+  private static final long[] copyRange(long[] src, int from, int n, long[] dst) {
+    if (null == dst || dst.length < n) {
+      dst = new long[n];
+    }
+    System.arraycopy(src, from, dst, 0, n);
+    return dst;
+  }
 
   public static final GeoTimeSerie subSerie(GeoTimeSerie gts, long starttimestamp, long stoptimestamp, boolean overwrite) {
     return subSerie(gts, starttimestamp, stoptimestamp, overwrite, true, null);
@@ -1419,30 +2015,81 @@ public class GTSHelper {
     //
 
     //
-    // We can't skip buckets which are before the first tick or after the last one
-    // because the bucketizer function might set a default value when it encounters an
-    // empty sub serie
+    // Bucketizer functions are only called for non empty buckets, so the buckets
+    // before the first tick, after the last one or between two distant ticks are
+    // skipped in bulk. The GTS is sorted and the buckets are swept from the most recent
+    // one, the range [lo,hi) of indices of the current bucket being found by moving
+    // its bounds down incrementally instead of searching or copying the values.
     //
       
-    // Allocate a stable GTS instance which we will reuse when calling subserie
+    sort(gts);
+
+    // Allocate a stable GTS instance which we will reuse for macros
     GeoTimeSerie subgts = null;
+
+    //
+    // If the aggregator supports it, hand it views over the sorted GTS instead of sub series
+    //
+
+    GTSWindow window = null;
+    GTSWindowResult windowResult = null;
+
+    if (null == stack && aggregator instanceof WarpScriptWindowFunction) {
+      window = new GTSWindow();
+      windowResult = new GTSWindowResult();
+    }
+
+    // Index past the last tick of the current bucket
+    int hi = higherIndex(gts, lastbucket);
     
-    for (int i = 0; i < bucketcount; i++) {
-      
+    int i = 0;
+    
+    while (hi > 0 && i < bucketcount) {
+
       long bucketend = lastbucket - i * bucketspan;
+      long bucketstart = bucketend - bucketspan;
       
       //
-      // Extract GTS containing the values that fall in the bucket
-      // Keep multiple values that fall on the same timestamp, the
-      // aggregator functions will deal with them.
+      // If the bucket is empty, jump to the bucket of the most recent remaining tick
       //
       
-      subgts = subSerie(gts, bucketend - bucketspan + 1, bucketend, false, false, subgts);
-
-      if (0 == subgts.values) {
+      if (gts.ticks[hi - 1] <= bucketstart) {
+        long next = (lastbucket - gts.ticks[hi - 1]) / bucketspan;
+        if (next >= bucketcount) {
+          break;
+        }
+        i = (int) next;
         continue;
       }
       
+      int lo = hi - 1;
+      
+      while (lo > 0 && gts.ticks[lo - 1] > bucketstart) {
+        lo--;
+      }
+      
+      int first = lo;
+      int last = hi;
+      
+      hi = lo;
+      i++;
+
+      if (null != window) {
+        window.reset(bucketend, gts, first, last - first);
+        window.setWindow(0, -bucketspan, bucketstart, bucketend, -1);
+        windowResult.reset(bucketend);
+
+        if (((WarpScriptWindowFunction) aggregator).apply(window, windowResult)) {
+          setValue(bucketized, bucketend, windowResult);
+          continue;
+        }
+      }
+
+      //
+      // Multiple values that fall on the same timestamp are kept,
+      // the aggregator functions will deal with them.
+      //
+      
       Object[] aggregated = null;
       
       if (null != stack) {
@@ -1450,6 +2097,8 @@ public class GTSHelper {
           throw new WarpScriptException("Expected a macro as bucketizer.");
         }
         
+        subgts = subSerie(gts, first, last, subgts);
+        
         subgts.safeSetMetadata(bucketized.getMetadata());
         stack.push(subgts);
         stack.exec((Macro) aggregator);
@@ -1466,7 +2115,7 @@ public class GTSHelper {
           throw new WarpScriptException("Invalid bucketizer function.");
         }
         //
-        // Call the aggregation functions on this sub serie and add the resulting value
+        // Call the aggregation functions on the values of the bucket and add the resulting value
         //
         
         //
@@ -1482,6 +2131,8 @@ public class GTSHelper {
         // bucket span: width (in microseconds) of bucket
         //
         
+        int n = last - first;
+        
         Object[] parms = new Object[8];
 
         int idx = 0;
@@ -1490,24 +2141,24 @@ public class GTSHelper {
         ((String[]) parms[idx++])[0] = bucketized.getName();
         parms[idx] = new Map[1];
         ((Map[]) parms[idx++])[0] = labels;
-        parms[idx++] = Arrays.copyOf(subgts.ticks, subgts.values);
-        if (null != subgts.locations) {
-          parms[idx++] = Arrays.copyOf(subgts.locations, subgts.values);
+        parms[idx++] = Arrays.copyOfRange(gts.ticks, first, last);
+        if (null != gts.locations) {
+          parms[idx++] = Arrays.copyOfRange(gts.locations, first, last);
         } else {
-          parms[idx++] = new long[subgts.values];
+          parms[idx++] = new long[n];
           Arrays.fill((long[]) parms[idx - 1], GeoTimeSerie.NO_LOCATION);
         }
-        if (null != subgts.elevations) {
-          parms[idx++] = Arrays.copyOf(subgts.elevations, subgts.values);
+        if (null != gts.elevations) {
+          parms[idx++] = Arrays.copyOfRange(gts.elevations, first, last);
         } else {
-          parms[idx++] = new long[subgts.values];
+          parms[idx++] = new long[n];
           Arrays.fill((long[]) parms[idx - 1], GeoTimeSerie.NO_ELEVATION);
         }
-        parms[idx++] = new Object[subgts.values];
-        parms[idx++] = new long[] { 0, -bucketspan, bucketend - bucketspan, bucketend };
+        parms[idx++] = new Object[n];
+        parms[idx++] = new long[] { 0, -bucketspan, bucketstart, bucketend };
         
-        for (int j = 0; j < subgts.values; j++) {
-          ((Object[]) parms[6])[j] = valueAtIndex(subgts, j);
+        for (int j = 0; j < n; j++) {
+          ((Object[]) parms[6])[j] = valueAtIndex(gts, first + j);
         }
 
         aggregated = (Object[]) ((WarpScriptBucketizerFunction) aggregator).apply(parms);        
@@ -1522,6 +2173,14 @@ public class GTSHelper {
       }
     }
     
+    //
+    // Buckets were computed from the most recent to the oldest, each producing at most one value,
+    // so the result is already sorted in reverse order of ticks
+    //
+    
+    bucketized.sorted = true;
+    bucketized.reversed = true;
+    
     GTSHelper.shrink(bucketized);
     return bucketized;
   }
@@ -2973,6 +3632,12 @@ public class GTSHelper {
             base.stringValues = Arrays.copyOf(base.stringValues, base.values + gts.values);
             System.arraycopy(gts.stringValues, 0, base.stringValues, base.values, gts.values);
           }
+          // Canonicalize the merged values if 'base' is dictionary backed
+          if (null != base.stringDictionary && base.stringDictionary != gts.stringDictionary) {
+            for (int i = base.values; i < base.values + gts.values; i++) {
+              base.stringValues[i] = base.stringDictionary.intern(base.stringValues[i]);
+            }
+          }
           break;
         case BOOLEAN:
           base.type = TYPE.BOOLEAN;
@@ -3051,84 +3716,37 @@ public class GTSHelper {
     }
     
     //
-    // Sort GTS in natural ordering of ticks
+    // Locate the datapoint of each bucket, this does not require 'filled' to be sorted
     //
     
-    sort(filled, false);
+    GTSBuckets buckets = new GTSBuckets(filled);
     
-    //
-    // Loop on ticks
-    //
+    int idx = buckets.before();
+    int first = -1 != idx ? 0 : buckets.nextPresent(0);
     
-    int nticks = filled.values;
+    if (-1 == first) {
+      return filled;
+    }
     
     //
     // Modify size hint so we only allocate once
     //
 
-    if (0 != nticks) {
-      long firsttick = filled.ticks[0];
-      filled.setSizeHint(1 + (int) ((filled.lastbucket - firsttick) / filled.bucketspan));
-    }
-    
-    int idx = 0;
-    int bucketidx = filled.bucketcount - 1;
-    long bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
+    filled.setSizeHint(filled.values + buckets.bucketcount() - first - buckets.cardinality());
     
-    Object prevValue = null;
-    long prevLocation = GeoTimeSerie.NO_LOCATION;
-    long prevElevation = GeoTimeSerie.NO_ELEVATION;
-    
-    long bucketoffset = filled.lastbucket % filled.bucketspan;
-    
-    while (bucketidx >= 0) {
-      //
-      // Only consider ticks which are valid buckets. We need to do
-      // this test because values could have been added at invalid bucket
-      // timestamps after the GTS has been bucketized.
-      //
-      
-      while(idx < nticks && bucketoffset != (filled.ticks[idx] % filled.bucketspan)) {
-        idx++;
-      }
-      
-      if (idx >= nticks) {
-        break;
-      }
-      
-      while(bucketidx >= 0 && filled.ticks[idx] > bucketts) {
-        if (null != prevValue) {
-          setValue(filled, bucketts, prevLocation, prevElevation, prevValue, false);
-        }
-        bucketidx--;
-        bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
-      }
-      
-      //
-      // We need to decrease bucketidx as ticks[idx] == bucketts
-      // otherwise we would duplicate the existing values.
-      //
-      
-      bucketidx--;
-      bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
-      
-      prevValue = valueAtIndex(filled, idx);
-      prevLocation = null != filled.locations ? filled.locations[idx] : GeoTimeSerie.NO_LOCATION;
-      prevElevation = null != filled.elevations ? filled.elevations[idx] : GeoTimeSerie.NO_ELEVATION;
-      
-      idx++;
-    }
+    Object prevValue = -1 != idx ? valueAtIndex(filled, idx) : null;
+    long prevLocation = -1 != idx ? locationAtIndex(filled, idx) : GeoTimeSerie.NO_LOCATION;
+    long prevElevation = -1 != idx ? elevationAtIndex(filled, idx) : GeoTimeSerie.NO_ELEVATION;
     
-    //
-    // Finish filling up past the last seen value
-    //
-
-    while(bucketidx >= 0) {
-      if (null != prevValue) {
-        setValue(filled, bucketts, prevLocation, prevElevation, prevValue, false);
+    for (int bucket = first; bucket < buckets.bucketcount(); bucket++) {
+      if (buckets.isPresent(bucket)) {
+        idx = buckets.index(bucket);
+        prevValue = valueAtIndex(filled, idx);
+        prevLocation = locationAtIndex(filled, idx);
+        prevElevation = elevationAtIndex(filled, idx);
+      } else {
+        setValue(filled, buckets.tick(bucket), prevLocation, prevElevation, prevValue, false);
       }
-      bucketidx--;
-      bucketts = filled.lastbucket - bucketidx * filled.bucketspan;      
     }
 
     return filled;
@@ -3157,84 +3775,37 @@ public class GTSHelper {
     }
     
     //
-    // Sort GTS in reverse ordering of ticks
+    // Locate the datapoint of each bucket, this does not require 'filled' to be sorted
     //
     
-    sort(filled, true);
+    GTSBuckets buckets = new GTSBuckets(filled);
     
-    //
-    // Loop on ticks
-    //
+    int idx = buckets.after();
+    int last = -1 != idx ? buckets.bucketcount() - 1 : buckets.previousPresent(buckets.bucketcount() - 1);
+    
+    if (-1 == last) {
+      return filled;
+    }
     
-    int nticks = filled.values;
-
     //
     // Change size hint so we only do one allocation
     //
     
-    if (0 != nticks) {
-      long lasttick = filled.ticks[0];
-      filled.setSizeHint(1 + (int) ((lasttick - (filled.lastbucket - filled.bucketcount * filled.bucketspan)) / filled.bucketspan));
-    }
-
-    int idx = 0;
-    int bucketidx = 0;
-    long bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
-    
-    Object prevValue = null;
-    long prevLocation = GeoTimeSerie.NO_LOCATION;
-    long prevElevation = GeoTimeSerie.NO_ELEVATION;
-    
-    long bucketoffset = filled.lastbucket % filled.bucketspan;
+    filled.setSizeHint(filled.values + last + 1 - buckets.cardinality());
 
-    while (bucketidx < filled.bucketcount) {
-      //
-      // Only consider ticks which are valid buckets. We need to do
-      // this test because values could have been added at invalid bucket
-      // timestamps after the GTS has been bucketized.
-      //
-      
-      while(idx < nticks && bucketoffset != (filled.ticks[idx] % filled.bucketspan)) {
-        idx++;
-      }
-      
-      if (idx >= nticks) {
-        break;
-      }
-      
-      while(bucketidx >= 0 && filled.ticks[idx] < bucketts) {
-        if (null != prevValue) {
-          setValue(filled, bucketts, prevLocation, prevElevation, prevValue, false);
-        }
-        bucketidx++;
-        bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
-      }
-      
-      //
-      // We need to increase bucketidx as ticks[idx] == bucketts
-      // otherwise we would duplicate the existing values.
-      //
-      
-      bucketidx++;
-      bucketts = filled.lastbucket - bucketidx * filled.bucketspan;
-      
-      prevValue = valueAtIndex(filled, idx);
-      prevLocation = null != filled.locations ? filled.locations[idx] : GeoTimeSerie.NO_LOCATION;
-      prevElevation = null != filled.elevations ? filled.elevations[idx] : GeoTimeSerie.NO_ELEVATION;
-      
-      idx++;
-    }
+    Object nextValue = -1 != idx ? valueAtIndex(filled, idx) : null;
+    long nextLocation = -1 != idx ? locationAtIndex(filled, idx) : GeoTimeSerie.NO_LOCATION;
+    long nextElevation = -1 != idx ? elevationAtIndex(filled, idx) : GeoTimeSerie.NO_ELEVATION;
     
-    //
-    // Finish filling up past the last seen value
-    //
-
-    while(bucketidx < filled.bucketcount) {
-      if (null != prevValue) {
-        setValue(filled, bucketts, prevLocation, prevElevation, prevValue, false);
+    for (int bucket = last; bucket >= 0; bucket--) {
+      if (buckets.isPresent(bucket)) {
+        idx = buckets.index(bucket);
+        nextValue = valueAtIndex(filled, idx);
+        nextLocation = locationAtIndex(filled, idx);
+        nextElevation = elevationAtIndex(filled, idx);
+      } else {
+        setValue(filled, buckets.tick(bucket), nextLocation, nextElevation, nextValue, false);
       }
-      bucketidx++;
-      bucketts = filled.lastbucket - bucketidx * filled.bucketspan;      
     }
 
     return filled;
@@ -3267,32 +3838,21 @@ public class GTSHelper {
     }
 
     //
-    // Force size hint since we know the GTS will contain 'bucketcount' ticks
+    // Locate the datapoint of each bucket, this does not require 'filled' to be sorted
     //
     
-    filled.setSizeHint(filled.bucketcount);
+    GTSBuckets buckets = new GTSBuckets(filled);
     
     //
-    // Sort 'filled'
+    // Force size hint since we know how many buckets will be filled
     //
     
-    sort(filled);
-    
-    int bucket = filled.bucketcount - 1;
-    int idx = 0;
-    int nticks = filled.values;
+    filled.setSizeHint(filled.values + buckets.bucketcount() - buckets.cardinality());
     
-    while (bucket >= 0) {
-      long bucketts = filled.lastbucket - bucket * filled.bucketspan;
-      
-      while((idx < nticks && filled.ticks[idx] > bucketts) || (idx >= nticks && bucket >= 0)) {
-        setValue(filled, bucketts, location, elevation, value, false);
-        bucket--;
-        bucketts = filled.lastbucket - bucket * filled.bucketspan;
+    for (int bucket = 0; bucket < buckets.bucketcount(); bucket++) {
+      if (!buckets.isPresent(bucket)) {
+        setValue(filled, buckets.tick(bucket), location, elevation, value, false);
       }
-    
-      idx++;
-      bucket--;
     }
   
     return filled;
@@ -3748,7 +4308,40 @@ public class GTSHelper {
     Map<String,GeoTimeSerie> multipleMapped = new TreeMap<String,GeoTimeSerie>();
     
     boolean hasSingleResult = false;
-    
+
+    //
+    // If the mapper supports it, hand it views over the sorted GTS instead of sub series
+    //
+
+    GTSWindow window = null;
+    GTSWindowResult windowResult = null;
+
+    //
+    // Sliding window mappers are updated incrementally as the window moves forward,
+    // [windowFirst, windowLast[ is the range of indices currently in the accumulator
+    //
+
+    WarpScriptSlidingWindowFunction.Accumulator accumulator = null;
+    int windowFirst = 0;
+    int windowLast = 0;
+
+    //
+    // The values passed to the mapper at each tick are those of a range of indices of the sorted GTS
+    //
+
+    sort(gts);
+
+    if (null == stack && (mapper instanceof WarpScriptWindowFunction || mapper instanceof WarpScriptSlidingWindowFunction)) {
+      window = new GTSWindow();
+      windowResult = new GTSWindowResult();
+
+      if (!reversed && mapper instanceof WarpScriptSlidingWindowFunction) {
+        GTSWindow source = new GTSWindow();
+        source.reset(0L, gts, 0, gts.values);
+        accumulator = ((WarpScriptSlidingWindowFunction) mapper).newAccumulator(source);
+      }
+    }
+
     while (idx < nticks) {
 
       if (hasOccurrences && 0 == occurrences) {
@@ -3799,15 +4392,61 @@ public class GTSHelper {
       }
       
       //
-      // Extract values 
+      // Determine the range [first,last[ of indices of the values between start and stop
+      // and the index in that range of the first value at 'tick'
       //
-      
-      subgts = GTSHelper.subSerie(gts, start, stop, false, false, subgts);
-      
+
+      int first = ceilingIndex(gts, start);
+      int last = Math.max(first, higherIndex(gts, stop));
+      int tickidx = ceilingIndex(gts, tick);
+
+      if (tickidx < first || tickidx >= last || tick != gts.ticks[tickidx]) {
+        tickidx = -1;
+      } else {
+        tickidx -= first;
+      }
+
+      if (null != window) {
+        window.reset(tick, gts, first, last - first);
+        window.setWindow(prewindow, postwindow, start, stop, tickidx);
+
+        boolean applied = false;
+
+        if (null != accumulator) {
+          if (first < windowFirst || last < windowLast || first >= windowLast) {
+            accumulator.clear();
+            windowFirst = first;
+            windowLast = first;
+          }
+          while (windowFirst < first) {
+            accumulator.remove(windowFirst++);
+          }
+          while (windowLast < last) {
+            accumulator.add(windowLast++);
+          }
+          windowResult.reset(tick);
+          applied = accumulator.apply(window, windowResult);
+        }
+
+        if (!applied && mapper instanceof WarpScriptWindowFunction) {
+          windowResult.reset(tick);
+          applied = ((WarpScriptWindowFunction) mapper).apply(window, windowResult);
+        }
+
+        if (applied) {
+          hasSingleResult = true;
+          setValue(mapped, overrideTick ? windowResult.getTick() : tick, windowResult);
+          idx += step;
+          occurrences--;
+          continue;
+        }
+      }
+
       Object mapResult = null;
       
       if (null != stack) {
         if (mapper instanceof Macro) {
+          subgts = GTSHelper.subSerie(gts, first, last, subgts);
           subgts.safeSetMetadata(mapped.getMetadata());
           stack.push(subgts);
           stack.exec((Macro) mapper);
@@ -3878,42 +4517,31 @@ public class GTSHelper {
         // having a rogue mapper modify them.
         //
         
-        parms[i++] = new String[subgts.values];
+        int n = last - first;
+        
+        parms[i++] = new String[n];
         Arrays.fill((Object[]) parms[i-1], gts.getName());
 
-        parms[i++] = new Map[subgts.values]; 
+        parms[i++] = new Map[n]; 
         Arrays.fill((Object[]) parms[i-1], labels);
 
-        parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.ticks, subgts.values) : new long[0];
-        if (null != subgts.locations) {
-          parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.locations, subgts.values) : new long[0];
+        parms[i++] = n > 0 ? Arrays.copyOfRange(gts.ticks, first, last) : new long[0];
+        if (null != gts.locations) {
+          parms[i++] = Arrays.copyOfRange(gts.locations, first, last);
         } else {
-          if (subgts.values > 0) {
-            parms[i++] = new long[subgts.values];
-            Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_LOCATION);
-          } else {
-            parms[i++] = new long[0];
-          }
+          parms[i++] = new long[n];
+          Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_LOCATION);
         }
-        if (null != subgts.elevations) {
-          parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.elevations, subgts.values) : new long[0];
+        if (null != gts.elevations) {
+          parms[i++] = Arrays.copyOfRange(gts.elevations, first, last);
         } else {
-          if (subgts.values > 0) {
-            parms[i++] = new long[subgts.values];
-            Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_ELEVATION);
-          } else {
-            parms[i++] = new long[0];
-          }
+          parms[i++] = new long[n];
+          Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_ELEVATION);
         }
-        parms[i++] = new Object[subgts.values];      
+        parms[i++] = new Object[n];      
 
-        int tickidx = -1;
-        
-        for (int j = 0; j < subgts.values; j++) {
-          ((Object[]) parms[6])[j] = valueAtIndex(subgts, j);
-          if (-1 == tickidx && tick == tickAtIndex(subgts, j)) {
-            tickidx = j;
-          }
+        for (int j = 0; j < n; j++) {
+          ((Object[]) parms[6])[j] = valueAtIndex(gts, first + j);
         }
 
         parms[i++] = new long[] { prewindow, postwindow, start, stop, tickidx };
@@ -4058,77 +4686,13 @@ public class GTSHelper {
    */
   public static Map<Map<String,String>, List<GeoTimeSerie>> partition(Collection<GeoTimeSerie> series, Collection<String> bylabels) {
     
-    Map<Map<String,String>, List<GeoTimeSerie>> classes = new HashMap<Map<String,String>, List<GeoTimeSerie>>();
-    Map<Map<String,String>, Map<String,String>> labelsbyclass = new HashMap<Map<String,String>, Map<String,String>>();
-    
-    //
-    // Loop over the GTS instances
-    //
+    GTSEquivalenceClasses classes = new GTSEquivalenceClasses(bylabels);
     
     for (GeoTimeSerie gts: series) {
-      //
-      // Construct the equivalence class key
-      //
-      
-      Map<String,String> eqcls = new HashMap<String,String>();
-
-      //
-      // If 'bylabels' is null, consider that all labels determine the equivalence class
-      //
-      
-      if (null == bylabels) {
-        eqcls.putAll(gts.getMetadata().getLabels());
-      } else {
-        for (String label: bylabels) {
-          if (gts.hasLabel(label)) {
-            eqcls.put(label, gts.getLabel(label));
-          }
-        }        
-      }
-            
-      if(!classes.containsKey(eqcls)) {
-        //
-        // This equivalence class is not yet known, create an initial list of its members
-        // and an initial Map of common labels
-        //
-        
-        classes.put(eqcls, new ArrayList<GeoTimeSerie>());
-        classes.get(eqcls).add(gts);
-        labelsbyclass.put(eqcls, new HashMap<String,String>());
-        labelsbyclass.get(eqcls).putAll(gts.getLabels());
-      } else {
-        //
-        // Add current GTS to its class
-        //
-        
-        classes.get(eqcls).add(gts);
-        
-        //
-        // Remove from equivalence class labels those which 'gts' does not have
-        //
-
-        List<String> labelstoremove = new ArrayList<String>();
-        
-        Map<String,String> gtsLabels = gts.getMetadata().getLabels();
-        
-        for (String label: labelsbyclass.get(eqcls).keySet()) {
-          if (!labelsbyclass.get(eqcls).get(label).equals(gtsLabels.get(label))) {
-            labelstoremove.add(label);
-          }
-        }
-        
-        for (String label: labelstoremove) {
-          labelsbyclass.get(eqcls).remove(label);
-        }
-      }
+      classes.add(gts);
     }
     
-    Map<Map<String,String>, List<GeoTimeSerie>> partition = new HashMap<Map<String,String>, List<GeoTimeSerie>>();
-    
-    for (Map<String,String> key: classes.keySet()) {
-      partition.put(labelsbyclass.get(key), classes.get(key));
-    }
-    return partition;
+    return classes.partition();
   }
 
   /**
@@ -4655,7 +5219,12 @@ public class GTSHelper {
    * @throws WarpScriptException
    */
   public static List<GeoTimeSerie> partitionAndApply(Object function, WarpScriptStack stack, Macro validator, Collection<String> bylabels, List<GeoTimeSerie>... series) throws WarpScriptException {
-    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = partitionAndApplyUnflattened(function, stack, validator, bylabels, series);
+    return partitionAndApply(function, stack, validator, bylabels, null, 1, series);
+  }
+  
+  @SafeVarargs
+  public static List<GeoTimeSerie> partitionAndApply(Object function, WarpScriptStack stack, Macro validator, Collection<String> bylabels, Object tenant, int parallelism, List<GeoTimeSerie>... series) throws WarpScriptException {
+    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = partitionAndApplyUnflattened(function, stack, validator, bylabels, tenant, parallelism, series);
     
     List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
     
@@ -4676,6 +5245,18 @@ public class GTSHelper {
    * @throws WarpScriptException
    */
   public static Map<Map<String,String>,List<GeoTimeSerie>> partitionAndApplyUnflattened(Object function, WarpScriptStack stack, Macro validator, Collection<String> bylabels, List<GeoTimeSerie>... series) throws WarpScriptException {
+    return partitionAndApplyUnflattened(function, stack, validator, bylabels, null, 1, series);
+  }
+  
+  /**
+   * Apply a function or filter GTS and keep the results ventilated per equivalence class,
+   * processing the partitions using at most 'parallelism' threads on behalf of 'tenant'.
+   * Partitions are processed sequentially if a validator is specified.
+   * 
+   * @see WarpScriptParallel
+   */
+  @SafeVarargs
+  public static Map<Map<String,String>,List<GeoTimeSerie>> partitionAndApplyUnflattened(final Object function, final WarpScriptStack stack, final Macro validator, Collection<String> bylabels, Object tenant, int parallelism, final List<GeoTimeSerie>... series) throws WarpScriptException {
 
     //
     // Gather all GTS instances together so we can partition them
@@ -4713,97 +5294,140 @@ public class GTSHelper {
     
     Map<Map<String,String>, List<GeoTimeSerie>> results = new LinkedHashMap<Map<String,String>,List<GeoTimeSerie>>();
     
+    if (partition.isEmpty()) {
+      return results;
+    }
+    
+    //
+    // Sort the 'series' so we can perform a binary search instead of using 'contains'
+    //
+    
+    for (int i = 0; i < series.length; i++) {
+      series[i].sort(METASORT.META_COMPARATOR);
+    }
+    
+    //
+    // The validator is run on the stack, so partitions are only processed in parallel without one.
+    // Series of cardinality 1 are shared by all partitions, sort them beforehand as sorting
+    // an already sorted GTS does not modify it.
+    //
+    
+    if (null != validator) {
+      parallelism = 1;
+    }
+    
+    if (parallelism > 1) {
+      for (int i = 0; i < series.length; i++) {
+        if (1 == series[i].size()) {
+          GTSHelper.sort(series[i].get(0));
+        }
+      }
+    }
+    
+    final List<Map<String,String>> keys = new ArrayList<Map<String,String>>(partition.size());
+    final List<List<GeoTimeSerie>> members = new ArrayList<List<GeoTimeSerie>>(partition.size());
+    
+    for (Entry<Map<String,String>, List<GeoTimeSerie>> entry: partition.entrySet()) {
+      keys.add(Collections.unmodifiableMap(entry.getKey()));
+      members.add(entry.getValue());
+    }
+    
     //
     // Loop on each partition
     //
     
-    for (Map<String,String> partitionlabels: partition.keySet()) {
-      Map<String,String> commonlabels = Collections.unmodifiableMap(partitionlabels);
-      
-      List<GeoTimeSerie> result = new ArrayList<GeoTimeSerie>();
+    List<List<GeoTimeSerie>> applied = WarpScriptParallel.run(tenant, parallelism, keys.size(), new WarpScriptParallel.Task<List<GeoTimeSerie>>() {
+      @Override
+      public List<GeoTimeSerie> call(int index) throws WarpScriptException {
+        return applyPartition(function, stack, validator, keys.get(index), members.get(index), series);
+      }
+    });
+    
+    for (int i = 0; i < keys.size(); i++) {
+      results.put(keys.get(i), applied.get(i));
+    }
+    
+    //
+    // Check that all resulting GTS instances were in allgts
+    //
 
+    //if (function instanceof WarpScriptFilterFunction) {
+    //  for (GeoTimeSerie gts: result) {
+    //    if (!allgts.contains(gts)) {
+    //      throw new WarpScriptException("Some filtered geo time series were not in the original set.");
+    //    }
+    //  }      
+    //}
+    
+    return results;
+  }
+  
+  @SafeVarargs
+  private static List<GeoTimeSerie> applyPartition(Object function, WarpScriptStack stack, Macro validator, Map<String,String> commonlabels, List<GeoTimeSerie> partitionSeries, List<GeoTimeSerie>... series) throws WarpScriptException {
+    List<GeoTimeSerie> result = new ArrayList<GeoTimeSerie>();
+
+    //
+    // Make N (cardinality of 'series') sublists of GTS instances.
+    //
+    
+    List<GeoTimeSerie>[] subseries = new List[series.length];
+    for (int i = 0; i < series.length; i++) {
+      
+      subseries[i] = new ArrayList<GeoTimeSerie>();
+     
       //
-      // Make N (cardinality of 'series') sublists of GTS instances.
+      // Treat the case when the original serie had a cardinality of 1
+      // as a special case by adding the original serie unconditionnaly
       //
       
-      List<GeoTimeSerie>[] subseries = new List[series.length];
-      for (int i = 0; i < series.length; i++) {
-        
-        //
-        // Sort the 'series' so we can perform a binary search instead of using 'contains'
-        //
-        
-        series[i].sort(METASORT.META_COMPARATOR);
-        
-        subseries[i] = new ArrayList<GeoTimeSerie>();
-       
-        //
-        // Treat the case when the original serie had a cardinality of 1
-        // as a special case by adding the original serie unconditionnaly
-        //
-        
-        if (1 == series[i].size()) {
-          subseries[i].add(series[i].iterator().next());
-        } else {
-          // The series appear in the order they are in the original list due to 'partition' using a List
-          for (GeoTimeSerie serie: partition.get(partitionlabels)) {
-            if (Collections.binarySearch(series[i], serie, METASORT.META_COMPARATOR) >= 0) {
-              subseries[i].add(serie);
-            }
-          }          
-        }
+      if (1 == series[i].size()) {
+        subseries[i].add(series[i].iterator().next());
+      } else {
+        // The series appear in the order they are in the original list due to 'partition' using a List
+        for (GeoTimeSerie serie: partitionSeries) {
+          if (Collections.binarySearch(series[i], serie, METASORT.META_COMPARATOR) >= 0) {
+            subseries[i].add(serie);
+          }
+        }          
+      }
+    }
+    //
+    // Call the function
+    //
+    
+    if (function instanceof WarpScriptFilterFunction) {
+      List<GeoTimeSerie> filtered = ((WarpScriptFilterFunction) function).filter(commonlabels, subseries);
+      if (null != filtered) {
+        result.addAll(filtered);
       }
+    } else if (function instanceof WarpScriptNAryFunction) {
       //
-      // Call the function
+      // If we have a stack and a validator, push the commonlabels and the list of subseries onto the stack,
+      // call the validator and check if it left true or false onto the stack.
       //
       
-      if (function instanceof WarpScriptFilterFunction) {
-        List<GeoTimeSerie> filtered = ((WarpScriptFilterFunction) function).filter(commonlabels, subseries);
-        if (null != filtered) {
-          result.addAll(filtered);
-        }
-      } else if (function instanceof WarpScriptNAryFunction) {
-        //
-        // If we have a stack and a validator, push the commonlabels and the list of subseries onto the stack,
-        // call the validator and check if it left true or false onto the stack.
-        //
-        
-        boolean proceed = true;
-        
-        if (null != stack && null != validator) {
-          stack.push(Arrays.asList(subseries));
-          stack.push(commonlabels);
-          stack.exec(validator);
-          if (!Boolean.TRUE.equals(stack.pop())) {
-            proceed = false;
-          }
-        }
-        
-        if (proceed) {
-          result.add(GTSHelper.applyNAryFunction((WarpScriptNAryFunction) function, commonlabels, subseries));
+      boolean proceed = true;
+      
+      if (null != stack && null != validator) {
+        stack.push(Arrays.asList(subseries));
+        stack.push(commonlabels);
+        stack.exec(validator);
+        if (!Boolean.TRUE.equals(stack.pop())) {
+          proceed = false;
         }
-      } else {
-        throw new WarpScriptException("Invalid function to apply.");
       }
       
-      results.put(commonlabels, result);
+      if (proceed) {
+        result.add(GTSHelper.applyNAryFunction((WarpScriptNAryFunction) function, commonlabels, subseries));
+      }
+    } else {
+      throw new WarpScriptException("Invalid function to apply.");
     }
     
-    //
-    // Check that all resulting GTS instances were in allgts
-    //
-
-    //if (function instanceof WarpScriptFilterFunction) {
-    //  for (GeoTimeSerie gts: result) {
-    //    if (!allgts.contains(gts)) {
-    //      throw new WarpScriptException("Some filtered geo time series were not in the original set.");
-    //    }
-    //  }      
-    //}
-    
-    return results;
+    return result;
   }
   
+  @SafeVarargs
   public static GeoTimeSerie applyNAryFunction(WarpScriptNAryFunction function, Map<String,String> commonlabels, List<GeoTimeSerie>... subseries) throws WarpScriptException {
     
     commonlabels = Collections.unmodifiableMap(commonlabels);
@@ -4896,24 +5520,27 @@ public class GTSHelper {
     // multiple times
     //
     
-    int idx[][] = new int[subseries.length][];
-    int nseries = 0;
+    List<GeoTimeSerie> flattened = new ArrayList<GeoTimeSerie>();
     
-    // Keep a matrix with GTS labels, so we can avoid calling getLabels repeatedly
-    Map<String,String>[][] partlabels = new Map[subseries.length][];
+    // Index of collection each GTS is from
+    List<Integer> collectionids = new ArrayList<Integer>();
+    
+    // Keep GTS labels, so we can avoid calling getLabels repeatedly
+    List<Map<String,String>> partlabels = new ArrayList<Map<String,String>>();
     
     for (int i = 0; i < subseries.length; i++) {
-      idx[i] = new int[subseries[i].size()];
-      partlabels[i] = new Map[subseries[i].size()];
       for (int j = 0; j < subseries[i].size(); j++) {
-        partlabels[i][j] = subseries[i].get(j).getLabels();
+        partlabels.add(subseries[i].get(j).getLabels());
         GTSHelper.sort(subseries[i].get(j));
         // Force name of target GTS, this is a brute force way to set it to the last name encountered...
         gts.setName(subseries[i].get(j).getName());
-        nseries++;
+        flattened.add(subseries[i].get(j));
+        collectionids.add(i);
       }
     }
     
+    int nseries = flattened.size();
+    
     //
     // Allocate arrays
     //
@@ -4928,72 +5555,61 @@ public class GTSHelper {
     // Index of collection the value is from, if there is a gap in the index, a collection had no member in the partition
     // The last value is the initial number of collections
     int[] collections = new int[nseries + 1];
-    collections[nseries] = subseries.length;
+    
+    //
+    // Reference content of the arrays which do not depend on the tick, they
+    // are copied at each tick as the function may have modified them
+    //
+    
+    String[] refnames = new String[nseries];
+    Map<String,String>[] reflabels = new Map[nseries + 1];
+    int[] refcollections = new int[nseries + 1];
+    
+    for (int k = 0; k < nseries; k++) {
+      refnames[k] = flattened.get(k).getName();
+      reflabels[k] = partlabels.get(k);
+      refcollections[k] = collectionids.get(k);
+    }
+    
+    reflabels[nseries] = commonlabels;
+    refcollections[nseries] = subseries.length;
     
     Object[] params = new Object[8];
     
     // Do a sweeping line algorithm from oldest tick to newest
     
-    while(true) {
-      //
-      // Determine the tick span at the given indices
-      //
-
-      long smallest = Long.MAX_VALUE;
+    GTSTickAligner aligner = new GTSTickAligner(flattened);
+    
+    while(aligner.next()) {
+      long smallest = aligner.tick();
+      int[] present = aligner.present();
+      int[] indices = aligner.indices();
+      int npresent = aligner.presentCount();
       
-      for (int i = 0; i < subseries.length; i++) {
-        for (int j = 0; j < idx[i].length; j++) {
-          GeoTimeSerie serie = subseries[i].get(j); 
-          if (idx[i][j] < serie.values) {
-            if (serie.ticks[idx[i][j]] < smallest) {
-              smallest = serie.ticks[idx[i][j]];
-            }
-          }
-        }
-      }
-
       //
-      // No smallest tick, this means we've exhausted all values
+      // Now fill the locations/elevations/values arrays, only the GTS
+      // instances whose current tick is 'smallest' have a value
       //
       
-      if (Long.MAX_VALUE == smallest) {
-        break;
-      }
-           
-      //
-      // Now fill the locations/elevations/values arrays for all GTS
-      // instances whose current tick is 'smallest'
-      //
+      System.arraycopy(refnames, 0, names, 0, nseries);
+      System.arraycopy(reflabels, 0, labels, 0, nseries + 1);
+      System.arraycopy(refcollections, 0, collections, 0, nseries + 1);
+      Arrays.fill(locations, GeoTimeSerie.NO_LOCATION);
+      Arrays.fill(elevations, GeoTimeSerie.NO_ELEVATION);
+      Arrays.fill(values, null);
       
-      int k = 0;
+      // Tick records id of partition.
+      for (int k = 0; k < nseries; k++) {
+        ticks[k] = refcollections[k];
+      }
       
-      for (int i = 0; i < subseries.length; i++) {
-        for (int j = 0; j < idx[i].length; j++) {          
-          GeoTimeSerie serie = subseries[i].get(j);
-          
-          names[k] = serie.getName();
-          labels[k] = partlabels[i][j];
-          
-          // Tick records id of partition.
-          ticks[k] = i;
-          
-          if (idx[i][j] < serie.values && smallest == serie.ticks[idx[i][j]]) {
-            locations[k] = null != serie.locations ? serie.locations[idx[i][j]] : GeoTimeSerie.NO_LOCATION;
-            elevations[k] = null != serie.elevations ? serie.elevations[idx[i][j]] : GeoTimeSerie.NO_ELEVATION;
-            values[k] = GTSHelper.valueAtIndex(serie, idx[i][j]);
-            idx[i][j]++;
-          } else {
-            locations[k] = GeoTimeSerie.NO_LOCATION;
-            elevations[k] = GeoTimeSerie.NO_ELEVATION;
-            values[k] = null;
-          }
-          collections[k] = i;
-          k++;
-        }
+      for (int j = 0; j < npresent; j++) {
+        int k = present[j];
+        GeoTimeSerie serie = flattened.get(k);
+        locations[k] = null != serie.locations ? serie.locations[indices[k]] : GeoTimeSerie.NO_LOCATION;
+        elevations[k] = null != serie.elevations ? serie.elevations[indices[k]] : GeoTimeSerie.NO_ELEVATION;
+        values[k] = GTSHelper.valueAtIndex(serie, indices[k]);
       }
-    
-      // Set common labels
-      labels[k] = commonlabels;
       
       //
       // Call the reducer for the current tick
@@ -5338,7 +5954,11 @@ public class GTSHelper {
   }
   
   public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels) throws WarpScriptException {
-    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels);
+    return reduce(reducer, series, bylabels, null, 1);
+  }
+  
+  public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, Object tenant, int parallelism) throws WarpScriptException {
+    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels, tenant, parallelism);
     
     List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
     
@@ -5350,272 +5970,306 @@ public class GTSHelper {
   }
   
   public static Map<Map<String,String>,List<GeoTimeSerie>> reduceUnflattened(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels) throws WarpScriptException {
+    return reduceUnflattened(reducer, series, bylabels, null, 1);
+  }
+  
+  /**
+   * Reduce GTS instances, reducing the partitions using at most 'parallelism' threads on behalf of 'tenant'.
+   * The reducer MUST NOT need a stack if 'parallelism' is greater than 1.
+   * 
+   * @see WarpScriptParallel
+   */
+  public static Map<Map<String,String>,List<GeoTimeSerie>> reduceUnflattened(final WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, Object tenant, int parallelism) throws WarpScriptException {
     //
     // Partition the GTS instances using the given labels
     //
     
     Map<Map<String,String>, List<GeoTimeSerie>> partitions = partition(series, bylabels);
     
+    final List<Map<String,String>> keys = new ArrayList<Map<String,String>>(partitions.keySet());
+    final List<List<GeoTimeSerie>> members = new ArrayList<List<GeoTimeSerie>>(keys.size());
+    
+    for (Map<String,String> partitionLabels: keys) {
+      members.add(partitions.get(partitionLabels));
+    }
+    
+    //
+    // Partitions are disjoint so they can be reduced independently
+    //
+    
+    List<List<GeoTimeSerie>> reduced = WarpScriptParallel.run(tenant, parallelism, keys.size(), new WarpScriptParallel.Task<List<GeoTimeSerie>>() {
+      @Override
+      public List<GeoTimeSerie> call(int index) throws WarpScriptException {
+        return reducePartition(reducer, keys.get(index), members.get(index));
+      }
+    });
+    
     Map<Map<String,String>,List<GeoTimeSerie>> results = new LinkedHashMap<Map<String,String>, List<GeoTimeSerie>>();
     
+    for (int i = 0; i < keys.size(); i++) {
+      results.put(keys.get(i), reduced.get(i));
+    }
     
-    for (Map<String,String> partitionLabels: partitions.keySet()) {
-      boolean singleGTSResult = false;
-
-      List<GeoTimeSerie> partitionSeries = partitions.get(partitionLabels);
-      
-      //
-      // Extract labels and common labels
-      //
-      
-      Map[] partlabels = new Map[partitionSeries.size() + 1];
-      
-      for (int i = 0; i < partitionSeries.size(); i++) {
-        partlabels[i] = partitionSeries.get(i).getLabels();
+    return results;
+  }
+  
+  private static List<GeoTimeSerie> reducePartition(WarpScriptReducerFunction reducer, Map<String,String> partitionLabels, List<GeoTimeSerie> partitionSeries) throws WarpScriptException {
+    boolean singleGTSResult = false;
+    
+    //
+    // Extract labels and common labels
+    //
+    
+    Map[] partlabels = new Map[partitionSeries.size() + 1];
+    
+    for (int i = 0; i < partitionSeries.size(); i++) {
+      partlabels[i] = partitionSeries.get(i).getLabels();
+    }
+    
+    partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabels);
+    
+    //
+    // Determine if result should be bucketized or not.
+    // Result will be bucketized if all GTS instances in the partition are
+    // bucketized, have the same bucketspan and have congruent lastbucket values
+    //
+    
+    long endbucket = Long.MIN_VALUE;
+    long startbucket = Long.MAX_VALUE;
+    long lastbucket = Long.MIN_VALUE;
+    long bucketspan = 0L;
+    
+    for (GeoTimeSerie gts: partitionSeries) {
+      // One GTS instance is not bucketized, result won't be either
+      if (!isBucketized(gts)) {
+        bucketspan = 0L;          
+        break;
       }
-      
-      partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabels);
-      
-      //
-      // Determine if result should be bucketized or not.
-      // Result will be bucketized if all GTS instances in the partition are
-      // bucketized, have the same bucketspan and have congruent lastbucket values
-      //
-      
-      long endbucket = Long.MIN_VALUE;
-      long startbucket = Long.MAX_VALUE;
-      long lastbucket = Long.MIN_VALUE;
-      long bucketspan = 0L;
-      
-      for (GeoTimeSerie gts: partitionSeries) {
-        // One GTS instance is not bucketized, result won't be either
-        if (!isBucketized(gts)) {
-          bucketspan = 0L;          
-          break;
-        }
-        if (0L == bucketspan) {
-          bucketspan = gts.bucketspan;
-        } else if (bucketspan != gts.bucketspan) {
-          // GTS has a bucketspan which differs from the previous one,
-          // so result won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
-        if (Long.MIN_VALUE == lastbucket) {
-          lastbucket = gts.lastbucket;
-        }
-        if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
-          // GTS has a lastbucket value which is not congruent to the other
-          // lastbucket values, so result GTS won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
-        //
-        // Update start/end bucket
-        //
-        
-        if (gts.lastbucket > endbucket) {
-          endbucket = gts.lastbucket;
-        }
-        if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
-          startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
-        }
+      if (0L == bucketspan) {
+        bucketspan = gts.bucketspan;
+      } else if (bucketspan != gts.bucketspan) {
+        // GTS has a bucketspan which differs from the previous one,
+        // so result won't be bucketized.
+        bucketspan = 0L;
+        break;
       }
-      
-      //
-      // Determine bucketcount if result is to be bucketized
-      // startbucket is the end of the first bucket not considered
-      //
-      
-      int bucketcount = 0;
-      
-      if (0L != bucketspan) {
-        bucketcount = (int) ((endbucket - startbucket) / bucketspan);
+      if (Long.MIN_VALUE == lastbucket) {
+        lastbucket = gts.lastbucket;
+      }
+      if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
+        // GTS has a lastbucket value which is not congruent to the other
+        // lastbucket values, so result GTS won't be bucketized.
+        bucketspan = 0L;
+        break;
       }
-      
       //
-      // Create target GTS
+      // Update start/end bucket
       //
       
-      GeoTimeSerie result;
-      
-      if (0L != bucketspan) {
-        result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-      } else {
-        result = new GeoTimeSerie();
+      if (gts.lastbucket > endbucket) {
+        endbucket = gts.lastbucket;
       }
+      if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
+        startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
+      }
+    }
+    
+    //
+    // Determine bucketcount if result is to be bucketized
+    // startbucket is the end of the first bucket not considered
+    //
+    
+    int bucketcount = 0;
+    
+    if (0L != bucketspan) {
+      bucketcount = (int) ((endbucket - startbucket) / bucketspan);
+    }
+    
+    //
+    // Create target GTS
+    //
+    
+    GeoTimeSerie result;
+    
+    if (0L != bucketspan) {
+      result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+    } else {
+      result = new GeoTimeSerie();
+    }
 
-      result.setName("");
-      result.setLabels(partitionLabels);
+    result.setName("");
+    result.setLabels(partitionLabels);
+    
+    //
+    // Determine the name of the result, the aligner will sort the series if it needs to
+    //
       
-      //
-      // Sort all series in the partition so we can scan their ticks in order
-      //
-        
-      String resultName = null;
+    String resultName = null;
+    
+    for (GeoTimeSerie gts: partitionSeries) {
+      if (null == resultName) {
+        resultName = gts.getName();
+      } else if (!resultName.equals(gts.getName())) {
+        resultName = "";
+      }
+    }
+    
+    result.setName(resultName);
+    
+    Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
+    
+    //
+    // Sweep the ticks of the partition series in ascending order
+    //
+    
+    GTSTickAligner aligner = new GTSTickAligner(partitionSeries);
+    
+    int nseries = partitionSeries.size();
+
+    //
+    // Initialize names/labels/location/elevation/value arrays
+    //
+    
+    long[] ticks = new long[nseries];
+    String[] names = new String[nseries];
+    // Allocate 1 more slot for labels so we can store the common labels at the end of the array
+    @SuppressWarnings("unchecked")
+    Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
+    
+    long[] locations = new long[nseries];
+    long[] elevations = new long[nseries];
+    Object[] values = new Object[nseries];
+    
+    String[] partnames = new String[nseries];
+    
+    for (int i = 0; i < nseries; i++) {
+      partnames[i] = partitionSeries.get(i).getName();
+    }
+    
+    //
+    // Reducers have 7 parameters (similar to those of binary ops and mappers)
+    //
+    // tick for which value is computed
+    // array of ticks
+    // array of names
+    // array of labels
+    // array of locations
+    // array of elevations
+    // array of values
+    //
+    
+    Object[] params = new Object[7];
+
+    //
+    // If the reducer supports it, hand it a view over the current datapoints instead of copies of them
+    //
+
+    GTSWindow window = null;
+    GTSWindowResult windowResult = null;
+
+    if (reducer instanceof WarpScriptWindowFunction) {
+      window = new GTSWindow();
+      windowResult = new GTSWindowResult();
+    }
+
+    while(aligner.next()) {
+      long smallest = aligner.tick();
+      int[] present = aligner.present();
+      int npresent = aligner.presentCount();
       
-      for (GeoTimeSerie gts: partitionSeries) {
-        sort(gts, false);
-        if (null == resultName) {
-          resultName = gts.getName();
-        } else if (!resultName.equals(gts.getName())) {
-          resultName = "";
+      if (null != window) {
+        window.reset(smallest, partitionSeries, aligner.indices(), present, npresent);
+        windowResult.reset(smallest);
+
+        if (((WarpScriptWindowFunction) reducer).apply(window, windowResult)) {
+          singleGTSResult = true;
+          GTSHelper.setValue(result, smallest, windowResult);
+          continue;
         }
       }
-      
-      result.setName(resultName);
-      
-      Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
-      
-      //
-      // Initialize indices for each serie
-      //
-      
-      int[] idx = new int[partitionSeries.size()];
 
       //
-      // Initialize names/labels/location/elevation/value arrays
+      // Now fill the locations/elevations/values arrays, absent GTS instances
+      // have no location/elevation and a null value. Arrays are reset each time
+      // as reducers may have modified them.
       //
       
-      long[] ticks = new long[idx.length];
-      String[] names = new String[idx.length];
-      // Allocate 1 more slot for labels so we can store the common labels at the end of the array
-      Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
+      System.arraycopy(partnames, 0, names, 0, nseries);
+      Arrays.fill(ticks, Long.MIN_VALUE);
+      Arrays.fill(locations, GeoTimeSerie.NO_LOCATION);
+      Arrays.fill(elevations, GeoTimeSerie.NO_ELEVATION);
+      Arrays.fill(values, null);
       
-      long[] locations = new long[idx.length];
-      long[] elevations = new long[idx.length];
-      Object[] values = new Object[idx.length];
+      int[] indices = aligner.indices();
+      
+      for (int k = 0; k < npresent; k++) {
+        int i = present[k];
+        GeoTimeSerie gts = partitionSeries.get(i);
+        ticks[i] = smallest;
+        locations[i] = null != gts.locations ? gts.locations[indices[i]] : GeoTimeSerie.NO_LOCATION;
+        elevations[i] = null != gts.elevations ? gts.elevations[indices[i]] : GeoTimeSerie.NO_ELEVATION;
+        values[i] = GTSHelper.valueAtIndex(gts, indices[i]);
+      }
       
       //
-      // Reducers have 7 parameters (similar to those of binary ops and mappers)
+      // Call the reducer for the current tick
       //
-      // tick for which value is computed
-      // array of ticks
-      // array of names
-      // array of labels
-      // array of locations
-      // array of elevations
-      // array of values
+      // Return value will be an array [tick, location, elevation, value]
       //
       
-      Object[] params = new Object[7];
+      // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
+      //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
+      //            could contain the values.
       
-      while(true) {
-        //
-        // Determine the tick span at the given indices
-        //
-
-        long smallest = Long.MAX_VALUE;
-        
-        for (int i = 0; i < idx.length; i++) {
-          GeoTimeSerie gts = partitionSeries.get(i); 
-          if (idx[i] < gts.values) {
-            if (gts.ticks[idx[i]] < smallest) {
-              smallest = gts.ticks[idx[i]];
+      params[0] = smallest;
+      params[1] = names;
+      params[2] = lbls;
+      params[3] = ticks;
+      params[4] = locations;
+      params[5] = elevations;
+      params[6] = values;
+              
+      Object reducerResult = reducer.apply(params);
+      
+      if (reducerResult instanceof Map) {
+        for (Entry<?,?> entry: ((Map<?,?>) reducerResult).entrySet()) {
+          GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
+          if (null == gts) {
+            if (0L != bucketspan) {
+              gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+            } else {
+              gts = new GeoTimeSerie();
             }
-          }
-        }
-
-        //
-        // No smallest tick, this means we've exhausted all values
-        //
-        
-        if (Long.MAX_VALUE == smallest) {
-          break;
-        }
-        
-        //
-        // Now fill the locations/elevations/values arrays for all GTS
-        // instances whose current tick is 'smallest'
-        //
-        
-        for (int i = 0; i < idx.length; i++) {
-          GeoTimeSerie gts = partitionSeries.get(i); 
-          if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
-            ticks[i] = smallest;
-            names[i] = gts.getName();
-            //if (null == lbls[i]) {
-            //  lbls[i] = gts.getLabels();
-            //}
-            locations[i] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
-            elevations[i] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
-            values[i] = GTSHelper.valueAtIndex(gts, idx[i]);
-            // Advance idx[i] since it was the smallest tick.
-            idx[i]++;
-          } else {
-            ticks[i] = Long.MIN_VALUE;
-            names[i] = gts.getName();
-            //if (null == lbls[i]) {
-            //  lbls[i] = gts.getLabels();
-            //}
-            locations[i] = GeoTimeSerie.NO_LOCATION;
-            elevations[i] = GeoTimeSerie.NO_ELEVATION;
-            values[i] = null;
-          }
-        }
-        
-        //
-        // Call the reducer for the current tick
-        //
-        // Return value will be an array [tick, location, elevation, value]
-        //
-        
-        // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
-        //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
-        //            could contain the values.
-        
-        params[0] = smallest;
-        params[1] = names;
-        params[2] = lbls;
-        params[3] = ticks;
-        params[4] = locations;
-        params[5] = elevations;
-        params[6] = values;
-                
-        Object reducerResult = reducer.apply(params);
-        
-        if (reducerResult instanceof Map) {
-          for (Entry<Object,Object> entry: ((Map<Object,Object>) reducerResult).entrySet()) {
-            GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
-            if (null == gts) {
-              if (0L != bucketspan) {
-                gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-              } else {
-                gts = new GeoTimeSerie();
-              }
 
-              gts.setName(entry.getKey().toString());
-              gts.setLabels(partitionLabels);
-              multipleResults.put(entry.getKey().toString(), gts);
-            }
-            
-            Object[] reduced = (Object[]) entry.getValue();
-            
-            if (null != reduced[3]) {
-              GTSHelper.setValue(gts, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
-            }
+            gts.setName(entry.getKey().toString());
+            gts.setLabels(partitionLabels);
+            multipleResults.put(entry.getKey().toString(), gts);
           }
-        } else {
-          Object[] reduced = (Object[]) reducerResult;
-          singleGTSResult = true;
+          
+          Object[] reduced = (Object[]) entry.getValue();
+          
           if (null != reduced[3]) {
-            GTSHelper.setValue(result, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+            GTSHelper.setValue(gts, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
           }
         }
-        
+      } else {
+        Object[] reduced = (Object[]) reducerResult;
+        singleGTSResult = true;
+        if (null != reduced[3]) {
+          GTSHelper.setValue(result, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+        }
       }
       
-      if (!results.containsKey(partitionLabels)) {
-        results.put(partitionLabels, new ArrayList<GeoTimeSerie>());
-      }
+    }
+    
+    List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
 
-      if (singleGTSResult) {
-        results.get(partitionLabels).add(result);
-      }
+    if (singleGTSResult) {
+      results.add(result);
+    }
 
-      if (!multipleResults.isEmpty()) {
-        results.get(partitionLabels).addAll(multipleResults.values());
-      }            
+    if (!multipleResults.isEmpty()) {
+      results.addAll(multipleResults.values());
     }
     
     return results;
@@ -6650,13 +7304,11 @@ public class GTSHelper {
     GTSEncoder clipped = new GTSEncoder(0L);
     clipped.setMetadata(encoder.getMetadata());
     GTSDecoder decoder = encoder.getUnsafeDecoder(false);
+    // Let the decoder skip the datapoints outside of [start,end]
+    decoder.setWindow(start, end, false);
     while(decoder.next()) {
-      long timestamp = decoder.getTimestamp();
-      if (timestamp < start || timestamp > end) {
-        continue;
-      }
       try {
-        clipped.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        clipped.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
       } catch (IOException ioe) {
         throw new RuntimeException(ioe);
       }
@@ -0,0 +1,227 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction.BucketAccumulator;
+
+import java.util.Arrays;
+
+/**
+ * Bucketize a Geo Time Serie while its datapoints are read, in any order, without materializing it.
+ *
+ * When the bucketizer implements WarpScriptStreamingBucketizerFunction and the grid of buckets is known
+ * upfront (non zero 'lastbucket' and 'bucketspan'), each datapoint is added to the accumulator of its bucket
+ * and then dropped, so memory depends on the number of buckets, not on the number of datapoints.
+ *
+ * Otherwise the datapoints are buffered and bucketized by GTSHelper.bucketize once they have all been added.
+ * Datapoints which fall outside of the grid, when it is known, are not buffered.
+ *
+ * In both cases the result is the one of GTSHelper.bucketize on the series built from the same datapoints,
+ * except for the rounding of DOUBLE sums which are computed using compensated summation.
+ */
+public final class GTSStreamingBucketizer {
+
+  private final long bucketspan;
+  private final int bucketcount;
+  private final long lastbucket;
+  private final WarpScriptBucketizerFunction bucketizer;
+  private final long maxbuckets;
+
+  /**
+   * Whether the grid of buckets is known before the datapoints are read
+   */
+  private final boolean grid;
+
+  /**
+   * Single datapoint series used to convert the values to the type of the series, as GTSHelper.setValue does
+   */
+  private final GeoTimeSerie datapoint = new GeoTimeSerie(1);
+
+  private final GTSWindow window = new GTSWindow();
+
+  /**
+   * Accumulators indexed by bucket, the most recent bucket first, null when not streaming
+   */
+  private BucketAccumulator[] accumulators = null;
+
+  /**
+   * Buffered datapoints, null when streaming
+   */
+  private GeoTimeSerie raw = null;
+
+  /**
+   * Number of buckets which received datapoints, from the most recent one
+   */
+  private int buckets = 0;
+
+  private long count = 0L;
+
+  /**
+   * @param type Type of the series, if null the type is the one of its first value
+   */
+  public GTSStreamingBucketizer(long bucketspan, int bucketcount, long lastbucket, WarpScriptBucketizerFunction bucketizer, long maxbuckets, TYPE type) throws WarpScriptException {
+    if (0 == bucketspan && 0 == bucketcount) {
+      throw new WarpScriptException("One of bucketspan or bucketcount must be different from zero.");
+    }
+
+    if (bucketcount < 0 || bucketcount > maxbuckets) {
+      throw new WarpScriptException("Bucket count (" + bucketcount + ") would exceed maximum value of " + maxbuckets);
+    }
+
+    this.bucketspan = bucketspan;
+    this.bucketcount = bucketcount;
+    this.lastbucket = lastbucket;
+    this.bucketizer = bucketizer;
+    this.maxbuckets = maxbuckets;
+    this.grid = 0 != lastbucket && bucketspan > 0;
+
+    if (null != type) {
+      this.datapoint.setType(type);
+    }
+  }
+
+  /**
+   * Add a datapoint to the series being bucketized
+   *
+   * @return true if the value was added, false if it was of an unsupported type
+   */
+  public boolean add(long tick, long location, long elevation, Object value) throws WarpScriptException {
+    this.datapoint.values = 0;
+
+    if (0 == GTSHelper.setValue(this.datapoint, tick, location, elevation, value, false)) {
+      return false;
+    }
+
+    this.count++;
+
+    //
+    // The first value determines whether the series can be aggregated as it is read
+    //
+
+    if (null == this.accumulators && null == this.raw) {
+      if (this.grid && this.bucketizer instanceof WarpScriptStreamingBucketizerFunction && null != ((WarpScriptStreamingBucketizerFunction) this.bucketizer).newBucketAccumulator(this.datapoint.type)) {
+        this.accumulators = new BucketAccumulator[Math.min(16, 0 != this.bucketcount ? this.bucketcount : Integer.MAX_VALUE)];
+      } else {
+        this.raw = new GeoTimeSerie();
+        this.raw.setType(this.datapoint.type);
+      }
+    }
+
+    int bucket = -1;
+
+    if (this.grid) {
+      // Skip the datapoints outside of the buckets
+      if (tick > this.lastbucket || this.lastbucket - tick < 0) {
+        return true;
+      }
+
+      long index = (this.lastbucket - tick) / this.bucketspan;
+
+      if (0 != this.bucketcount && index >= this.bucketcount) {
+        return true;
+      }
+
+      if (index >= this.maxbuckets) {
+        throw new WarpScriptException("Bucket count (" + (index + 1) + ") would exceed maximum value of " + this.maxbuckets);
+      }
+
+      bucket = (int) index;
+    }
+
+    if (null != this.raw) {
+      // 'raw' has the type of the series so the value is converted the same way
+      GTSHelper.setValue(this.raw, tick, location, elevation, value, false);
+      return true;
+    }
+
+    if (bucket >= this.accumulators.length) {
+      this.accumulators = Arrays.copyOf(this.accumulators, (int) Math.min(Math.max(bucket + 1, this.accumulators.length * 2L), 0 != this.bucketcount ? this.bucketcount : Integer.MAX_VALUE));
+    }
+
+    BucketAccumulator accumulator = this.accumulators[bucket];
+
+    if (null == accumulator) {
+      accumulator = ((WarpScriptStreamingBucketizerFunction) this.bucketizer).newBucketAccumulator(this.datapoint.type);
+      this.accumulators[bucket] = accumulator;
+      this.buckets = Math.max(this.buckets, bucket + 1);
+    }
+
+    this.window.reset(tick, this.datapoint, 0, 1);
+    accumulator.add(this.window, 0);
+
+    return true;
+  }
+
+  /**
+   * @return true if the datapoints are aggregated as they are added, false if they are buffered
+   */
+  boolean isStreaming() {
+    return null != this.accumulators;
+  }
+
+  /**
+   * @return the number of values added so far, including those outside of the buckets
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Compute the bucketized series
+   *
+   * @param metadata Metadata of the bucketized series, a copy is used
+   */
+  public GeoTimeSerie bucketize(Metadata metadata) throws WarpScriptException {
+    if (null == this.accumulators) {
+      GeoTimeSerie gts = null != this.raw ? this.raw : this.datapoint.cloneEmpty();
+      gts.setMetadata(metadata);
+      return GTSHelper.bucketize(gts, this.bucketspan, this.bucketcount, this.lastbucket, this.bucketizer, this.maxbuckets, null);
+    }
+
+    GeoTimeSerie bucketized = new GeoTimeSerie(this.lastbucket, 0 != this.bucketcount ? this.bucketcount : this.buckets, this.bucketspan, this.buckets);
+    bucketized.setMetadata(new Metadata(metadata));
+
+    GTSWindowResult result = new GTSWindowResult();
+
+    //
+    // Buckets are visited from the most recent one, as GTSHelper.bucketize does
+    //
+
+    for (int i = 0; i < this.buckets; i++) {
+      if (null == this.accumulators[i]) {
+        continue;
+      }
+
+      long bucketend = this.lastbucket - i * this.bucketspan;
+
+      result.reset(bucketend);
+      this.accumulators[i].apply(result);
+      GTSHelper.setValue(bucketized, bucketend, result);
+    }
+
+    bucketized.sorted = true;
+    bucketized.reversed = true;
+
+    GTSHelper.shrink(bucketized);
+    return bucketized;
+  }
+}
@@ -0,0 +1,133 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append only dictionary of STRING values.
+ *
+ * Each distinct String added to the dictionary is assigned a small integer code and
+ * a canonical instance. A STRING GeoTimeSerie backed by a dictionary only stores references
+ * to canonical instances, so a series with millions of values but only a handful of
+ * distinct ones only holds a handful of String objects, and two values are equal if
+ * and only if they are the same reference (or have the same code).
+ *
+ * The dictionary can be shared among several GeoTimeSerie instances (clones for example) which
+ * may be filled concurrently, lookups of known values are therefore lock free and only the
+ * addition of a new value is synchronized.
+ */
+public class GTSStringDictionary {
+
+  /**
+   * Maximum number of entries a dictionary will hold, once this number is reached,
+   * new values are no longer canonicalized.
+   */
+  public static final int MAX_ENTRIES = 65536;
+
+  /**
+   * Canonical instances, indexed by code. An entry is stored before its code is published in 'codes'.
+   */
+  private volatile String[] entries;
+
+  /**
+   * Map of value to code
+   */
+  private final ConcurrentHashMap<String,Integer> codes;
+
+  private volatile int size = 0;
+
+  public GTSStringDictionary() {
+    this.entries = new String[16];
+    this.codes = new ConcurrentHashMap<String,Integer>();
+  }
+
+  /**
+   * Return the code of 'value' or -1 if it is not in the dictionary.
+   */
+  public int code(String value) {
+    Integer code = this.codes.get(value);
+    return null == code ? -1 : code.intValue();
+  }
+
+  /**
+   * Return the canonical instance associated with 'code' or null if 'code' is unknown.
+   */
+  public String get(int code) {
+    if (code < 0 || code >= this.size) {
+      return null;
+    }
+    return this.entries[code];
+  }
+
+  /**
+   * Add a value to the dictionary.
+   *
+   * @return The code of the value or -1 if the dictionary is full.
+   */
+  public synchronized int add(String value) {
+    Integer code = this.codes.get(value);
+
+    if (null != code) {
+      return code.intValue();
+    }
+
+    if (this.size >= MAX_ENTRIES) {
+      return -1;
+    }
+
+    String[] entries = this.entries;
+
+    if (this.size == entries.length) {
+      entries = Arrays.copyOf(entries, Math.min(MAX_ENTRIES, entries.length << 1));
+      this.entries = entries;
+    }
+
+    int c = this.size;
+
+    entries[c] = value;
+    this.size = c + 1;
+    this.codes.put(value, c);
+
+    return c;
+  }
+
+  /**
+   * Return the canonical instance equal to 'value', adding it to the dictionary if needed.
+   * If the dictionary is full and 'value' is not known, 'value' is returned as is.
+   */
+  public String intern(String value) {
+    if (null == value) {
+      return null;
+    }
+
+    Integer code = this.codes.get(value);
+
+    if (null != code) {
+      return this.entries[code.intValue()];
+    }
+
+    int c = add(value);
+
+    return c < 0 ? value : this.entries[c];
+  }
+
+  public int size() {
+    return this.size;
+  }
+}
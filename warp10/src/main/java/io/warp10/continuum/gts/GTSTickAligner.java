@@ -0,0 +1,333 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sweep the ticks of several GTS instances in ascending order, stopping at each
+ * tick present in at least one of them.
+ *
+ * At each tick, the aligner exposes the indices of the series which have a datapoint
+ * at that tick (the 'present' list) and the index of that datapoint in each series
+ * (-1 for the absent ones). Series with several datapoints at the same tick contribute
+ * them one per step, as REDUCE always did.
+ *
+ * The next tick is found using a binary heap of per series cursors, so a step costs
+ * O(p log N) where p is the number of present series, instead of scanning all N series.
+ * When all series are bucketized on the same grid, most series are present at each
+ * tick and a plain scan of the cursors is cheaper, that dense mode is used then.
+ * If in addition each series has exactly one datapoint per non empty bucket, the buckets
+ * are swept using a bucket indexed view of each series, which does not need them sorted.
+ *
+ * The GTS instances are sorted in ascending tick order if needed, they MUST NOT be modified
+ * while being swept.
+ */
+final class GTSTickAligner {
+
+  /**
+   * Series with at most that many instances are swept in dense mode
+   */
+  private static final int DENSE_THRESHOLD = 8;
+
+  private final GeoTimeSerie[] series;
+
+  /**
+   * Current position in each series
+   */
+  private final int[] cursors;
+
+  /**
+   * Index of the datapoint of each series at the current tick, -1 if absent
+   */
+  private final int[] indices;
+
+  /**
+   * Series present at the current tick
+   */
+  private final int[] present;
+  private int presentCount = 0;
+
+  private final boolean dense;
+
+  /**
+   * Binary heap of series ids, ordered by the tick at their cursor then by id
+   */
+  private final int[] heap;
+  private int heapSize = 0;
+
+  private long tick;
+
+  /**
+   * Bucket views of the series when sweeping buckets, null otherwise
+   */
+  private final GTSBuckets[] buckets;
+
+  /**
+   * Number of buckets of the series with the most buckets and current bucket when sweeping buckets
+   */
+  private int nbuckets;
+  private int bucket = -1;
+
+  GTSTickAligner(List<GeoTimeSerie> series) {
+    this.series = series.toArray(new GeoTimeSerie[series.size()]);
+
+    int n = this.series.length;
+
+    this.cursors = new int[n];
+    this.indices = new int[n];
+    this.present = new int[n];
+
+    Arrays.fill(this.indices, -1);
+
+    boolean sameGrid = sameGrid(this.series);
+
+    this.buckets = sameGrid ? bucketViews(this.series) : null;
+
+    if (null != this.buckets) {
+      for (GTSBuckets view: this.buckets) {
+        this.nbuckets = Math.max(this.nbuckets, view.bucketcount());
+      }
+      this.dense = true;
+      this.heap = null;
+      return;
+    }
+
+    for (GeoTimeSerie gts: this.series) {
+      GTSHelper.sort(gts, false);
+    }
+
+    this.dense = n <= DENSE_THRESHOLD || sameGrid;
+
+    if (this.dense) {
+      this.heap = null;
+    } else {
+      this.heap = new int[n];
+      for (int i = 0; i < n; i++) {
+        if (this.series[i].values > 0) {
+          push(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Advance to the next tick.
+   *
+   * @return false if all series are exhausted
+   */
+  boolean next() {
+    if (null != this.buckets) {
+      return nextBucket();
+    }
+
+    //
+    // Advance the cursors of the series which were present at the previous tick
+    //
+
+    for (int i = 0; i < this.presentCount; i++) {
+      int s = this.present[i];
+      this.indices[s] = -1;
+      this.cursors[s]++;
+      if (!this.dense && this.cursors[s] < this.series[s].values) {
+        push(s);
+      }
+    }
+
+    this.presentCount = 0;
+
+    if (this.dense) {
+      long smallest = Long.MAX_VALUE;
+      boolean found = false;
+
+      for (int s = 0; s < this.series.length; s++) {
+        GeoTimeSerie gts = this.series[s];
+        if (this.cursors[s] < gts.values && (!found || gts.ticks[this.cursors[s]] < smallest)) {
+          smallest = gts.ticks[this.cursors[s]];
+          found = true;
+        }
+      }
+
+      if (!found) {
+        return false;
+      }
+
+      for (int s = 0; s < this.series.length; s++) {
+        GeoTimeSerie gts = this.series[s];
+        if (this.cursors[s] < gts.values && smallest == gts.ticks[this.cursors[s]]) {
+          this.indices[s] = this.cursors[s];
+          this.present[this.presentCount++] = s;
+        }
+      }
+
+      this.tick = smallest;
+      return true;
+    }
+
+    if (0 == this.heapSize) {
+      return false;
+    }
+
+    this.tick = current(this.heap[0]);
+
+    while (this.heapSize > 0 && this.tick == current(this.heap[0])) {
+      int s = pop();
+      this.indices[s] = this.cursors[s];
+      this.present[this.presentCount++] = s;
+    }
+
+    return true;
+  }
+
+  long tick() {
+    return this.tick;
+  }
+
+  /**
+   * @return the index of the datapoint of each series at the current tick, -1 for absent series.
+   *         The returned array MUST NOT be modified.
+   */
+  int[] indices() {
+    return this.indices;
+  }
+
+  /**
+   * @return the ids of the series present at the current tick, only the first presentCount() are meaningful.
+   *         The returned array MUST NOT be modified.
+   */
+  int[] present() {
+    return this.present;
+  }
+
+  int presentCount() {
+    return this.presentCount;
+  }
+
+  private boolean nextBucket() {
+    for (int i = 0; i < this.presentCount; i++) {
+      this.indices[this.present[i]] = -1;
+    }
+
+    this.presentCount = 0;
+
+    while (++this.bucket < this.nbuckets) {
+      for (int s = 0; s < this.series.length; s++) {
+        // Series with fewer buckets are aligned on lastbucket
+        int b = this.bucket - (this.nbuckets - this.buckets[s].bucketcount());
+
+        if (b >= 0 && this.buckets[s].isPresent(b)) {
+          this.indices[s] = this.buckets[s].index(b);
+          this.present[this.presentCount++] = s;
+        }
+      }
+
+      if (this.presentCount > 0) {
+        this.tick = this.series[0].lastbucket - (this.nbuckets - 1 - this.bucket) * this.series[0].bucketspan;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Build the bucket views of series on the same grid.
+   *
+   * @return the views or null if one of the series has datapoints outside of its buckets or several in the same bucket
+   */
+  private static GTSBuckets[] bucketViews(GeoTimeSerie[] series) {
+    GTSBuckets[] views = new GTSBuckets[series.length];
+
+    for (int i = 0; i < series.length; i++) {
+      views[i] = new GTSBuckets(series[i]);
+      if (views[i].cardinality() != series[i].values) {
+        return null;
+      }
+    }
+
+    return views;
+  }
+
+  /**
+   * Check if all series are bucketized with the same bucketspan and lastbucket
+   */
+  private static boolean sameGrid(GeoTimeSerie[] series) {
+    for (int i = 0; i < series.length; i++) {
+      if (!GTSHelper.isBucketized(series[i])) {
+        return false;
+      }
+      if (series[i].bucketspan != series[0].bucketspan || series[i].lastbucket != series[0].lastbucket) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long current(int s) {
+    return this.series[s].ticks[this.cursors[s]];
+  }
+
+  private boolean less(int a, int b) {
+    long ta = current(a);
+    long tb = current(b);
+    return ta < tb || (ta == tb && a < b);
+  }
+
+  private void push(int s) {
+    int i = this.heapSize++;
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!less(s, this.heap[parent])) {
+        break;
+      }
+      this.heap[i] = this.heap[parent];
+      i = parent;
+    }
+
+    this.heap[i] = s;
+  }
+
+  private int pop() {
+    int top = this.heap[0];
+    int last = this.heap[--this.heapSize];
+
+    int i = 0;
+
+    while (true) {
+      int child = (i << 1) + 1;
+      if (child >= this.heapSize) {
+        break;
+      }
+      if (child + 1 < this.heapSize && less(this.heap[child + 1], this.heap[child])) {
+        child++;
+      }
+      if (!less(this.heap[child], last)) {
+        break;
+      }
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+
+    if (this.heapSize > 0) {
+      this.heap[i] = last;
+    }
+
+    return top;
+  }
+}
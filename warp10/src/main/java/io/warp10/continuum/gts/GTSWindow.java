@@ -0,0 +1,360 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+import java.util.List;
+
+/**
+ * Read only view over the datapoints a mapper, bucketizer or reducer is applied to.
+ *
+ * When used by MAP or BUCKETIZE, the window covers a range of indices of a single
+ * sorted GeoTimeSerie, no value is copied.
+ *
+ * When used by REDUCE, the window covers one datapoint per GeoTimeSerie of the partition,
+ * the series which have no value at the current tick are considered absent, their tick is
+ * Long.MIN_VALUE and their value null, just like in the Object[] flavor of reducers.
+ *
+ * Instances are reused from one call to the next, they MUST NOT be retained by the functions.
+ */
+public final class GTSWindow {
+
+  /**
+   * Single series the window covers (MAP/BUCKETIZE)
+   */
+  private GeoTimeSerie gts;
+
+  /**
+   * Index of the first datapoint of the window in 'gts'
+   */
+  private int offset;
+
+  /**
+   * Series the window covers (REDUCE)
+   */
+  private List<GeoTimeSerie> series;
+
+  /**
+   * Index of the datapoint of each series in 'series', -1 if the series is absent
+   */
+  private int[] indices;
+
+  private int size;
+
+  private int nulls;
+
+  /**
+   * Tick for which the function is called
+   */
+  private long tick;
+
+  /**
+   * Common type of the non null values, UNDEFINED if values are of heterogeneous types or if there are none
+   */
+  private TYPE type;
+
+  private boolean numeric;
+
+  private boolean hasWindow;
+  private long prewindow;
+  private long postwindow;
+  private long start;
+  private long stop;
+  private int tickIndex;
+
+  /**
+   * Set the window so it covers 'length' datapoints of 'gts' starting at 'offset'.
+   * 'gts' is expected to be sorted in ascending tick order.
+   */
+  void reset(long tick, GeoTimeSerie gts, int offset, int length) {
+    this.tick = tick;
+    this.gts = gts;
+    this.offset = offset;
+    this.size = length;
+    this.series = null;
+    this.indices = null;
+    this.nulls = 0;
+    this.type = length > 0 ? gts.type : TYPE.UNDEFINED;
+    this.numeric = TYPE.LONG == this.type || TYPE.DOUBLE == this.type;
+    this.hasWindow = false;
+    this.tickIndex = -1;
+  }
+
+  /**
+   * Set the window so it covers the datapoints of 'series' at 'indices'.
+   * The first 'count' elements of 'present' are the positions in 'indices' which are not -1.
+   */
+  void reset(long tick, List<GeoTimeSerie> series, int[] indices, int[] present, int count) {
+    this.tick = tick;
+    this.gts = null;
+    this.offset = 0;
+    this.series = series;
+    this.indices = indices;
+    this.size = indices.length;
+    this.nulls = indices.length - count;
+    this.type = TYPE.UNDEFINED;
+    this.numeric = count > 0;
+    this.hasWindow = false;
+    this.tickIndex = -1;
+
+    for (int i = 0; i < count; i++) {
+      TYPE t = series.get(present[i]).type;
+
+      if (TYPE.LONG != t && TYPE.DOUBLE != t) {
+        this.numeric = false;
+      }
+
+      if (0 == i) {
+        this.type = t;
+      } else if (t != this.type) {
+        this.type = TYPE.UNDEFINED;
+      }
+    }
+  }
+
+  /**
+   * Set the window parameters, as passed in the 8th argument of the Object[] flavor of mappers and bucketizers
+   */
+  void setWindow(long prewindow, long postwindow, long start, long stop, int tickIndex) {
+    this.hasWindow = true;
+    this.prewindow = prewindow;
+    this.postwindow = postwindow;
+    this.start = start;
+    this.stop = stop;
+    this.tickIndex = tickIndex;
+  }
+
+  /**
+   * @return the tick for which the function is called (current tick, bucket end or reduced tick)
+   */
+  public long getTick() {
+    return this.tick;
+  }
+
+  /**
+   * @return the number of datapoints in the window, including absent ones
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return the number of absent datapoints in the window
+   */
+  public int nulls() {
+    return this.nulls;
+  }
+
+  /**
+   * @return the common type of the non null values in the window or UNDEFINED if there is none
+   */
+  public TYPE getType() {
+    return this.type;
+  }
+
+  /**
+   * @return true if the window has at least one non null value and all its non null values are LONG or DOUBLE
+   */
+  public boolean isNumeric() {
+    return this.numeric;
+  }
+
+  public boolean hasWindow() {
+    return this.hasWindow;
+  }
+
+  public long getPrewindow() {
+    return this.prewindow;
+  }
+
+  public long getPostwindow() {
+    return this.postwindow;
+  }
+
+  public long getStart() {
+    return this.start;
+  }
+
+  public long getStop() {
+    return this.stop;
+  }
+
+  /**
+   * @return the index in the window of the current tick or -1 if it is not part of the window
+   */
+  public int getTickIndex() {
+    return this.tickIndex;
+  }
+
+  /**
+   * @return the index of the first non null datapoint with the smallest tick, -1 if there is none
+   */
+  public int earliestIndex() {
+    if (null == this.indices) {
+      return this.size > 0 ? 0 : -1;
+    }
+
+    int idx = -1;
+    long earliest = Long.MAX_VALUE;
+
+    for (int i = 0; i < this.size; i++) {
+      if (this.indices[i] >= 0 && (-1 == idx || tickAt(i) < earliest)) {
+        earliest = tickAt(i);
+        idx = i;
+      }
+    }
+
+    return idx;
+  }
+
+  /**
+   * @return the index of the first non null datapoint with the greatest tick, -1 if there is none
+   */
+  public int latestIndex() {
+    if (null == this.indices) {
+      if (0 == this.size) {
+        return -1;
+      }
+
+      int idx = this.size - 1;
+      long latest = tickAt(idx);
+
+      while (idx > 0 && latest == tickAt(idx - 1)) {
+        idx--;
+      }
+
+      return idx;
+    }
+
+    int idx = -1;
+    long latest = Long.MIN_VALUE;
+
+    for (int i = 0; i < this.size; i++) {
+      if (this.indices[i] >= 0 && (-1 == idx || tickAt(i) > latest)) {
+        latest = tickAt(i);
+        idx = i;
+      }
+    }
+
+    return idx;
+  }
+
+  public boolean isNull(int i) {
+    return null != this.indices && this.indices[i] < 0;
+  }
+
+  public TYPE typeAt(int i) {
+    if (null == this.indices) {
+      return this.gts.type;
+    }
+    return this.indices[i] < 0 ? TYPE.UNDEFINED : this.series.get(i).type;
+  }
+
+  public long tickAt(int i) {
+    if (null == this.indices) {
+      return this.gts.ticks[this.offset + i];
+    }
+    return this.indices[i] < 0 ? Long.MIN_VALUE : this.series.get(i).ticks[this.indices[i]];
+  }
+
+  public long locationAt(int i) {
+    GeoTimeSerie g = serie(i);
+
+    if (null == g || null == g.locations) {
+      return GeoTimeSerie.NO_LOCATION;
+    }
+
+    return g.locations[index(i)];
+  }
+
+  public long elevationAt(int i) {
+    GeoTimeSerie g = serie(i);
+
+    if (null == g || null == g.elevations) {
+      return GeoTimeSerie.NO_ELEVATION;
+    }
+
+    return g.elevations[index(i)];
+  }
+
+  /**
+   * Return the value at index 'i' as a long, DOUBLE values are truncated.
+   * The value at 'i' MUST be numeric.
+   */
+  public long longAt(int i) {
+    GeoTimeSerie g = serie(i);
+
+    if (TYPE.LONG == g.type) {
+      return g.longValues[index(i)];
+    } else {
+      return (long) g.doubleValues[index(i)];
+    }
+  }
+
+  /**
+   * Return the value at index 'i' as a double.
+   * The value at 'i' MUST be numeric.
+   */
+  public double doubleAt(int i) {
+    GeoTimeSerie g = serie(i);
+
+    if (TYPE.DOUBLE == g.type) {
+      return g.doubleValues[index(i)];
+    } else {
+      return (double) g.longValues[index(i)];
+    }
+  }
+
+  /**
+   * Return the value at index 'i', which MUST be of type BOOLEAN
+   */
+  public boolean booleanAt(int i) {
+    return serie(i).booleanValues.get(index(i));
+  }
+
+  /**
+   * Return the value at index 'i', which MUST be of type STRING
+   */
+  public String stringAt(int i) {
+    return serie(i).stringValues[index(i)];
+  }
+
+  /**
+   * Return the value at index 'i' as an object, null if the datapoint is absent
+   */
+  public Object valueAt(int i) {
+    GeoTimeSerie g = serie(i);
+
+    if (null == g) {
+      return null;
+    }
+
+    return GTSHelper.valueAtIndex(g, index(i));
+  }
+
+  private GeoTimeSerie serie(int i) {
+    if (null == this.indices) {
+      return this.gts;
+    }
+    return this.indices[i] < 0 ? null : this.series.get(i);
+  }
+
+  private int index(int i) {
+    return null == this.indices ? this.offset + i : this.indices[i];
+  }
+}
@@ -0,0 +1,194 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+/**
+ * Typed sink for the result of a function applied on a GTSWindow.
+ *
+ * This is the primitive counterpart of the [tick, location, elevation, value] array
+ * returned by the Object[] flavor of mappers, bucketizers and reducers. A null value
+ * is represented by the UNDEFINED type.
+ *
+ * Instances are reused from one call to the next.
+ */
+public final class GTSWindowResult {
+
+  private long tick;
+  private long location;
+  private long elevation;
+
+  private TYPE type;
+
+  private long longValue;
+  private double doubleValue;
+  private boolean booleanValue;
+  private String stringValue;
+
+  /**
+   * Reset the result to a null value at 'tick'
+   */
+  public void reset(long tick) {
+    this.tick = tick;
+    this.location = GeoTimeSerie.NO_LOCATION;
+    this.elevation = GeoTimeSerie.NO_ELEVATION;
+    this.type = TYPE.UNDEFINED;
+    this.stringValue = null;
+  }
+
+  public void setTick(long tick) {
+    this.tick = tick;
+  }
+
+  public void setLocation(long location) {
+    this.location = location;
+  }
+
+  public void setElevation(long elevation) {
+    this.elevation = elevation;
+  }
+
+  public void set(long tick, long location, long elevation) {
+    this.tick = tick;
+    this.location = location;
+    this.elevation = elevation;
+  }
+
+  public void setLong(long value) {
+    this.type = TYPE.LONG;
+    this.longValue = value;
+  }
+
+  public void setDouble(double value) {
+    this.type = TYPE.DOUBLE;
+    this.doubleValue = value;
+  }
+
+  public void setBoolean(boolean value) {
+    this.type = TYPE.BOOLEAN;
+    this.booleanValue = value;
+  }
+
+  public void setString(String value) {
+    if (null == value) {
+      setNull();
+      return;
+    }
+    this.type = TYPE.STRING;
+    this.stringValue = value;
+  }
+
+  public void setNull() {
+    this.type = TYPE.UNDEFINED;
+    this.stringValue = null;
+  }
+
+  /**
+   * Set the tick, location, elevation and value to those of the datapoint at index 'i' of 'window'
+   */
+  public void copy(GTSWindow window, int i) {
+    this.tick = window.tickAt(i);
+    this.location = window.locationAt(i);
+    this.elevation = window.elevationAt(i);
+
+    switch (window.typeAt(i)) {
+      case LONG:
+        setLong(window.longAt(i));
+        break;
+      case DOUBLE:
+        setDouble(window.doubleAt(i));
+        break;
+      case BOOLEAN:
+        setBoolean(window.booleanAt(i));
+        break;
+      case STRING:
+        setString(window.stringAt(i));
+        break;
+      default:
+        setNull();
+    }
+  }
+
+  /**
+   * Set the tick, location, elevation and value to those of 'other'
+   */
+  public void copy(GTSWindowResult other) {
+    this.tick = other.tick;
+    this.location = other.location;
+    this.elevation = other.elevation;
+    this.type = other.type;
+    this.longValue = other.longValue;
+    this.doubleValue = other.doubleValue;
+    this.booleanValue = other.booleanValue;
+    this.stringValue = other.stringValue;
+  }
+
+  public long getTick() {
+    return this.tick;
+  }
+
+  public long getLocation() {
+    return this.location;
+  }
+
+  public long getElevation() {
+    return this.elevation;
+  }
+
+  public TYPE getType() {
+    return this.type;
+  }
+
+  public boolean isNull() {
+    return TYPE.UNDEFINED == this.type;
+  }
+
+  public long getLong() {
+    return this.longValue;
+  }
+
+  public double getDouble() {
+    return this.doubleValue;
+  }
+
+  public boolean getBoolean() {
+    return this.booleanValue;
+  }
+
+  public String getString() {
+    return this.stringValue;
+  }
+
+  /**
+   * @return the value as an object, null if no value was set
+   */
+  public Object getValue() {
+    switch (this.type) {
+      case LONG:
+        return this.longValue;
+      case DOUBLE:
+        return this.doubleValue;
+      case BOOLEAN:
+        return this.booleanValue;
+      case STRING:
+        return this.stringValue;
+      default:
+        return null;
+    }
+  }
+}
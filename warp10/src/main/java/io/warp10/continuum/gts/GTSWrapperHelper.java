@@ -16,8 +16,11 @@
 
 package io.warp10.continuum.gts;
 
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.continuum.store.thrift.data.GTSWrapperCodec;
 import io.warp10.continuum.store.thrift.data.Metadata;
 
 import java.io.ByteArrayInputStream;
@@ -25,9 +28,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Properties;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
 public class GTSWrapperHelper {
 
   /**
@@ -35,6 +48,61 @@ public class GTSWrapperHelper {
    */
   public static final double DEFAULT_COMP_RATIO_THRESHOLD = 100.0D;
   
+  /**
+   * Size of the prefix of the encoded data used by the adaptive codec selection
+   */
+  private static final int ADAPTIVE_SAMPLE_SIZE = 65536;
+  
+  /**
+   * LZ4 compression ratio of the sample under which the data is considered incompressible
+   */
+  private static final double ADAPTIVE_INCOMPRESSIBLE_RATIO = 1.05D;
+  
+  /**
+   * LZ4 compression ratio of the sample above which a gzip pass is applied on top of LZ4
+   */
+  private static final double ADAPTIVE_LZ4_GZIP_RATIO = 4.0D;
+  
+  /**
+   * LZ4 cannot expand data more than 255 times, this is used to reject invalid uncompressed lengths
+   */
+  private static final int LZ4_MAX_RATIO = 255;
+  
+  private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestJavaInstance().fastCompressor();
+  private static final LZ4SafeDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestJavaInstance().safeDecompressor();
+  
+  /**
+   * Codec used when none is specified, null means adaptive selection
+   */
+  private static final GTSWrapperCodec DEFAULT_CODEC;
+  
+  /**
+   * Should STRING GTS be wrapped using a string dictionary by default
+   */
+  private static final boolean DEFAULT_STRING_DICTIONARY;
+  
+  static {
+    Properties props = WarpConfig.getProperties();
+    
+    DEFAULT_STRING_DICTIONARY = null != props && "true".equals(props.getProperty(Configuration.WARPSCRIPT_WRAPPER_STRING_DICTIONARY));
+    
+    String codec = null != props ? props.getProperty(Configuration.WARPSCRIPT_WRAPPER_CODEC, "gzip") : "gzip";
+    
+    if ("gzip".equals(codec)) {
+      DEFAULT_CODEC = GTSWrapperCodec.GZIP;
+    } else if ("lz4".equals(codec)) {
+      DEFAULT_CODEC = GTSWrapperCodec.LZ4;
+    } else if ("snappy".equals(codec)) {
+      DEFAULT_CODEC = GTSWrapperCodec.SNAPPY;
+    } else if ("lz4gzip".equals(codec)) {
+      DEFAULT_CODEC = GTSWrapperCodec.LZ4_GZIP;
+    } else if ("adaptive".equals(codec)) {
+      DEFAULT_CODEC = null;
+    } else {
+      throw new RuntimeException("Invalid value for '" + Configuration.WARPSCRIPT_WRAPPER_CODEC + "', expected gzip, lz4, snappy, lz4gzip or adaptive.");
+    }
+  }
+  
   public static GTSDecoder fromGTSWrapperToGTSDecoder(GTSWrapper wrapper) {
     
     byte[] unwrapped = unwrapEncoded(wrapper);
@@ -114,6 +182,19 @@ public class GTSWrapperHelper {
   }
   
   public static GTSWrapper fromGTSEncoderToGTSWrapper(GTSEncoder encoder, boolean compress, double compratio, int maxpasses) {
+    if (null == DEFAULT_CODEC) {
+      return fromGTSEncoderToGTSWrapper(encoder, compress, selectCodec(encoder.getBytes()), compratio, maxpasses);
+    } else {
+      return fromGTSEncoderToGTSWrapper(encoder, compress, DEFAULT_CODEC, compratio, maxpasses);      
+    }
+  }
+  
+  /**
+   * Wrap an encoder using a specific codec.
+   * 
+   * @param codec Codec to use, if null the encoded data will be left uncompressed. 'compratio' and 'maxpasses' only apply to GZIP.
+   */
+  public static GTSWrapper fromGTSEncoderToGTSWrapper(GTSEncoder encoder, boolean compress, GTSWrapperCodec codec, double compratio, int maxpasses) {
 
     if (compratio < 1.0D) {
       compratio = 1.0D;
@@ -122,8 +203,39 @@ public class GTSWrapperHelper {
     GTSWrapper wrapper = new GTSWrapper();
 
     try {      
-      if (!compress || maxpasses <= 0) {
+      if (!compress || maxpasses <= 0 || null == codec) {
         wrapper.setEncoded(encoder.getBytes());
+      } else if (GTSWrapperCodec.GZIP != codec) {
+        //
+        // Single pass codecs
+        //
+        
+        byte[] bytes = encoder.getBytes();
+        byte[] compressed = null;
+        
+        switch (codec) {
+          case LZ4:
+            compressed = lz4(bytes);
+            break;
+          case SNAPPY:
+            compressed = Snappy.compress(bytes);
+            break;
+          case LZ4_GZIP:
+            compressed = gzip(lz4(bytes));
+            break;
+          default:
+            throw new IOException("Unsupported codec " + codec);
+        }
+        
+        if (compressed.length < bytes.length) {
+          wrapper.setEncoded(compressed);
+          wrapper.setCompressed(true);
+          wrapper.setCodec(codec);
+        } else {
+          // Compression added some overhead, ignore it
+          wrapper.setEncoded(bytes);
+          wrapper.setCompressed(false);
+        }
       } else {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         byte[] bytes = encoder.getBytes();
@@ -204,10 +316,21 @@ public class GTSWrapperHelper {
   }
   
   public static GTSWrapper fromGTSToGTSWrapper(GeoTimeSerie gts, boolean compress, double compratio, boolean optimized) {
+    return fromGTSToGTSWrapper(gts, compress, compratio, optimized, DEFAULT_STRING_DICTIONARY);
+  }
+  
+  /**
+   * @param stringDictionary If true and 'gts' is of type STRING, its values are encoded using a string dictionary
+   */
+  public static GTSWrapper fromGTSToGTSWrapper(GeoTimeSerie gts, boolean compress, double compratio, boolean optimized, boolean stringDictionary) {
 
     GTSEncoder encoder = new GTSEncoder(0L);
     encoder.setMetadata(gts.getMetadata());
     
+    if (stringDictionary && TYPE.STRING == gts.getType()) {
+      encoder.setStringDictionary(true);
+    }
+    
     try {
       if (optimized && TYPE.DOUBLE == gts.getType()) {
         encoder.encodeOptimized(gts);
@@ -276,41 +399,129 @@ public class GTSWrapperHelper {
       return wrapper.getEncoded();
     }
     
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    
     byte[] bytes = wrapper.getEncoded();
-   
-    int pass = wrapper.getCompressionPasses();
     
-    while(pass > 0) {
-      ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-      baos.reset();
-      
-      try {
-        GZIPInputStream gzis = new GZIPInputStream(in);
-        byte[] buf = new byte[1024];
-        
-        while(true) {
-          int len = gzis.read(buf);
-          
-          if (len < 0) {
-            break;
-          }
-          
-          baos.write(buf, 0, len);
+    try {
+      if (wrapper.isSetCodec() && GTSWrapperCodec.GZIP != wrapper.getCodec()) {
+        switch (wrapper.getCodec()) {
+          case LZ4:
+            return unlz4(bytes);
+          case SNAPPY:
+            return Snappy.uncompress(bytes, 0, bytes.length);
+          case LZ4_GZIP:
+            return unlz4(gunzip(bytes));
+          default:
+            throw new RuntimeException("Unsupported codec.");
         }
-        
-        gzis.close();          
-      } catch (IOException ioe) {
-        throw new RuntimeException("Invalid compressed content.");
       }
-      bytes = baos.toByteArray();
-      pass--;
+      
+      int pass = wrapper.getCompressionPasses();
+      
+      while(pass > 0) {
+        bytes = gunzip(bytes);
+        pass--;
+      }
+    } catch (CorruptionException ce) {
+      throw new RuntimeException("Invalid compressed content.");
+    } catch (LZ4Exception lz4e) {
+      throw new RuntimeException("Invalid compressed content.");
+    } catch (IOException ioe) {
+      throw new RuntimeException("Invalid compressed content.");
     }
 
     return bytes;
   }
   
+  /**
+   * Select a codec by compressing a prefix of 'bytes' with LZ4.
+   * 
+   * Data which LZ4 does not shrink is left uncompressed (null is returned), highly redundant
+   * data is compressed by LZ4 then by a single gzip pass which, working on the already reduced LZ4
+   * output, is cheap and does not suffer from the limited gzip window like repeated gzip passes do.
+   * Other data is compressed with LZ4 only.
+   */
+  static GTSWrapperCodec selectCodec(byte[] bytes) {
+    int len = Math.min(bytes.length, ADAPTIVE_SAMPLE_SIZE);
+    
+    if (0 == len) {
+      return null;
+    }
+    
+    byte[] compressed = LZ4_COMPRESSOR.compress(bytes, 0, len);
+    
+    double ratio = (double) len / compressed.length;
+    
+    if (ratio < ADAPTIVE_INCOMPRESSIBLE_RATIO) {
+      return null;
+    } else if (ratio >= ADAPTIVE_LZ4_GZIP_RATIO) {
+      return GTSWrapperCodec.LZ4_GZIP;
+    } else {
+      return GTSWrapperCodec.LZ4;
+    }
+  }
+  
+  /**
+   * LZ4 compress 'bytes', prefixing the result with the uncompressed length
+   */
+  private static byte[] lz4(byte[] bytes) {
+    byte[] compressed = new byte[4 + LZ4_COMPRESSOR.maxCompressedLength(bytes.length)];
+    
+    int len = LZ4_COMPRESSOR.compress(bytes, 0, bytes.length, compressed, 4);
+    
+    ByteBuffer.wrap(compressed).order(ByteOrder.BIG_ENDIAN).putInt(bytes.length);
+    
+    return Arrays.copyOf(compressed, 4 + len);
+  }
+  
+  private static byte[] unlz4(byte[] bytes) throws IOException {
+    if (bytes.length < 4) {
+      throw new IOException("Invalid LZ4 content.");
+    }
+    
+    int len = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).getInt();
+    
+    // Prevent excessive allocation
+    if (len < 0 || (long) len > (long) (bytes.length - 4) * LZ4_MAX_RATIO) {
+      throw new IOException("Invalid LZ4 content.");
+    }
+    
+    byte[] uncompressed = new byte[len];
+    
+    if (len != LZ4_DECOMPRESSOR.decompress(bytes, 4, bytes.length - 4, uncompressed, 0)) {
+      throw new IOException("Invalid LZ4 content.");
+    }
+    
+    return uncompressed;
+  }
+  
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GZIPOutputStream gzos = new GZIPOutputStream(baos);
+    gzos.write(bytes);
+    gzos.close();
+    return baos.toByteArray();
+  }
+  
+  private static byte[] gunzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(bytes));
+    byte[] buf = new byte[1024];
+    
+    while(true) {
+      int len = gzis.read(buf);
+      
+      if (len < 0) {
+        break;
+      }
+      
+      baos.write(buf, 0, len);
+    }
+    
+    gzis.close();
+    
+    return baos.toByteArray();
+  }
+  
   public static boolean isBucketized(GTSWrapper gtsWrapper) {
     return 0 != gtsWrapper.getBucketcount() && 0L != gtsWrapper.getBucketspan() && 0L != gtsWrapper.getLastbucket();
   }
@@ -353,6 +564,11 @@ public class GTSWrapperHelper {
     GTSWrapper rewrapped = new GTSWrapper(wrapper);
     rewrapped.setCompressed(tmp.isCompressed());
     rewrapped.setCompressionPasses(tmp.getCompressionPasses());
+    if (tmp.isSetCodec()) {
+      rewrapped.setCodec(tmp.getCodec());
+    } else {
+      rewrapped.unsetCodec();
+    }
     rewrapped.setEncoded(tmp.getEncoded());
     
     return rewrapped;
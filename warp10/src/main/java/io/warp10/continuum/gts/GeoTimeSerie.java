@@ -127,6 +127,12 @@ public class GeoTimeSerie implements Cloneable {
    */
   String[] stringValues = null;
   
+  /**
+   * Dictionary used to canonicalize STRING values, if null values are stored as is.
+   * The dictionary is shared with the empty clones of a STRING GTS as long as they hold STRING values.
+   */
+  GTSStringDictionary stringDictionary = null;
+  
   /**
    * BitSet for values of BOOLEAN Geo Time Serie
    */
@@ -372,6 +378,10 @@ public class GeoTimeSerie implements Cloneable {
   public GeoTimeSerie cloneEmpty(int sizehint) {
     GeoTimeSerie serie = new GeoTimeSerie(this.lastbucket, this.bucketcount, this.bucketspan, sizehint);
     serie.setMetadata(this.getMetadata());
+    // Only share the dictionary with a clone likely to hold the same values, it is dropped if the clone gets another type
+    if (TYPE.STRING == this.type) {
+      serie.stringDictionary = this.stringDictionary;
+    }
     //serie.type = this.type;
 
     return serie;
@@ -464,6 +474,13 @@ public class GeoTimeSerie implements Cloneable {
     return null != this.elevations;
   }
   
+  /**
+   * Return the dictionary backing the STRING values of this GTS or null if there is none.
+   */
+  public GTSStringDictionary getStringDictionary() {
+    return this.stringDictionary;
+  }
+  
   public void setRenamed(boolean renamed) {
     this.renamed = renamed;
   }
@@ -535,6 +552,8 @@ public class GeoTimeSerie implements Cloneable {
     this.longValues = null;
     this.booleanValues = null;
     this.stringValues = values;
+    // The values are not canonical anymore
+    this.stringDictionary = null;
     this.sorted = false;
     this.values = size;
     this.sizehint = n;
@@ -18,10 +18,10 @@ package io.warp10.continuum.gts;
 
 import io.warp10.continuum.store.thrift.data.Metadata;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Sort Metadata according to text order (on name then on labels)
@@ -83,29 +83,33 @@ public class MetadataTextComparator implements Comparator<Metadata> {
     // Names are identical, compare labels
     //
     
-    List<String> labels1 = new ArrayList<String>();
-    labels1.addAll(o1.getLabels().keySet());
+    Map<String,String> lbls1 = o1.getLabels();
+    Map<String,String> lbls2 = o2.getLabels();
     
-    List<String> labels2 = new ArrayList<String>();
-    labels2.addAll(o2.getLabels().keySet());
+    if (lbls1 == lbls2) {
+      return 0;
+    }
+    
+    String[] labels1 = lbls1.keySet().toArray(new String[lbls1.size()]);
+    String[] labels2 = lbls2.keySet().toArray(new String[lbls2.size()]);
     
-    Collections.sort(labels1);
-    Collections.sort(labels2);
+    Arrays.sort(labels1);
+    Arrays.sort(labels2);
     
     int idx1 = 0;
     int idx2 = 0;
     
-    while(idx1 < labels1.size() && idx2 < labels2.size()) {
+    while(idx1 < labels1.length && idx2 < labels2.length) {
       
       // Compare label names
-      comp = labels1.get(idx1).compareTo(labels2.get(idx2));
+      comp = labels1[idx1].compareTo(labels2[idx2]);
       
       if (0 != comp) {
         return comp;
       }
       
       // Compare label values
-      comp = o1.getLabels().get(labels1.get(idx1)).compareTo(o2.getLabels().get(labels2.get(idx2)));
+      comp = lbls1.get(labels1[idx1]).compareTo(lbls2.get(labels2[idx2]));
       
       if (0 != comp) {
         return comp;
@@ -924,6 +924,21 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US = "warp.script.function.time.us";
 
+  /**
+   * Number of WarpScript lines found in the parse cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PARSECACHE_HITS = "warp.script.parsecache.hits";
+
+  /**
+   * Number of WarpScript lines which were not found in the parse cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PARSECACHE_MISSES = "warp.script.parsecache.misses";
+
+  /**
+   * Total time in microseconds spent parsing WarpScript lines
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PARSE_TIME_US = "warp.script.parse.time.us";
+
   /**
    * Number of times a script has been run
    */
@@ -304,6 +304,11 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
    */
   private final Map<String,Map<Long,Metadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
   
+  /**
+   * Inverted index of the labels and attributes of 'metadatas'
+   */
+  private final MetadataIndex index = new MetadataIndex();
+  
   /**
    * Map of classId to class names
    */
@@ -687,6 +692,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
                 synchronized(metadatas.get(metadata.getName())) {
                   if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
                     metadatas.get(metadata.getName()).put(labelsId, metadata);
+                    index.add(metadata);
                     continue;
                   } else if (!metadatas.get(metadata.getName()).get(labelsId).getLabels().equals(metadata.getLabels())) {
                     LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels());
@@ -1536,7 +1542,9 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
 
                 // Remove cache entry
                 Map<Long,Metadata> metamap = directory.metadatas.get(metadata.getName());
-                if (null != metamap && null != metamap.remove(labelsId)) {
+                Metadata removed = null != metamap ? metamap.remove(labelsId) : null;
+                if (null != removed) {
+                  directory.index.remove(removed);
                   if (metamap.isEmpty()) {
                     try {
                       directory.metadatasLock.lockInterruptibly();
@@ -1773,9 +1781,13 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
               metadata.setClassId(classId);
               metadata.setLabelsId(labelsId);
               
-              if (null == directory.metadatas.get(metadata.getName()).put(labelsId, metadata)) {
+              Metadata replaced = directory.metadatas.get(metadata.getName()).put(labelsId, metadata);
+              if (null == replaced) {
                 Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
+              } else {
+                directory.index.remove(replaced);
               }
+              directory.index.add(metadata);
            
             } finally {
               if (actionsLock.isHeldByCurrentThread()) {
@@ -1994,6 +2006,12 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
 
         labelValues = new String[labelNames.size()];
         
+        //
+        // Select the candidate series from the label index, they are still checked below
+        //
+        
+        OrdinalBitmap selection = this.index.select(labelNames, labelSmartPatterns);
+        
         for (String className: classNames) {
           
           //
@@ -2001,7 +2019,11 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           //
           
           if (classSmartPattern.matches(className)) {
-            for (Metadata metadata: this.metadatas.get(className).values()) {
+            Map<Long,Metadata> classMetadatas = this.metadatas.get(className);
+            if (null == classMetadatas) {
+              continue;
+            }
+            for (Metadata metadata: this.index.select(className, selection, classMetadatas)) {
               boolean exclude = false;
               
               int idx = 0;
@@ -2353,6 +2375,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           labelValues.add(null);
         }
 
+        OrdinalBitmap selection = this.index.select(labelNames, labelSmartPatterns);
+        
         for (String className: classNames) {
           
           //
@@ -2364,7 +2388,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
             if (null == classMetadatas) {
               continue;
             }
-            for (Metadata metadata: classMetadatas.values()) {
+            for (Metadata metadata: this.index.select(className, selection, classMetadatas)) {
               
               boolean exclude = false;
               
@@ -2872,6 +2896,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
         labelValues.add(null);
       }
       
+      OrdinalBitmap selection = this.index.select(labelNames, labelSmartPatterns);
+      
       long labelsComparisons = 0;
       long classesInspected = 0;
       long classesMatched = 0;
@@ -2890,7 +2916,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           if (null == classMetadatas) {
             continue;
           }
-          for (Metadata metadata: classMetadatas.values()) {
+          for (Metadata metadata: this.index.select(className, selection, classMetadatas)) {
             metadataInspected++;
             boolean exclude = false;
             
@@ -0,0 +1,307 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.SmartPattern;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of the Metadata known to a directory, maintained alongside its map of class name to labelsId to metadata.
+ *
+ * Each indexed Metadata is given an ordinal, the index maps each class name to the bitmap of the ordinals of its series
+ * and each label name to each of its values to the bitmap of the ordinals of the series with this value. As selectors fall
+ * back to attributes for the names absent from the labels, attributes are indexed the same way unless a label of the same
+ * name exists.
+ *
+ * Selecting through the index only narrows down the candidates, callers still check the candidates against the selectors.
+ * Metadata are indexed by identity, a Metadata replaced in the directory MUST be removed from the index before its
+ * replacement is added, and the labels and attributes of an indexed Metadata MUST NOT be modified.
+ */
+public class MetadataIndex {
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<Metadata,Integer> ordinals = new IdentityHashMap<Metadata,Integer>();
+
+  /**
+   * Indexed Metadata per ordinal, null for unused ordinals
+   */
+  private Metadata[] metadatas = new Metadata[1024];
+
+  /**
+   * Ordinals released by 'remove', reused before allocating new ones
+   */
+  private int[] free = new int[64];
+  private int freeCount = 0;
+
+  /**
+   * Number of ordinals ever allocated
+   */
+  private int allocated = 0;
+
+  private final Map<String,OrdinalBitmap> classes = new HashMap<String,OrdinalBitmap>();
+
+  private final Map<String,Map<String,OrdinalBitmap>> labels = new HashMap<String,Map<String,OrdinalBitmap>>();
+
+  public void add(Metadata metadata) {
+    lock.writeLock().lock();
+
+    try {
+      if (this.ordinals.containsKey(metadata)) {
+        return;
+      }
+
+      int ordinal;
+
+      if (this.freeCount > 0) {
+        ordinal = this.free[--this.freeCount];
+      } else {
+        ordinal = this.allocated++;
+        if (ordinal == this.metadatas.length) {
+          this.metadatas = Arrays.copyOf(this.metadatas, ordinal * 2);
+        }
+      }
+
+      this.metadatas[ordinal] = metadata;
+      this.ordinals.put(metadata, ordinal);
+
+      OrdinalBitmap bitmap = this.classes.get(metadata.getName());
+
+      if (null == bitmap) {
+        bitmap = new OrdinalBitmap();
+        this.classes.put(metadata.getName(), bitmap);
+      }
+
+      bitmap.add(ordinal);
+
+      for (Entry<String,String> entry: metadata.getLabels().entrySet()) {
+        index(entry.getKey(), entry.getValue(), ordinal);
+      }
+
+      if (null != metadata.getAttributes()) {
+        for (Entry<String,String> entry: metadata.getAttributes().entrySet()) {
+          if (!metadata.getLabels().containsKey(entry.getKey())) {
+            index(entry.getKey(), entry.getValue(), ordinal);
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(Metadata metadata) {
+    lock.writeLock().lock();
+
+    try {
+      Integer ordinal = this.ordinals.remove(metadata);
+
+      if (null == ordinal) {
+        return;
+      }
+
+      this.metadatas[ordinal] = null;
+
+      if (this.freeCount == this.free.length) {
+        this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+      }
+
+      this.free[this.freeCount++] = ordinal;
+
+      OrdinalBitmap bitmap = this.classes.get(metadata.getName());
+
+      if (null != bitmap) {
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) {
+          this.classes.remove(metadata.getName());
+        }
+      }
+
+      for (Entry<String,String> entry: metadata.getLabels().entrySet()) {
+        unindex(entry.getKey(), entry.getValue(), ordinal);
+      }
+
+      if (null != metadata.getAttributes()) {
+        for (Entry<String,String> entry: metadata.getAttributes().entrySet()) {
+          if (!metadata.getLabels().containsKey(entry.getKey())) {
+            unindex(entry.getKey(), entry.getValue(), ordinal);
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Compute the ordinals of the series whose labels (or attributes) may match all the given patterns.
+   *
+   * Exact patterns are looked up directly, other patterns are evaluated once per distinct value of their label.
+   *
+   * @return the selected ordinals or null if the patterns do not narrow down the selection (no patterns or only match all patterns)
+   */
+  public OrdinalBitmap select(List<String> labelNames, List<SmartPattern> labelPatterns) {
+    lock.readLock().lock();
+
+    try {
+      OrdinalBitmap selection = null;
+
+      for (int i = 0; i < labelNames.size(); i++) {
+        SmartPattern pattern = labelPatterns.get(i);
+
+        if (pattern.isMatchAll()) {
+          continue;
+        }
+
+        Map<String,OrdinalBitmap> values = this.labels.get(labelNames.get(i));
+
+        if (null == values) {
+          return new OrdinalBitmap();
+        }
+
+        OrdinalBitmap matching = null;
+
+        if (null != pattern.getString()) {
+          matching = values.get(pattern.getString());
+        } else {
+          for (Entry<String,OrdinalBitmap> entry: values.entrySet()) {
+            if (pattern.matches(entry.getKey())) {
+              if (null == matching) {
+                matching = new OrdinalBitmap();
+              }
+              matching.addAll(entry.getValue());
+            }
+          }
+        }
+
+        if (null == matching) {
+          return new OrdinalBitmap();
+        }
+
+        selection = null == selection ? matching : OrdinalBitmap.and(selection, matching);
+
+        if (selection.isEmpty()) {
+          return selection;
+        }
+      }
+
+      // Do not hand out a bitmap of the index itself as it could later be modified
+      return null == selection ? null : selection.copy();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Return the Metadata of class 'className' whose ordinals are in 'selection'.
+   *
+   * Only the Metadata still present in 'classMetadatas' are returned, so a series removed from the directory but
+   * not yet from the index (or whose ordinal was reused since 'selection' was computed) is never returned.
+   *
+   * @param selection Ordinals returned by 'select', if null all the values of 'classMetadatas' are returned
+   * @param classMetadatas Map of labelsId to Metadata of class 'className'
+   */
+  public Collection<Metadata> select(String className, OrdinalBitmap selection, Map<Long,Metadata> classMetadatas) {
+    if (null == selection) {
+      return classMetadatas.values();
+    }
+
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+
+    if (selection.isEmpty()) {
+      return metadatas;
+    }
+
+    lock.readLock().lock();
+
+    try {
+      OrdinalBitmap bitmap = this.classes.get(className);
+
+      if (null == bitmap) {
+        return metadatas;
+      }
+
+      bitmap = OrdinalBitmap.and(bitmap, selection);
+
+      int ordinal = bitmap.next(0);
+
+      while (ordinal >= 0) {
+        Metadata metadata = this.metadatas[ordinal];
+        if (null != metadata && metadata == classMetadatas.get(metadata.getLabelsId())) {
+          metadatas.add(metadata);
+        }
+        ordinal = bitmap.next(ordinal + 1);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return metadatas;
+  }
+
+  private void index(String name, String value, int ordinal) {
+    Map<String,OrdinalBitmap> values = this.labels.get(name);
+
+    if (null == values) {
+      values = new HashMap<String,OrdinalBitmap>();
+      this.labels.put(name, values);
+    }
+
+    OrdinalBitmap bitmap = values.get(value);
+
+    if (null == bitmap) {
+      bitmap = new OrdinalBitmap();
+      values.put(value, bitmap);
+    }
+
+    bitmap.add(ordinal);
+  }
+
+  private void unindex(String name, String value, int ordinal) {
+    Map<String,OrdinalBitmap> values = this.labels.get(name);
+
+    if (null == values) {
+      return;
+    }
+
+    OrdinalBitmap bitmap = values.get(value);
+
+    if (null == bitmap) {
+      return;
+    }
+
+    bitmap.remove(ordinal);
+
+    if (bitmap.isEmpty()) {
+      values.remove(value);
+      if (values.isEmpty()) {
+        this.labels.remove(name);
+      }
+    }
+  }
+}
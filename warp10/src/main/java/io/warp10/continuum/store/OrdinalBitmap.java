@@ -0,0 +1,403 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non negative ints (series ordinals), organized like a Roaring bitmap.
+ *
+ * Ordinals are split in chunks of 65536 according to their 16 high bits, each chunk stores its 16 low bits
+ * either in a sorted array when it holds at most 4096 ordinals, or in a 65536 bits bitmap otherwise, so sparse
+ * sets cost two bytes per ordinal and dense ones at most one bit per possible ordinal.
+ *
+ * This class is not thread safe.
+ */
+public final class OrdinalBitmap {
+
+  /**
+   * Maximum number of ordinals of a chunk stored as an array
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  private static final class Chunk {
+    /**
+     * Sorted low bits, null if the chunk is a bitmap
+     */
+    private char[] array;
+
+    private long[] bitmap;
+
+    private int cardinality;
+
+    private Chunk() {
+      this.array = new char[4];
+    }
+
+    private Chunk copy() {
+      Chunk chunk = new Chunk();
+      chunk.array = null == this.array ? null : Arrays.copyOf(this.array, this.cardinality);
+      chunk.bitmap = null == this.bitmap ? null : this.bitmap.clone();
+      chunk.cardinality = this.cardinality;
+      return chunk;
+    }
+
+    private boolean contains(char low) {
+      if (null != this.bitmap) {
+        return 0L != (this.bitmap[low >>> 6] & (1L << low));
+      }
+      return Arrays.binarySearch(this.array, 0, this.cardinality, low) >= 0;
+    }
+
+    private boolean add(char low) {
+      if (null != this.bitmap) {
+        long word = this.bitmap[low >>> 6];
+        long updated = word | (1L << low);
+        if (word == updated) {
+          return false;
+        }
+        this.bitmap[low >>> 6] = updated;
+        this.cardinality++;
+        return true;
+      }
+
+      int idx = Arrays.binarySearch(this.array, 0, this.cardinality, low);
+
+      if (idx >= 0) {
+        return false;
+      }
+
+      if (this.cardinality == ARRAY_MAX) {
+        toBitmap();
+        return add(low);
+      }
+
+      idx = -idx - 1;
+
+      if (this.cardinality == this.array.length) {
+        this.array = Arrays.copyOf(this.array, Math.min(ARRAY_MAX, this.array.length * 2));
+      }
+
+      System.arraycopy(this.array, idx, this.array, idx + 1, this.cardinality - idx);
+      this.array[idx] = low;
+      this.cardinality++;
+
+      return true;
+    }
+
+    private boolean remove(char low) {
+      if (null != this.bitmap) {
+        long word = this.bitmap[low >>> 6];
+        long updated = word & ~(1L << low);
+        if (word == updated) {
+          return false;
+        }
+        this.bitmap[low >>> 6] = updated;
+        this.cardinality--;
+        // Convert back to an array well below the threshold so alternating adds and removes do not convert each time
+        if (this.cardinality <= ARRAY_MAX / 2) {
+          toArray();
+        }
+        return true;
+      }
+
+      int idx = Arrays.binarySearch(this.array, 0, this.cardinality, low);
+
+      if (idx < 0) {
+        return false;
+      }
+
+      System.arraycopy(this.array, idx + 1, this.array, idx, this.cardinality - idx - 1);
+      this.cardinality--;
+
+      return true;
+    }
+
+    private void toBitmap() {
+      this.bitmap = new long[1024];
+      for (int i = 0; i < this.cardinality; i++) {
+        this.bitmap[this.array[i] >>> 6] |= 1L << this.array[i];
+      }
+      this.array = null;
+    }
+
+    private void toArray() {
+      char[] array = new char[Math.max(4, this.cardinality)];
+      int n = 0;
+      for (int i = 0; i < this.bitmap.length; i++) {
+        long word = this.bitmap[i];
+        while (0L != word) {
+          array[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      this.array = array;
+      this.bitmap = null;
+    }
+
+    /**
+     * @return the smallest low bits at or above 'from', -1 if there are none
+     */
+    private int next(int from) {
+      if (null != this.bitmap) {
+        int i = from >>> 6;
+        if (i >= this.bitmap.length) {
+          return -1;
+        }
+        long word = this.bitmap[i] & (-1L << from);
+        while (true) {
+          if (0L != word) {
+            return (i << 6) + Long.numberOfTrailingZeros(word);
+          }
+          if (++i == this.bitmap.length) {
+            return -1;
+          }
+          word = this.bitmap[i];
+        }
+      }
+
+      int idx = Arrays.binarySearch(this.array, 0, this.cardinality, (char) from);
+
+      if (idx < 0) {
+        idx = -idx - 1;
+      }
+
+      return idx < this.cardinality ? this.array[idx] : -1;
+    }
+
+    /**
+     * Add the low bits of 'other' to this chunk
+     */
+    private void or(Chunk other) {
+      if (null != other.bitmap && null == this.bitmap) {
+        toBitmap();
+      }
+
+      if (null != this.bitmap && null != other.bitmap) {
+        int cardinality = 0;
+        for (int i = 0; i < 1024; i++) {
+          this.bitmap[i] |= other.bitmap[i];
+          cardinality += Long.bitCount(this.bitmap[i]);
+        }
+        this.cardinality = cardinality;
+      } else {
+        for (int i = 0; i < other.cardinality; i++) {
+          add(other.array[i]);
+        }
+      }
+    }
+
+    private static Chunk and(Chunk a, Chunk b) {
+      if (null != a.bitmap && null != b.bitmap) {
+        Chunk result = new Chunk();
+        result.bitmap = new long[1024];
+        result.array = null;
+        int cardinality = 0;
+        for (int i = 0; i < 1024; i++) {
+          result.bitmap[i] = a.bitmap[i] & b.bitmap[i];
+          cardinality += Long.bitCount(result.bitmap[i]);
+        }
+        result.cardinality = cardinality;
+        if (cardinality <= ARRAY_MAX) {
+          result.toArray();
+        }
+        return result;
+      }
+
+      // Iterate over the array chunk, probing the other one
+      if (null != a.bitmap) {
+        Chunk tmp = a;
+        a = b;
+        b = tmp;
+      }
+
+      Chunk result = new Chunk();
+      result.array = new char[Math.max(4, a.cardinality)];
+
+      for (int i = 0; i < a.cardinality; i++) {
+        if (b.contains(a.array[i])) {
+          result.array[result.cardinality++] = a.array[i];
+        }
+      }
+
+      return result;
+    }
+  }
+
+  /**
+   * Sorted high bits of the chunks
+   */
+  private char[] keys = new char[0];
+
+  private Chunk[] chunks = new Chunk[0];
+
+  private int size = 0;
+
+  public boolean add(int ordinal) {
+    char high = (char) (ordinal >>> 16);
+
+    int idx = Arrays.binarySearch(this.keys, 0, this.size, high);
+
+    if (idx < 0) {
+      idx = -idx - 1;
+
+      if (this.size == this.keys.length) {
+        int capacity = Math.max(4, this.size * 2);
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.chunks = Arrays.copyOf(this.chunks, capacity);
+      }
+
+      System.arraycopy(this.keys, idx, this.keys, idx + 1, this.size - idx);
+      System.arraycopy(this.chunks, idx, this.chunks, idx + 1, this.size - idx);
+      this.keys[idx] = high;
+      this.chunks[idx] = new Chunk();
+      this.size++;
+    }
+
+    return this.chunks[idx].add((char) ordinal);
+  }
+
+  public boolean remove(int ordinal) {
+    int idx = Arrays.binarySearch(this.keys, 0, this.size, (char) (ordinal >>> 16));
+
+    if (idx < 0 || !this.chunks[idx].remove((char) ordinal)) {
+      return false;
+    }
+
+    if (0 == this.chunks[idx].cardinality) {
+      System.arraycopy(this.keys, idx + 1, this.keys, idx, this.size - idx - 1);
+      System.arraycopy(this.chunks, idx + 1, this.chunks, idx, this.size - idx - 1);
+      this.size--;
+      this.chunks[this.size] = null;
+    }
+
+    return true;
+  }
+
+  public boolean contains(int ordinal) {
+    int idx = Arrays.binarySearch(this.keys, 0, this.size, (char) (ordinal >>> 16));
+    return idx >= 0 && this.chunks[idx].contains((char) ordinal);
+  }
+
+  public boolean isEmpty() {
+    return 0 == this.size;
+  }
+
+  public long cardinality() {
+    long cardinality = 0L;
+    for (int i = 0; i < this.size; i++) {
+      cardinality += this.chunks[i].cardinality;
+    }
+    return cardinality;
+  }
+
+  public OrdinalBitmap copy() {
+    OrdinalBitmap copy = new OrdinalBitmap();
+    copy.keys = Arrays.copyOf(this.keys, this.size);
+    copy.chunks = new Chunk[this.size];
+    for (int i = 0; i < this.size; i++) {
+      copy.chunks[i] = this.chunks[i].copy();
+    }
+    copy.size = this.size;
+    return copy;
+  }
+
+  /**
+   * @return the smallest ordinal at or above 'from', -1 if there are none
+   */
+  public int next(int from) {
+    if (from < 0) {
+      from = 0;
+    }
+
+    int idx = Arrays.binarySearch(this.keys, 0, this.size, (char) (from >>> 16));
+
+    int low = from & 0xFFFF;
+
+    if (idx < 0) {
+      idx = -idx - 1;
+      low = 0;
+    }
+
+    for (; idx < this.size; idx++) {
+      int next = this.chunks[idx].next(low);
+      if (next >= 0) {
+        return (this.keys[idx] << 16) | next;
+      }
+      low = 0;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Add the ordinals of 'other' to this bitmap
+   */
+  public void addAll(OrdinalBitmap other) {
+    for (int j = 0; j < other.size; j++) {
+      int idx = Arrays.binarySearch(this.keys, 0, this.size, other.keys[j]);
+
+      if (idx >= 0) {
+        this.chunks[idx].or(other.chunks[j]);
+        continue;
+      }
+
+      idx = -idx - 1;
+
+      if (this.size == this.keys.length) {
+        int capacity = Math.max(4, this.size * 2);
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.chunks = Arrays.copyOf(this.chunks, capacity);
+      }
+
+      System.arraycopy(this.keys, idx, this.keys, idx + 1, this.size - idx);
+      System.arraycopy(this.chunks, idx, this.chunks, idx + 1, this.size - idx);
+      this.keys[idx] = other.keys[j];
+      this.chunks[idx] = other.chunks[j].copy();
+      this.size++;
+    }
+  }
+
+  /**
+   * @return a new bitmap containing the ordinals present in both 'a' and 'b'
+   */
+  public static OrdinalBitmap and(OrdinalBitmap a, OrdinalBitmap b) {
+    OrdinalBitmap result = new OrdinalBitmap();
+    int capacity = Math.min(a.size, b.size);
+    result.keys = new char[capacity];
+    result.chunks = new Chunk[capacity];
+
+    int i = 0;
+    int j = 0;
+
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (b.keys[j] < a.keys[i]) {
+        j++;
+      } else {
+        Chunk chunk = Chunk.and(a.chunks[i++], b.chunks[j++]);
+        if (chunk.cardinality > 0) {
+          result.keys[result.size] = a.keys[i - 1];
+          result.chunks[result.size++] = chunk;
+        }
+      }
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,712 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Binary encoding of the stack returned by /exec, selected by requesting the content type
+ * 'application/x-warp10-stack' in the Accept header, and its reference decoder.
+ *
+ * The encoding starts with the magic 'WSB' followed by a version byte (1) and the number of levels, the levels
+ * follow, the top of the stack first. Each level is an element made of a tag byte and a payload:
+ *
+ *   NULL        no payload
+ *   LONG        zig zag varint
+ *   DOUBLE      IEEE 754 big endian
+ *   TRUE/FALSE  no payload
+ *   STRING      varint length, UTF-8 bytes
+ *   BYTES       varint length, bytes
+ *   LIST        varint size, elements
+ *   MAP         varint size, key and value elements
+ *   METADATA    class, labels, attributes (see below)
+ *   GTS         class, labels, attributes, value type byte, varint size, flags byte (1 locations, 2 elevations)
+ *               followed by the columns: ticks (zig zag varint deltas from the previous tick, starting at 0),
+ *               locations (big endian longs) and elevations (zig zag varints) if flagged, then the values
+ *               (LONG zig zag varints, DOUBLE big endian, BOOLEAN bits packed in bytes, STRING varint length and UTF-8 bytes)
+ *   ENCODER     class, labels, attributes then rows of a value element (LONG, DOUBLE, TRUE, FALSE or STRING), a zig zag
+ *               varint tick delta, a big endian location and a zig zag varint elevation, terminated by an END tag,
+ *               values stored as decimals being encoded as DOUBLE
+ *
+ * Class names are strings, labels and attributes are a varint count followed by the names and values as strings,
+ * strings being a varint length followed by UTF-8 bytes.
+ *
+ * Macros and functions are encoded as strings like in the JSON output. Numbers which are neither integers
+ * nor floating point values (BigDecimal, BigInteger...) are encoded as strings, map keys of a type which has
+ * no encoding are encoded as strings too since the JSON output uses the string representation of all keys.
+ * Other objects, which are output as null in JSON, and content nested deeper than the maximum recursion
+ * level are encoded as NULL.
+ */
+public class BinaryStackCodec {
+
+  public static final String CONTENT_TYPE = "application/x-warp10-stack";
+
+  private static final byte[] MAGIC = "WSB".getBytes(Charsets.US_ASCII);
+
+  private static final int VERSION = 1;
+
+  public static final int TAG_END = 0;
+  public static final int TAG_NULL = 1;
+  public static final int TAG_LONG = 2;
+  public static final int TAG_DOUBLE = 3;
+  public static final int TAG_TRUE = 4;
+  public static final int TAG_FALSE = 5;
+  public static final int TAG_STRING = 6;
+  public static final int TAG_BYTES = 7;
+  public static final int TAG_LIST = 8;
+  public static final int TAG_MAP = 9;
+  public static final int TAG_METADATA = 10;
+  public static final int TAG_GTS = 11;
+  public static final int TAG_ENCODER = 12;
+
+  private static final int FLAG_LOCATIONS = 1;
+  private static final int FLAG_ELEVATIONS = 2;
+
+  private static final TYPE[] TYPES = { TYPE.UNDEFINED, TYPE.LONG, TYPE.DOUBLE, TYPE.BOOLEAN, TYPE.STRING };
+
+  /**
+   * Buffered output with the primitive encodings of the format
+   */
+  private static final class Output {
+    private final OutputStream out;
+    private final byte[] buf = new byte[10];
+
+    private Output(OutputStream out) {
+      this.out = out;
+    }
+
+    private void tag(int tag) throws IOException {
+      this.out.write(tag);
+    }
+
+    private void unsigned(long value) throws IOException {
+      // Same encoding as Varint.encodeUnsignedLongInBuf, inlined to avoid the array copy
+      int len = 0;
+      while ((value & ~0x7FL) != 0L) {
+        this.buf[len++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.buf[len++] = (byte) value;
+      this.out.write(this.buf, 0, len);
+    }
+
+    private void signed(long value) throws IOException {
+      unsigned((value << 1) ^ (value >> 63));
+    }
+
+    private void fixed(long value) throws IOException {
+      for (int i = 0; i < 8; i++) {
+        this.buf[i] = (byte) (value >>> (56 - 8 * i));
+      }
+      this.out.write(this.buf, 0, 8);
+    }
+
+    private void string(String s) throws IOException {
+      byte[] bytes = s.getBytes(Charsets.UTF_8);
+      unsigned(bytes.length);
+      this.out.write(bytes);
+    }
+
+    private void map(Map<String,String> map) throws IOException {
+      if (null == map) {
+        unsigned(0);
+        return;
+      }
+      unsigned(map.size());
+      for (Entry<String,String> entry: map.entrySet()) {
+        string(entry.getKey());
+        string(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Check if the media ranges of the Accept header 'accept' select the binary encoding over JSON.
+   *
+   * The binary encoding must be listed explicitly with a non zero quality. It is selected if its quality is above
+   * that of the most specific range matching 'application/json', or equal to it and either listed first or only
+   * matched by a wildcard range.
+   */
+  public static boolean accepts(String accept) {
+    if (null == accept) {
+      return false;
+    }
+
+    double binaryQ = 0.0D;
+    int binaryIndex = -1;
+
+    double jsonQ = 0.0D;
+    int jsonIndex = -1;
+    int jsonSpecificity = -1;
+
+    String[] ranges = accept.split(",");
+
+    for (int i = 0; i < ranges.length; i++) {
+      String[] tokens = ranges[i].split(";");
+      String type = tokens[0].trim().toLowerCase();
+
+      double q = 1.0D;
+
+      for (int j = 1; j < tokens.length; j++) {
+        String param = tokens[j].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2).trim());
+          } catch (NumberFormatException nfe) {
+            q = 0.0D;
+          }
+        }
+      }
+
+      if (CONTENT_TYPE.equals(type)) {
+        if (binaryIndex < 0) {
+          binaryQ = q;
+          binaryIndex = i;
+        }
+        continue;
+      }
+
+      int specificity = -1;
+
+      if ("application/json".equals(type)) {
+        specificity = 2;
+      } else if ("application/*".equals(type)) {
+        specificity = 1;
+      } else if ("*/*".equals(type)) {
+        specificity = 0;
+      }
+
+      if (specificity > jsonSpecificity) {
+        jsonSpecificity = specificity;
+        jsonQ = q;
+        jsonIndex = i;
+      }
+    }
+
+    if (binaryIndex < 0 || binaryQ <= 0.0D) {
+      return false;
+    }
+
+    if (binaryQ != jsonQ) {
+      return binaryQ > jsonQ;
+    }
+
+    return jsonSpecificity < 2 || binaryIndex < jsonIndex;
+  }
+
+  /**
+   * Write the levels of 'stack' to 'out', removing each level once it has been written like StackUtils.drainToJSON.
+   * The stack is empty on return, 'out' is flushed but not closed.
+   */
+  public static void drain(OutputStream out, WarpScriptStack stack) throws IOException, WarpScriptException {
+    // Compute the pending lazy lists before anything is written
+    LazyGTSList.materializeAll(stack);
+
+    Output output = new Output(new BufferedOutputStream(out, 65536));
+
+    output.out.write(MAGIC);
+    output.out.write(VERSION);
+    output.unsigned(stack.depth());
+
+    while (stack.depth() > 0) {
+      encode(output, stack.pop(), 0);
+    }
+
+    output.out.flush();
+  }
+
+  private static void encode(Output out, Object o, int level) throws IOException {
+    if (level > WarpScriptStack.DEFAULT_MAX_RECURSION_LEVEL) {
+      out.tag(TAG_NULL);
+      return;
+    }
+
+    if (null == o) {
+      out.tag(TAG_NULL);
+    } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof AtomicLong || o instanceof AtomicInteger) {
+      out.tag(TAG_LONG);
+      out.signed(((Number) o).longValue());
+    } else if (o instanceof Double || o instanceof Float) {
+      out.tag(TAG_DOUBLE);
+      out.fixed(Double.doubleToRawLongBits(((Number) o).doubleValue()));
+    } else if (o instanceof Boolean) {
+      out.tag(Boolean.TRUE.equals(o) ? TAG_TRUE : TAG_FALSE);
+    } else if (o instanceof String || o instanceof Number) {
+      out.tag(TAG_STRING);
+      out.string(o.toString());
+    } else if (o instanceof byte[]) {
+      out.tag(TAG_BYTES);
+      out.unsigned(((byte[]) o).length);
+      out.out.write((byte[]) o);
+    } else if (o instanceof List) {
+      List<?> list = (List<?>) o;
+      out.tag(TAG_LIST);
+      out.unsigned(list.size());
+      for (Object elt: list) {
+        encode(out, elt, level + 1);
+      }
+    } else if (o instanceof Map) {
+      Map<?,?> map = (Map<?,?>) o;
+      out.tag(TAG_MAP);
+      out.unsigned(map.size());
+      for (Entry<?,?> entry: map.entrySet()) {
+        Object key = entry.getKey();
+        encode(out, null == key || hasEncoding(key) ? key : key.toString(), level + 1);
+        encode(out, entry.getValue(), level + 1);
+      }
+    } else if (o instanceof GeoTimeSerie) {
+      encodeGTS(out, (GeoTimeSerie) o);
+    } else if (o instanceof GTSEncoder) {
+      encodeEncoder(out, (GTSEncoder) o);
+    } else if (o instanceof Metadata) {
+      out.tag(TAG_METADATA);
+      encodeMetadata(out, (Metadata) o);
+    } else if (o instanceof Macro) {
+      out.tag(TAG_STRING);
+      out.string(o.toString());
+    } else if (o instanceof NamedWarpScriptFunction) {
+      out.tag(TAG_STRING);
+      out.string(WarpScriptStack.MACRO_START + " " + o.toString() + " " + WarpScriptStack.MACRO_END + " " + WarpScriptLib.EVAL);
+    } else {
+      out.tag(TAG_NULL);
+    }
+  }
+
+  /**
+   * Check if 'o' is encoded as something else than NULL by 'encode'
+   */
+  private static boolean hasEncoding(Object o) {
+    return o instanceof Number || o instanceof Boolean || o instanceof String || o instanceof byte[]
+        || o instanceof List || o instanceof Map || o instanceof GeoTimeSerie || o instanceof GTSEncoder
+        || o instanceof Metadata || o instanceof Macro || o instanceof NamedWarpScriptFunction;
+  }
+
+  private static void encodeMetadata(Output out, Metadata metadata) throws IOException {
+    out.string(null == metadata.getName() ? "" : metadata.getName());
+    out.map(metadata.getLabels());
+    out.map(metadata.getAttributes());
+  }
+
+  private static void encodeGTS(Output out, GeoTimeSerie gts) throws IOException {
+    out.tag(TAG_GTS);
+    encodeMetadata(out, gts.getMetadata());
+
+    int n = gts.size();
+    TYPE type = 0 == n ? TYPE.UNDEFINED : gts.getType();
+
+    int typecode = 0;
+
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i] == type) {
+        typecode = i;
+      }
+    }
+
+    out.tag(typecode);
+    out.unsigned(n);
+
+    if (0 == n) {
+      out.tag(0);
+      return;
+    }
+
+    boolean locations = gts.hasLocations();
+    boolean elevations = gts.hasElevations();
+
+    out.tag((locations ? FLAG_LOCATIONS : 0) | (elevations ? FLAG_ELEVATIONS : 0));
+
+    long last = 0L;
+
+    for (int i = 0; i < n; i++) {
+      long tick = GTSHelper.tickAtIndex(gts, i);
+      out.signed(tick - last);
+      last = tick;
+    }
+
+    if (locations) {
+      for (int i = 0; i < n; i++) {
+        out.fixed(GTSHelper.locationAtIndex(gts, i));
+      }
+    }
+
+    if (elevations) {
+      for (int i = 0; i < n; i++) {
+        out.signed(GTSHelper.elevationAtIndex(gts, i));
+      }
+    }
+
+    if (TYPE.LONG == type) {
+      for (int i = 0; i < n; i++) {
+        out.signed(GTSHelper.longValueAtIndex(gts, i));
+      }
+    } else if (TYPE.DOUBLE == type) {
+      for (int i = 0; i < n; i++) {
+        out.fixed(Double.doubleToRawLongBits(GTSHelper.doubleValueAtIndex(gts, i)));
+      }
+    } else if (TYPE.BOOLEAN == type) {
+      int bits = 0;
+      for (int i = 0; i < n; i++) {
+        if (GTSHelper.booleanValueAtIndex(gts, i)) {
+          bits |= 1 << (i & 7);
+        }
+        if (7 == (i & 7) || n - 1 == i) {
+          out.out.write(bits);
+          bits = 0;
+        }
+      }
+    } else {
+      for (int i = 0; i < n; i++) {
+        out.string((String) GTSHelper.valueAtIndex(gts, i));
+      }
+    }
+  }
+
+  private static void encodeEncoder(Output out, GTSEncoder encoder) throws IOException {
+    out.tag(TAG_ENCODER);
+    encodeMetadata(out, encoder.getMetadata());
+
+    GTSDecoder decoder = encoder.getUnsafeDecoder(false);
+
+    long last = 0L;
+
+    while (decoder.next()) {
+      Object value = decoder.getValue();
+
+      if (value instanceof Long) {
+        out.tag(TAG_LONG);
+        out.signed((long) value);
+      } else if (value instanceof Number) {
+        // Doubles stored as decimals are decoded as BigDecimal
+        out.tag(TAG_DOUBLE);
+        out.fixed(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+      } else if (value instanceof Boolean) {
+        out.tag(Boolean.TRUE.equals(value) ? TAG_TRUE : TAG_FALSE);
+      } else {
+        out.tag(TAG_STRING);
+        out.string(value.toString());
+      }
+
+      long tick = decoder.getTimestamp();
+      out.signed(tick - last);
+      last = tick;
+
+      out.fixed(decoder.getLocation());
+      out.signed(decoder.getElevation());
+    }
+
+    out.tag(TAG_END);
+  }
+
+  //
+  // Reference decoder
+  //
+
+  /**
+   * Decode the levels encoded in 'in', which is read one byte at a time so it should be buffered
+   *
+   * @return the levels, the top of the stack first. GTS are returned as GeoTimeSerie, encoders as GTSEncoder
+   *         and metadata as Metadata instances
+   */
+  public static List<Object> decode(InputStream in) throws IOException {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (MAGIC[i] != readByte(in)) {
+        throw new IOException("Invalid magic.");
+      }
+    }
+
+    int version = readByte(in);
+
+    if (VERSION != version) {
+      throw new IOException("Unsupported version " + version + ".");
+    }
+
+    int depth = readSize(in);
+
+    List<Object> levels = new ArrayList<Object>(depth);
+
+    for (int i = 0; i < depth; i++) {
+      levels.add(decodeElement(in, readByte(in)));
+    }
+
+    return levels;
+  }
+
+  private static Object decodeElement(InputStream in, int tag) throws IOException {
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_LONG:
+        return readSigned(in);
+      case TAG_DOUBLE:
+        return Double.longBitsToDouble(readFixed(in));
+      case TAG_TRUE:
+        return Boolean.TRUE;
+      case TAG_FALSE:
+        return Boolean.FALSE;
+      case TAG_STRING:
+        return readString(in);
+      case TAG_BYTES:
+        return readBytes(in, readSize(in));
+      case TAG_LIST: {
+        int size = readSize(in);
+        List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(decodeElement(in, readByte(in)));
+        }
+        return list;
+      }
+      case TAG_MAP: {
+        int size = readSize(in);
+        Map<Object,Object> map = new LinkedHashMap<Object,Object>();
+        for (int i = 0; i < size; i++) {
+          Object key = decodeElement(in, readByte(in));
+          map.put(key, decodeElement(in, readByte(in)));
+        }
+        return map;
+      }
+      case TAG_METADATA:
+        return decodeMetadata(in);
+      case TAG_GTS:
+        return decodeGTS(in);
+      case TAG_ENCODER:
+        return decodeEncoder(in);
+      default:
+        throw new IOException("Invalid tag " + tag + ".");
+    }
+  }
+
+  private static Metadata decodeMetadata(InputStream in) throws IOException {
+    Metadata metadata = new Metadata();
+    metadata.setName(readString(in));
+    metadata.setLabels(readMap(in));
+    metadata.setAttributes(readMap(in));
+    return metadata;
+  }
+
+  private static GeoTimeSerie decodeGTS(InputStream in) throws IOException {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.safeSetMetadata(decodeMetadata(in));
+
+    int typecode = readByte(in);
+
+    if (typecode >= TYPES.length) {
+      throw new IOException("Invalid GTS type " + typecode + ".");
+    }
+
+    TYPE type = TYPES[typecode];
+    int n = readSize(in);
+    int flags = readByte(in);
+
+    if (0 == n) {
+      return gts;
+    }
+
+    long[] ticks = new long[n];
+    long[] locations = null;
+    long[] elevations = null;
+
+    long last = 0L;
+
+    for (int i = 0; i < n; i++) {
+      last += readSigned(in);
+      ticks[i] = last;
+    }
+
+    if (0 != (flags & FLAG_LOCATIONS)) {
+      locations = new long[n];
+      for (int i = 0; i < n; i++) {
+        locations[i] = readFixed(in);
+      }
+    }
+
+    if (0 != (flags & FLAG_ELEVATIONS)) {
+      elevations = new long[n];
+      for (int i = 0; i < n; i++) {
+        elevations[i] = readSigned(in);
+      }
+    }
+
+    if (TYPE.LONG == type) {
+      long[] values = new long[n];
+      for (int i = 0; i < n; i++) {
+        values[i] = readSigned(in);
+      }
+      gts.reset(ticks, locations, elevations, values, n);
+    } else if (TYPE.DOUBLE == type) {
+      double[] values = new double[n];
+      for (int i = 0; i < n; i++) {
+        values[i] = Double.longBitsToDouble(readFixed(in));
+      }
+      gts.reset(ticks, locations, elevations, values, n);
+    } else if (TYPE.STRING == type) {
+      String[] values = new String[n];
+      for (int i = 0; i < n; i++) {
+        values[i] = readString(in);
+      }
+      gts.reset(ticks, locations, elevations, values, n);
+    } else if (TYPE.BOOLEAN == type) {
+      int bits = 0;
+      for (int i = 0; i < n; i++) {
+        if (0 == (i & 7)) {
+          bits = readByte(in);
+        }
+        long location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[i];
+        long elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[i];
+        GTSHelper.setValue(gts, ticks[i], location, elevation, 0 != (bits & (1 << (i & 7))), false);
+      }
+    } else {
+      throw new IOException("Invalid type for a non empty GTS.");
+    }
+
+    return gts;
+  }
+
+  private static GTSEncoder decodeEncoder(InputStream in) throws IOException {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.safeSetMetadata(decodeMetadata(in));
+
+    long last = 0L;
+
+    while (true) {
+      int tag = readByte(in);
+
+      if (TAG_END == tag) {
+        break;
+      }
+
+      Object value = decodeElement(in, tag);
+
+      if (!(value instanceof Long || value instanceof Double || value instanceof Boolean || value instanceof String)) {
+        throw new IOException("Invalid encoder value.");
+      }
+
+      last += readSigned(in);
+      long location = readFixed(in);
+      long elevation = readSigned(in);
+
+      encoder.addValue(last, location, elevation, value);
+    }
+
+    return encoder;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+
+    if (b < 0) {
+      throw new EOFException();
+    }
+
+    return b;
+  }
+
+  private static long readUnsigned(InputStream in) throws IOException {
+    long value = 0L;
+    int shift = 0;
+    int b;
+
+    while (0 != ((b = readByte(in)) & 0x80)) {
+      value |= ((long) (b & 0x7F)) << shift;
+      shift += 7;
+      if (shift > 63) {
+        throw new IOException("Variable length quantity is too long.");
+      }
+    }
+
+    return value | (((long) b) << shift);
+  }
+
+  private static long readSigned(InputStream in) throws IOException {
+    long unsigned = readUnsigned(in);
+    return (unsigned >>> 1) ^ -(unsigned & 1L);
+  }
+
+  private static int readSize(InputStream in) throws IOException {
+    long size = readUnsigned(in);
+
+    if (size < 0 || size > Integer.MAX_VALUE) {
+      throw new IOException("Invalid size " + size + ".");
+    }
+
+    return (int) size;
+  }
+
+  private static long readFixed(InputStream in) throws IOException {
+    long value = 0L;
+
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | readByte(in);
+    }
+
+    return value;
+  }
+
+  private static byte[] readBytes(InputStream in, int len) throws IOException {
+    byte[] bytes = new byte[len];
+
+    int off = 0;
+
+    while (off < len) {
+      int read = in.read(bytes, off, len - off);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      off += read;
+    }
+
+    return bytes;
+  }
+
+  private static String readString(InputStream in) throws IOException {
+    return new String(readBytes(in, readSize(in)), Charsets.UTF_8);
+  }
+
+  private static Map<String,String> readMap(InputStream in) throws IOException {
+    int size = readSize(in);
+
+    Map<String,String> map = new HashMap<String,String>();
+
+    for (int i = 0; i < size; i++) {
+      String key = readString(in);
+      map.put(key, readString(in));
+    }
+
+    return map;
+  }
+}
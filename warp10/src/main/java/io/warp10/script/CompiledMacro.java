@@ -0,0 +1,100 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.util.List;
+
+/**
+ * Compiled form of a macro executed often (mappers, filters, loop bodies...).
+ *
+ * The statements are decoded once into two arrays, the functions to apply and the literals to push,
+ * so executing the macro no longer goes through the statement list nor tests the type of each statement.
+ * The compiled form is executed by MemoryWarpScriptStack with the same accounting as the statement
+ * list (one op per statement, recursion level, progress), only the dispatch differs.
+ *
+ * A macro is compiled once it has been executed 'warpscript.macro.compile.threshold' times.
+ */
+final class CompiledMacro {
+
+  /**
+   * Function of each statement, null for statements which are literals
+   */
+  final WarpScriptStackFunction[] functions;
+
+  /**
+   * Literal of each statement, null for statements which are functions
+   */
+  final Object[] literals;
+
+  /**
+   * Number of modifications of the statements of the macro when it was compiled
+   */
+  private final int modifications;
+
+  private CompiledMacro(WarpScriptStackFunction[] functions, Object[] literals, int modifications) {
+    this.functions = functions;
+    this.literals = literals;
+    this.modifications = modifications;
+  }
+
+  /**
+   * Return the compiled form of 'macro' if it was executed at least 'threshold' times, null otherwise.
+   * Each call counts as an execution of the macro.
+   */
+  static CompiledMacro get(Macro macro, int threshold) {
+    CompiledMacro compiled = macro.compiled;
+
+    // Any change to the list of statements discards the compiled form
+    if (null != compiled && compiled.modifications == macro.modifications()) {
+      return compiled;
+    }
+
+    //
+    // Subclasses of Macro may compute their statements (INCLUDE), they are not compiled
+    //
+
+    if (Macro.class != macro.getClass() || ++macro.executions < threshold) {
+      return null;
+    }
+
+    compiled = compile(macro.statements(), macro.modifications());
+    macro.compiled = compiled;
+
+    return compiled;
+  }
+
+  private static CompiledMacro compile(List<Object> statements, int modifications) {
+    int n = statements.size();
+
+    WarpScriptStackFunction[] functions = new WarpScriptStackFunction[n];
+    Object[] literals = new Object[n];
+
+    for (int i = 0; i < n; i++) {
+      Object stmt = statements.get(i);
+
+      if (stmt instanceof WarpScriptStackFunction) {
+        functions[i] = (WarpScriptStackFunction) stmt;
+      } else {
+        literals[i] = stmt;
+      }
+    }
+
+    return new CompiledMacro(functions, literals, modifications);
+  }
+}
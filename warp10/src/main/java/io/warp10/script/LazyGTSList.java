@@ -0,0 +1,319 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * List of GTS instances produced by a chain of framework operations (BUCKETIZE, FILLPREVIOUS,
+ * FILLNEXT, FILLVALUE, MAP) which have not been executed yet.
+ *
+ * When lazy evaluation is enabled on a stack (see LAZYON), those functions push such a list
+ * instead of computing their result, and a subsequent one called on that list appends its stage
+ * to the chain. The chain is executed the first time the content of the list is accessed, each
+ * input GTS going through all the stages before the next one is processed, so the intermediate
+ * series of a GTS can be reclaimed as soon as its final series are computed instead of whole lists
+ * of intermediate series being alive at once.
+ *
+ * Only functions which do not need the stack can be deferred, operations using macros, directly or
+ * through wrapped functions (see WarpScriptParallel.needsStack), are executed as usual, on the materialized list.
+ *
+ * The lists still pending on the stack when a script ends MUST be materialized by calling 'materializeAll'
+ * before the stack is output, so their errors are raised while the script is executing.
+ *
+ * As the input GTS are only read when the list is materialized, modifications made to them in the
+ * meantime (via RENAME, RELABEL, ...) are visible in the results, hence lazy evaluation is opt-in.
+ * Errors raised by the stages are thrown, wrapped in a RuntimeException, by the access which triggered
+ * the materialization.
+ */
+public final class LazyGTSList extends AbstractList<Object> {
+
+  /**
+   * Stage of a chain, applied independently to each GTS
+   */
+  public static interface Stage {
+    /**
+     * @return the elements (GTS or lists of GTS) produced for 'gts'
+     */
+    public List<Object> apply(GeoTimeSerie gts) throws WarpScriptException;
+  }
+
+  private List<GeoTimeSerie> sources;
+  private List<Stage> stages;
+
+  /**
+   * Name of the function of each stage and flag indicating if the stage accepts lists of GTS as elements
+   */
+  private List<String> names;
+  private List<Boolean> nested;
+
+  /**
+   * Number of threads to use for materializing the list
+   */
+  private final int parallelism;
+
+  /**
+   * Tenant the materialization is accounted to, as returned by WarpScriptParallel.getTenant
+   */
+  private final Object tenant;
+
+  private List<Object> materialized = null;
+
+  private LazyGTSList(List<GeoTimeSerie> sources, List<Stage> stages, List<String> names, List<Boolean> nested, Object tenant, int parallelism) {
+    this.sources = sources;
+    this.stages = stages;
+    this.names = names;
+    this.nested = nested;
+    this.tenant = tenant;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Check if lazy evaluation is enabled on 'stack'
+   */
+  public static boolean isLazy(WarpScriptStack stack) {
+    return Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_LAZY));
+  }
+
+  /**
+   * Return a list whose elements are the result of applying 'stage' to the GTS of 'inputs'.
+   *
+   * 'inputs' are the elements a function was called on, either a single pending list, in which case
+   * the stage is appended to its chain, or GTS and lists of GTS.
+   *
+   * @param name Name of the function the stage belongs to
+   * @param nested true if elements of a single pending input may be lists of GTS, false if they must be GTS
+   * @param parallelism Number of threads the function could use, as returned by WarpScriptParallel.getParallelism
+   *
+   * @return the pending list or null if lazy evaluation is disabled or the inputs cannot be deferred,
+   *         the function should then be executed as usual
+   */
+  public static LazyGTSList defer(WarpScriptStack stack, List<?> inputs, String name, Stage stage, boolean nested, int parallelism) {
+    if (!isLazy(stack)) {
+      return null;
+    }
+
+    LazyGTSList lazy;
+
+    if (1 == inputs.size() && inputs.get(0) instanceof LazyGTSList) {
+      lazy = ((LazyGTSList) inputs.get(0)).then(name, stage, nested, parallelism);
+    } else {
+      lazy = defer(inputs, name, stage, WarpScriptParallel.getTenant(stack), parallelism);
+    }
+
+    if (null != lazy) {
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_LAZY_DEFERRED, true);
+    }
+
+    return lazy;
+  }
+
+  private static LazyGTSList defer(List<?> inputs, String name, Stage stage, Object tenant, int parallelism) {
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (Object input: inputs) {
+      if (input instanceof GeoTimeSerie) {
+        series.add((GeoTimeSerie) input);
+      } else if (input instanceof LazyGTSList) {
+        // Pending lists mixed with other inputs are not fused
+        return null;
+      } else if (input instanceof List) {
+        for (Object o: (List<?>) input) {
+          if (!(o instanceof GeoTimeSerie)) {
+            return null;
+          }
+          series.add((GeoTimeSerie) o);
+        }
+      } else {
+        return null;
+      }
+    }
+
+    return new LazyGTSList(series, Collections.singletonList(stage), Collections.singletonList(name), Collections.singletonList(true), tenant, parallelism);
+  }
+
+  private synchronized LazyGTSList then(String name, Stage stage, boolean nested, int parallelism) {
+    if (null != this.materialized) {
+      return null;
+    }
+
+    List<Stage> stages = new ArrayList<Stage>(this.stages);
+    stages.add(stage);
+    List<String> names = new ArrayList<String>(this.names);
+    names.add(name);
+    List<Boolean> flags = new ArrayList<Boolean>(this.nested);
+    flags.add(nested);
+
+    return new LazyGTSList(this.sources, stages, names, flags, this.tenant, Math.min(this.parallelism, parallelism));
+  }
+
+  /**
+   * Execute the chain if it has not been executed yet.
+   *
+   * @return the elements of the list
+   */
+  public synchronized List<Object> materialize() throws WarpScriptException {
+    if (null != this.materialized) {
+      return this.materialized;
+    }
+
+    final List<GeoTimeSerie> sources = this.sources;
+
+    //
+    // Sort the GTS instances beforehand so workers only read them, even if some appear several times
+    //
+
+    if (this.parallelism > 1) {
+      for (GeoTimeSerie gts: sources) {
+        GTSHelper.sort(gts);
+      }
+    }
+
+    List<List<Object>> results = WarpScriptParallel.run(this.tenant, this.parallelism, sources.size(), new WarpScriptParallel.Task<List<Object>>() {
+      @Override
+      public List<Object> call(int index) throws WarpScriptException {
+        return fuse(sources.get(index));
+      }
+    });
+
+    List<Object> elements = new ArrayList<Object>();
+
+    for (List<Object> result: results) {
+      elements.addAll(result);
+    }
+
+    this.materialized = elements;
+
+    // Release the inputs and the stages
+    this.sources = null;
+    this.stages = null;
+    this.names = null;
+    this.nested = null;
+
+    return this.materialized;
+  }
+
+  /**
+   * Materialize the pending lists found on 'stack', at any depth in lists and maps.
+   *
+   * This is a no-op if no list was ever deferred on 'stack'.
+   */
+  public static void materializeAll(WarpScriptStack stack) throws WarpScriptException {
+    if (!Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_LAZY_DEFERRED))) {
+      return;
+    }
+
+    Map<Object,Object> visited = new IdentityHashMap<Object,Object>();
+
+    for (int i = 0; i < stack.depth(); i++) {
+      materializeAll(stack.get(i), visited);
+    }
+  }
+
+  private static void materializeAll(Object o, Map<Object,Object> visited) throws WarpScriptException {
+    if (o instanceof LazyGTSList) {
+      // Elements of a pending list are GTS or lists of GTS
+      ((LazyGTSList) o).materialize();
+    } else if (o instanceof List) {
+      if (null != visited.put(o, o)) {
+        return;
+      }
+      for (Object elt: (List<?>) o) {
+        materializeAll(elt, visited);
+      }
+    } else if (o instanceof Map) {
+      if (null != visited.put(o, o)) {
+        return;
+      }
+      for (Entry<?,?> entry: ((Map<?,?>) o).entrySet()) {
+        materializeAll(entry.getKey(), visited);
+        materializeAll(entry.getValue(), visited);
+      }
+    }
+  }
+
+  /**
+   * Run a GTS through all the stages
+   */
+  private List<Object> fuse(GeoTimeSerie gts) throws WarpScriptException {
+    List<Object> elements = this.stages.get(0).apply(gts);
+
+    for (int i = 1; i < this.stages.size(); i++) {
+      Stage stage = this.stages.get(i);
+      List<Object> next = new ArrayList<Object>(elements.size());
+
+      for (Object element: elements) {
+        if (element instanceof GeoTimeSerie) {
+          next.addAll(stage.apply((GeoTimeSerie) element));
+        } else if (this.nested.get(i)) {
+          for (Object o: (List<?>) element) {
+            next.addAll(stage.apply((GeoTimeSerie) o));
+          }
+        } else {
+          throw new WarpScriptException(this.names.get(i) + " operates on lists of Geo Time Series.");
+        }
+      }
+
+      elements = next;
+    }
+
+    return elements;
+  }
+
+  private List<Object> elements() {
+    try {
+      return materialize();
+    } catch (WarpScriptException wse) {
+      throw new RuntimeException(wse);
+    }
+  }
+
+  @Override
+  public Object get(int index) {
+    return elements().get(index);
+  }
+
+  @Override
+  public int size() {
+    return elements().size();
+  }
+
+  @Override
+  public Object set(int index, Object element) {
+    return elements().set(index, element);
+  }
+
+  @Override
+  public void add(int index, Object element) {
+    elements().add(index, element);
+  }
+
+  @Override
+  public Object remove(int index) {
+    return elements().remove(index);
+  }
+}
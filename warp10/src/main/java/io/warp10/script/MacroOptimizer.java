@@ -0,0 +1,462 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.binary.ADD;
+import io.warp10.script.binary.DIV;
+import io.warp10.script.binary.MOD;
+import io.warp10.script.binary.MUL;
+import io.warp10.script.binary.POW;
+import io.warp10.script.binary.SUB;
+import io.warp10.script.functions.ENDLIST;
+import io.warp10.script.functions.ENDMAP;
+import io.warp10.script.functions.MARK;
+import io.warp10.script.functions.RUN;
+import io.warp10.script.functions.SNAPSHOT;
+import io.warp10.script.functions.SNAPSHOT.Snapshotable;
+import io.warp10.script.unary.UNIT;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Optimization pass applied to a macro when it is closed, enabled by 'warpscript.macro.optimize'.
+ *
+ * The pass rewrites the statements of the macro, it does not change what the macro does:
+ *
+ * - Arithmetic functions (+ - * / % **) and time units (w d h m s ms us ns ps) applied to constants are
+ *   replaced by their result, so '1 h 24 *' becomes a single constant.
+ * - Lists and maps built from constants ('[ 1 2 3 ]', '{ 'a' 1 }') are built once, each execution
+ *   pushes a copy of the prebuilt collection, as collections are modified in place by some functions.
+ * - Calls to macros of the repository ('@dir/name') are bound to the loaded macro if it was marked
+ *   with MACROINLINE, so they no longer look it up on each call.
+ *
+ * Macros of the repository are secure and run in their own context (section, RETURN, secure mode), so
+ * they are not spliced into the calling macro but called directly.
+ *
+ * Constants are evaluated with the functions themselves, on the stack defining the macro, so an
+ * expression which would fail at run time is left as is and fails when the macro is executed.
+ *
+ * Each rewritten statement counts the operations of the statements it replaced when it is executed,
+ * so an optimized macro performs as many operations ('warpscript.maxops') as the original one.
+ */
+final class MacroOptimizer {
+
+  private MacroOptimizer() {
+  }
+
+  /**
+   * Constant folded from an expression, pushed when executed
+   */
+  static final class FoldedConstant extends NamedWarpScriptFunction implements WarpScriptStackFunction, Snapshotable {
+
+    private final Object value;
+
+    /**
+     * Number of statements the constant was folded from
+     */
+    private final int ops;
+
+    private FoldedConstant(Object value, int ops) {
+      super(StackUtils.toString(value));
+      this.value = value;
+      this.ops = ops;
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      charge(stack, this.ops);
+      stack.push(this.value);
+      return stack;
+    }
+
+    Object value() {
+      return this.value;
+    }
+
+    @Override
+    public String snapshot() {
+      StringBuilder sb = new StringBuilder();
+
+      try {
+        SNAPSHOT.addElement(sb, this.value);
+      } catch (WarpScriptException wse) {
+        return toString();
+      }
+
+      // SNAPSHOT adds the space following this statement
+      if (sb.length() > 0 && ' ' == sb.charAt(sb.length() - 1)) {
+        sb.setLength(sb.length() - 1);
+      }
+
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Collection built from constants, pushed as a fresh copy each time it is executed
+   */
+  static final class CollectionConstant extends NamedWarpScriptFunction implements WarpScriptStackFunction, Snapshotable {
+
+    /**
+     * Statements the collection was built from, used to display the macro
+     */
+    private final List<Object> source;
+
+    private final Object template;
+
+    /**
+     * Number of statements the collection was built from, including those folded in its elements
+     */
+    private final int ops;
+
+    private CollectionConstant(String name, List<Object> source, Object template, int ops) {
+      super(name);
+      this.source = source;
+      this.template = template;
+      this.ops = ops;
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      charge(stack, this.ops);
+      stack.push(copy(this.template));
+      return stack;
+    }
+
+    Object value() {
+      return copy(this.template);
+    }
+
+    private static Object copy(Object o) {
+      if (o instanceof List) {
+        List<?> list = (List<?>) o;
+        List<Object> copy = new ArrayList<Object>(list.size());
+        for (Object elt: list) {
+          copy.add(copy(elt));
+        }
+        return copy;
+      } else if (o instanceof Map) {
+        Map<?,?> map = (Map<?,?>) o;
+        Map<Object,Object> copy = new LinkedHashMap<Object,Object>(map.size());
+        for (Entry<?,?> entry: map.entrySet()) {
+          copy.put(entry.getKey(), copy(entry.getValue()));
+        }
+        return copy;
+      } else {
+        return o;
+      }
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+
+      for (Object stmt: this.source) {
+        if (sb.length() > 0) {
+          sb.append(" ");
+        }
+        sb.append(StackUtils.toString(stmt));
+      }
+
+      return sb.toString();
+    }
+
+    @Override
+    public String snapshot() {
+      StringBuilder sb = new StringBuilder();
+
+      try {
+        for (Object stmt: this.source) {
+          if (sb.length() > 0) {
+            sb.append(" ");
+          }
+          SNAPSHOT.addElement(sb, stmt);
+        }
+      } catch (WarpScriptException wse) {
+        return toString();
+      }
+
+      // Elements are followed by a space, SNAPSHOT adds the one following this statement
+      if (sb.length() > 0 && ' ' == sb.charAt(sb.length() - 1)) {
+        sb.setLength(sb.length() - 1);
+      }
+
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Call of a macro from the repository, '@name' or 'name' RUN
+   */
+  static final class MacroCall extends NamedWarpScriptFunction implements WarpScriptStackFunction, Snapshotable {
+
+    /**
+     * Macro of the repository this call is bound to, valid as long as the repository was not modified
+     */
+    private static final class Binding {
+      private final Macro macro;
+      private final int generation;
+
+      private Binding(Macro macro, int generation) {
+        this.macro = macro;
+        this.generation = generation;
+      }
+    }
+
+    private final String symbol;
+
+    /**
+     * Number of statements the call replaced, the name of the macro and RUN
+     */
+    private final int ops;
+
+    private volatile Binding binding = null;
+
+    private MacroCall(String symbol, int ops) {
+      super(WarpScriptLib.RUN);
+      this.symbol = symbol;
+      this.ops = ops;
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      charge(stack, this.ops);
+
+      Binding binding = this.binding;
+
+      //
+      // A symbol with the same name takes precedence over the repository, as in 'find'
+      //
+
+      if (stack instanceof MemoryWarpScriptStack
+          && null != binding && binding.generation == WarpScriptMacroRepository.generation()
+          && !binding.macro.isExpired() && null == stack.load(this.symbol)) {
+        ((MemoryWarpScriptStack) stack).run(this.symbol, binding.macro);
+        return stack;
+      }
+
+      stack.run(this.symbol);
+
+      int generation = WarpScriptMacroRepository.generation();
+      Macro macro = WarpScriptMacroRepository.loaded(this.symbol);
+
+      if (null != macro && macro.isInlinable()) {
+        this.binding = new Binding(macro, generation);
+      } else {
+        this.binding = null;
+      }
+
+      return stack;
+    }
+
+    @Override
+    public String toString() {
+      return StackUtils.toString(this.symbol) + " " + getName();
+    }
+
+    @Override
+    public String snapshot() {
+      StringBuilder sb = new StringBuilder();
+
+      try {
+        SNAPSHOT.addElement(sb, this.symbol);
+      } catch (WarpScriptException wse) {
+        return toString();
+      }
+
+      sb.append(" ");
+      sb.append(getName());
+
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Optimize the statements of 'macro', using 'stack' to evaluate constant expressions
+   */
+  static void optimize(WarpScriptStack stack, Macro macro) {
+    List<Object> statements = macro.statements();
+
+    List<Object> optimized = new ArrayList<Object>(statements.size());
+
+    // Number of original statements each optimized statement stands for
+    List<Integer> ops = new ArrayList<Integer>(statements.size());
+
+    for (Object stmt: statements) {
+      int n = optimized.size();
+
+      int arity = arity(stmt);
+
+      if (arity > 0 && n >= arity && scalars(optimized, n - arity, n)) {
+        List<Object> expr = new ArrayList<Object>(optimized.subList(n - arity, n));
+        expr.add(stmt);
+
+        Object result = eval(stack, expr);
+
+        if (isScalar(result)) {
+          int count = sum(ops, n - arity, n) + 1;
+          optimized.subList(n - arity, n).clear();
+          ops.subList(n - arity, n).clear();
+          optimized.add(result);
+          ops.add(count);
+          continue;
+        }
+      } else if (stmt instanceof ENDLIST || stmt instanceof ENDMAP) {
+        //
+        // Look for the mark opening the collection, only constants may appear after it
+        //
+
+        int mark = n - 1;
+
+        while (mark >= 0 && !(optimized.get(mark) instanceof MARK) && isConstant(optimized.get(mark))) {
+          mark--;
+        }
+
+        if (mark >= 0 && optimized.get(mark) instanceof MARK) {
+          List<Object> source = new ArrayList<Object>(optimized.subList(mark, n));
+          source.add(stmt);
+
+          Object result = eval(stack, source);
+
+          if (result instanceof List || result instanceof Map) {
+            int count = sum(ops, mark, n) + 1;
+            optimized.subList(mark, n).clear();
+            ops.subList(mark, n).clear();
+            optimized.add(new CollectionConstant(stmt instanceof ENDMAP ? WarpScriptLib.MAP_START : WarpScriptLib.LIST_START, source, result, count));
+            ops.add(count);
+            continue;
+          }
+        }
+      } else if (stmt instanceof RUN && n > 0 && optimized.get(n - 1) instanceof String && ((String) optimized.get(n - 1)).contains("/")) {
+        // Only names with a '/' can designate a macro of the repository
+        int count = ops.get(n - 1) + 1;
+        optimized.set(n - 1, new MacroCall((String) optimized.get(n - 1), count));
+        ops.set(n - 1, count);
+        continue;
+      }
+
+      optimized.add(stmt);
+      ops.add(1);
+    }
+
+    //
+    // Folded scalars are pushed by a statement counting the operations they replaced
+    //
+
+    for (int i = 0; i < optimized.size(); i++) {
+      if (ops.get(i) > 1 && isScalar(optimized.get(i))) {
+        optimized.set(i, new FoldedConstant(optimized.get(i), ops.get(i)));
+      }
+    }
+
+    statements.clear();
+    statements.addAll(optimized);
+  }
+
+  private static int sum(List<Integer> ops, int from, int to) {
+    int sum = 0;
+    for (int i = from; i < to; i++) {
+      sum += ops.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * Count on 'stack' the operations of the statements a rewritten statement replaced, the stack
+   * counts the rewritten statement itself
+   */
+  private static void charge(WarpScriptStack stack, int ops) throws WarpScriptException {
+    if (stack instanceof MemoryWarpScriptStack) {
+      for (int i = 1; i < ops; i++) {
+        ((MemoryWarpScriptStack) stack).incOps();
+      }
+    }
+  }
+
+  /**
+   * @return the number of operands of a function which can be applied to constants, 0 for other statements
+   */
+  private static int arity(Object stmt) {
+    if (stmt instanceof ADD || stmt instanceof SUB || stmt instanceof MUL || stmt instanceof DIV || stmt instanceof MOD || stmt instanceof POW) {
+      return 2;
+    } else if (stmt instanceof UNIT) {
+      return 1;
+    } else {
+      return 0;
+    }
+  }
+
+  private static boolean scalars(List<Object> statements, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (!isScalar(statements.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isScalar(Object o) {
+    if (o instanceof Double) {
+      return !((Double) o).isNaN() && !((Double) o).isInfinite();
+    }
+    return o instanceof Long || o instanceof String || o instanceof Boolean;
+  }
+
+  private static boolean isConstant(Object o) {
+    return isScalar(o) || o instanceof CollectionConstant;
+  }
+
+  /**
+   * Execute 'statements' on 'stack' and return the single value they produced, or null if they failed.
+   * The stack is left as it was found.
+   */
+  private static Object eval(WarpScriptStack stack, List<Object> statements) {
+    int depth = stack.depth();
+
+    try {
+      for (Object stmt: statements) {
+        if (stmt instanceof CollectionConstant) {
+          stack.push(((CollectionConstant) stmt).value());
+        } else if (stmt instanceof WarpScriptStackFunction) {
+          ((WarpScriptStackFunction) stmt).apply(stack);
+        } else {
+          stack.push(stmt);
+        }
+      }
+
+      if (depth + 1 != stack.depth()) {
+        return null;
+      }
+
+      return stack.pop();
+    } catch (Exception e) {
+      return null;
+    } finally {
+      try {
+        while (stack.depth() > depth) {
+          stack.drop();
+        }
+      } catch (WarpScriptException wse) {
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import io.warp10.continuum.gts.UnsafeString;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.StoreClient;
+import io.warp10.script.functions.FETCH;
 import io.warp10.script.functions.SECURE;
 import io.warp10.sensision.Sensision;
 import io.warp10.warp.sdk.WarpScriptJavaFunction;
@@ -42,6 +43,7 @@ import java.util.EmptyStackException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -87,7 +89,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
   private final List<Object> list = new ArrayList<Object>(32);
 
-  private final Map<String,Object> symbolTable = new HashMap<String,Object>();
+  private final SymbolTable symbolTable = new SymbolTable();
   
   /**
    * Map of stack attributes. This is used to store various values such as
@@ -103,7 +105,10 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
   private final AtomicInteger recursionLevel = new AtomicInteger(0);
   
-  private final String uuid = UUID.randomUUID().toString();
+  /**
+   * UUID of the stack, generated when first requested
+   */
+  private String uuid = null;
   
   /**
    * Vector to hold macros
@@ -133,8 +138,28 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
   private Properties properties;
   
+  /**
+   * Profiler of the function calls, null when not profiling
+   */
+  private WarpScriptProfiler profiler = null;
+  
   private final boolean unshadow;
   
+  /**
+   * Flag indicating whether macros are optimized when they are defined (see MacroOptimizer)
+   */
+  private final boolean optimize;
+  
+  /**
+   * Number of executions after which a macro is compiled, 0 to disable compilation (see CompiledMacro)
+   */
+  private final int compileThreshold;
+  
+  /**
+   * Attributes set when the stack was created, restored by 'reset'
+   */
+  private Map<String,Object> initialAttributes = null;
+  
   public static class StackContext extends WarpScriptStack.StackContext {
     public Map<String, Object> symbolTable;
     public Map<String, WarpScriptStackFunction> defined;
@@ -175,12 +200,19 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
     this.unshadow = "true".equals(properties.getProperty(Configuration.WARPSCRIPT_DEF_UNSHADOW));
     
+    this.optimize = "true".equals(properties.getProperty(Configuration.WARPSCRIPT_MACRO_OPTIMIZE));
+    
+    this.compileThreshold = Integer.parseInt(properties.getProperty(Configuration.WARPSCRIPT_MACRO_COMPILE_THRESHOLD, Integer.toString(WarpScriptStack.DEFAULT_MACRO_COMPILE_THRESHOLD)));
+    
     if (init) {
       setAttribute(WarpScriptStack.ATTRIBUTE_DEBUG_DEPTH, 0);
       setAttribute(WarpScriptStack.ATTRIBUTE_JSON_STRICT, false);
       setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT, new AtomicLong(0L));
+      setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_COUNT, new AtomicLong(0L));
       setAttribute(WarpScriptStack.ATTRIBUTE_GTS_COUNT, new AtomicLong(0L));
       setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_FETCH, Long.toString(WarpScriptStack.DEFAULT_FETCH_LIMIT))));
+      setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_FETCH_RAW, Long.toString(WarpScriptStack.DEFAULT_FETCH_RAW_LIMIT))));
+      setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_FETCH_ASYNC, Long.toString(WarpScriptStack.DEFAULT_FETCH_ASYNC_LIMIT))));
       setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_GTS, Long.toString(WarpScriptStack.DEFAULT_GTS_LIMIT))));
       setAttribute(WarpScriptStack.ATTRIBUTE_ELAPSED, new ArrayList<Long>());
       setAttribute(WarpScriptStack.ATTRIBUTE_LOOP_MAXDURATION, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_LOOP_DURATION, Long.toString(WarpScriptStack.DEFAULT_MAX_LOOP_DURATION))));
@@ -196,6 +228,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_LIMIT, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_LIMIT))));
       setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_MAXSIZE, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_MAXSIZE, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_MAXSIZE))));
       setAttribute(WarpScriptStack.ATTRIBUTE_MAX_GEOCELLS, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_GEOCELLS, Integer.toString(WarpScriptStack.DEFAULT_MAX_GEOCELLS))));
+      setAttribute(WarpScriptStack.ATTRIBUTE_MAX_THREADS, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_THREADS, Integer.toString(WarpScriptStack.DEFAULT_MAX_THREADS))));
 
       //
       // Set hard limits
@@ -213,6 +246,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_LIMIT_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_LIMIT_HARD, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_LIMIT))));
       setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_MAXSIZE_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_MAXSIZE_HARD, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_MAXSIZE))));
       setAttribute(WarpScriptStack.ATTRIBUTE_MAX_GEOCELLS_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_GEOCELLS_HARD, Integer.toString(WarpScriptStack.DEFAULT_MAX_GEOCELLS))));
+      setAttribute(WarpScriptStack.ATTRIBUTE_MAX_THREADS_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_THREADS_HARD, Integer.toString(WarpScriptStack.DEFAULT_MAX_THREADS))));
 
       //
       // Set top level section name
@@ -231,11 +265,105 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       }   
       
       this.properties = properties;
+      
+      this.initialAttributes = new HashMap<String,Object>();
+      
+      for (Entry<String,Object> attr: this.attributes.entrySet()) {
+        this.initialAttributes.put(attr.getKey(), initialValue(attr.getValue()));
+      }
+    }
+  }
+  
+  /**
+   * Counters and lists stored as attributes are modified in place, return a fresh instance of those
+   */
+  private static Object initialValue(Object value) {
+    if (value instanceof AtomicLong) {
+      return new AtomicLong(((AtomicLong) value).get());
+    } else if (value instanceof List) {
+      return new ArrayList<Object>((List<Object>) value);
+    } else {
+      return value;
+    }
+  }
+  
+  /**
+   * Return a copy of the attributes and counters which can be compared to a later copy to detect changes,
+   * the mutable values (counters, lists, maps) being copied. The operation count is not part of the copy.
+   */
+  Map<String,Object> copyAttributes() {
+    Map<String,Object> copy = new HashMap<String,Object>();
+    
+    for (Entry<String,Object> attr: this.attributes.entrySet()) {
+      if (WarpScriptStack.ATTRIBUTE_OPS.equals(attr.getKey())) {
+        continue;
+      }
+      
+      Object value = attr.getValue();
+      
+      if (value instanceof AtomicLong) {
+        value = ((AtomicLong) value).get();
+      } else if (value instanceof List) {
+        value = new ArrayList<Object>((List<Object>) value);
+      } else if (value instanceof Map) {
+        value = new HashMap<Object,Object>((Map<Object,Object>) value);
+      }
+      
+      copy.put(attr.getKey(), value);
+    }
+    
+    for (int i = 0; i < this.counters.length; i++) {
+      copy.put("counter." + i, this.counters[i].get());
+    }
+    
+    return copy;
+  }
+  
+  /**
+   * Reset the stack to the state it was in after its creation so it can execute another script.
+   * The content of the stack, the symbols, the redefined functions and the counters are cleared, the
+   * pending asynchronous fetches are cancelled and the attributes (limits, ...) set when the stack was
+   * created are restored.
+   * 
+   * @throws WarpScriptException if the stack was not initialized when created (sub stacks for example)
+   */
+  public void reset() throws WarpScriptException {
+    if (null == this.initialAttributes) {
+      throw new WarpScriptException("Stack cannot be reset.");
+    }
+    
+    FETCH.cancelPending(this);
+    
+    this.list.clear();
+    this.symbolTable.clear();
+    this.defined.clear();
+    this.macros.clear();
+    this.secureScript = null;
+    this.inComment.set(false);
+    this.inMultiline.set(false);
+    this.multiline = null;
+    this.recursionLevel.set(0);
+    this.progressable = null;
+    this.profiler = null;
+    this.uuid = null;
+    
+    for (AtomicLong counter: this.counters) {
+      counter.set(0L);
+    }
+    
+    this.attributes.clear();
+    this.currentops = 0L;
+    this.inSecureMacro = false;
+    
+    for (Entry<String,Object> attr: this.initialAttributes.entrySet()) {
+      setAttribute(attr.getKey(), initialValue(attr.getValue()));
     }
   }
   
   public void maxLimits() {
     setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, Long.MAX_VALUE - 1);
+    setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_LIMIT, Long.MAX_VALUE - 1);
+    setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_LIMIT, Long.MAX_VALUE - 1);
     setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, Long.MAX_VALUE - 1);
     setAttribute(WarpScriptStack.ATTRIBUTE_LOOP_MAXDURATION, Long.MAX_VALUE);
     setAttribute(WarpScriptStack.ATTRIBUTE_RECURSION_MAXDEPTH, Integer.MAX_VALUE);
@@ -546,35 +674,31 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     try {
       recurseIn();
       
-      String[] statements;
+      String[] statements = null;
       
-      line = line.trim();
-                              
       //
-      // Replace whistespaces in Strings with '%20'
+      // Parsed statements, from the parse cache, null when in multiline mode
       //
-            
-      line = UnsafeString.sanitizeStrings(line);
       
-      if (-1 != UnsafeString.indexOf(line, ' ') && !inMultiline.get()) {
-        //statements = line.split(" +");
-        statements = UnsafeString.split(line, ' ');
+      WarpScriptParseCache.Statement[] parsed = null;
+      
+      if (!inMultiline.get()) {
+        parsed = WarpScriptParseCache.get(line);
       } else {
-        // We're either in multiline mode or the line had no whitespace inside
+        line = line.trim();
+        
+        // If the line only contained the end of multiline indicator with possible wsp on both sides
+        // then set the statement to that, otherwise set it to the raw line
         statements = new String[1];
-        if (inMultiline.get()) {
-          // If the line only contained the end of multiline indicator with possible wsp on both sides
-          // then set the statement to that, otherwise set it to the raw line
-          if(WarpScriptStack.MULTILINE_END.equals(line)) {
-            statements[0] = line;
-          } else {
-            statements[0] = rawline;
-          }
-        } else {
+        if(WarpScriptStack.MULTILINE_END.equals(line)) {
           statements[0] = line;
+        } else {
+          statements[0] = rawline;
         }
       }
       
+      int nstatements = null != parsed ? parsed.length : statements.length;
+      
       //
       // Report progress
       //
@@ -585,7 +709,11 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       // Loop over the statements
       //
       
-      for (String stmt: statements) {
+      for (int i = 0; i < nstatements; i++) {
+        
+        WarpScriptParseCache.Statement statement = null != parsed ? parsed[i] : null;
+        
+        String stmt = null != statement ? statement.text : statements[i];
 
         //
         // Skip empty statements if we are not currently building a multiline
@@ -655,7 +783,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
           inComment.set(true);
           continue;
         } else if (WarpScriptStack.MULTILINE_START.equals(stmt)) {
-          if (1 != statements.length) {
+          if (1 != nstatements) {
             throw new WarpScriptException("Can only start multiline strings by using " + WarpScriptStack.MULTILINE_START + " on a line by itself.");
           }
           inMultiline.set(true);
@@ -692,6 +820,13 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
 
             lastmacro.setSecure(secure);
             
+            if (this.optimize) {
+              MacroOptimizer.optimize(this, lastmacro);
+            }
+            
+            // Resolve the symbols the macro loads and stores so it accesses their slot directly
+            SymbolReference.resolve(lastmacro);
+            
             if (macros.isEmpty()) {
               this.push(lastmacro);
             } else {
@@ -705,6 +840,16 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
           //
           
           macros.add(0, new Macro());
+        } else if (null != statement && statement.literal) {
+          //
+          // Push literals parsed beforehand onto the stack
+          //
+          
+          if (macros.isEmpty()) {
+            push(statement.value);
+          } else {
+            macros.get(0).add(statement.value);
+          }
         } else if ((stmt.charAt(0) == '\'' && stmt.charAt(stmt.length() - 1) == '\'')
             || (stmt.charAt(0) == '\"' && stmt.charAt(stmt.length() - 1) == '\"')) {
           //
@@ -847,7 +992,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
             throw new WarpScriptException("Disallowed redefined function '" + stmt + "'.");
           }
           
-          func = null != func ? func : WarpScriptLib.getFunction(stmt);
+          func = null != func ? func : (null != statement && null != statement.value ? statement.value : WarpScriptLib.getFunction(stmt));
 
           if (null == func) {
             throw new WarpScriptException("Unknown function '" + stmt + "'");
@@ -878,6 +1023,9 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
               }
             }          
           } finally {
+            if (null != this.profiler && func instanceof WarpScriptStackFunction && macros.isEmpty()) {
+              this.profiler.function(func, System.nanoTime() - nano);
+            }
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, labels, 1);
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, labels, (System.nanoTime() - nano) / 1000L);
           }
@@ -899,6 +1047,8 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
 
     boolean secure = Boolean.TRUE.equals(this.getAttribute(WarpScriptStack.ATTRIBUTE_IN_SECURE_MACRO));
     
+    WarpScriptProfiler profiler = this.profiler;
+    
     //
     // Save current section name
     //
@@ -918,6 +1068,30 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       
       recurseIn();
       
+      //
+      // Macros executed often run their compiled form, unless the calls are profiled
+      //
+      
+      CompiledMacro compiled = null == profiler && this.compileThreshold > 0 ? CompiledMacro.get(macro, this.compileThreshold) : null;
+      
+      if (null != compiled) {
+        WarpScriptStackFunction[] functions = compiled.functions;
+        Object[] literals = compiled.literals;
+        
+        for (i = 0; i < functions.length; i++) {
+          progress();
+          incOps();
+          
+          if (null != functions[i]) {
+            functions[i].apply(this);
+          } else {
+            push(literals[i]);
+          }
+        }
+        
+        return;
+      }
+      
       for (i = 0; i < macro.size(); i++) {
         // Notify progress
         progress();
@@ -935,7 +1109,16 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
           
           //long nano = System.nanoTime();
 
-          esf.apply(this);
+          if (null == profiler) {
+            esf.apply(this);
+          } else {
+            long nano = System.nanoTime();
+            try {
+              esf.apply(this);
+            } finally {
+              profiler.function(esf, System.nanoTime() - nano);
+            }
+          }
           
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, esf.getSensisionLabels(), 1);
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, esf.getSensisionLabels(), (System.nanoTime() - nano) / 1000L);          
@@ -1017,14 +1200,25 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
   @Override
   public void run(String symbol) throws WarpScriptException {
+    run(symbol, find(symbol));
+  }
+  
+  /**
+   * Execute 'macro' which was found under 'symbol'
+   */
+  void run(String symbol, Macro macro) throws WarpScriptException {
+    WarpScriptProfiler profiler = this.profiler;
     
-    Macro macro = find(symbol);
-    
-    //
-    // Execute macro
-    //
-    
-    exec((Macro) macro);    
+    if (null == profiler) {
+      exec(macro);
+    } else {
+      long nano = System.nanoTime();
+      try {
+        exec(macro);
+      } finally {
+        profiler.macro(symbol, System.nanoTime() - nano);
+      }
+    }
   }
   
   @Override
@@ -1123,6 +1317,18 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     this.symbolTable.put(symbol, value);
   }
   
+  /**
+   * Store a value in a slot of the symbol table of this stack
+   */
+  void store(SymbolTable.Slot slot, Object value) throws WarpScriptException {
+    
+    if (this.symbolTable.size() >= this.maxsymbols) {
+      throw new WarpScriptException("Symbol table has reached its maximum number of entries: " + this.maxsymbols);
+    }
+    
+    slot.value = value;
+  }
+  
   @Override
   public void forget(String symbol) {
     if (null == symbol) {
@@ -1136,6 +1342,10 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   public Map<String,Object> getSymbolTable() {
     return this.symbolTable;
   }
+  
+  SymbolTable symbols() {
+    return this.symbolTable;
+  }
 
   @Override
   public Map<String, WarpScriptStackFunction> getDefined() {
@@ -1144,11 +1354,18 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   
   @Override
   public String getUUID() {
+    if (null == this.uuid) {
+      this.uuid = UUID.randomUUID().toString();
+    }
     return this.uuid;
   }
   
   @Override
   public Object setAttribute(String key, Object value) {
+    if (WarpScriptStack.ATTRIBUTE_PROFILER.equals(key)) {
+      this.profiler = value instanceof WarpScriptProfiler ? (WarpScriptProfiler) value : null;
+    }
+    
     if (null == value) {
       return this.attributes.remove(key);
     }
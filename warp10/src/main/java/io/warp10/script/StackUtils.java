@@ -56,6 +56,9 @@ public class StackUtils {
   
   public static void toJSON(PrintWriter out, WarpScriptStack stack, int maxdepth) throws WarpScriptException {
     
+    // Compute the pending lazy lists before anything is written
+    LazyGTSList.materializeAll(stack);
+    
     boolean strictJSON = Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_JSON_STRICT));
     
     AtomicInteger recursionLevel = new AtomicInteger(0);
@@ -90,6 +93,38 @@ public class StackUtils {
     toJSON(out, stack, Integer.MAX_VALUE);
   }
   
+  /**
+   * Output the stack like 'toJSON' but remove each level once it has been written, so the objects of the
+   * levels already sent can be reclaimed while the remaining ones are serialized. The stack is empty on return.
+   */
+  public static void drainToJSON(PrintWriter out, WarpScriptStack stack) throws WarpScriptException {
+    
+    // Compute the pending lazy lists before anything is written
+    LazyGTSList.materializeAll(stack);
+    
+    boolean strictJSON = Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_JSON_STRICT));
+    
+    AtomicInteger recursionLevel = new AtomicInteger(0);
+    
+    JsonSerializer serializer = getSerializer();
+    
+    out.print("[");
+    
+    boolean first = true;
+    
+    while (stack.depth() > 0) {
+      
+      if (!first) {
+        out.print(",");
+      }
+      first = false;
+      
+      objectToJSON(serializer, out, stack.pop(), recursionLevel, strictJSON);
+    }
+    
+    out.print("]");
+  }
+  
   public static void objectToJSON(JsonSerializer serializer, PrintWriter out, Object o, AtomicInteger recursionLevel, boolean strictJSON) {
     
     if (recursionLevel.addAndGet(1) > WarpScriptStack.DEFAULT_MAX_RECURSION_LEVEL && ((o instanceof Map) || (o instanceof List) || (o instanceof Macro))) {
@@ -140,28 +175,30 @@ public class StackUtils {
       }
       out.print("]");    
     } else if (o instanceof GeoTimeSerie) {
+      GeoTimeSerie gts = (GeoTimeSerie) o;
       out.print("{");
       out.print("\"c\":");
       //out.print(gson.toJson(((GeoTimeSerie) o).getMetadata().getName()));
-      String name = ((GeoTimeSerie) o).getMetadata().getName();
+      String name = gts.getMetadata().getName();
       if (null == name) {
         name = "";
       }
       out.print(serializer.serialize(name));
       out.print(",\"l\":");
-      objectToJSON(serializer, out, ((GeoTimeSerie) o).getMetadata().getLabels(), recursionLevel, strictJSON);
+      objectToJSON(serializer, out, gts.getMetadata().getLabels(), recursionLevel, strictJSON);
       out.print(",\"a\":");
-      objectToJSON(serializer, out, ((GeoTimeSerie) o).getMetadata().getAttributes(), recursionLevel, strictJSON);
+      objectToJSON(serializer, out, gts.getMetadata().getAttributes(), recursionLevel, strictJSON);
       out.print(",\"v\":[");
       boolean first = true;
-      for (int i = 0; i < ((GeoTimeSerie) o).size(); i++) {
+      TYPE type = gts.getType();
+      int n = gts.size();
+      for (int i = 0; i < n; i++) {
         if (!first) {
           out.print(",");
         }
-        long ts = GTSHelper.tickAtIndex((GeoTimeSerie) o, i);
-        long location = GTSHelper.locationAtIndex((GeoTimeSerie) o, i);
-        long elevation = GTSHelper.elevationAtIndex((GeoTimeSerie) o, i);
-        Object v = GTSHelper.valueAtIndex((GeoTimeSerie) o, i);
+        long ts = GTSHelper.tickAtIndex(gts, i);
+        long location = GTSHelper.locationAtIndex(gts, i);
+        long elevation = GTSHelper.elevationAtIndex(gts, i);
         out.print("[");
         out.print(ts);
         if (GeoTimeSerie.NO_LOCATION != location) {
@@ -176,11 +213,23 @@ public class StackUtils {
           out.print(elevation);
         }
         out.print(",");
-        //out.print(gson.toJson(v));    
-        if (strictJSON && (v instanceof Double) && (Double.isNaN((double) v) || Double.isInfinite((double) v))) {
-          out.print("null");
+        //
+        // Numbers and booleans are printed from the value arrays, they are serialized exactly as the JSON
+        // serializer would, only strings need escaping
+        //
+        if (TYPE.LONG == type) {
+          out.print(GTSHelper.longValueAtIndex(gts, i));
+        } else if (TYPE.DOUBLE == type) {
+          double v = GTSHelper.doubleValueAtIndex(gts, i);
+          if (strictJSON && (Double.isNaN(v) || Double.isInfinite(v))) {
+            out.print("null");
+          } else {
+            out.print(v);
+          }
+        } else if (TYPE.BOOLEAN == type) {
+          out.print(GTSHelper.booleanValueAtIndex(gts, i));
         } else {
-          out.print(serializer.serialize(v));
+          out.print(serializer.serialize(GTSHelper.valueAtIndex(gts, i)));
         }
         out.print("]");
         first = false;
@@ -0,0 +1,193 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.functions.LOAD;
+import io.warp10.script.functions.SNAPSHOT;
+import io.warp10.script.functions.SNAPSHOT.Snapshotable;
+import io.warp10.script.functions.STORE;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * Load ($x, 'x' LOAD) or store ('x' STORE) of a symbol whose name is known when the macro is built.
+ *
+ * When run on a MemoryWarpScriptStack, the reference remembers the slot of the symbol in the symbol
+ * table of the stack, so subsequent executions (in loops for instance) access the value without looking
+ * the symbol up. The slot is looked up again if the macro is run on another stack or if symbols were
+ * removed from the table in the meantime.
+ *
+ * The slot is only weakly referenced so a macro which outlives the stack it ran on does not retain
+ * the symbol values.
+ *
+ * A reference accounts for the two statements it replaced, so resolving symbols does not change the
+ * number of operations ('warpscript.maxops') a macro performs.
+ */
+final class SymbolReference extends NamedWarpScriptFunction implements WarpScriptStackFunction, Snapshotable {
+
+  /**
+   * Slot of the symbol in a symbol table, valid as long as the table is at the same generation
+   */
+  private static final class Binding extends WeakReference<SymbolTable.Slot> {
+    private final long table;
+    private final int generation;
+
+    private Binding(SymbolTable table, SymbolTable.Slot slot) {
+      super(slot);
+      this.table = table.id();
+      this.generation = table.generation();
+    }
+  }
+
+  private final String symbol;
+
+  private final boolean store;
+
+  private volatile Binding binding = null;
+
+  private SymbolReference(String symbol, boolean store) {
+    super(store ? WarpScriptLib.STORE : WarpScriptLib.LOAD);
+    this.symbol = symbol;
+    this.store = store;
+  }
+
+  /**
+   * Replace the loads and stores of symbols named by a string constant in 'macro' with symbol references
+   */
+  static void resolve(Macro macro) {
+    List<Object> statements = macro.statements();
+
+    int n = statements.size();
+    int j = 0;
+
+    for (int i = 0; i < n; i++) {
+      Object stmt = statements.get(i);
+
+      if (stmt instanceof String && i + 1 < n) {
+        Object next = statements.get(i + 1);
+
+        if (next instanceof LOAD || next instanceof STORE) {
+          stmt = new SymbolReference((String) stmt, next instanceof STORE);
+          i++;
+        }
+      }
+
+      statements.set(j++, stmt);
+    }
+
+    statements.subList(j, n).clear();
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    if (!(stack instanceof MemoryWarpScriptStack)) {
+      return this.store ? applyStore(stack) : applyLoad(stack);
+    }
+
+    MemoryWarpScriptStack mstack = (MemoryWarpScriptStack) stack;
+
+    // The stack counted this statement, count the symbol name it replaced
+    mstack.incOps();
+
+    SymbolTable table = mstack.symbols();
+
+    SymbolTable.Slot slot = slot(table);
+
+    if (this.store) {
+      Object value = stack.pop();
+
+      if (null == slot) {
+        stack.store(this.symbol, value);
+        this.binding = new Binding(table, table.slot(this.symbol));
+      } else {
+        mstack.store(slot, value);
+      }
+    } else {
+      if (null == slot) {
+        slot = table.slot(this.symbol);
+
+        if (null == slot) {
+          throw new WarpScriptException(getName() + " symbol '" + this.symbol + "' does not exist.");
+        }
+
+        this.binding = new Binding(table, slot);
+      }
+
+      stack.push(slot.value);
+    }
+
+    return stack;
+  }
+
+  /**
+   * @return the slot of the symbol in 'table' if it was resolved and is still valid, null otherwise
+   */
+  private SymbolTable.Slot slot(SymbolTable table) {
+    Binding binding = this.binding;
+
+    if (null == binding || binding.table != table.id() || binding.generation != table.generation()) {
+      return null;
+    }
+
+    return binding.get();
+  }
+
+  private Object applyLoad(WarpScriptStack stack) throws WarpScriptException {
+    Object val = stack.load(this.symbol);
+
+    if (null == val) {
+      if (!stack.getSymbolTable().containsKey(this.symbol)) {
+        throw new WarpScriptException(getName() + " symbol '" + this.symbol + "' does not exist.");
+      }
+    }
+
+    stack.push(val);
+
+    return stack;
+  }
+
+  private Object applyStore(WarpScriptStack stack) throws WarpScriptException {
+    stack.store(this.symbol, stack.pop());
+    return stack;
+  }
+
+  @Override
+  public String toString() {
+    return StackUtils.toString(this.symbol) + " " + getName();
+  }
+
+  /**
+   * Snapshot the reference as the two statements it replaced, so a snapshot of a macro is unchanged
+   */
+  @Override
+  public String snapshot() {
+    StringBuilder sb = new StringBuilder();
+
+    try {
+      SNAPSHOT.addElement(sb, this.symbol);
+    } catch (WarpScriptException wse) {
+      return toString();
+    }
+
+    sb.append(" ");
+    sb.append(getName());
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,198 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Symbol table of a stack.
+ *
+ * The value of each symbol is held in a slot which keeps its identity for as long as the symbol
+ * is defined, so symbol references resolved in macros (see SymbolReference) can access the value
+ * directly instead of looking the symbol up by name each time.
+ *
+ * Removing symbols (FORGET, CLEARSYMBOLS, RESTORE, ...) increments the generation of the table,
+ * which invalidates the slots previously resolved. Storing a value in an existing symbol does not.
+ *
+ * The table is otherwise a regular map, as expected by the functions accessing the symbols by name.
+ */
+final class SymbolTable extends AbstractMap<String,Object> {
+
+  private static final AtomicLong ids = new AtomicLong(0L);
+
+  static final class Slot {
+    private final String name;
+    Object value;
+
+    private Slot(String name, Object value) {
+      this.name = name;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Unique id of the table, used by symbol references to check that a slot belongs to it
+   */
+  private final long id = ids.incrementAndGet();
+
+  private final Map<String,Slot> slots = new HashMap<String,Slot>();
+
+  private int generation = 0;
+
+  private final Set<Entry<String,Object>> entries = new AbstractSet<Entry<String,Object>>() {
+    @Override
+    public Iterator<Entry<String,Object>> iterator() {
+      final Iterator<Slot> iter = slots.values().iterator();
+
+      return new Iterator<Entry<String,Object>>() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public Entry<String,Object> next() {
+          final Slot slot = iter.next();
+
+          return new Entry<String,Object>() {
+            @Override
+            public String getKey() {
+              return slot.name;
+            }
+
+            @Override
+            public Object getValue() {
+              return slot.value;
+            }
+
+            @Override
+            public Object setValue(Object value) {
+              Object old = slot.value;
+              slot.value = value;
+              return old;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+              if (!(o instanceof Entry)) {
+                return false;
+              }
+              Entry<?,?> e = (Entry<?,?>) o;
+              return slot.name.equals(e.getKey()) && (null == slot.value ? null == e.getValue() : slot.value.equals(e.getValue()));
+            }
+
+            @Override
+            public int hashCode() {
+              return slot.name.hashCode() ^ (null == slot.value ? 0 : slot.value.hashCode());
+            }
+
+            @Override
+            public String toString() {
+              return slot.name + "=" + slot.value;
+            }
+          };
+        }
+
+        @Override
+        public void remove() {
+          iter.remove();
+          generation++;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return slots.size();
+    }
+  };
+
+  long id() {
+    return this.id;
+  }
+
+  int generation() {
+    return this.generation;
+  }
+
+  /**
+   * @return the slot of 'symbol' or null if it is not defined
+   */
+  Slot slot(String symbol) {
+    return this.slots.get(symbol);
+  }
+
+  @Override
+  public Object get(Object key) {
+    Slot slot = this.slots.get(key);
+    return null == slot ? null : slot.value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return this.slots.containsKey(key);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    Slot slot = this.slots.get(key);
+
+    if (null == slot) {
+      this.slots.put(key, new Slot(key, value));
+      return null;
+    }
+
+    Object old = slot.value;
+    slot.value = value;
+    return old;
+  }
+
+  @Override
+  public Object remove(Object key) {
+    Slot slot = this.slots.remove(key);
+
+    if (null == slot) {
+      return null;
+    }
+
+    this.generation++;
+
+    return slot.value;
+  }
+
+  @Override
+  public void clear() {
+    this.slots.clear();
+    this.generation++;
+  }
+
+  @Override
+  public int size() {
+    return this.slots.size();
+  }
+
+  @Override
+  public Set<Entry<String,Object>> entrySet() {
+    return this.entries;
+  }
+}
@@ -290,6 +290,12 @@ public class WarpScriptExecutor implements Serializable {
         // We catch those as they only mean the script terminated voluntarly early
       }
       
+      //
+      // Compute the pending lazy lists so their errors are raised here
+      //
+      
+      LazyGTSList.materializeAll(stack);
+      
       //
       // Pop the output off the stack
       //
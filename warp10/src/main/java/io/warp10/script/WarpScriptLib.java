@@ -400,6 +400,9 @@ public class WarpScriptLib {
     functions.put("EXPORT", new EXPORT("EXPORT"));
     functions.put("TIMINGS", new TIMINGS("TIMINGS")); // NOT TO BE DOCUMENTED (YET)
     functions.put("NOTIMINGS", new NOTIMINGS("NOTIMINGS")); // NOT TO BE DOCUMENTED (YET)
+    functions.put("LAZYON", new LAZYON("LAZYON"));
+    functions.put("LAZYOFF", new LAZYOFF("LAZYOFF"));
+    functions.put("PROFILE", new PROFILE("PROFILE"));
     functions.put("ELAPSED", new ELAPSED("ELAPSED")); // NOT TO BE DOCUMENTED (YET)
     functions.put("->LIST", new TOLIST("->LIST"));
     functions.put("LIST->", new LISTTO("LIST->"));
@@ -455,6 +458,7 @@ public class WarpScriptLib {
     functions.put("MAXOPS", new MAXOPS("MAXOPS"));
     functions.put("MAXLOOP", new MAXLOOP("MAXLOOP"));
     functions.put("MAXBUCKETS", new MAXBUCKETS("MAXBUCKETS"));
+    functions.put("MAXTHREADS", new MAXTHREADS("MAXTHREADS"));
     functions.put("MAXGEOCELLS", new MAXGEOCELLS("MAXGEOCELLS"));
     functions.put("MAXPIXELS", new MAXPIXELS("MAXPIXELS"));
     functions.put("MAXRECURSION", new MAXRECURSION("MAXRECURSION"));
@@ -538,6 +542,7 @@ public class WarpScriptLib {
     functions.put("HEADER", new HEADER("HEADER"));
     
     functions.put("MACROTTL", new MACROTTL("MACROTTL"));
+    functions.put("MACROINLINE", new MACROINLINE("MACROINLINE"));
     functions.put("MACROMAPPER", new MACROMAPPER("MACROMAPPER"));
     functions.put("MACROREDUCER", new MACROMAPPER("MACROREDUCER"));
     functions.put("MACROBUCKETIZER", new MACROMAPPER("MACROBUCKETIZER"));
@@ -721,6 +726,8 @@ public class WarpScriptLib {
     functions.put("FETCHDOUBLE", new FETCH("FETCHDOUBLE", false, TYPE.DOUBLE));
     functions.put("FETCHSTRING", new FETCH("FETCHSTRING", false, TYPE.STRING));
     functions.put("FETCHBOOLEAN", new FETCH("FETCHBOOLEAN", false, TYPE.BOOLEAN));
+    functions.put("FETCHASYNC", new FETCH("FETCHASYNC", false, null, true));
+    functions.put("FETCHJOIN", new FETCHJOIN("FETCHJOIN"));
     functions.put("LIMIT", new LIMIT("LIMIT"));
     functions.put("MAXGTS", new MAXGTS("MAXGTS"));
     functions.put("FIND", new FIND("FIND", false));
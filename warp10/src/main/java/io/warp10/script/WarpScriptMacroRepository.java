@@ -85,6 +85,11 @@ public class WarpScriptMacroRepository extends Thread {
    * Actual macros
    */
   private final static Map<String,Macro> macros = new HashMap<String,Macro>();
+  
+  /**
+   * Incremented each time 'macros' is modified, so macros bound to a call can be checked for staleness
+   */
+  private static volatile int generation = 0;
  
   private WarpScriptMacroRepository() {
     this.setName("[Warp Macro Repository (" + directory + ")");
@@ -162,6 +167,7 @@ public class WarpScriptMacroRepository extends Thread {
         synchronized(macros) {
           macros.clear();
           macros.putAll(newmacros);
+          generation++;
         }        
       }
       
@@ -199,6 +205,7 @@ public class WarpScriptMacroRepository extends Thread {
         // Store the recently loaded macro in the map
         synchronized(macros) {
           macros.put(name, macro);
+          generation++;
         }
       }
     }
@@ -206,6 +213,19 @@ public class WarpScriptMacroRepository extends Thread {
     return macro;
   }
   
+  /**
+   * Return the currently loaded macro 'name' without attempting to load it
+   */
+  static Macro loaded(String name) {
+    synchronized(macros) {
+      return macros.get(name);
+    }
+  }
+  
+  static int generation() {
+    return generation;
+  }
+  
   public List<File> getWarpScriptFiles(String rootdir) {
     File root = new File(rootdir);
     
@@ -439,6 +459,8 @@ public class WarpScriptMacroRepository extends Thread {
       
       macro.setFingerprint(hash);
       
+      macro.setInlinable(Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_MACRO_INLINABLE)));
+      
       // Make macro a secure one
       macro.setSecure(true);
       
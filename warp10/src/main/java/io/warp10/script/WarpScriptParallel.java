@@ -0,0 +1,453 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Run independent units of work of MAP, BUCKETIZE, REDUCE, APPLY and FILTER (one per GTS or
+ * per partition) and the macros of CEVAL on a pool of threads shared by all scripts.
+ *
+ * Parallel execution is opt-in, a script uses at most as many threads as the value of
+ * the stack attribute ATTRIBUTE_MAX_THREADS (set via MAXTHREADS), the default of 1 leading to
+ * sequential execution on the script thread.
+ *
+ * The work submitted to the pool is queued per tenant, the token the script authenticated with or
+ * the script itself, and the threads of the pool take the queued work from the tenants in turn,
+ * so a tenant submitting a lot of work does not delay the others. A tenant runs at most
+ * 'warpscript.parallel.tenant.threads' units of work on the pool at once. The calling thread
+ * takes back the work of its call which is still queued instead of waiting for it, so a call
+ * never waits for a thread of the pool to become available.
+ *
+ * Only built-in functions are run in parallel, macros and the functions wrapping them, at any
+ * depth, need the stack (@see StackBound), so they are always run sequentially on the script thread. As workers never
+ * access the stack, the operation count and the fetch limits are only updated by the script
+ * thread, exactly like in sequential mode.
+ *
+ * CEVAL is the exception, each of its macros is run on a stack of its own (@see MemoryWarpScriptStack#getSubStack)
+ * so its macros can be run by the threads of the pool.
+ *
+ * Results are returned in the order of the units of work, regardless of the order in which
+ * they completed.
+ */
+public final class WarpScriptParallel {
+
+  /**
+   * Unit of work identified by its index
+   */
+  public static interface Task<T> {
+    public T call(int index) throws WarpScriptException;
+  }
+
+  /**
+   * Functions which may execute code on the stack of the script which created them when called.
+   *
+   * Functions wrapping other functions (MACROMAPPER, STRICTMAPPER...) implement this interface so
+   * the check can be done on the functions they wrap.
+   */
+  public static interface StackBound {
+    /**
+     * @return true if calling the function may access the stack, in which case it can only be called on the script thread
+     */
+    public boolean needsStack();
+  }
+
+  /**
+   * Contiguous range of indices of a call to 'run'
+   */
+  private static final class Chunk implements Runnable {
+    private final Tenant tenant;
+    private final int from;
+    private final int to;
+    private final Task<?> task;
+    private final Object[] results;
+    private final Throwable[] errors;
+    private final AtomicBoolean abort;
+    private final CountDownLatch done;
+
+    private Chunk(Tenant tenant, int from, int to, Task<?> task, Object[] results, Throwable[] errors, AtomicBoolean abort, CountDownLatch done) {
+      this.tenant = tenant;
+      this.from = from;
+      this.to = to;
+      this.task = task;
+      this.results = results;
+      this.errors = errors;
+      this.abort = abort;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (int i = this.from; i < this.to && !this.abort.get(); i++) {
+          try {
+            this.results[i] = this.task.call(i);
+          } catch (Throwable t) {
+            this.errors[i] = t;
+            this.abort.set(true);
+          }
+        }
+      } finally {
+        this.done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Queued chunks and number of running chunks of a tenant, guarded by 'tenants'
+   */
+  private static final class Tenant {
+    private final Object key;
+    private final ArrayDeque<Chunk> queue = new ArrayDeque<Chunk>();
+    private int running = 0;
+    private boolean ready = false;
+
+    private Tenant(Object key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Take the next chunk from the tenants in turn and run it
+   */
+  private static final Runnable DISPATCH = new Runnable() {
+    @Override
+    public void run() {
+      Chunk chunk;
+
+      synchronized(tenants) {
+        Tenant tenant;
+
+        //
+        // Skip the tenants whose queued chunks were taken back by their callers
+        //
+
+        do {
+          tenant = ready.poll();
+
+          if (null == tenant) {
+            return;
+          }
+
+          tenant.ready = false;
+          chunk = tenant.queue.poll();
+        } while (null == chunk);
+
+        tenant.running++;
+        schedule(tenant);
+      }
+
+      try {
+        chunk.run();
+      } finally {
+        synchronized(tenants) {
+          chunk.tenant.running--;
+          if (schedule(chunk.tenant)) {
+            pool.execute(DISPATCH);
+          }
+          release(chunk.tenant);
+        }
+      }
+    }
+  };
+
+  private static final ForkJoinPool pool;
+
+  static final int poolThreads;
+
+  /**
+   * Maximum number of chunks a tenant runs on the pool at once
+   */
+  static final int tenantThreads;
+
+  /**
+   * Tenants with queued work, by key
+   */
+  private static final Map<Object,Tenant> tenants = new HashMap<Object,Tenant>();
+
+  /**
+   * Tenants whose queued work can be run, in turn order
+   */
+  private static final ArrayDeque<Tenant> ready = new ArrayDeque<Tenant>();
+
+  static {
+    Properties props = WarpConfig.getProperties();
+
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_PARALLEL_THREADS)) {
+      threads = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_PARALLEL_THREADS));
+    }
+
+    poolThreads = Math.max(1, threads);
+
+    int perTenant = poolThreads;
+
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_PARALLEL_TENANT_THREADS)) {
+      perTenant = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_PARALLEL_TENANT_THREADS));
+    }
+
+    tenantThreads = Math.max(1, perTenant);
+
+    //
+    // The chunks are not split further once running, so the pool is used in FIFO (async) mode
+    // to take the DISPATCH tasks in submission order, the per tenant turns being handled by DISPATCH
+    //
+    
+    pool = new ForkJoinPool(poolThreads, new ForkJoinWorkerThreadFactory() {
+      @Override
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("[WarpScript Parallel]");
+        t.setDaemon(true);
+        return t;
+      }
+    }, null, true);
+  }
+
+  private WarpScriptParallel() {
+  }
+
+  /**
+   * Return the number of threads of the pool shared by all scripts
+   */
+  public static int getPoolThreads() {
+    return poolThreads;
+  }
+
+  /**
+   * Return the number of threads a call to 'function' may use on 'stack'.
+   *
+   * @return 1 if 'function' must be called sequentially
+   */
+  public static int getParallelism(WarpScriptStack stack, Object function) {
+    if (null == stack || needsStack(function)) {
+      return 1;
+    }
+
+    Object maxthreads = stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_THREADS);
+
+    if (!(maxthreads instanceof Number)) {
+      return 1;
+    }
+
+    return (int) Math.max(1L, Math.min(((Number) maxthreads).longValue(), poolThreads));
+  }
+
+  /**
+   * Return the key under which the work of the script running on 'stack' is queued, the token
+   * the script authenticated with or the stack itself if it did not authenticate.
+   *
+   * @return null if 'stack' is null
+   */
+  public static Object getTenant(WarpScriptStack stack) {
+    if (null == stack) {
+      return null;
+    }
+
+    Object token = stack.getAttribute(WarpScriptStack.ATTRIBUTE_TOKEN);
+
+    return null != token ? token : stack.getUUID();
+  }
+
+  /**
+   * Check if 'function' is a macro or a function executing a macro, directly or through wrapped
+   * functions, i.e. if it can only be called on the script thread
+   */
+  public static boolean needsStack(Object function) {
+    if (function instanceof Macro) {
+      return true;
+    }
+    
+    return function instanceof StackBound && ((StackBound) function).needsStack();
+  }
+
+  /**
+   * Call 'task' for indices 0 to n-1 using at most 'parallelism' threads, one of them being
+   * the calling thread. The calls queued for the pool are accounted to 'tenant', as returned by
+   * 'getTenant', or to the calling thread if 'tenant' is null.
+   *
+   * If a call throws an exception, the remaining calls are skipped and the exception of the failed call
+   * with the smallest index is rethrown.
+   *
+   * @return the results of the calls, in index order
+   */
+  public static <T> List<T> run(Object tenant, int parallelism, int n, final Task<T> task) throws WarpScriptException {
+    if (parallelism <= 1 || n < 2) {
+      List<T> results = new ArrayList<T>(n);
+      for (int i = 0; i < n; i++) {
+        results.add(task.call(i));
+      }
+      return results;
+    }
+
+    final Object[] results = new Object[n];
+    final Throwable[] errors = new Throwable[n];
+    final AtomicBoolean abort = new AtomicBoolean(false);
+
+    //
+    // Split the indices in contiguous chunks, one per thread
+    //
+
+    int nchunks = Math.min(parallelism, n);
+
+    CountDownLatch done = new CountDownLatch(nchunks);
+
+    Object key = null != tenant ? tenant : Thread.currentThread();
+
+    List<Chunk> chunks = new ArrayList<Chunk>(nchunks);
+
+    Tenant owner;
+
+    synchronized(tenants) {
+      owner = tenants.get(key);
+
+      if (null == owner) {
+        owner = new Tenant(key);
+        tenants.put(key, owner);
+      }
+
+      for (int c = 0; c < nchunks; c++) {
+        int from = (int) (((long) n * c) / nchunks);
+        int to = (int) (((long) n * (c + 1)) / nchunks);
+        chunks.add(new Chunk(owner, from, to, task, results, errors, abort, done));
+      }
+
+      //
+      // The first chunk is run by the calling thread while the others are queued for the pool
+      //
+
+      for (int c = 1; c < nchunks; c++) {
+        owner.queue.add(chunks.get(c));
+      }
+
+      schedule(owner);
+    }
+
+    for (int c = 1; c < nchunks; c++) {
+      pool.execute(DISPATCH);
+    }
+
+    chunks.get(0).run();
+
+    //
+    // Run the chunks which are still queued
+    //
+
+    while (true) {
+      Chunk chunk = null;
+
+      synchronized(tenants) {
+        Iterator<Chunk> iter = owner.queue.iterator();
+        while (iter.hasNext()) {
+          Chunk queued = iter.next();
+          if (queued.done == done) {
+            iter.remove();
+            chunk = queued;
+            break;
+          }
+        }
+        if (null == chunk) {
+          release(owner);
+        }
+      }
+
+      if (null == chunk) {
+        break;
+      }
+
+      chunk.run();
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException ie) {
+      abort.set(true);
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException("Interrupted while waiting for parallel tasks.");
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (null == errors[i]) {
+        continue;
+      }
+      if (errors[i] instanceof WarpScriptException) {
+        throw (WarpScriptException) errors[i];
+      } else if (errors[i] instanceof RuntimeException) {
+        throw (RuntimeException) errors[i];
+      } else if (errors[i] instanceof Error) {
+        throw (Error) errors[i];
+      }
+      throw new WarpScriptException(errors[i]);
+    }
+
+    List<T> list = new ArrayList<T>(n);
+    
+    for (Object result: results) {
+      // Results were produced by 'task' so they are instances of T
+      @SuppressWarnings("unchecked")
+      T t = (T) result;
+      list.add(t);
+    }
+    
+    return list;
+  }
+
+  /**
+   * Make 'tenant' ready if it has queued chunks and may run more of them, MUST be called with the lock on 'tenants'
+   *
+   * @return true if the tenant was made ready
+   */
+  private static boolean schedule(Tenant tenant) {
+    if (tenant.ready || tenant.queue.isEmpty() || tenant.running >= tenantThreads) {
+      return false;
+    }
+
+    tenant.ready = true;
+    ready.add(tenant);
+
+    return true;
+  }
+
+  /**
+   * Forget 'tenant' if it has no more work, MUST be called with the lock on 'tenants'
+   */
+  private static void release(Tenant tenant) {
+    if (tenant.queue.isEmpty() && 0 == tenant.running && tenant == tenants.get(tenant.key)) {
+      if (tenant.ready) {
+        ready.remove(tenant);
+        tenant.ready = false;
+      }
+      tenants.remove(tenant.key);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.UnsafeString;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.util.Properties;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of parsed WarpScript lines, shared by all stacks.
+ *
+ * Parsing a line splits it into statements, parses the literals (strings, numbers, booleans) and
+ * resolves the names of the built-in functions. As scripts are mostly executed again and again with
+ * only a few lines changing (tokens, time parameters), the parsed lines are kept in a bounded concurrent
+ * cache keyed by their content, so executing a known line skips parsing altogether. Lookups do not
+ * take a global lock as the cache is consulted for every line of every script.
+ *
+ * Only the outcome of parsing is cached, the statements are still interpreted one by one by the stack,
+ * so comments, multiline strings, macros and secure scripts behave exactly as before. Statements whose
+ * interpretation depends on the state of the stack ($x, !$x, @x, redefined functions) are resolved at
+ * execution time.
+ */
+final class WarpScriptParseCache {
+
+  /**
+   * Default number of lines kept in the cache
+   */
+  private static final int DEFAULT_SIZE = 10000;
+
+  /**
+   * Lines longer than that are not cached
+   */
+  private static final int MAX_LINE_LENGTH = 4096;
+
+  /**
+   * Parsed statement
+   */
+  static final class Statement {
+    /**
+     * Trimmed text of the statement
+     */
+    final String text;
+
+    /**
+     * Flag indicating that 'value' is a literal to push
+     */
+    final boolean literal;
+
+    /**
+     * Literal value or built-in function named by the statement, null if the statement is neither
+     */
+    final Object value;
+
+    private Statement(String text, boolean literal, Object value) {
+      this.text = text;
+      this.literal = literal;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Cache of parsed lines, null if the cache is disabled
+   */
+  private static final Cache<String,Statement[]> cache;
+
+  static {
+    Properties props = WarpConfig.getProperties();
+
+    int sz = DEFAULT_SIZE;
+
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_PARSECACHE_SIZE)) {
+      sz = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_PARSECACHE_SIZE));
+    }
+
+    if (sz > 0) {
+      cache = CacheBuilder.newBuilder().maximumSize(sz).build();
+    } else {
+      cache = null;
+    }
+  }
+
+  private WarpScriptParseCache() {
+  }
+
+  /**
+   * Return the parsed statements of a line which is not part of a multiline string.
+   * The returned array MUST NOT be modified.
+   */
+  static Statement[] get(String line) {
+    boolean cacheable = null != cache && line.length() <= MAX_LINE_LENGTH;
+
+    if (cacheable) {
+      Statement[] statements = cache.getIfPresent(line);
+
+      if (null != statements) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PARSECACHE_HITS, Sensision.EMPTY_LABELS, 1);
+        return statements;
+      }
+    }
+
+    long nano = System.nanoTime();
+
+    Statement[] statements = parse(line);
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PARSE_TIME_US, Sensision.EMPTY_LABELS, (System.nanoTime() - nano) / 1000L);
+
+    if (cacheable) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PARSECACHE_MISSES, Sensision.EMPTY_LABELS, 1);
+
+      cache.put(line, statements);
+    }
+
+    return statements;
+  }
+
+  private static Statement[] parse(String line) {
+    line = line.trim();
+
+    //
+    // Replace whistespaces in Strings with '%20'
+    //
+
+    line = UnsafeString.sanitizeStrings(line);
+
+    String[] stmts;
+
+    if (-1 != UnsafeString.indexOf(line, ' ')) {
+      stmts = UnsafeString.split(line, ' ');
+    } else {
+      stmts = new String[] { line };
+    }
+
+    Statement[] statements = new Statement[stmts.length];
+
+    for (int i = 0; i < stmts.length; i++) {
+      statements[i] = parseStatement(stmts[i].trim());
+    }
+
+    return statements;
+  }
+
+  /**
+   * Parse a statement the way MemoryWarpScriptStack interprets it.
+   * Statements which fail to parse are left unparsed so the error is raised if they are executed.
+   */
+  private static Statement parseStatement(String stmt) {
+    if (0 == stmt.length()
+        || WarpScriptStack.MULTILINE_START.equals(stmt) || WarpScriptStack.MULTILINE_END.equals(stmt)
+        || WarpScriptStack.COMMENT_START.equals(stmt) || WarpScriptStack.COMMENT_END.equals(stmt)
+        || WarpScriptStack.SECURE_SCRIPT_START.equals(stmt) || WarpScriptStack.SECURE_SCRIPT_END.equals(stmt)
+        || WarpScriptStack.MACRO_START.equals(stmt) || WarpScriptStack.MACRO_END.equals(stmt)
+        || '#' == stmt.charAt(0) || stmt.startsWith("//")) {
+      return new Statement(stmt, false, null);
+    }
+
+    try {
+      if ((stmt.charAt(0) == '\'' && stmt.charAt(stmt.length() - 1) == '\'')
+          || (stmt.charAt(0) == '\"' && stmt.charAt(stmt.length() - 1) == '\"')) {
+        String str = stmt.substring(1, stmt.length() - 1);
+
+        if (-1 != UnsafeString.indexOf(str, '%')) {
+          // replace occurrences of '+' with '%2B'
+          str = str.replaceAll("\\+", "%2B");
+          str = URLDecoder.decode(str, "UTF-8");
+        }
+
+        return new Statement(stmt, true, str);
+      } else if (stmt.length() > 2 && stmt.charAt(1) == 'x' && stmt.charAt(0) == '0') {
+        long hexl = stmt.length() < 18 ? Long.parseLong(stmt.substring(2), 16) : new BigInteger(stmt.substring(2), 16).longValue();
+        return new Statement(stmt, true, hexl);
+      } else if (stmt.length() > 2 && stmt.charAt(1) == 'b' && stmt.charAt(0) == '0') {
+        long binl = stmt.length() < 66 ? Long.parseLong(stmt.substring(2), 2) : new BigInteger(stmt.substring(2), 2).longValue();
+        return new Statement(stmt, true, binl);
+      } else if (UnsafeString.isLong(stmt)) {
+        return new Statement(stmt, true, Long.valueOf(stmt));
+      } else if (UnsafeString.isDouble(stmt)) {
+        return new Statement(stmt, true, Double.valueOf(stmt));
+      }
+    } catch (Exception e) {
+      return new Statement(stmt, false, null);
+    }
+
+    if (stmt.equalsIgnoreCase("T") || stmt.equalsIgnoreCase("F") || stmt.equalsIgnoreCase("true") || stmt.equalsIgnoreCase("false")) {
+      return new Statement(stmt, true, stmt.startsWith("T") || stmt.startsWith("t"));
+    }
+
+    if (stmt.startsWith("$") || stmt.startsWith("!$") || stmt.startsWith("@")) {
+      return new Statement(stmt, false, null);
+    }
+
+    return new Statement(stmt, false, WarpScriptLib.getFunction(stmt));
+  }
+}
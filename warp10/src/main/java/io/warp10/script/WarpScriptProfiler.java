@@ -0,0 +1,139 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of calls and cumulative execution time of the functions and named macros executed by a stack.
+ *
+ * The profiler is attached to a stack via the ATTRIBUTE_PROFILER attribute (see PROFILE), it is only
+ * updated by the thread executing the script so it uses plain arrays indexed by function instance.
+ *
+ * Times are inclusive, the time of a function executing macros (EVAL, FOR, MAP with a macro, ...)
+ * includes the time spent in the statements of those macros.
+ */
+public final class WarpScriptProfiler {
+
+  /**
+   * Profiler of an enclosing PROFILE, also updated by this one
+   */
+  private final WarpScriptProfiler parent;
+
+  /**
+   * Index of each profiled function instance or macro name in the arrays below
+   */
+  private final Map<Object,Integer> indices = new IdentityHashMap<Object,Integer>();
+
+  private final Map<String,Integer> macros = new HashMap<String,Integer>();
+
+  private String[] names = new String[64];
+  private long[] calls = new long[64];
+  private long[] nanos = new long[64];
+
+  private int size = 0;
+
+  public WarpScriptProfiler(WarpScriptProfiler parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Record a call to 'function' which lasted 'elapsed' nanoseconds
+   */
+  public void function(Object function, long elapsed) {
+    Integer idx = this.indices.get(function);
+
+    if (null == idx) {
+      idx = add(function.toString());
+      this.indices.put(function, idx);
+    }
+
+    this.calls[idx]++;
+    this.nanos[idx] += elapsed;
+
+    if (null != this.parent) {
+      this.parent.function(function, elapsed);
+    }
+  }
+
+  /**
+   * Record a call to the macro 'symbol' (@symbol) which lasted 'elapsed' nanoseconds
+   */
+  public void macro(String symbol, long elapsed) {
+    Integer idx = this.macros.get(symbol);
+
+    if (null == idx) {
+      idx = add("@" + symbol);
+      this.macros.put(symbol, idx);
+    }
+
+    this.calls[idx]++;
+    this.nanos[idx] += elapsed;
+
+    if (null != this.parent) {
+      this.parent.macro(symbol, elapsed);
+    }
+  }
+
+  private int add(String name) {
+    if (this.size == this.names.length) {
+      this.names = Arrays.copyOf(this.names, this.size * 2);
+      this.calls = Arrays.copyOf(this.calls, this.size * 2);
+      this.nanos = Arrays.copyOf(this.nanos, this.size * 2);
+    }
+
+    this.names[this.size] = name;
+
+    return this.size++;
+  }
+
+  /**
+   * @return a map of function names and @macro names to a list of the number of calls and the cumulative time
+   *         in nanoseconds. Distinct instances with the same name (redefined functions for example) are merged.
+   */
+  public Map<String,Object> toMap() {
+    Map<String,long[]> merged = new HashMap<String,long[]>();
+
+    for (int i = 0; i < this.size; i++) {
+      long[] entry = merged.get(this.names[i]);
+
+      if (null == entry) {
+        entry = new long[2];
+        merged.put(this.names[i], entry);
+      }
+
+      entry[0] += this.calls[i];
+      entry[1] += this.nanos[i];
+    }
+
+    Map<String,Object> profile = new HashMap<String,Object>();
+
+    for (Map.Entry<String,long[]> entry: merged.entrySet()) {
+      List<Object> stats = new ArrayList<Object>(2);
+      stats.add(entry.getValue()[0]);
+      stats.add(entry.getValue()[1]);
+      profile.put(entry.getKey(), stats);
+    }
+
+    return profile;
+  }
+}
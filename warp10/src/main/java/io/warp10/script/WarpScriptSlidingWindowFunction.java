@@ -0,0 +1,60 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
+
+/**
+ * Mappers which can update their result incrementally as the window of MAP slides
+ * over a Geo Time Series, instead of recomputing it from all the datapoints of the window.
+ */
+public interface WarpScriptSlidingWindowFunction {
+
+  /**
+   * State of a sliding window mapper for a single MAP invocation.
+   *
+   * Datapoints are identified by their index in the source view passed to newAccumulator.
+   * They are added in increasing index order and removed in the order they were added.
+   */
+  public static interface Accumulator {
+    public void add(int index);
+    public void remove(int index);
+
+    /**
+     * Remove all datapoints from the accumulator.
+     */
+    public void clear();
+
+    /**
+     * Compute the result for the current window.
+     *
+     * @param window View over the datapoints currently added to the accumulator
+     * @param result Sink for the result, reset to a null value at the window tick prior to the call
+     * @return true if the result was computed, false if the other flavors of the mapper should be called.
+     */
+    public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException;
+  }
+
+  /**
+   * Create an accumulator for a MAP invocation.
+   *
+   * @param source View over all the datapoints of the sorted GTS the mapper is applied to
+   * @return The accumulator or null if the mapper cannot be applied incrementally to 'source'
+   */
+  public Accumulator newAccumulator(GTSWindow source);
+}
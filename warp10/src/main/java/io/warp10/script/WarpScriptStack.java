@@ -23,7 +23,9 @@ import io.warp10.script.functions.SNAPSHOT;
 import io.warp10.script.functions.SNAPSHOT.Snapshotable;
 import io.warp10.warp.sdk.WarpScriptJavaFunction;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +46,8 @@ public interface WarpScriptStack {
   
   public static final int DEFAULT_MAX_RECURSION_LEVEL = 16;
   public static final long DEFAULT_FETCH_LIMIT = 100000L;
+  public static final long DEFAULT_FETCH_RAW_LIMIT = 10000000L;
+  public static final long DEFAULT_FETCH_ASYNC_LIMIT = 4L;
   public static final long DEFAULT_GTS_LIMIT = 100000L;
   public static final long DEFAULT_MAX_OPS = 1000L;
   public static final int DEFAULT_MAX_BUCKETS = 1000000;
@@ -55,6 +59,8 @@ public interface WarpScriptStack {
   public static final long DEFAULT_MAX_PIXELS = 1000000L;
   public static final long DEFAULT_URLFETCH_LIMIT = 64;
   public static final long DEFAULT_URLFETCH_MAXSIZE = 1000000L;
+  public static final int DEFAULT_MAX_THREADS = 1;
+  public static final int DEFAULT_MACRO_COMPILE_THRESHOLD = 1000;
   
   public static final String MACRO_START = "<%";
   public static final String MACRO_END = "%>";
@@ -112,6 +118,22 @@ public interface WarpScriptStack {
   public static final String ATTRIBUTE_FETCH_LIMIT = "fetch.limit";
   public static final String ATTRIBUTE_FETCH_LIMIT_HARD = "fetch.limit.hard";
 
+  /**
+   * Maximum number of raw datapoints that can be read in a session by FETCH calls which bucketize
+   * the datapoints as they are read, only the bucketized datapoints count toward ATTRIBUTE_FETCH_LIMIT
+   */
+  public static final String ATTRIBUTE_FETCH_RAW_LIMIT = "fetch.raw.limit";
+
+  /**
+   * Maximum number of fetches started by FETCHASYNC which were not joined yet
+   */
+  public static final String ATTRIBUTE_FETCH_ASYNC_LIMIT = "fetch.async.limit";
+
+  /**
+   * Fetches started by FETCHASYNC which were not joined yet, cancelled when the stack is reset
+   */
+  public static final String ATTRIBUTE_FETCH_ASYNC_PENDING = "fetch.async.pending";
+
   /**
    * Maximum number of GTS which can be retrieved from directory in a session
    */
@@ -123,6 +145,11 @@ public interface WarpScriptStack {
    */
   public static final String ATTRIBUTE_FETCH_COUNT = "fetch.count";
 
+  /**
+   * Number of raw datapoints read so far in the session by bucketizing FETCH calls
+   */
+  public static final String ATTRIBUTE_FETCH_RAW_COUNT = "fetch.raw.count";
+
   /**
    * Number of GTS retrieved so far in the session
    */
@@ -202,6 +229,27 @@ public interface WarpScriptStack {
   public static final String ATTRIBUTE_MAX_GEOCELLS = "stack.maxgeocells";
   public static final String ATTRIBUTE_MAX_GEOCELLS_HARD = "stack.maxgeocells.hard";
   
+  /**
+   * Maximum number of threads MAP, BUCKETIZE, REDUCE, APPLY and FILTER may use, 1 means sequential execution
+   */
+  public static final String ATTRIBUTE_MAX_THREADS = "stack.maxthreads";
+  public static final String ATTRIBUTE_MAX_THREADS_HARD = "stack.maxthreads.hard";
+  
+  /**
+   * Flag indicating whether or not framework operations are evaluated lazily (see LazyGTSList)
+   */
+  public static final String ATTRIBUTE_LAZY = "stack.lazy";
+  
+  /**
+   * Flag set once a LazyGTSList has been deferred on the stack, so only those stacks are scanned for pending lists
+   */
+  public static final String ATTRIBUTE_LAZY_DEFERRED = "stack.lazy.deferred";
+  
+  /**
+   * WarpScriptProfiler recording the function calls of the stack, set by PROFILE
+   */
+  public static final String ATTRIBUTE_PROFILER = "stack.profiler";
+  
   /**
    * Current number of operations performed on this stack
    */
@@ -248,6 +296,11 @@ public interface WarpScriptStack {
    */
   public static final String ATTRIBUTE_MACRO_EXPIRY = "macro.expiry";
   
+  /**
+   * Flag indicating that calls to a macro loaded from disk can be bound to it (see MACROINLINE)
+   */
+  public static final String ATTRIBUTE_MACRO_INLINABLE = "macro.inlinable";
+  
   /**
    * List of symbols to export upon script termination as a map of symbol name
    * to symbol value pushed onto the stack.
@@ -287,7 +340,149 @@ public interface WarpScriptStack {
      */
     private long expiry = Long.MIN_VALUE;
     
-    private ArrayList<Object> statements = new ArrayList<Object>();
+    /**
+     * Flag indicating whether calls to this macro can be bound to it when the calling macro is optimized
+     */
+    private boolean inlinable = false;
+    
+    private Statements statements = new Statements();
+    
+    /**
+     * Number of executions of the macro and compiled form once it was executed often enough (see CompiledMacro).
+     * Macros may be executed by several threads at once, an increment lost to a race only delays the compilation.
+     */
+    volatile int executions = 0;
+    volatile CompiledMacro compiled = null;
+    
+    /**
+     * List of statements counting its modifications, so the compiled form of the macro is discarded once
+     * the statements have changed, whatever the change (see CompiledMacro)
+     */
+    private static final class Statements extends ArrayList<Object> {
+      
+      private volatile int modifications = 0;
+      
+      /**
+       * View of a range of the statements, so modifications through it are counted too
+       */
+      private final class Range extends AbstractList<Object> {
+        private final int from;
+        private int to;
+        
+        private Range(int from, int to) {
+          this.from = from;
+          this.to = to;
+        }
+        
+        @Override
+        public Object get(int index) {
+          return Statements.this.get(this.from + index);
+        }
+        
+        @Override
+        public int size() {
+          return this.to - this.from;
+        }
+        
+        @Override
+        public Object set(int index, Object element) {
+          return Statements.this.set(this.from + index, element);
+        }
+        
+        @Override
+        public void add(int index, Object element) {
+          Statements.this.add(this.from + index, element);
+          this.to++;
+        }
+        
+        @Override
+        public Object remove(int index) {
+          Object removed = Statements.this.remove(this.from + index);
+          this.to--;
+          return removed;
+        }
+        
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+          Statements.this.removeRange(this.from + fromIndex, this.from + toIndex);
+          this.to -= toIndex - fromIndex;
+        }
+      }
+      
+      @Override
+      public boolean add(Object e) {
+        this.modifications++;
+        return super.add(e);
+      }
+      
+      @Override
+      public void add(int index, Object element) {
+        this.modifications++;
+        super.add(index, element);
+      }
+      
+      @Override
+      public boolean addAll(Collection<? extends Object> c) {
+        this.modifications++;
+        return super.addAll(c);
+      }
+      
+      @Override
+      public boolean addAll(int index, Collection<? extends Object> c) {
+        this.modifications++;
+        return super.addAll(index, c);
+      }
+      
+      @Override
+      public Object set(int index, Object element) {
+        this.modifications++;
+        return super.set(index, element);
+      }
+      
+      @Override
+      public Object remove(int index) {
+        this.modifications++;
+        return super.remove(index);
+      }
+      
+      @Override
+      public boolean remove(Object o) {
+        this.modifications++;
+        return super.remove(o);
+      }
+      
+      @Override
+      public boolean removeAll(Collection<?> c) {
+        this.modifications++;
+        return super.removeAll(c);
+      }
+      
+      @Override
+      public boolean retainAll(Collection<?> c) {
+        this.modifications++;
+        return super.retainAll(c);
+      }
+      
+      @Override
+      public void clear() {
+        this.modifications++;
+        super.clear();
+      }
+      
+      @Override
+      protected void removeRange(int fromIndex, int toIndex) {
+        this.modifications++;
+        super.removeRange(fromIndex, toIndex);
+      }
+      
+      @Override
+      public List<Object> subList(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+          throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex + ", size: " + size());
+        }
+        return new Range(fromIndex, toIndex);
+      }
+    }
     
     public boolean isExpired() {
       return (Long.MIN_VALUE != this.expiry) && (this.expiry < System.currentTimeMillis());
@@ -317,6 +512,7 @@ public interface WarpScriptStack {
     }
     
     public void add(Object o) {
+      this.compiled = null;
       this.statements().add(o);
     }
     
@@ -333,9 +529,18 @@ public interface WarpScriptStack {
     }
     
     public void addAll(Macro macro) {
+      this.compiled = null;
       this.statements().addAll(macro.statements());
     }
     
+    /**
+     * Return the number of modifications made to the statements of the macro, subclasses which compute
+     * their statements always return 0
+     */
+    int modifications() {
+      return this.statements.modifications;
+    }
+    
     public void setSecure(boolean secure) {
       this.secure = secure;
     }
@@ -356,6 +561,14 @@ public interface WarpScriptStack {
       this.expiry = expiry;
     }
     
+    public void setInlinable(boolean inlinable) {
+      this.inlinable = inlinable;
+    }
+    
+    public boolean isInlinable() {
+      return this.inlinable;
+    }
+    
     @Override
     public String snapshot() {
       StringBuilder sb = new StringBuilder();
@@ -0,0 +1,227 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.geo.GeoDirectoryClient;
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.WarpScriptStack.StackContext;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of stacks used by an endpoint to execute scripts.
+ *
+ * Creating a stack parses the configured limits and allocates its structures, which is a significant
+ * part of the cost of executing a small script. Stacks released to the pool are reset (see
+ * MemoryWarpScriptStack.reset) and handed out again by the next checkouts.
+ *
+ * At most 'size' idle stacks are kept, stacks released when the pool is full are discarded and
+ * checkouts from an empty pool create new stacks. The number of stacks checked out at once can be
+ * bounded, a checkout then waits at most 'wait' ms for a stack to be released before failing.
+ *
+ * The symbols and redefined functions resulting from the execution of BOOTSTRAP on the bootstrap context
+ * are kept (@see #bootstrap) so BOOTSTRAP is only executed again when the bootstrap context changes.
+ *
+ * A released stack MUST NOT be used anymore by the caller, nor by any thread it started.
+ */
+public class WarpScriptStackPool {
+
+  /**
+   * Default number of idle stacks kept
+   */
+  public static final int DEFAULT_SIZE = 16;
+
+  /**
+   * Symbols and redefined functions of a stack after BOOTSTRAP was executed on a bootstrap context
+   */
+  private static final class Snapshot {
+    private final StackContext bootstrap;
+    private final StackContext context;
+    private final long ops;
+
+    private Snapshot(StackContext bootstrap, StackContext context, long ops) {
+      this.bootstrap = bootstrap;
+      this.context = context;
+      this.ops = ops;
+    }
+  }
+
+  private final StoreClient storeClient;
+  private final DirectoryClient directoryClient;
+  private final GeoDirectoryClient geoDirectoryClient;
+  private final Properties properties;
+
+  /**
+   * Idle stacks, null if pooling is disabled
+   */
+  private final BlockingQueue<MemoryWarpScriptStack> idle;
+
+  /**
+   * Permits of the stacks which can be checked out, null if checkouts are not bounded
+   */
+  private final Semaphore checkouts;
+
+  private final long wait;
+
+  /**
+   * Result of the last execution of BOOTSTRAP which could be snapshotted, null if none
+   */
+  private volatile Snapshot snapshot = null;
+
+  /**
+   * @param size Maximum number of idle stacks to keep, 0 disables pooling
+   */
+  public WarpScriptStackPool(StoreClient storeClient, DirectoryClient directoryClient, GeoDirectoryClient geoDirectoryClient, Properties properties, int size) {
+    this(storeClient, directoryClient, geoDirectoryClient, properties, size, 0, 0L);
+  }
+
+  /**
+   * @param size Maximum number of idle stacks to keep, 0 disables pooling
+   * @param checkouts Maximum number of stacks checked out at once, 0 for no limit
+   * @param wait Maximum time in ms a checkout waits for a stack to be released when 'checkouts' stacks are checked out
+   */
+  public WarpScriptStackPool(StoreClient storeClient, DirectoryClient directoryClient, GeoDirectoryClient geoDirectoryClient, Properties properties, int size, int checkouts, long wait) {
+    this.storeClient = storeClient;
+    this.directoryClient = directoryClient;
+    this.geoDirectoryClient = geoDirectoryClient;
+    this.properties = properties;
+    this.idle = size > 0 ? new ArrayBlockingQueue<MemoryWarpScriptStack>(size) : null;
+    this.checkouts = checkouts > 0 ? new Semaphore(checkouts, true) : null;
+    this.wait = Math.max(0L, wait);
+  }
+
+  /**
+   * Return a stack in the state of a newly created one, each stack checked out MUST be released
+   *
+   * @throws WarpScriptException if the maximum number of stacks are checked out and none was released in time
+   */
+  public MemoryWarpScriptStack checkout() throws WarpScriptException {
+    if (null != this.checkouts) {
+      try {
+        if (!this.checkouts.tryAcquire(this.wait, TimeUnit.MILLISECONDS)) {
+          throw new WarpScriptException("Too many scripts executing, try again later.");
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new WarpScriptException("Interrupted while waiting for a stack.");
+      }
+    }
+
+    MemoryWarpScriptStack stack = null == this.idle ? null : this.idle.poll();
+
+    if (null == stack) {
+      stack = new MemoryWarpScriptStack(this.storeClient, this.directoryClient, this.geoDirectoryClient, this.properties);
+    }
+
+    return stack;
+  }
+
+  /**
+   * Give back a stack obtained from 'checkout' once the script it executed has completed
+   */
+  public void release(MemoryWarpScriptStack stack) {
+    try {
+      if (null == this.idle) {
+        return;
+      }
+
+      try {
+        stack.reset();
+      } catch (WarpScriptException wse) {
+        return;
+      }
+
+      this.idle.offer(stack);
+    } finally {
+      if (null != this.checkouts) {
+        this.checkouts.release();
+      }
+    }
+  }
+
+  /**
+   * Restore 'bootstrap' (may be null) on a stack just checked out and execute BOOTSTRAP, like a newly created
+   * stack would.
+   *
+   * The symbols and redefined functions resulting from the execution are kept if BOOTSTRAP left the levels,
+   * the attributes and the counters of the stack untouched and only stored immutable values, the following
+   * calls with the same bootstrap context restore them and charge the operations BOOTSTRAP performed instead
+   * of executing it again. Callers exposing request dependent symbols to BOOTSTRAP must execute it themselves.
+   */
+  public void bootstrap(MemoryWarpScriptStack stack, StackContext bootstrap) throws WarpScriptException {
+    Snapshot snapshot = this.snapshot;
+
+    if (null != snapshot && snapshot.bootstrap == bootstrap) {
+      stack.push(snapshot.context);
+      stack.restore();
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_OPS, (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS) + snapshot.ops);
+      return;
+    }
+
+    if (null != bootstrap) {
+      stack.push(bootstrap);
+      stack.restore();
+    }
+
+    int depth = stack.depth();
+    long ops = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS);
+    Map<String,Object> attributes = stack.copyAttributes();
+
+    stack.exec(WarpScriptLib.BOOTSTRAP);
+
+    if (depth != stack.depth() || !attributes.equals(stack.copyAttributes())) {
+      return;
+    }
+
+    Map<String,Object> symbols = Collections.<String,Object>emptyMap();
+
+    if (bootstrap instanceof MemoryWarpScriptStack.StackContext && null != ((MemoryWarpScriptStack.StackContext) bootstrap).symbolTable) {
+      symbols = ((MemoryWarpScriptStack.StackContext) bootstrap).symbolTable;
+    }
+
+    for (Entry<String,Object> entry: stack.getSymbolTable().entrySet()) {
+      if (entry.getValue() != symbols.get(entry.getKey()) && !isImmutable(entry.getValue())) {
+        return;
+      }
+    }
+
+    stack.save();
+
+    this.snapshot = new Snapshot(bootstrap, (StackContext) stack.pop(), (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS) - ops);
+  }
+
+  /**
+   * Check if 'value' can be shared by the scripts without one seeing the changes made by another
+   */
+  private static boolean isImmutable(Object value) {
+    return null == value || value instanceof String || value instanceof Boolean
+        || value instanceof Long || value instanceof Double || value instanceof Integer || value instanceof Float
+        || value instanceof Short || value instanceof Byte || value instanceof BigDecimal || value instanceof BigInteger
+        || value instanceof Macro || value instanceof WarpScriptStackFunction;
+  }
+}
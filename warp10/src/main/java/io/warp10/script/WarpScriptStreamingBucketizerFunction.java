@@ -0,0 +1,53 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+/**
+ * Bucketizers which can aggregate the datapoints of a bucket as they are read, in any order and
+ * without retaining them, so a series can be bucketized while it is being decoded.
+ */
+public interface WarpScriptStreamingBucketizerFunction {
+
+  /**
+   * State of a single bucket.
+   */
+  public static interface BucketAccumulator {
+    /**
+     * Add the datapoint at index 'i' of 'window' to the bucket, datapoints are added in no particular order.
+     */
+    public void add(GTSWindow window, int i);
+
+    /**
+     * Store the aggregate of the datapoints added so far.
+     *
+     * @param result Sink for the result, reset to a null value at the end tick of the bucket prior to the call
+     */
+    public void apply(GTSWindowResult result);
+  }
+
+  /**
+   * Create the accumulator of a bucket.
+   *
+   * @param type Type of all the values which will be added
+   * @return The accumulator or null if values of type 'type' cannot be aggregated as they are read
+   */
+  public BucketAccumulator newBucketAccumulator(TYPE type);
+}
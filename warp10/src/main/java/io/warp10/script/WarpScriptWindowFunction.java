@@ -0,0 +1,39 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
+
+/**
+ * Allocation free flavor of mappers, bucketizers and reducers.
+ *
+ * Functions implementing this interface in addition to WarpScriptMapperFunction, WarpScriptBucketizerFunction
+ * or WarpScriptReducerFunction are handed a view over the datapoints instead of copies of them, and
+ * store their result in a typed sink instead of returning a boxed array.
+ */
+public interface WarpScriptWindowFunction {
+  /**
+   * Apply the function on the datapoints of 'window'.
+   *
+   * @param window View over the datapoints, only valid for the duration of the call
+   * @param result Sink for the result, reset to a null value at the window tick prior to the call
+   * @return true if the result was computed, false if the function cannot handle this window,
+   *         in which case the Object[] flavor of the function will be called.
+   */
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException;
+}
@@ -0,0 +1,90 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+/**
+ * Running sum of doubles which supports removal of previously added values.
+ *
+ * Finite values are summed using Neumaier's compensated summation so removing a large
+ * value does not wipe out the smaller ones added after it. Non finite values are counted
+ * apart so they stop influencing the sum once removed.
+ */
+final class CompensatedSum {
+
+  private double sum = 0.0D;
+  private double compensation = 0.0D;
+
+  private int nans = 0;
+  private int positiveInfinities = 0;
+  private int negativeInfinities = 0;
+
+  void add(double value) {
+    if (Double.isNaN(value)) {
+      nans++;
+    } else if (Double.POSITIVE_INFINITY == value) {
+      positiveInfinities++;
+    } else if (Double.NEGATIVE_INFINITY == value) {
+      negativeInfinities++;
+    } else {
+      accumulate(value);
+    }
+  }
+
+  void remove(double value) {
+    if (Double.isNaN(value)) {
+      nans--;
+    } else if (Double.POSITIVE_INFINITY == value) {
+      positiveInfinities--;
+    } else if (Double.NEGATIVE_INFINITY == value) {
+      negativeInfinities--;
+    } else {
+      accumulate(-value);
+    }
+  }
+
+  void clear() {
+    sum = 0.0D;
+    compensation = 0.0D;
+    nans = 0;
+    positiveInfinities = 0;
+    negativeInfinities = 0;
+  }
+
+  double value() {
+    if (nans > 0 || (positiveInfinities > 0 && negativeInfinities > 0)) {
+      return Double.NaN;
+    } else if (positiveInfinities > 0) {
+      return Double.POSITIVE_INFINITY;
+    } else if (negativeInfinities > 0) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    return sum + compensation;
+  }
+
+  private void accumulate(double value) {
+    double t = sum + value;
+
+    if (Math.abs(sum) >= Math.abs(value)) {
+      compensation += (sum - t) + value;
+    } else {
+      compensation += (value - t) + sum;
+    }
+
+    sum = t;
+  }
+}
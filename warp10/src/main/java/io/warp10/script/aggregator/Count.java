@@ -16,19 +16,24 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Return the number of measures with elevation and location from
  * the latest measure.
  */
-public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction, WarpScriptStreamingBucketizerFunction {
   
   private final boolean omitNulls;
   
@@ -72,4 +77,56 @@ public class Count extends NamedWarpScriptFunction implements WarpScriptAggregat
     
     return new Object[] { tick, location, elevation, count };    
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    int n = window.size();
+    
+    if (0 == n) {
+      return false;
+    }
+    
+    int idx = window.latestIndex();
+    
+    if (-1 == idx) {
+      result.set(window.getTick(), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION);
+    } else {
+      result.set(window.getTick(), window.locationAt(idx), window.elevationAt(idx));
+    }
+    result.setLong(omitNulls ? n - window.nulls() : n);
+    
+    return true;
+  }
+
+  @Override
+  public BucketAccumulator newBucketAccumulator(TYPE type) {
+    return new CountBucketAccumulator();
+  }
+  
+  private static final class CountBucketAccumulator implements BucketAccumulator {
+    private long count = 0L;
+    private long timestamp;
+    private long location;
+    private long elevation;
+    
+    @Override
+    public void add(GTSWindow window, int i) {
+      long tick = window.tickAt(i);
+      
+      if (0 == count || tick > timestamp) {
+        timestamp = tick;
+        location = window.locationAt(i);
+        elevation = window.elevationAt(i);
+      }
+      
+      count++;
+    }
+    
+    @Override
+    public void apply(GTSWindowResult result) {
+      result.setLocation(location);
+      result.setElevation(elevation);
+      result.setLong(count);
+    }
+  }
 }
@@ -16,18 +16,23 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the last measurement of the interval
  */
-public class Last extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Last extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction, WarpScriptStreamingBucketizerFunction {
   
   public Last(String name) {
     super(name);
@@ -54,4 +59,52 @@ public class Last extends NamedWarpScriptFunction implements WarpScriptAggregato
     }
     return new Object[] { ticks[idx], locations[idx], elevations[idx], values[idx] };
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    int n = window.size();
+    
+    if (0 == n) {
+      return false;
+    }
+    
+    long tick = Long.MIN_VALUE;
+    int idx = 0;
+    for (int i = 0; i < n; i++) {
+      if (window.tickAt(i) > tick) {
+        tick = window.tickAt(i);
+        idx = i;
+      }
+    }
+    
+    result.copy(window, idx);
+    
+    return true;
+  }
+
+  @Override
+  public BucketAccumulator newBucketAccumulator(TYPE type) {
+    return new LastBucketAccumulator();
+  }
+  
+  /**
+   * Keep the latest datapoint, the first one added in case of ties
+   */
+  private static final class LastBucketAccumulator implements BucketAccumulator {
+    private final GTSWindowResult last = new GTSWindowResult();
+    private boolean empty = true;
+    
+    @Override
+    public void add(GTSWindow window, int i) {
+      if (empty || window.tickAt(i) > last.getTick()) {
+        empty = false;
+        last.copy(window, i);
+      }
+    }
+    
+    @Override
+    public void apply(GTSWindowResult result) {
+      result.copy(last);
+    }
+  }
 }
@@ -16,18 +16,24 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the measurement with the highest value and timestamp
  */
-public class Max extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Max extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction, WarpScriptSlidingWindowFunction, WarpScriptStreamingBucketizerFunction {
   
   private final boolean ignoreNulls;
   
@@ -138,4 +144,200 @@ public class Max extends NamedWarpScriptFunction implements WarpScriptAggregator
     
     return new Object[] { ticks[idx], locations[idx], elevations[idx], value };
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    //
+    // Only handle numeric values, let the generic flavor deal with the others
+    //
+    
+    if (!window.isNumeric()) {
+      return false;
+    }
+
+    long tick = Long.MAX_VALUE;
+    int idx = -1;
+    TYPE maxType = TYPE.UNDEFINED;
+    long maxl = 0L;
+    double maxd = 0.0D;
+    
+    int n = window.size();
+    
+    for (int i = 0; i < n; i++) {
+      if (window.isNull(i)) {
+        continue;
+      }
+      
+      if (TYPE.LONG == maxType) {
+        long value = window.longAt(i);
+        if (value > maxl || (value == maxl && window.tickAt(i) < tick)) {
+          tick = window.tickAt(i);
+          maxl = value;
+          idx = i;
+        }
+      } else if (TYPE.DOUBLE == maxType) {
+        double value = window.doubleAt(i);
+        int cmp = Double.compare(value, maxd);
+        if (cmp > 0 || (0 == cmp && window.tickAt(i) < tick)) {
+          tick = window.tickAt(i);
+          maxd = value;
+          idx = i;
+        }
+      } else {
+        // No type detected yet
+        maxType = window.typeAt(i);
+        tick = window.tickAt(i);
+        idx = i;
+        if (TYPE.LONG == maxType) {
+          maxl = window.longAt(i);
+        } else {
+          maxd = window.doubleAt(i);
+        }
+      }
+    }
+    
+    result.set(window.tickAt(idx), window.locationAt(idx), window.elevationAt(idx));
+    
+    if (window.nulls() > 0 && !this.ignoreNulls) {
+      result.setNull();
+    } else if (TYPE.LONG == maxType) {
+      result.setLong(maxl);
+    } else {
+      result.setDouble(maxd);
+    }
+    
+    return true;
+  }
+
+  @Override
+  public Accumulator newAccumulator(GTSWindow source) {
+    if (!source.isNumeric()) {
+      return null;
+    }
+    return new MaxAccumulator(source);
+  }
+  
+  /**
+   * Monotonic deque of candidate indices, the one at the head is the maximum of the window.
+   * Indices of equal values are kept so the earliest one wins, as in the generic flavor.
+   */
+  private static final class MaxAccumulator implements Accumulator {
+    private final GTSWindow source;
+    private final boolean isLong;
+    private final int[] deque;
+    private int head = 0;
+    private int tail = 0;
+    
+    private MaxAccumulator(GTSWindow source) {
+      this.source = source;
+      this.isLong = TYPE.LONG == source.getType();
+      this.deque = new int[source.size()];
+    }
+    
+    @Override
+    public void add(int index) {
+      if (isLong) {
+        long value = source.longAt(index);
+        while (tail > head && source.longAt(deque[tail - 1]) < value) {
+          tail--;
+        }
+      } else {
+        double value = source.doubleAt(index);
+        while (tail > head && Double.compare(source.doubleAt(deque[tail - 1]), value) < 0) {
+          tail--;
+        }
+      }
+      deque[tail++] = index;
+    }
+    
+    @Override
+    public void remove(int index) {
+      if (tail > head && index == deque[head]) {
+        head++;
+      }
+    }
+    
+    @Override
+    public void clear() {
+      head = 0;
+      tail = 0;
+    }
+    
+    @Override
+    public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+      if (tail == head) {
+        return false;
+      }
+      
+      int idx = deque[head];
+      
+      result.set(source.tickAt(idx), source.locationAt(idx), source.elevationAt(idx));
+      
+      if (isLong) {
+        result.setLong(source.longAt(idx));
+      } else {
+        result.setDouble(source.doubleAt(idx));
+      }
+      
+      return true;
+    }
+  }
+  
+  @Override
+  public BucketAccumulator newBucketAccumulator(TYPE type) {
+    if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+      return null;
+    }
+    return new MaxBucketAccumulator(TYPE.LONG == type);
+  }
+  
+  /**
+   * Keep the datapoint with the greatest value, the earliest one in case of ties
+   */
+  private static final class MaxBucketAccumulator implements BucketAccumulator {
+    private final boolean isLong;
+    private boolean empty = true;
+    private long tick;
+    private long location;
+    private long elevation;
+    private long maxl;
+    private double maxd;
+    
+    private MaxBucketAccumulator(boolean isLong) {
+      this.isLong = isLong;
+    }
+    
+    @Override
+    public void add(GTSWindow window, int i) {
+      if (!empty) {
+        int cmp = isLong ? Long.compare(maxl, window.longAt(i)) : Double.compare(maxd, window.doubleAt(i));
+        
+        if (cmp > 0 || (0 == cmp && window.tickAt(i) >= tick)) {
+          return;
+        }
+      }
+      
+      empty = false;
+      tick = window.tickAt(i);
+      location = window.locationAt(i);
+      elevation = window.elevationAt(i);
+      
+      if (isLong) {
+        maxl = window.longAt(i);
+      } else {
+        maxd = window.doubleAt(i);
+      }
+    }
+    
+    @Override
+    public void apply(GTSWindowResult result) {
+      result.set(tick, location, elevation);
+      
+      if (isLong) {
+        result.setLong(maxl);
+      } else {
+        result.setDouble(maxd);
+      }
+    }
+  }
 }
@@ -16,6 +16,8 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
@@ -23,6 +25,9 @@ import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 import com.geoxp.GeoXPLib;
@@ -32,7 +37,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the centroid of all locations.
  * The returned elevation will be the average of all elevations.
  */
-public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction, WarpScriptSlidingWindowFunction, WarpScriptStreamingBucketizerFunction {
   
   private final boolean ignoreNulls;
   
@@ -142,4 +147,285 @@ public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregato
     
     return new Object[] { ticks[0] + (ticksum / ticks.length), meanlocation, meanelevation, meanvalue };
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    //
+    // Mean of String or Boolean has no meaning, let the generic flavor handle those
+    //
+    
+    if (!window.isNumeric()) {
+      return false;
+    }
+    
+    //
+    // If we should not ignore nulls and there were some nulls, return null
+    //
+    
+    if (!ignoreNulls && window.nulls() > 0) {
+      result.set(Long.MAX_VALUE, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION);
+      result.setNull();
+      return true;
+    }
+    
+    TYPE sumType = TYPE.UNDEFINED;
+    long suml = 0L;
+    double sumd = 0.0D;
+    long ticksum = 0L;
+    long latitudes = 0L;
+    long longitudes = 0L;
+    int locationcount = 0;
+    long elev = 0L;
+    int elevationcount = 0;
+    
+    int n = window.size();
+    long firsttick = window.tickAt(0);
+    
+    for (int i = 0; i < n; i++) {
+      if (window.isNull(i)) {
+        continue;
+      }
+      
+      ticksum += window.tickAt(i) - firsttick;
+      
+      long location = window.locationAt(i);
+      
+      if (GeoTimeSerie.NO_LOCATION != location) {
+        long[] xy = GeoXPLib.xyFromGeoXPPoint(location);
+        latitudes += xy[0];
+        longitudes += xy[1];
+        locationcount++;
+      }
+      
+      long elevation = window.elevationAt(i);
+      
+      if (GeoTimeSerie.NO_ELEVATION != elevation) {
+        elev += elevation;
+        elevationcount++;
+      }
+      
+      if (TYPE.LONG == sumType) {
+        suml = suml + window.longAt(i);
+      } else if (TYPE.DOUBLE == sumType) {
+        sumd = sumd + window.doubleAt(i);
+      } else if (TYPE.LONG == window.typeAt(i)) {
+        sumType = TYPE.LONG;
+        suml = window.longAt(i);
+      } else {
+        sumType = TYPE.DOUBLE;
+        sumd = window.doubleAt(i);
+      }
+    }
+    
+    long meanlocation = GeoTimeSerie.NO_LOCATION;
+    long meanelevation = GeoTimeSerie.NO_ELEVATION;
+    
+    if (locationcount > 0) {
+      latitudes = latitudes / locationcount;
+      longitudes = longitudes / locationcount;
+      meanlocation = GeoXPLib.toGeoXPPoint(latitudes, longitudes);
+    }
+    
+    if (elevationcount > 0) {
+      meanelevation = elev / elevationcount;
+    }
+    
+    result.set(firsttick + (ticksum / n), meanlocation, meanelevation);
+    
+    if (TYPE.LONG == sumType) {
+      result.setDouble(suml / (double) (n - window.nulls()));
+    } else {
+      result.setDouble(sumd / (n - window.nulls()));
+    }
+    
+    return true;
+  }
+
+  @Override
+  public Accumulator newAccumulator(GTSWindow source) {
+    if (!source.isNumeric()) {
+      return null;
+    }
+    return new MeanAccumulator(source);
+  }
+  
+  private static final class MeanAccumulator implements Accumulator {
+    private final GTSWindow source;
+    private final boolean isLong;
+    private long suml = 0L;
+    private final CompensatedSum sumd = new CompensatedSum();
+    
+    //
+    // Sums of ticks, coordinates and elevations may wrap around, this is harmless
+    // as only differences which fit in a long are used in the end
+    //
+    
+    private long ticksum = 0L;
+    private long latitudes = 0L;
+    private long longitudes = 0L;
+    private int locationcount = 0;
+    private long elev = 0L;
+    private int elevationcount = 0;
+    
+    private MeanAccumulator(GTSWindow source) {
+      this.source = source;
+      this.isLong = TYPE.LONG == source.getType();
+    }
+    
+    @Override
+    public void add(int index) {
+      update(index, 1);
+      if (isLong) {
+        suml += source.longAt(index);
+      } else {
+        sumd.add(source.doubleAt(index));
+      }
+    }
+    
+    @Override
+    public void remove(int index) {
+      update(index, -1);
+      if (isLong) {
+        suml -= source.longAt(index);
+      } else {
+        sumd.remove(source.doubleAt(index));
+      }
+    }
+    
+    private void update(int index, int sign) {
+      ticksum += sign * source.tickAt(index);
+      
+      long location = source.locationAt(index);
+      
+      if (GeoTimeSerie.NO_LOCATION != location) {
+        long[] xy = GeoXPLib.xyFromGeoXPPoint(location);
+        latitudes += sign * xy[0];
+        longitudes += sign * xy[1];
+        locationcount += sign;
+      }
+      
+      long elevation = source.elevationAt(index);
+      
+      if (GeoTimeSerie.NO_ELEVATION != elevation) {
+        elev += sign * elevation;
+        elevationcount += sign;
+      }
+    }
+    
+    @Override
+    public void clear() {
+      suml = 0L;
+      sumd.clear();
+      ticksum = 0L;
+      latitudes = 0L;
+      longitudes = 0L;
+      locationcount = 0;
+      elev = 0L;
+      elevationcount = 0;
+    }
+    
+    @Override
+    public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+      int n = window.size();
+      
+      if (0 == n) {
+        return false;
+      }
+      
+      long firsttick = window.tickAt(0);
+      
+      long meanlocation = GeoTimeSerie.NO_LOCATION;
+      long meanelevation = GeoTimeSerie.NO_ELEVATION;
+      
+      if (locationcount > 0) {
+        meanlocation = GeoXPLib.toGeoXPPoint(latitudes / locationcount, longitudes / locationcount);
+      }
+      
+      if (elevationcount > 0) {
+        meanelevation = elev / elevationcount;
+      }
+      
+      result.set(firsttick + ((ticksum - n * firsttick) / n), meanlocation, meanelevation);
+      
+      if (isLong) {
+        result.setDouble(suml / (double) n);
+      } else {
+        result.setDouble(sumd.value() / n);
+      }
+      
+      return true;
+    }
+  }
+  
+  @Override
+  public BucketAccumulator newBucketAccumulator(TYPE type) {
+    if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+      return null;
+    }
+    return new MeanBucketAccumulator(TYPE.LONG == type);
+  }
+  
+  /**
+   * Bucketizer flavor, the result is left at the end tick of the bucket
+   */
+  private static final class MeanBucketAccumulator implements BucketAccumulator {
+    private final boolean isLong;
+    private long suml = 0L;
+    private final CompensatedSum sumd = new CompensatedSum();
+    
+    private long count = 0L;
+    private long latitudes = 0L;
+    private long longitudes = 0L;
+    private int locationcount = 0;
+    private long elev = 0L;
+    private int elevationcount = 0;
+    
+    private MeanBucketAccumulator(boolean isLong) {
+      this.isLong = isLong;
+    }
+    
+    @Override
+    public void add(GTSWindow window, int i) {
+      count++;
+      
+      long location = window.locationAt(i);
+      
+      if (GeoTimeSerie.NO_LOCATION != location) {
+        long[] xy = GeoXPLib.xyFromGeoXPPoint(location);
+        latitudes += xy[0];
+        longitudes += xy[1];
+        locationcount++;
+      }
+      
+      long elevation = window.elevationAt(i);
+      
+      if (GeoTimeSerie.NO_ELEVATION != elevation) {
+        elev += elevation;
+        elevationcount++;
+      }
+      
+      if (isLong) {
+        suml += window.longAt(i);
+      } else {
+        sumd.add(window.doubleAt(i));
+      }
+    }
+    
+    @Override
+    public void apply(GTSWindowResult result) {
+      if (locationcount > 0) {
+        result.setLocation(GeoXPLib.toGeoXPPoint(latitudes / locationcount, longitudes / locationcount));
+      }
+      
+      if (elevationcount > 0) {
+        result.setElevation(elev / elevationcount);
+      }
+      
+      if (isLong) {
+        result.setDouble(suml / (double) count);
+      } else {
+        result.setDouble(sumd.value() / count);
+      }
+    }
+  }
 }
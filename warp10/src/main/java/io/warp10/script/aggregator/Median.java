@@ -16,12 +16,16 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 import java.util.Arrays;
@@ -33,7 +37,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the median of all locations.
  * The returned elevation will be the median of all elevations.
  */
-public class Median extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Median extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction {
   
   public Median(String name) {
     super(name);
@@ -48,15 +52,144 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptAggrega
     Object[] values = (Object[]) args[6];
 
     //
-    // Sort locations, elevations
+    // Compute median location and elevation
+    //
+
+    long location = medianLocation(locations);
+    long elevation = medianElevation(elevations);
+
+    //
+    // Remove nulls
     //
     
-    Arrays.sort(locations);
-    Arrays.sort(elevations);
+    int nonnulls = 0;
     
-    long location = GeoTimeSerie.NO_LOCATION;
-    long elevation = GeoTimeSerie.NO_ELEVATION;
+    for (int i = 0; i < values.length; i++) {
+      if (null != values[i]) {
+        values[nonnulls++] = values[i];
+      }
+    }
+
+    //
+    // Remove nulls
+    //
+    
+    if (nonnulls != values.length) {
+      values = Arrays.copyOf(values, nonnulls);
+    }
+    
+    //
+    // Sort values
+    //
+        
+    Arrays.sort(values);
+
+    //
+    // If extrema are identical, use this as the median, otherwise remove nulls
+    //
+    
+    Object median = null;
+    
+    if (0 != values.length) {
+      if (values[0].equals(values[values.length - 1])) {
+        median = values[0];
+      } else {      
+        int len = values.length;
+        
+        // Compute median
+        if (0 == len % 2) {
+          Object low = values[(len / 2) - 1];
+          Object high = values[len / 2];
+          
+          if (low instanceof Long && high instanceof Long) {
+            median = ((long) low + (long) high) / 2L;
+          } else if (low instanceof Double && high instanceof Double) {
+            median = ((double) low + (double) high) / 2.0D;
+          } else {
+            throw new WarpScriptException("Unable to compute median on an even number of non numeric values.");
+          }
+        } else {
+          median = values[len / 2];
+        }
+      }      
+    }
+    
+    return new Object[] { tick, location, elevation, median };
+  }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    //
+    // Only handle windows of homogeneous numeric values, mixing LONG and DOUBLE values
+    // or non numeric ones is left to the generic flavor
+    //
+    
+    TYPE type = window.getType();
+    
+    if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+      return false;
+    }
+    
+    int n = window.size();
+    
+    long[] locations = new long[n];
+    long[] elevations = new long[n];
+    
+    for (int i = 0; i < n; i++) {
+      locations[i] = window.locationAt(i);
+      elevations[i] = window.elevationAt(i);
+    }
+    
+    result.set(window.getTick(), medianLocation(locations), medianElevation(elevations));
+    
+    int len = n - window.nulls();
+    
+    if (TYPE.LONG == type) {
+      long[] values = new long[len];
+      int k = 0;
+      for (int i = 0; i < n; i++) {
+        if (!window.isNull(i)) {
+          values[k++] = window.longAt(i);
+        }
+      }
+      
+      Arrays.sort(values);
+      
+      if (values[0] == values[len - 1]) {
+        result.setLong(values[0]);
+      } else if (0 == len % 2) {
+        result.setLong((values[(len / 2) - 1] + values[len / 2]) / 2L);
+      } else {
+        result.setLong(values[len / 2]);
+      }
+    } else {
+      double[] values = new double[len];
+      int k = 0;
+      for (int i = 0; i < n; i++) {
+        if (!window.isNull(i)) {
+          values[k++] = window.doubleAt(i);
+        }
+      }
+      
+      Arrays.sort(values);
+      
+      if (0 == Double.compare(values[0], values[len - 1])) {
+        result.setDouble(values[0]);
+      } else if (0 == len % 2) {
+        result.setDouble((values[(len / 2) - 1] + values[len / 2]) / 2.0D);
+      } else {
+        result.setDouble(values[len / 2]);
+      }
+    }
     
+    return true;
+  }
+
+  private static long medianLocation(long[] locations) {
+    Arrays.sort(locations);
+
+    long location = GeoTimeSerie.NO_LOCATION;
+
     //
     // If start and end locations are identical, set median to that value
     //
@@ -91,6 +224,14 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptAggrega
       }      
     }
 
+    return location;
+  }
+
+  private static long medianElevation(long[] elevations) {
+    Arrays.sort(elevations);
+
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+
     //
     // If start and end elevations are identical, set median to that value
     //
@@ -123,73 +264,6 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptAggrega
       }      
     }
 
-    
-    //
-    // Remove nulls
-    //
-    
-    int nonnulls = values.length;
-    
-    for (int i = 0; i < values.length; i++) {
-      if (null == values[i]) {
-        // Find the first non null starting from the end of the array
-        while(nonnulls > i + 1 && null == values[nonnulls - 1]) {
-          nonnulls--;          
-        }
-        
-        // Bail out if no non null value was found
-        if (i == nonnulls) {
-          break;
-        }
-        
-        values[i] = values[nonnulls - 1];
-      }
-    }
-
-    //
-    // Remove nulls
-    //
-    
-    if (nonnulls != values.length) {
-      values = Arrays.copyOf(values, nonnulls);
-    }
-    
-    //
-    // Sort values
-    //
-        
-    Arrays.sort(values);
-
-    //
-    // If extrema are identical, use this as the median, otherwise remove nulls
-    //
-    
-    Object median = null;
-    
-    if (0 != values.length) {
-      if (values[0].equals(values[values.length - 1])) {
-        median = values[0];
-      } else {      
-        int len = values.length;
-        
-        // Compute median
-        if (0 == len % 2) {
-          Object low = values[(len / 2) - 1];
-          Object high = values[len / 2];
-          
-          if (low instanceof Long && high instanceof Long) {
-            median = ((long) low + (long) high) / 2L;
-          } else if (low instanceof Double && high instanceof Double) {
-            median = ((double) low + (double) high) / 2.0D;
-          } else {
-            throw new WarpScriptException("Unable to compute median on an even number of non numeric values.");
-          }
-        } else {
-          median = values[len / 2];
-        }
-      }      
-    }
-    
-    return new Object[] { tick, location, elevation, median };
+    return elevation;
   }
 }
@@ -17,13 +17,17 @@
 package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.store.Constants;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
@@ -31,7 +35,7 @@ import io.warp10.script.WarpScriptException;
  * interval.
  * Location and elevation returned are those of the latest measure.
  */
-public class Rate extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Rate extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction {
   
   public Rate(String name) {
     super(name);
@@ -76,4 +80,51 @@ public class Rate extends NamedWarpScriptFunction implements WarpScriptAggregato
       return new Object[] { Long.MAX_VALUE, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
     }
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    //
+    // Only the first and last datapoints matter, on a MAP or BUCKETIZE window
+    // they are located without scanning the window.
+    //
+    
+    int firstidx = window.earliestIndex();
+    int lastidx = window.latestIndex();
+    
+    if (-1 == firstidx || window.nulls() > 0) {
+      return false;
+    }
+    
+    TYPE lasttype = window.typeAt(lastidx);
+    TYPE firsttype = window.typeAt(firstidx);
+    
+    if ((TYPE.LONG != lasttype && TYPE.DOUBLE != lasttype) || (TYPE.LONG != firsttype && TYPE.DOUBLE != firsttype)) {
+      return false;
+    }
+    
+    long firsttick = window.tickAt(firstidx);
+    long lasttick = window.tickAt(lastidx);
+    
+    result.set(lasttick - firsttick, window.locationAt(lastidx), window.elevationAt(lastidx));
+    
+    if (TYPE.LONG == lasttype) {
+      long value = window.longAt(lastidx) - window.longAt(firstidx);
+      
+      if (0L == value || firsttick == lasttick) {
+        result.setDouble((double) value);
+      } else {
+        result.setDouble(((double) value) / ((lasttick - firsttick) / ((double) Constants.TIME_UNITS_PER_S)));
+      }
+    } else {
+      double value = window.doubleAt(lastidx) - window.doubleAt(firstidx);
+      
+      if (0.0D == value || firsttick == lasttick) {
+        result.setDouble(value);
+      } else {
+        result.setDouble(value / ((lasttick - firsttick) / ((double) Constants.TIME_UNITS_PER_S)));
+      }
+    }
+    
+    return true;
+  }
 }
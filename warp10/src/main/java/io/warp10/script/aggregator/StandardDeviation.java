@@ -16,17 +16,20 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean forbidNulls;
   private final Variance variance;
@@ -73,6 +76,41 @@ public class StandardDeviation extends NamedWarpScriptFunction implements WarpSc
     return var;
   }
   
+  @Override
+  public Accumulator newAccumulator(GTSWindow source) {
+    final Accumulator accumulator = this.variance.newAccumulator(source);
+    
+    if (null == accumulator) {
+      return null;
+    }
+    
+    return new Accumulator() {
+      @Override
+      public void add(int index) {
+        accumulator.add(index);
+      }
+      
+      @Override
+      public void remove(int index) {
+        accumulator.remove(index);
+      }
+      
+      @Override
+      public void clear() {
+        accumulator.clear();
+      }
+      
+      @Override
+      public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+        if (!accumulator.apply(window, result)) {
+          return false;
+        }
+        result.setDouble(Math.sqrt(result.getDouble()));
+        return true;
+      }
+    };
+  }
+  
   @Override
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
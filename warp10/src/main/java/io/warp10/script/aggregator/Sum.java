@@ -16,6 +16,8 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
@@ -23,13 +25,16 @@ import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
+import io.warp10.script.WarpScriptStreamingBucketizerFunction;
+import io.warp10.script.WarpScriptWindowFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Return the sum of measures with elevation and location from
  * the latest measure.
  */
-public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowFunction, WarpScriptSlidingWindowFunction, WarpScriptStreamingBucketizerFunction {
   
   private final boolean ignoreNulls;
   
@@ -111,4 +116,179 @@ public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregator
     
     return new Object[] { 0L, location, elevation, sum };    
   }
+
+  @Override
+  public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+    //
+    // Sum of String or Boolean has no meaning, let the generic flavor handle those
+    //
+    
+    if (!window.isNumeric()) {
+      return false;
+    }
+    
+    long suml = 0L;
+    double sumd = 0.0D;
+    
+    TYPE sumType = TYPE.UNDEFINED;
+    
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+    
+    int n = window.size();
+    
+    for (int i = 0; i < n; i++) {
+      long tick = window.tickAt(i);
+      
+      if (tick > timestamp) {
+        location = window.locationAt(i);
+        elevation = window.elevationAt(i);
+        timestamp = tick;
+      }
+      
+      if (window.isNull(i)) {
+        continue;
+      }
+      
+      if (TYPE.LONG == sumType) {
+        suml = suml + window.longAt(i);
+      } else if (TYPE.DOUBLE == sumType) {
+        sumd = sumd + window.doubleAt(i);
+      } else if (TYPE.LONG == window.typeAt(i)) {
+        suml = window.longAt(i);
+        sumType = TYPE.LONG;
+      } else {
+        sumd = window.doubleAt(i);
+        sumType = TYPE.DOUBLE;
+      }
+    }
+    
+    result.set(0L, location, elevation);
+    
+    if (window.nulls() > 0 && !this.ignoreNulls) {
+      result.setNull();
+    } else if (TYPE.LONG == sumType) {
+      result.setLong(suml);
+    } else {
+      result.setDouble(sumd);
+    }
+    
+    return true;
+  }
+
+  @Override
+  public Accumulator newAccumulator(GTSWindow source) {
+    if (!source.isNumeric()) {
+      return null;
+    }
+    return new SumAccumulator(source);
+  }
+  
+  private static final class SumAccumulator implements Accumulator {
+    private final GTSWindow source;
+    private final boolean isLong;
+    private long suml = 0L;
+    private final CompensatedSum sumd = new CompensatedSum();
+    
+    private SumAccumulator(GTSWindow source) {
+      this.source = source;
+      this.isLong = TYPE.LONG == source.getType();
+    }
+    
+    @Override
+    public void add(int index) {
+      if (isLong) {
+        suml += source.longAt(index);
+      } else {
+        sumd.add(source.doubleAt(index));
+      }
+    }
+    
+    @Override
+    public void remove(int index) {
+      if (isLong) {
+        suml -= source.longAt(index);
+      } else {
+        sumd.remove(source.doubleAt(index));
+      }
+    }
+    
+    @Override
+    public void clear() {
+      suml = 0L;
+      sumd.clear();
+    }
+    
+    @Override
+    public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+      if (0 == window.size()) {
+        return false;
+      }
+      
+      int idx = window.latestIndex();
+      
+      result.set(0L, window.locationAt(idx), window.elevationAt(idx));
+      
+      if (isLong) {
+        result.setLong(suml);
+      } else {
+        result.setDouble(sumd.value());
+      }
+      
+      return true;
+    }
+  }
+  
+  @Override
+  public BucketAccumulator newBucketAccumulator(TYPE type) {
+    if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+      return null;
+    }
+    return new SumBucketAccumulator(TYPE.LONG == type);
+  }
+  
+  private static final class SumBucketAccumulator implements BucketAccumulator {
+    private final boolean isLong;
+    private long suml = 0L;
+    private final CompensatedSum sumd = new CompensatedSum();
+    
+    private boolean empty = true;
+    private long timestamp;
+    private long location;
+    private long elevation;
+    
+    private SumBucketAccumulator(boolean isLong) {
+      this.isLong = isLong;
+    }
+    
+    @Override
+    public void add(GTSWindow window, int i) {
+      long tick = window.tickAt(i);
+      
+      if (empty || tick > timestamp) {
+        empty = false;
+        timestamp = tick;
+        location = window.locationAt(i);
+        elevation = window.elevationAt(i);
+      }
+      
+      if (isLong) {
+        suml += window.longAt(i);
+      } else {
+        sumd.add(window.doubleAt(i));
+      }
+    }
+    
+    @Override
+    public void apply(GTSWindowResult result) {
+      result.set(0L, location, elevation);
+      
+      if (isLong) {
+        result.setLong(suml);
+      } else {
+        result.setDouble(sumd.value());
+      }
+    }
+  }
 }
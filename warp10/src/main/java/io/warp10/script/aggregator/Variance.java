@@ -16,6 +16,8 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindow;
+import io.warp10.continuum.gts.GTSWindowResult;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
@@ -23,11 +25,12 @@ import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean useBessel;
   private final boolean forbidNulls;
@@ -147,6 +150,67 @@ public class Variance extends NamedWarpScriptFunction implements WarpScriptAggre
     return new Object[] { 0L, location, elevation, variance };
   }
   
+  @Override
+  public Accumulator newAccumulator(GTSWindow source) {
+    if (!source.isNumeric()) {
+      return null;
+    }
+    return new VarianceAccumulator(source);
+  }
+  
+  private final class VarianceAccumulator implements Accumulator {
+    private final GTSWindow source;
+    private final CompensatedSum sum = new CompensatedSum();
+    private final CompensatedSum sumsq = new CompensatedSum();
+    
+    private VarianceAccumulator(GTSWindow source) {
+      this.source = source;
+    }
+    
+    @Override
+    public void add(int index) {
+      double v = source.doubleAt(index);
+      sum.add(v);
+      sumsq.add(v * v);
+    }
+    
+    @Override
+    public void remove(int index) {
+      double v = source.doubleAt(index);
+      sum.remove(v);
+      sumsq.remove(v * v);
+    }
+    
+    @Override
+    public void clear() {
+      sum.clear();
+      sumsq.clear();
+    }
+    
+    @Override
+    public boolean apply(GTSWindow window, GTSWindowResult result) throws WarpScriptException {
+      int n = window.size();
+      
+      if (0 == n) {
+        return false;
+      }
+      
+      int idx = window.latestIndex();
+      
+      double s = sum.value();
+      double variance = (sumsq.value() / (double) n) - (s * s) / (((double) n) * ((double) n));
+      
+      if (n > 1 && useBessel) {
+        variance = variance * ((double) n) / (((double) n) - 1.0D);
+      }
+      
+      result.set(0L, window.locationAt(idx), window.elevationAt(idx));
+      result.setDouble(variance);
+      
+      return true;
+    }
+  }
+  
   @Override
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
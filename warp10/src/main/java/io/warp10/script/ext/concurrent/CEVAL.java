@@ -16,37 +16,50 @@
 
 package io.warp10.script.ext.concurrent;
 
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
 import io.warp10.script.MemoryWarpScriptStack;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStack.StackContext;
 import io.warp10.script.WarpScriptStackFunction;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.LockSupport;
+import java.util.Properties;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Execute a list of macros in a concurrent manner
+ *
+ * The macros are run by the pool shared by all scripts (@see WarpScriptParallel), so the calls to CEVAL
+ * of a token are limited to the share of the pool of that token. A call uses at most
+ * 'warpscript.ceval.maxthreads' threads, whatever its parallelism level.
  */
 public class CEVAL extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
   private static final String CONCURRENT_EXECUTION_ATTRIBUTE = "concurrent.execution";
   public static final String CONCURRENT_LOCK_ATTRIBUTE = "concurrent.lock";
+
+  /**
+   * Maximum number of threads used by a call
+   */
+  private static final int maxThreads;
+  
+  static {
+    Properties props = WarpConfig.getProperties();
+    
+    int threads = WarpScriptParallel.getPoolThreads();
+    
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_CEVAL_MAX_THREADS)) {
+      threads = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_CEVAL_MAX_THREADS));
+    }
+    
+    maxThreads = Math.max(1, threads);
+  }
   
   public CEVAL(String name) {
     super(name);    
@@ -92,7 +105,7 @@ public class CEVAL extends NamedWarpScriptFunction implements WarpScriptStackFun
     }
 
     //
-    // Limit parallelism to number of macros to run
+    // Limit parallelism to number of macros to run and to the cap of a call
     //
     
     int nmacros = ((List) top).size();
@@ -100,7 +113,9 @@ public class CEVAL extends NamedWarpScriptFunction implements WarpScriptStackFun
       parallelism = nmacros;
     }
     
-    ExecutorService executor = null;
+    if (parallelism > maxThreads) {
+      parallelism = maxThreads;
+    }
     
     try {
       //
@@ -112,9 +127,6 @@ public class CEVAL extends NamedWarpScriptFunction implements WarpScriptStackFun
       stack.setAttribute(CONCURRENT_EXECUTION_ATTRIBUTE, true);
       stack.setAttribute(CONCURRENT_LOCK_ATTRIBUTE, lock);
       
-      BlockingQueue<Runnable> queue = new LinkedBlockingDeque<Runnable>(nmacros);    
-      executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS, queue);
-
       //
       // Copy the current stack context
       //
@@ -123,114 +135,48 @@ public class CEVAL extends NamedWarpScriptFunction implements WarpScriptStackFun
       StackContext context = (StackContext) stack.pop();
       
       //
-      // Submit each macro
+      // Create a brand new stack per macro and copy the context
+      // We must also make sure that we call the parent's getAttribute and incOps so
+      // various counters are common to all the executables 
       //
       
-      final MemoryWarpScriptStack parentStack = (MemoryWarpScriptStack) stack;
-      
-      List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
-      
-      final AtomicBoolean aborted = new AtomicBoolean(false);
-      final AtomicInteger pending = new AtomicInteger(0);
-      
-      int idx = 0;
+      final List<MemoryWarpScriptStack> stacks = new ArrayList<MemoryWarpScriptStack>(nmacros);
+      final List<Macro> macros = new ArrayList<Macro>(nmacros);
       
       for (Object o: (List) top) {
-        idx++;
-        final Macro macro = (Macro) o;
-      
-        //
-        // Create a brand new stack and copy the context
-        // We must also make sure that we call the parent's getAttribute and incOps so
-        // various counters are common to all the executables 
-        //
-        
-        final MemoryWarpScriptStack newstack = ((MemoryWarpScriptStack) stack).getSubStack();
+        MemoryWarpScriptStack newstack = ((MemoryWarpScriptStack) stack).getSubStack();
         
         newstack.push(context);
         newstack.restore();
         
-        final int myidx = idx;
-        
-        Callable task = new Callable<List<Object>>() {
-          @Override
-          public List<Object> call() throws Exception {
-                        
-            try {
-              if (aborted.get()) {
-                throw new WarpScriptException("Early abort.");
-              }
-
-              newstack.push(myidx);
-              newstack.exec(macro);
-
-              List<Object> results = new ArrayList<Object>();
-              while(newstack.depth() > 0) {
-                results.add(newstack.pop());
-              }
-              
-              return results;
-            } catch (Exception e) {
-              aborted.set(true);
-              if (e instanceof WarpScriptException) {
-                throw e;
-              } else {
-                throw new WarpScriptException(e);
-              }
-            } finally {
-              pending.addAndGet(-1);
-            }            
-          }        
-        };
-        
-        pending.addAndGet(1);
-        Future<List<Object>> future = executor.submit(task);
-        futures.add(future);      
-      }
-            
-      List<Object> results = new ArrayList<Object>();
-      
-      //
-      // Wait until all tasks have completed or they were
-      // aborted
-      //
-      
-      while(!aborted.get() && pending.get() > 0) {
-        LockSupport.parkNanos(100000000L);
+        stacks.add(newstack);
+        macros.add((Macro) o);
       }
       
       //
-      // Abort the executor abruptly if one of the jobs has failed
+      // Run the macros on the pool shared by all scripts, under the tenant of the script
+      // so a CEVAL does not use more than its share of the pool
       //
-      if (aborted.get()) {
-        try { 
-          executor.shutdownNow();
-          executor = null;
-        } catch (Throwable t) {          
-        }
-      }
       
-      for (Future<List<Object>> future: futures) {
-        try {
-          if (future.isDone()) {
-            results.add(future.get());            
-          } else {
-            results.add(null);
-          }
-        } catch (Exception e) {
-          if (e.getCause() instanceof WarpScriptException) {
-            throw (WarpScriptException) e.getCause();
-          } else {
-            throw new WarpScriptException(e.getCause());
+      List<List<Object>> results = WarpScriptParallel.run(WarpScriptParallel.getTenant(stack), parallelism, nmacros, new WarpScriptParallel.Task<List<Object>>() {
+        @Override
+        public List<Object> call(int index) throws WarpScriptException {
+          MemoryWarpScriptStack newstack = stacks.get(index);
+          
+          newstack.push(index + 1);
+          newstack.exec(macros.get(index));
+
+          List<Object> results = new ArrayList<Object>();
+          while(newstack.depth() > 0) {
+            results.add(newstack.pop());
           }
+          
+          return results;
         }
-      }
+      });
       
       stack.push(results);
     } finally {      
-      if (null != executor) {
-        executor.shutdownNow();
-      }
       stack.setAttribute(CONCURRENT_EXECUTION_ATTRIBUTE, false);
       stack.setAttribute(CONCURRENT_LOCK_ATTRIBUTE, null);
     }
@@ -20,6 +20,7 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
@@ -114,10 +115,12 @@ public class APPLY extends NamedWarpScriptFunction implements WarpScriptStackFun
       }
     }
     
+    int parallelism = WarpScriptParallel.getParallelism(stack, params.get(opidx));
+    
     if (this.flatten) {
-      stack.push(GTSHelper.partitionAndApply(params.get(opidx), stack, validator, bylabels, colls));
+      stack.push(GTSHelper.partitionAndApply(params.get(opidx), stack, validator, bylabels, WarpScriptParallel.getTenant(stack), parallelism, colls));
     } else {
-      stack.push(GTSHelper.partitionAndApplyUnflattened(params.get(opidx), stack, validator, bylabels, colls));
+      stack.push(GTSHelper.partitionAndApplyUnflattened(params.get(opidx), stack, validator, bylabels, WarpScriptParallel.getTenant(stack), parallelism, colls));
     }
     return stack;
   }
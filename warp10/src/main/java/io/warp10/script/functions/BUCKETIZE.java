@@ -18,14 +18,17 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.LazyGTSList;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -65,7 +68,36 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       throw new WarpScriptException(getName() + " expects lastbucket, bucketspan and bucketcount as last 3 parameters.");
     }
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    final Object bucketizer = params.get(params.size() - 4);
+    final long lastbucket = (long) params.get(params.size() - 3);
+    final long bucketspan = (long) params.get(params.size() - 2);
+    final int bucketcount = (int) ((long) params.get(params.size() - 1));
+    
+    final long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+    
+    final WarpScriptStack macroStack = bucketizer instanceof Macro ? stack : null;
+    
+    int parallelism = WarpScriptParallel.getParallelism(stack, bucketizer);
+    
+    //
+    // Defer the bucketization if lazy evaluation is enabled
+    //
+    
+    if (!WarpScriptParallel.needsStack(bucketizer)) {
+      LazyGTSList lazy = LazyGTSList.defer(stack, params.subList(0, params.size() - 4), getName(), new LazyGTSList.Stage() {
+        @Override
+        public List<Object> apply(GeoTimeSerie gts) throws WarpScriptException {
+          return Collections.<Object>singletonList(GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, null));
+        }
+      }, false, parallelism);
+      
+      if (null != lazy) {
+        stack.push(lazy);
+        return stack;
+      }
+    }
+    
+    final List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
 
     
     for (int i = 0; i < params.size() - 4; i++) {
@@ -81,21 +113,23 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       }      
     }
     
-    Object bucketizer = params.get(params.size() - 4);
-    long lastbucket = (long) params.get(params.size() - 3);
-    long bucketspan = (long) params.get(params.size() - 2);
-    int bucketcount = (int) ((long) params.get(params.size() - 1));
-    
-    List<GeoTimeSerie> bucketized = new ArrayList<GeoTimeSerie>();
+    //
+    // Sort the GTS instances beforehand so workers only read them, even if some appear several times
+    //
     
-    long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
-    
-    for (GeoTimeSerie gts: series) {
-      GeoTimeSerie b = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null);
-      
-      bucketized.add(b);
+    if (parallelism > 1) {
+      for (GeoTimeSerie gts: series) {
+        GTSHelper.sort(gts);
+      }
     }
     
+    List<GeoTimeSerie> bucketized = WarpScriptParallel.run(WarpScriptParallel.getTenant(stack), parallelism, series.size(), new WarpScriptParallel.Task<GeoTimeSerie>() {
+      @Override
+      public GeoTimeSerie call(int index) throws WarpScriptException {
+        return GTSHelper.bucketize(series.get(index), bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, macroStack);
+      }
+    });
+    
     stack.push(bucketized);
     return stack;
   }
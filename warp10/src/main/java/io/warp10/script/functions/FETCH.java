@@ -16,13 +16,16 @@
 
 package io.warp10.script.functions;
 
+import io.warp10.WarpConfig;
 import io.warp10.WarpDist;
+import io.warp10.continuum.Configuration;
 import io.warp10.continuum.TimeSource;
 import io.warp10.continuum.Tokens;
 import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.geo.GeoDirectoryClient;
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSStreamingBucketizer;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.sensision.SensisionConstants;
@@ -39,6 +42,8 @@ import io.warp10.crypto.OrderPreservingBase64;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
@@ -53,7 +58,17 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
@@ -83,6 +98,17 @@ import com.google.common.base.Charsets;
  * @param timespan Width of time period to consider (in us). Timestamps at or before now - timespan will be ignored.
  * 
  * The last two parameters can be replaced by String parameters representing the end and start ISO8601 timestamps
+ *
+ * When created as asynchronous (FETCHASYNC), the parameters are checked immediately but the directory lookup and
+ * the store scan are performed in the background, a FetchFuture is pushed onto the stack in place of the list
+ * of GTS, FETCHJOIN then waits for the fetch to complete and pushes its result. Concurrent fetches of a script
+ * share the stack counters, so the GTS and datapoints limits apply to their combined results. A script may have
+ * at most ATTRIBUTE_FETCH_ASYNC_LIMIT fetches not yet joined, those are cancelled when the stack is reset or
+ * when the script ends (@see #cancelPending).
+ *
+ * The fetches of a tenant (@see WarpScriptParallel#getTenant) queued or running on the pool shared by all scripts are
+ * limited to 'warpscript.fetch.async.tenant', the fetches started by a tenant beyond that limit are performed on the
+ * script thread, FETCHASYNC returning once they have completed.
  */
 public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
@@ -111,9 +137,157 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   private static final String PARAM_SHOWUUID = "showuuid";
   private static final String PARAM_TYPEATTR = "typeattr";
   private static final String PARAM_METASET = "metaset";
+  private static final String PARAM_BUCKETIZER = "bucketizer";
+  private static final String PARAM_BUCKETSPAN = "bucketspan";
+  private static final String PARAM_BUCKETCOUNT = "bucketcount";
+  private static final String PARAM_LASTBUCKET = "lastbucket";
+  
+  /**
+   * Number of raw datapoints counted at once toward the raw limit when bucketizing
+   */
+  private static final long RAW_BATCHSIZE = 1024L;
   
   public static final String POSTFETCH_HOOK = "postfetch";
   
+  /**
+   * Default number of threads of the pool performing asynchronous fetches
+   */
+  public static final int DEFAULT_FETCH_ASYNC_THREADS = 16;
+  
+  /**
+   * Pool of threads performing asynchronous fetches for all scripts, fetches are mostly waiting for the
+   * directory and the store so it is distinct from the pool of WarpScriptParallel
+   */
+  private static final ExecutorService asyncPool;
+  
+  /**
+   * Maximum number of fetches of a tenant queued or running on 'asyncPool' at once
+   */
+  private static final int asyncTenantFetches;
+  
+  /**
+   * Number of fetches queued or running on 'asyncPool' per tenant (@see WarpScriptParallel#getTenant), guarded by itself
+   */
+  private static final Map<Object,Integer> asyncFetches = new HashMap<Object,Integer>();
+  
+  static {
+    Properties props = WarpConfig.getProperties();
+    
+    int threads = DEFAULT_FETCH_ASYNC_THREADS;
+    
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_FETCH_ASYNC_THREADS)) {
+      threads = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_FETCH_ASYNC_THREADS));
+    }
+    
+    threads = Math.max(1, threads);
+    
+    int perTenant = Math.max(1, threads / 4);
+    
+    if (null != props && null != props.getProperty(Configuration.WARPSCRIPT_FETCH_ASYNC_TENANT_FETCHES)) {
+      perTenant = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_FETCH_ASYNC_TENANT_FETCHES));
+    }
+    
+    asyncTenantFetches = Math.max(1, perTenant);
+    
+    asyncPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("[WarpScript Async Fetch]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+  
+  /**
+   * Result of an asynchronous fetch, to be consumed once by FETCHJOIN
+   */
+  public static final class FetchFuture {
+    private final String name;
+    private final ReadToken rtoken;
+    private final Future<List<GeoTimeSerie>> future;
+    private final AtomicBoolean joined = new AtomicBoolean(false);
+    
+    private FetchFuture(String name, ReadToken rtoken, Future<List<GeoTimeSerie>> future) {
+      this.name = name;
+      this.rtoken = rtoken;
+      this.future = future;
+    }
+    
+    /**
+     * Wait for the fetch to complete, push the fetched GTS onto the stack and apply a possible postfetch hook,
+     * exactly like a synchronous fetch would have done.
+     */
+    public void join(WarpScriptStack stack) throws WarpScriptException {
+      if (!this.joined.compareAndSet(false, true)) {
+        throw new WarpScriptException(this.name + " result was already joined.");
+      }
+      
+      List<FetchFuture> pending = pending(stack, false);
+      
+      if (null != pending) {
+        pending.remove(this);
+      }
+      
+      List<GeoTimeSerie> series;
+      
+      try {
+        series = this.future.get();
+      } catch (InterruptedException ie) {
+        this.future.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new WarpScriptException(this.name + " interrupted while waiting for the fetch to complete.");
+      } catch (CancellationException ce) {
+        throw new WarpScriptException(this.name + " was cancelled.");
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof WarpScriptException) {
+          throw (WarpScriptException) ee.getCause();
+        }
+        throw new WarpScriptException(ee.getCause());
+      }
+      
+      stack.push(series);
+      
+      postfetch(stack, this.rtoken);
+    }
+    
+    @Override
+    public String toString() {
+      return this.name + (this.future.isDone() ? " (done)" : " (pending)");
+    }
+  }
+  
+  /**
+   * Clients, counters and limits of the stack a fetch is performed for, read on the script thread so
+   * an asynchronous fetch does not access the stack
+   */
+  private static final class FetchContext {
+    private final StoreClient gtsStore;
+    private final DirectoryClient directoryClient;
+    private final GeoDirectoryClient geoDirectoryClient;
+    private final AtomicLong fetched;
+    private final long fetchLimit;
+    private final AtomicLong rawFetched;
+    private final long rawLimit;
+    private final AtomicLong gtscount;
+    private final long gtsLimit;
+    private final long maxbuckets;
+    
+    private FetchContext(WarpScriptStack stack) {
+      this.gtsStore = stack.getStoreClient();
+      this.directoryClient = stack.getDirectoryClient();
+      this.geoDirectoryClient = stack.getGeoDirectoryClient();
+      this.fetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT);
+      this.fetchLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT);
+      this.rawFetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_COUNT);
+      this.rawLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_LIMIT);
+      this.gtscount = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_COUNT);
+      this.gtsLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT);
+      this.maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+    }
+  }
+  
   private DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser();
   
   private WarpScriptStackFunction listTo = new LISTTO("");
@@ -122,15 +296,22 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   
   private final TYPE forcedType;
   
+  private final boolean async;
+  
   private final long[] SIPHASH_CLASS;
   private final long[] SIPHASH_LABELS;
 
   private final byte[] AES_METASET;
   
   public FETCH(String name, boolean fromArchive, TYPE type) {
+    this(name, fromArchive, type, false);
+  }
+  
+  public FETCH(String name, boolean fromArchive, TYPE type, boolean async) {
     super(name);
     this.fromArchive = fromArchive;
     this.forcedType = type;
+    this.async = async;
     KeyStore ks = null;
     
     try {
@@ -278,19 +459,178 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       params.put(PARAM_TOKEN, token);
     }
     
-    StoreClient gtsStore = stack.getStoreClient();
+    final ReadToken rtoken = Tokens.extractReadToken(params.get(PARAM_TOKEN).toString());
+    
+    final FetchContext context = new FetchContext(stack);
     
-    DirectoryClient directoryClient = stack.getDirectoryClient();
+    if (this.async) {
+      final Map<String,Object> fparams = params;
+      
+      List<FetchFuture> pending = pending(stack, true);
+      long limit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_LIMIT);
+      
+      if (pending.size() >= limit) {
+        throw new WarpScriptException(getName() + " exceeded limit of " + limit + " fetches not yet joined.");
+      }
+      
+      Callable<List<GeoTimeSerie>> callable = new Callable<List<GeoTimeSerie>>() {
+        @Override
+        public List<GeoTimeSerie> call() throws Exception {
+          return fetch(context, rtoken, fparams);
+        }
+      };
+      
+      //
+      // A tenant may only have a limited number of fetches queued or running on the shared pool, so it cannot
+      // delay the fetches of the other tenants, once it reached that number the fetch is performed on the
+      // script thread and the script waits for it like it would for a synchronous fetch
+      //
+      
+      final Object tenant = WarpScriptParallel.getTenant(stack);
+      
+      FutureTask<List<GeoTimeSerie>> future;
+      
+      if (acquireAsync(tenant)) {
+        future = new FutureTask<List<GeoTimeSerie>>(callable) {
+          @Override
+          protected void done() {
+            // Called once the fetch completed, failed or was cancelled, even before it started
+            releaseAsync(tenant);
+          }
+        };
+        
+        try {
+          asyncPool.execute(future);
+        } catch (RuntimeException re) {
+          releaseAsync(tenant);
+          throw re;
+        }
+      } else {
+        future = new FutureTask<List<GeoTimeSerie>>(callable);
+        future.run();
+      }
+      
+      FetchFuture ff = new FetchFuture(getName(), rtoken, future);
+      pending.add(ff);
+      stack.push(ff);
+      
+      return stack;
+    }
+    
+    stack.push(fetch(context, rtoken, params));
+    
+    postfetch(stack, rtoken);
+    
+    return stack;
+  }
+  
+  /**
+   * Reserve a slot on the asynchronous fetch pool for 'tenant'
+   *
+   * @return false if 'tenant' already has the maximum number of fetches queued or running
+   */
+  private static boolean acquireAsync(Object tenant) {
+    synchronized(asyncFetches) {
+      Integer count = asyncFetches.get(tenant);
+      
+      if (null == count) {
+        count = 0;
+      }
+      
+      if (count >= asyncTenantFetches) {
+        return false;
+      }
+      
+      asyncFetches.put(tenant, count + 1);
+      
+      return true;
+    }
+  }
+  
+  /**
+   * Release a slot reserved by 'acquireAsync'
+   */
+  private static void releaseAsync(Object tenant) {
+    synchronized(asyncFetches) {
+      Integer count = asyncFetches.get(tenant);
+      
+      if (null == count) {
+        return;
+      }
+      
+      if (count <= 1) {
+        asyncFetches.remove(tenant);
+      } else {
+        asyncFetches.put(tenant, count - 1);
+      }
+    }
+  }
+  
+  /**
+   * Cancel the fetches started by FETCHASYNC on 'stack' which were not joined yet. This MUST be called once
+   * the script has ended so its fetches do not keep using the shared pool.
+   */
+  public static void cancelPending(WarpScriptStack stack) {
+    List<FetchFuture> pending = pending(stack, false);
+    
+    if (null == pending) {
+      return;
+    }
+    
+    for (FetchFuture ff: pending) {
+      ff.future.cancel(true);
+    }
+    
+    pending.clear();
+  }
+  
+  /**
+   * Return the list of fetches of 'stack' which were not joined yet, creating it if 'create' is true
+   */
+  private static List<FetchFuture> pending(WarpScriptStack stack, boolean create) {
+    Object attr = stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_PENDING);
+    
+    if (null == attr && create) {
+      List<FetchFuture> pending = new ArrayList<FetchFuture>();
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_PENDING, pending);
+      return pending;
+    }
+    
+    // The attribute is only set above
+    @SuppressWarnings("unchecked")
+    List<FetchFuture> pending = (List<FetchFuture>) attr;
+    
+    return pending;
+  }
+  
+  /**
+   * Apply a possible postfetch hook of the token to the fetched GTS on top of the stack
+   */
+  private static void postfetch(WarpScriptStack stack, ReadToken rtoken) throws WarpScriptException {
+    if (rtoken.getHooksSize() > 0 && rtoken.getHooks().containsKey(POSTFETCH_HOOK)) {
+      stack.execMulti(rtoken.getHooks().get(POSTFETCH_HOOK));
+    }
+  }
+  
+  /**
+   * Retrieve the GTS selected by 'params', this method does not access the stack so it can be called from any thread
+   */
+  private List<GeoTimeSerie> fetch(FetchContext context, ReadToken rtoken, Map<String,Object> params) throws WarpScriptException {
+    StoreClient gtsStore = context.gtsStore;
+    
+    DirectoryClient directoryClient = context.directoryClient;
     
     GeoTimeSerie base = null;
     GeoTimeSerie[] bases = null;
+    
+    // Bucketizer of the current GTS and the Metadata of its result, when bucketizing
+    GTSStreamingBucketizer bucketizer = null;
+    Metadata bucketizedMetadata = null;
     String typelabel = (String) params.get(PARAM_TYPEATTR);
 
     if (null != typelabel) {
       bases = new GeoTimeSerie[4];
     }
-    
-    ReadToken rtoken = Tokens.extractReadToken(params.get(PARAM_TOKEN).toString());
 
     List<String> clsSels = new ArrayList<String>();
     List<Map<String,String>> lblsSels = new ArrayList<Map<String,String>>();
@@ -319,26 +659,33 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         lblsSels.add(labelSelectors);
       }      
             
+      //
+      // Consume the Metadata as a stream, they are fetched in batches of FETCH_BATCHSIZE below
+      //
+      
       try {
-        metadatas = directoryClient.find(clsSels, lblsSels);
-        iter = metadatas.iterator();
-      } catch (IOException ioe) {
-        try {
-          iter = directoryClient.iterator(clsSels, lblsSels);
-        } catch (Exception e) {
-          throw new WarpScriptException(e);
-        }
-      }      
+        iter = directoryClient.iterator(clsSels, lblsSels);
+      } catch (Exception e) {
+        throw new WarpScriptException(e);
+      }
     }
        
     metadatas = new ArrayList<Metadata>();
 
     List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();    
-    AtomicLong fetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT);    
-    long fetchLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT);
-    long gtsLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT);
+    AtomicLong fetched = context.fetched;
+    long fetchLimit = context.fetchLimit;
+    
+    //
+    // When bucketizing, the raw datapoints count toward a separate limit
+    //
+    
+    boolean bucketize = params.containsKey(PARAM_BUCKETIZER);
+    AtomicLong rawFetched = context.rawFetched;
+    long rawLimit = context.rawLimit;
+    long gtsLimit = context.gtsLimit;
 
-    AtomicLong gtscount = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_COUNT);    
+    AtomicLong gtscount = context.gtscount;
     
     // Variables to keep track of the last Metadata and fetched count
     Metadata lastMetadata = null;
@@ -362,7 +709,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         //
         
         if (params.containsKey(PARAM_GEO)) {
-          GeoDirectoryClient geoclient = stack.getGeoDirectoryClient();
+          GeoDirectoryClient geoclient = context.geoDirectoryClient;
           long end = (long) params.get(PARAM_END);
           long start = Long.MIN_VALUE;
           if (params.containsKey(PARAM_TIMESPAN)) {
@@ -431,6 +778,12 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         
         try (GTSDecoderIterator gtsiter = gtsStore.fetch(rtoken, metadatas, (long) params.get(PARAM_END), timespan, fromArchive, writeTimestamp)) {
           while(gtsiter.hasNext()) {
+            
+            // Asynchronous fetches are interrupted when cancelled
+            if (this.async && Thread.currentThread().isInterrupted()) {
+              throw new WarpScriptException(getName() + " was cancelled.");
+            }
+            
             GTSDecoder decoder = gtsiter.next();
             
             boolean identical = true;
@@ -520,6 +873,59 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
               continue;
             }
             
+            //
+            // When bucketizing, the datapoints are handed to the bucketizer of the GTS as they are decoded,
+            // the raw GTS is never built
+            //
+            
+            if (bucketize) {
+              if (!identical || null == bucketizer) {
+                if (null != bucketizer) {
+                  series.add(bucketize(context, rtoken, bucketizer, bucketizedMetadata));
+                }
+                
+                bucketizer = new GTSStreamingBucketizer((long) params.get(PARAM_BUCKETSPAN), (int) (long) params.get(PARAM_BUCKETCOUNT), (long) params.get(PARAM_LASTBUCKET), (WarpScriptBucketizerFunction) params.get(PARAM_BUCKETIZER), context.maxbuckets, type);
+                
+                bucketizedMetadata = new Metadata(decoder.getMetadata());
+                
+                Map<String,String> labels = new HashMap<String, String>(bucketizedMetadata.getLabels());
+                labels.remove(Constants.PRODUCER_LABEL);
+                labels.remove(Constants.OWNER_LABEL);
+                bucketizedMetadata.setLabels(labels);
+                
+                if (showUUID) {
+                  java.util.UUID uuid = new java.util.UUID(bucketizedMetadata.getClassId(), bucketizedMetadata.getLabelsId());
+                  bucketizedMetadata.putToAttributes(Constants.UUID_ATTRIBUTE, uuid.toString());
+                }
+              }
+              
+              long count = 0;
+              
+              while(decoder.next()) {
+                // If we've read enough data, exit
+                if (identical && timespan < 0 && lastCount + count >= -timespan) {
+                  break;
+                }
+                
+                if (!bucketizer.add(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue())) {
+                  continue;
+                }
+                
+                // Raw datapoints are counted in batches to limit the contention on the counter
+                if (0 == ++count % RAW_BATCHSIZE && rawFetched.addAndGet(RAW_BATCHSIZE) > rawLimit) {
+                  throw new WarpScriptException(getName() + " exceeded limit of " + rawLimit + " raw datapoints, current count is " + rawFetched.get());
+                }
+              }
+              
+              if (rawFetched.addAndGet(count % RAW_BATCHSIZE) > rawLimit) {
+                throw new WarpScriptException(getName() + " exceeded limit of " + rawLimit + " raw datapoints, current count is " + rawFetched.get());
+              }
+              
+              lastCount += count;
+              
+              continue;
+            }
+            
             if (null != type) {
               gts = decoder.decode(type);
             } else {
@@ -604,13 +1010,18 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         
         if (null != base && null == typelabel) {
           series.add(base);
-        }     
+        }
+        
+        if (null != bucketizer) {
+          series.add(bucketize(context, rtoken, bucketizer, bucketizedMetadata));
+        }
         
         //
         // Reset state
         //
         
         base = null;
+        bucketizer = null;
         metadatas.clear();
       }      
     } catch (Throwable t) {
@@ -623,18 +1034,28 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         }
       }
     }
-           
-    stack.push(series);
-    
-    //
-    // Apply a possible postfetch hook
-    //
+
+    return series;
+  }
+  
+  /**
+   * Compute the bucketized GTS once all its datapoints were added to 'bucketizer', the datapoints
+   * of the bucketized GTS count toward the fetch limit.
+   */
+  private GeoTimeSerie bucketize(FetchContext context, ReadToken rtoken, GTSStreamingBucketizer bucketizer, Metadata metadata) throws WarpScriptException {
+    GeoTimeSerie bucketized = bucketizer.bucketize(metadata);
     
-    if (rtoken.getHooksSize() > 0 && rtoken.getHooks().containsKey(POSTFETCH_HOOK)) {
-      stack.execMulti(rtoken.getHooks().get(POSTFETCH_HOOK));
+    AtomicLong fetched = context.fetched;
+    long fetchLimit = context.fetchLimit;
+
+    if (fetched.addAndGet(bucketized.size()) > fetchLimit) {
+      Map<String,String> sensisionLabels = new HashMap<String, String>();
+      sensisionLabels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, Tokens.getUUID(rtoken.getBilledId()));
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FETCHCOUNT_EXCEEDED, sensisionLabels, 1);
+      throw new WarpScriptException(getName() + " exceeded limit of " + fetchLimit + " datapoints, current count is " + fetched.get());
     }
     
-    return stack;
+    return bucketized;
   }
   
   private Map<String,Object> paramsFromMap(WarpScriptStack stack, Map<String,Object> map) throws WarpScriptException {
@@ -926,6 +1347,36 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       params.put(PARAM_WRITE_TIMESTAMP, Boolean.TRUE.equals(map.get(PARAM_WRITE_TIMESTAMP)));
     }
     
+    //
+    // Bucketize the GTS as they are fetched, the datapoints being aggregated as they are decoded
+    // when the bucketizer supports it (@see GTSStreamingBucketizer), only macro free bucketizers are supported
+    //
+    
+    if (map.containsKey(PARAM_BUCKETIZER)) {
+      Object bucketizer = map.get(PARAM_BUCKETIZER);
+      
+      if (!(bucketizer instanceof WarpScriptBucketizerFunction) || WarpScriptParallel.needsStack(bucketizer)) {
+        throw new WarpScriptException(getName() + " Invalid type for parameter '" + PARAM_BUCKETIZER + "', expected a bucketizer function.");
+      }
+      
+      if (params.containsKey(PARAM_TYPEATTR)) {
+        throw new WarpScriptException(getName() + " Incompatible parameters '" +  PARAM_BUCKETIZER + "' and '" + PARAM_TYPEATTR + "'.");
+      }
+      
+      for (String param: new String[] { PARAM_BUCKETSPAN, PARAM_BUCKETCOUNT, PARAM_LASTBUCKET }) {
+        if (map.containsKey(param) && !(map.get(param) instanceof Long)) {
+          throw new WarpScriptException(getName() + " Invalid type for parameter '" + param + "'.");
+        }
+        params.put(param, map.containsKey(param) ? (long) map.get(param) : 0L);
+      }
+      
+      if (0L == (long) params.get(PARAM_BUCKETSPAN) && 0L == (long) params.get(PARAM_BUCKETCOUNT)) {
+        throw new WarpScriptException(getName() + " One of '" + PARAM_BUCKETSPAN + "' or '" + PARAM_BUCKETCOUNT + "' must be different from zero.");
+      }
+      
+      params.put(PARAM_BUCKETIZER, bucketizer);
+    }
+    
     return params;
   }
 }
@@ -18,12 +18,15 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.LazyGTSList;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -45,6 +48,22 @@ public class FILLPREVIOUS extends NamedWarpScriptFunction implements WarpScriptS
     
     List<Object> params = (List<Object>) top;
     
+    //
+    // Defer the fill if lazy evaluation is enabled
+    //
+    
+    LazyGTSList lazy = LazyGTSList.defer(stack, params, getName(), new LazyGTSList.Stage() {
+      @Override
+      public List<Object> apply(GeoTimeSerie gts) throws WarpScriptException {
+        return Collections.<Object>singletonList(GTSHelper.fillprevious(gts));
+      }
+    }, false, WarpScriptParallel.getParallelism(stack, null));
+    
+    if (null != lazy) {
+      stack.push(lazy);
+      return stack;
+    }
+    
     List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
 
     for (int i = 0; i < params.size(); i++) {      
@@ -18,12 +18,15 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.LazyGTSList;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.geoxp.GeoXPLib;
@@ -66,7 +69,7 @@ public class FILLVALUE extends NamedWarpScriptFunction implements WarpScriptStac
       elevation = (long) params.get(2);
     }
 
-    Object value = params.get(3);
+    final Object value = params.get(3);
     
     top = stack.pop();
     
@@ -76,6 +79,25 @@ public class FILLVALUE extends NamedWarpScriptFunction implements WarpScriptStac
     
     params = (List<Object>) top;
     
+    //
+    // Defer the fill if lazy evaluation is enabled
+    //
+    
+    final long fillLocation = location;
+    final long fillElevation = elevation;
+    
+    LazyGTSList lazy = LazyGTSList.defer(stack, params, getName(), new LazyGTSList.Stage() {
+      @Override
+      public List<Object> apply(GeoTimeSerie gts) throws WarpScriptException {
+        return Collections.<Object>singletonList(GTSHelper.fillvalue(gts, fillLocation, fillElevation, value));
+      }
+    }, false, WarpScriptParallel.getParallelism(stack, null));
+    
+    if (null != lazy) {
+      stack.push(lazy);
+      return stack;
+    }
+    
     List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
 
     for (int i = 0; i < params.size(); i++) {      
@@ -20,6 +20,7 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptFilterFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
@@ -89,10 +90,12 @@ public class FILTER extends NamedWarpScriptFunction implements WarpScriptStackFu
       colls[i].addAll((Collection<GeoTimeSerie>) params.get(i));
     }
     
+    int parallelism = WarpScriptParallel.getParallelism(stack, params.get(params.size() - 1));
+    
     if (flatten) {
-      stack.push(GTSHelper.partitionAndApply(params.get(params.size() - 1), null, null, bylabels, colls));
+      stack.push(GTSHelper.partitionAndApply(params.get(params.size() - 1), null, null, bylabels, WarpScriptParallel.getTenant(stack), parallelism, colls));
     } else {
-      stack.push(GTSHelper.partitionAndApplyUnflattened(params.get(params.size() - 1), null, null, bylabels, colls));
+      stack.push(GTSHelper.partitionAndApplyUnflattened(params.get(params.size() - 1), null, null, bylabels, WarpScriptParallel.getTenant(stack), parallelism, colls));
     }
     return stack;
   }
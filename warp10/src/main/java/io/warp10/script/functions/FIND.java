@@ -336,6 +336,8 @@ public class FIND extends NamedWarpScriptFunction implements WarpScriptStackFunc
         
         if (hasUUIDFlag) {
           java.util.UUID uuid = new java.util.UUID(gts.getClassId(), gts.getLabelsId());
+          // The attributes returned by the directory may be read only
+          gts.getMetadata().setAttributes(new HashMap<String,String>(gts.getMetadata().getAttributes()));
           gts.getMetadata().putToAttributes(Constants.UUID_ATTRIBUTE, uuid.toString());
         }
         
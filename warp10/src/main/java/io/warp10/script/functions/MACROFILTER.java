@@ -22,6 +22,7 @@ import io.warp10.script.WarpScriptFilterFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
 
@@ -31,7 +32,7 @@ import java.util.Map;
 
 public class MACROFILTER extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
-  public static class MacroFilterWrapper extends NamedWarpScriptFunction implements WarpScriptFilterFunction {
+  public static class MacroFilterWrapper extends NamedWarpScriptFunction implements WarpScriptFilterFunction, WarpScriptParallel.StackBound {
 
     private TOLIST tolist = new TOLIST("");
     
@@ -44,6 +45,11 @@ public class MACROFILTER extends NamedWarpScriptFunction implements WarpScriptSt
       this.macro = macro;
     }
     
+    @Override
+    public boolean needsStack() {
+      return true;
+    }
+    
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
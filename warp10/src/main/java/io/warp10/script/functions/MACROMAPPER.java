@@ -23,6 +23,7 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
@@ -37,7 +38,7 @@ import com.geoxp.GeoXPLib;
 
 public class MACROMAPPER extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
-  public static class MacroMapperWrapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptAggregatorFunction {
+  public static class MacroMapperWrapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptAggregatorFunction, WarpScriptParallel.StackBound {
 
     private final WarpScriptStack stack;
     private final Macro macro;
@@ -48,6 +49,11 @@ public class MACROMAPPER extends NamedWarpScriptFunction implements WarpScriptSt
       this.macro = macro;
     }
     
+    @Override
+    public boolean needsStack() {
+      return true;
+    }
+    
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
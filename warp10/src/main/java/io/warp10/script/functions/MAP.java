@@ -18,14 +18,17 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.LazyGTSList;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -138,18 +141,49 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
       throw new WarpScriptException(getName() + " Missing '" + PARAM_MAPPER + "' parameter.");
     }
     
-    Object mapper = params.get(PARAM_MAPPER);
-    long prewindow = !params.containsKey(PARAM_PREWINDOW) ? 0 : (long) params.get(PARAM_PREWINDOW);
-    long postwindow = !params.containsKey(PARAM_POSTWINDOW) ? 0 : (long) params.get(PARAM_POSTWINDOW);
-    int occurrences = !params.containsKey(PARAM_OCCURENCES) ? 0 : (int) ((long) params.get(PARAM_OCCURENCES));
-    int step = !params.containsKey(PARAM_STEP) ? 1 : (int) ((long) params.get(PARAM_STEP));
-    boolean overrideTick = !params.containsKey(PARAM_OVERRIDE) ? false : (boolean) params.get(PARAM_OVERRIDE);
+    final Object mapper = params.get(PARAM_MAPPER);
+    final long prewindow = !params.containsKey(PARAM_PREWINDOW) ? 0 : (long) params.get(PARAM_PREWINDOW);
+    final long postwindow = !params.containsKey(PARAM_POSTWINDOW) ? 0 : (long) params.get(PARAM_POSTWINDOW);
+    final int occurrences = !params.containsKey(PARAM_OCCURENCES) ? 0 : (int) ((long) params.get(PARAM_OCCURENCES));
+    final int step = !params.containsKey(PARAM_STEP) ? 1 : (int) ((long) params.get(PARAM_STEP));
+    final boolean overrideTick = !params.containsKey(PARAM_OVERRIDE) ? false : (boolean) params.get(PARAM_OVERRIDE);
     
     // Handle gts and nested list of gts
     
     Object top = stack.pop();
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    int parallelism = WarpScriptParallel.getParallelism(stack, mapper);
+    
+    //
+    // Defer the mapping if lazy evaluation is enabled, elements of a pending list on top of the stack
+    // may be lists of GTS (as produced by mappers with multiple results)
+    //
+    
+    if (!WarpScriptParallel.needsStack(mapper)) {
+      boolean nested = top instanceof LazyGTSList;
+      List<?> inputs = !nested && top instanceof List ? (List<?>) top : Collections.singletonList(top);
+      
+      LazyGTSList lazy = LazyGTSList.defer(stack, inputs, getName(), new LazyGTSList.Stage() {
+        @Override
+        public List<Object> apply(GeoTimeSerie gts) throws WarpScriptException {
+          List<GeoTimeSerie> res = GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick, null);
+          List<Object> elements = new ArrayList<Object>();
+          if (res.size() < 2) {
+            elements.addAll(res);
+          } else {
+            elements.add(res);
+          }
+          return elements;
+        }
+      }, nested, parallelism);
+      
+      if (null != lazy) {
+        stack.push(lazy);
+        return stack;
+      }
+    }
+    
+    final List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
     
     // top is expected to be a GTS, a list of GTS or a list of list of GTS
     if (top instanceof List) {
@@ -184,10 +218,28 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     
     // Call MAP
     
+    final WarpScriptStack macroStack = mapper instanceof Macro ? stack : null;
+    
+    //
+    // Sort the GTS instances beforehand so workers only read them, even if some appear several times
+    //
+    
+    if (parallelism > 1) {
+      for (GeoTimeSerie gts: series) {
+        GTSHelper.sort(gts);
+      }
+    }
+    
+    List<List<GeoTimeSerie>> results = WarpScriptParallel.run(WarpScriptParallel.getTenant(stack), parallelism, series.size(), new WarpScriptParallel.Task<List<GeoTimeSerie>>() {
+      @Override
+      public List<GeoTimeSerie> call(int index) throws WarpScriptException {
+        return GTSHelper.map(series.get(index), mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick, macroStack);
+      }
+    });
+    
     List<Object> mapped = new ArrayList<Object>();
     
-    for (GeoTimeSerie gts: series) {
-      List<GeoTimeSerie> res = GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick, mapper instanceof Macro ? stack : null);
+    for (List<GeoTimeSerie> res: results) {
       if (res.size() < 2) {
         mapped.addAll(res);
       } else {
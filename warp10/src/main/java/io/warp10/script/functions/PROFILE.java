@@ -0,0 +1,62 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptProfiler;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Execute the macro on top of the stack while profiling the functions and named macros it calls,
+ * then push a map of function names to the number of calls and the cumulative time in nanoseconds.
+ *
+ * When nested in another PROFILE, the calls are also accounted for in the outer profile.
+ */
+public class PROFILE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public PROFILE(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+    
+    if (!(top instanceof Macro)) {
+      throw new WarpScriptException(getName() + " expects a macro on top of the stack.");
+    }
+    
+    Object outer = stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER);
+    
+    WarpScriptProfiler profiler = new WarpScriptProfiler(outer instanceof WarpScriptProfiler ? (WarpScriptProfiler) outer : null);
+    
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_PROFILER, profiler);
+    
+    try {
+      stack.exec((Macro) top);
+    } finally {
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_PROFILER, outer);
+    }
+    
+    stack.push(profiler.toMap());
+    
+    return stack;
+  }
+}
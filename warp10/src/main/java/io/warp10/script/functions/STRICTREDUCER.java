@@ -20,6 +20,7 @@ import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
@@ -33,7 +34,7 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
     super(name);
   }
   
-  private static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction {
+  private static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction, WarpScriptParallel.StackBound {
     
     private final WarpScriptReducerFunction reducer;
     
@@ -42,6 +43,11 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
       this.reducer = reducer;
     }
     
+    @Override
+    public boolean needsStack() {
+      return WarpScriptParallel.needsStack(reducer);
+    }
+    
     @Override
     public Object apply(Object[] args) throws WarpScriptException {
       
@@ -22,6 +22,7 @@ import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptStack;
 
 /**
@@ -35,7 +36,7 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
   }
 
   
-  private static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction {
+  private static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptParallel.StackBound {
     
     private final int min;
     private final int max;
@@ -48,6 +49,11 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
       this.mapper = mapper;
     }
     
+    @Override
+    public boolean needsStack() {
+      return WarpScriptParallel.needsStack(mapper);
+    }
+    
     @Override
     public Object apply(Object[] args) throws WarpScriptException {
       
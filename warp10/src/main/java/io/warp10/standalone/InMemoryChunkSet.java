@@ -247,6 +247,8 @@ public class InMemoryChunkSet {
         // Extract a decoder to scan the chunk
         if (null != this.chunks[chunk]) {
           chunkDecoder = this.chunks[chunk].getUnsafeDecoder(false);
+          // Only decode the datapoints in the requested range, stopping early if the chunk is in chronological order
+          chunkDecoder.setWindow(firstTimestamp, now, this.chronological.get(chunk));
         }
       }
       
@@ -256,13 +258,7 @@ public class InMemoryChunkSet {
       
       // Merge the data from chunkDecoder which is in the requested range in 'encoder'
       while(chunkDecoder.next()) {
-        long ts = chunkDecoder.getTimestamp();
-        
-        if (ts > now || ts < firstTimestamp) {
-          continue;
-        }
-        
-        encoder.addValue(ts, chunkDecoder.getLocation(), chunkDecoder.getElevation(), chunkDecoder.getValue());
+        encoder.addValue(chunkDecoder.getTimestamp(), chunkDecoder.getLocation(), chunkDecoder.getElevation(), chunkDecoder.getValue());
       }
     }
 
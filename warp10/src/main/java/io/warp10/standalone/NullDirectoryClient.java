@@ -16,12 +16,14 @@
 
 package io.warp10.standalone;
 
+import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.KeyStore;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 public class NullDirectoryClient extends StandaloneDirectoryClient {
   public NullDirectoryClient(KeyStore keystore) {
@@ -33,6 +35,20 @@ public class NullDirectoryClient extends StandaloneDirectoryClient {
     return new ArrayList<Metadata>();
   }
   
+  @Override
+  public MetadataIterator iterator(List<String> classSelector, List<Map<String, String>> labelsSelectors) {
+    return new MetadataIterator() {
+      @Override
+      public void close() {}
+      
+      @Override
+      public boolean hasNext() { return false; }
+      
+      @Override
+      public Metadata next() { throw new NoSuchElementException(); }
+    };
+  }
+  
   @Override
   public void register(Metadata metadata) {
   }
@@ -26,6 +26,7 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.ingress.DatalogForwarder;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.DatalogRequest;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -356,6 +357,8 @@ public class StandaloneDeleteHandler extends AbstractHandler {
 
     boolean validated = false;
     
+    MetadataIterator metadatas = null;
+    
     try {      
       if (null == producer || null == owner) {
         response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid token.");
@@ -463,14 +466,16 @@ public class StandaloneDeleteHandler extends AbstractHandler {
       
       labelsSelectors.putAll(extraLabels);
 
-      List<Metadata> metadatas = null;
-      
       List<String> clsSels = new ArrayList<String>();
       List<Map<String,String>> lblsSels = new ArrayList<Map<String,String>>();
       clsSels.add(classSelector);
       lblsSels.add(labelsSelectors);
       
-      metadatas = directoryClient.find(clsSels, lblsSels);
+      //
+      // Stream the matching Metadata, unregistering them while iterating is supported
+      //
+      
+      metadatas = directoryClient.iterator(clsSels, lblsSels);
 
       response.setStatus(HttpServletResponse.SC_OK);
       response.setContentType("text/plain");
@@ -478,7 +483,9 @@ public class StandaloneDeleteHandler extends AbstractHandler {
       PrintWriter pw = response.getWriter();
       StringBuilder sb = new StringBuilder();
       
-      for (Metadata metadata: metadatas) {        
+      while(metadatas.hasNext()) {
+        Metadata metadata = metadatas.next();
+        
         //
         // Remove from DB
         //
@@ -541,6 +548,13 @@ public class StandaloneDeleteHandler extends AbstractHandler {
         throw new IOException(e);
       }
     } finally {
+      if (null != metadatas) {
+        try {
+          metadatas.close();
+        } catch (Exception e) {
+        }
+      }
+      
       if (null != loggingWriter) {
         Map<String,String> labels = new HashMap<String,String>();
         labels.put(SensisionConstants.SENSISION_LABEL_ID, new String(OrderPreservingBase64.decode(dr.getId().getBytes(Charsets.US_ASCII)), Charsets.UTF_8));
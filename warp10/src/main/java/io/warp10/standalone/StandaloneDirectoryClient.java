@@ -23,7 +23,9 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.MetadataIndex;
 import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.OrdinalBitmap;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.CryptoUtils;
 import io.warp10.crypto.KeyStore;
@@ -36,13 +38,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -67,7 +70,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
 
 public class StandaloneDirectoryClient implements DirectoryClient {
@@ -100,6 +102,11 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   private static final Map<String,Map<Long,Metadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
   private static final Map<BigInteger,Metadata> metadatasById = new MapMaker().concurrencyLevel(64).makeMap();
   
+  /**
+   * Inverted index of the labels and attributes of 'metadatas'
+   */
+  private static final MetadataIndex index = new MetadataIndex();
+  
   public StandaloneDirectoryClient(DB db, final KeyStore keystore) {
     
     this.initNThreads = Integer.parseInt(WarpConfig.getProperties().getProperty(Configuration.DIRECTORY_INIT_NTHREADS, DIRECTORY_INIT_NTHREADS_DEFAULT));
@@ -232,6 +239,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
               synchronized(metadatas.get(metadata.getName())) {
                 if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
                   metadatas.get(metadata.getName()).put(labelsId, metadata);
+                  index.add(metadata);
                   
                   //
                   // Store Metadata under 'id'
@@ -323,32 +331,152 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   }
   
   public List<Metadata> find(List<String> classExpr, List<Map<String,String>> labelsExpr) {
+    List<Metadata> metas = new ArrayList<Metadata>();
     
-    //
-    // Build patterns from expressions
-    //
+    FindIterator iter = new FindIterator(classExpr, labelsExpr);
     
-    SmartPattern classSmartPattern;
+    while(iter.hasNext()) {
+      metas.add(iter.next());
+    }
     
-    Collection<Metadata> metadatas;
+    return metas;
+  }
+  
+  /**
+   * Iterator over the Metadata matching a list of selectors, matches are computed as the iterator is consumed.
+   *
+   * The class names matching each selector are listed when the iterator reaches the selector, the series of each class
+   * are then walked as they are when the iterator reaches the class, so series registered or unregistered while iterating
+   * may or may not be returned.
+   * 
+   * The returned Metadata are new instances which share the labels and attributes of the directory through read only views.
+   */
+  private class FindIterator extends MetadataIterator {
+    
+    private final List<String> classExpr;
+    private final List<Map<String,String>> labelsExpr;
+    
+    /**
+     * Index of the current selector
+     */
+    private int selector = -1;
+    
+    private SmartPattern classSmartPattern;
+    private List<String> labelNames;
+    private List<SmartPattern> labelSmartPatterns;
+    private String[] labelValues;
+    
+    /**
+     * Candidates of the current selector selected from the label index
+     */
+    private OrdinalBitmap selection;
+    
+    /**
+     * Remaining class names of the current selector
+     */
+    private Iterator<String> classNames = null;
+    
+    /**
+     * Remaining candidate Metadata of the current class
+     */
+    private Iterator<Metadata> candidates = null;
+    
+    /**
+     * Metadata already returned, only tracked when there are several selectors
+     */
+    private final Set<Metadata> returned;
+    
+    private Metadata next = null;
+    
+    public FindIterator(List<String> classExpr, List<Map<String,String>> labelsExpr) {
+      this.classExpr = classExpr;
+      this.labelsExpr = labelsExpr;
+      this.returned = classExpr.size() > 1 ? Collections.newSetFromMap(new IdentityHashMap<Metadata,Boolean>()) : null;
+    }
     
-    if (classExpr.size() > 1) {
-      metadatas = new HashSet<Metadata>();
-    } else {
-      metadatas = new ArrayList<Metadata>();
+    @Override
+    public boolean hasNext() {
+      if (null != this.next) {
+        return true;
+      }
+      
+      while(true) {
+        if (null != this.candidates && this.candidates.hasNext()) {
+          Metadata metadata = this.candidates.next();
+          
+          if (matches(metadata) && (null == this.returned || this.returned.add(metadata))) {
+            this.next = view(metadata);
+            return true;
+          }
+          
+          continue;
+        }
+        
+        this.candidates = null;
+        
+        if (null != this.classNames && this.classNames.hasNext()) {
+          String className = this.classNames.next();
+          
+          //
+          // If class matches, check all labels for matches
+          //
+          
+          if (!this.classSmartPattern.matches(className)) {
+            continue;
+          }
+          
+          Map<Long,Metadata> classMetadatas = metadatas.get(className);
+          
+          // The class may have been removed since the class names were listed
+          if (null == classMetadatas) {
+            continue;
+          }
+          
+          this.candidates = index.select(className, this.selection, classMetadatas).iterator();
+          continue;
+        }
+        
+        this.classNames = null;
+        
+        if (++this.selector >= this.classExpr.size()) {
+          return false;
+        }
+        
+        select(this.selector);
+      }
     }
-
-    Set<String> classNames = null;
     
-    for (int i = 0; i < classExpr.size(); i++) {
+    @Override
+    public Metadata next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      
+      Metadata metadata = this.next;
+      this.next = null;
+      return metadata;
+    }
+    
+    @Override
+    public void close() {
+      this.selector = this.classExpr.size();
+      this.classNames = null;
+      this.candidates = null;
+      this.next = null;
+    }
+    
+    /**
+     * Build the patterns of selector 'i' and list the class names it may match
+     */
+    private void select(int i) {
       
       String exactClassName = null;
       
       if (classExpr.get(i).startsWith("=") || !classExpr.get(i).startsWith("~")) {
         exactClassName = classExpr.get(i).startsWith("=") ? classExpr.get(i).substring(1) : classExpr.get(i);
-        classSmartPattern = new SmartPattern(exactClassName);
+        this.classSmartPattern = new SmartPattern(exactClassName);
       } else {
-        classSmartPattern = new SmartPattern(Pattern.compile(classExpr.get(i).substring(1)));
+        this.classSmartPattern = new SmartPattern(Pattern.compile(classExpr.get(i).substring(1)));
       }
       
       Map<String,SmartPattern> labelPatterns = new HashMap<String,SmartPattern>();
@@ -367,24 +495,13 @@ public class StandaloneDirectoryClient implements DirectoryClient {
           }          
         }      
       }
-             
-      if (null != exactClassName) {
-        if (!this.metadatas.containsKey(exactClassName)) {
-          continue;
-        }
-        classNames = new HashSet<String>();
-        classNames.add(exactClassName);
-      } else {
-        classNames = this.metadatas.keySet();
-      }
-
+      
       //
       // Create arrays to check the labels, this is to speed up discard
       //
       
-      List<String> labelNames = new ArrayList<String>(labelPatterns.size());
-      List<SmartPattern> labelSmartPatterns = new ArrayList<SmartPattern>(labelPatterns.size());
-      String[] labelValues = null;
+      this.labelNames = new ArrayList<String>(labelPatterns.size());
+      this.labelSmartPatterns = new ArrayList<SmartPattern>(labelPatterns.size());
       
       //
       // Put producer/app/owner first
@@ -415,103 +532,81 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         labelSmartPatterns.add(entry.getValue());
       }
 
-      labelValues = new String[labelNames.size()];
-
+      this.labelValues = new String[labelNames.size()];
+      
       //
-      // Loop over the class names to find matches
+      // Select the candidate series from the label index, they are still checked by 'matches'
       //
       
-      for (String className: classNames) {
-                
+      this.selection = index.select(labelNames, labelSmartPatterns);
+      
+      if (null != exactClassName) {
+        this.classNames = metadatas.containsKey(exactClassName) ? Collections.singletonList(exactClassName).iterator() : null;
+      } else {
+        this.classNames = new ArrayList<String>(metadatas.keySet()).iterator();
+      }
+    }
+    
+    /**
+     * Check the labels (or attributes) of 'metadata' against the patterns of the current selector
+     */
+    private boolean matches(Metadata metadata) {
+      int idx = 0;
+      
+      for (String labelName: labelNames) {
         //
-        // If class matches, check all labels for matches
+        // Immediately exclude metadata which do not contain one of the
+        // labels for which we have patterns either in labels or in attributes
         //
-        
-        if (classSmartPattern.matches(className)) {
-          for (Metadata metadata: this.metadatas.get(className).values()) {
-            boolean exclude = false;
-            
-            int idx = 0;
-      
-            for (String labelName: labelNames) {
-              //
-              // Immediately exclude metadata which do not contain one of the
-              // labels for which we have patterns either in labels or in attributes
-              //
 
-              String labelValue = metadata.getLabels().get(labelName);
-              
-              if (null == labelValue) {
-                labelValue = metadata.getAttributes().get(labelName);
-                if (null == labelValue) {
-                  exclude = true;
-                  break;
-                }
-              }
-              
-              labelValues[idx++] = labelValue;
-            }
-            
-            // If we did not collect enough label/attribute values, exclude the GTS
-            if (idx < labelNames.size()) {
-              exclude = true;
-            }
-            
-            if (exclude) {
-              continue;
-            }
-            
-            //
-            // Check if the label value matches, if not, exclude the GTS
-            //
-            
-            for (int j = 0; j < labelNames.size(); j++) {
-              if (!labelSmartPatterns.get(j).matches(labelValues[j])) {
-                exclude = true;
-                break;
-              }
-            }
-            
-            if (exclude) {
-              continue;
-            }
-            
-            //
-            // We have a match, rebuild metadata
-            //
-            // FIXME(hbs): include a 'safe' mode to expose the internal Metadata instances?
-            //
-            
-            Metadata meta = new Metadata();
-            meta.setName(className);
-            meta.setLabels(ImmutableMap.copyOf(metadata.getLabels()));
-            meta.setAttributes(ImmutableMap.copyOf(metadata.getAttributes()));
-            // 128BITS
-            if (metadata.isSetClassId()) {
-              meta.setClassId(metadata.getClassId());
-            } else {
-              meta.setClassId(GTSHelper.classId(classKey, meta.getName()));
-            }
-            if (metadata.isSetLabelsId()) {
-              meta.setLabelsId(metadata.getLabelsId());
-            } else {
-              meta.setLabelsId(GTSHelper.labelsId(labelsKey, meta.getLabels()));
-            }
-            
-            metadatas.add(meta);
+        String labelValue = metadata.getLabels().get(labelName);
+        
+        if (null == labelValue) {
+          labelValue = metadata.getAttributes().get(labelName);
+          if (null == labelValue) {
+            return false;
           }
         }
-      }      
+        
+        labelValues[idx++] = labelValue;
+      }
+      
+      //
+      // Check if the label value matches, if not, exclude the GTS
+      //
+      
+      for (int j = 0; j < labelNames.size(); j++) {
+        if (!labelSmartPatterns.get(j).matches(labelValues[j])) {
+          return false;
+        }
+      }
+      
+      return true;
     }
     
-    if (classExpr.size() > 1) {
-      List<Metadata> metas = new ArrayList<Metadata>();
-      metas.addAll(metadatas);
-      return metas;
-    } else {
-      return (List<Metadata>) metadatas;
-    }    
-  };
+    /**
+     * Return a read only view of the labels and attributes of 'metadata' in a new Metadata instance
+     */
+    private Metadata view(Metadata metadata) {
+      Metadata meta = new Metadata();
+      meta.setName(metadata.getName());
+      meta.setLabels(Collections.unmodifiableMap(metadata.getLabels()));
+      meta.setAttributes(Collections.unmodifiableMap(metadata.getAttributes()));
+      // 128BITS
+      if (metadata.isSetClassId()) {
+        meta.setClassId(metadata.getClassId());
+      } else {
+        meta.setClassId(GTSHelper.classId(classKey, meta.getName()));
+      }
+      if (metadata.isSetLabelsId()) {
+        meta.setLabelsId(metadata.getLabelsId());
+      } else {
+        meta.setLabelsId(GTSHelper.labelsId(labelsKey, meta.getLabels()));
+      }
+      
+      return meta;
+    }
+  }
   
   public void register(Metadata metadata) throws IOException {
     
@@ -570,7 +665,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
       return;
     }
-    metadatas.get(metadata.getName()).remove(labelsId);
+    index.remove(metadatas.get(metadata.getName()).remove(labelsId));
     if (metadatas.get(metadata.getName()).isEmpty()) {
       metadatas.remove(metadata.getName());
     }
@@ -722,9 +817,13 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         if (!metadatas.containsKey(metadata.getName())) {
           metadatas.put(metadata.getName(), (Map) new MapMaker().concurrencyLevel(64).makeMap());
         }
-        if (null == metadatas.get(metadata.getName()).put(labelsId, metadata)) {
+        Metadata replaced = metadatas.get(metadata.getName()).put(labelsId, metadata);
+        if (null == replaced) {
           Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
+        } else {
+          index.remove(replaced);
         }
+        index.add(metadata);
       }
       //
       // Store Metadata under 'id'
@@ -751,19 +850,6 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   
   @Override
   public MetadataIterator iterator(List<String> classSelector, List<Map<String, String>> labelsSelectors) throws IOException {
-    List<Metadata> metadatas = find(classSelector, labelsSelectors);
-
-    final Iterator<Metadata> iter = metadatas.iterator();
-
-    return new MetadataIterator() {
-      @Override
-      public void close() throws Exception {}
-      
-      @Override
-      public boolean hasNext() { return iter.hasNext(); }
-      
-      @Override
-      public Metadata next() { return iter.next(); }
-    };
+    return new FindIterator(classSelector, labelsSelectors);
   }
 }
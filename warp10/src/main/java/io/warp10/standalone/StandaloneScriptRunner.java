@@ -27,11 +27,11 @@ import io.warp10.continuum.store.StoreClient;
 import io.warp10.crypto.CryptoUtils;
 import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.OrderPreservingBase64;
-import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.MemoryWarpScriptStack;
 import io.warp10.script.ScriptRunner;
-import io.warp10.script.WarpScriptStack.StackContext;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStackPool;
 import io.warp10.sensision.Sensision;
 
 import java.io.ByteArrayOutputStream;
@@ -57,6 +57,7 @@ public class StandaloneScriptRunner extends ScriptRunner {
   private final GeoDirectoryClient geoDirectoryClient;
   private final Properties props;
   private final BootstrapManager bootstrapManager;
+  private final WarpScriptStackPool stackPool;
 
   private final Random prng = new Random();
 
@@ -83,6 +84,8 @@ public class StandaloneScriptRunner extends ScriptRunner {
       this.bootstrapManager = new BootstrapManager();
     }
     
+    this.stackPool = new WarpScriptStackPool(storeClient, directoryClient, geoDirectoryClient, props, Integer.parseInt(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_RUNNER_STACKPOOL_SIZE, Integer.toString(WarpScriptStackPool.DEFAULT_SIZE))));
+    
     this.runnerPSK = keystore.getKey(KeyStore.AES_RUNNER_PSK);
   }
   
@@ -105,7 +108,14 @@ public class StandaloneScriptRunner extends ScriptRunner {
 
           long nano = System.nanoTime();
           
-          WarpScriptStack stack = new MemoryWarpScriptStack(storeClient, directoryClient, geoDirectoryClient, props);
+          MemoryWarpScriptStack stack;
+          
+          try {
+            stack = stackPool.checkout();
+          } catch (WarpScriptException wse) {
+            Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_FAILURES, labels, 1);
+            return;
+          }
 
           
           ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -133,21 +143,10 @@ public class StandaloneScriptRunner extends ScriptRunner {
             in.close();
 
             //
-            // Replace the context with the bootstrap one
+            // Replace the context with the bootstrap one and execute the bootstrap code
             //
             
-            StackContext context = bootstrapManager.getBootstrapContext();
-                  
-            if (null != context) {
-              stack.push(context);
-              stack.restore();
-            }
-                  
-            //
-            // Execute the bootstrap code
-            //
-
-            stack.exec(WarpScriptLib.BOOTSTRAP);
+            stackPool.bootstrap(stack, bootstrapManager.getBootstrapContext());
 
             stack.store(Constants.RUNNER_PERIODICITY, periodicity);
             stack.store(Constants.RUNNER_PATH, path);
@@ -175,6 +174,7 @@ public class StandaloneScriptRunner extends ScriptRunner {
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_OPS, labels, (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS)); 
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_FETCHED, labels, (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT));             
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_CURRENT, Sensision.EMPTY_LABELS, -1);
+            stackPool.release(stack);
           }              
         }
       });                  
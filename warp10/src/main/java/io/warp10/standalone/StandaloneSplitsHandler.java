@@ -149,6 +149,8 @@ public class StandaloneSplitsHandler extends AbstractHandler {
         
       PrintWriter pw = response.getWriter();
       
+      TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+      
       while(metadatas.hasNext()) {
         Metadata metadata = metadatas.next();
         
@@ -174,7 +176,6 @@ public class StandaloneSplitsHandler extends AbstractHandler {
         // Serialize and encrypt Split
         //
         
-        TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
         byte[] data = null;
         
         try {
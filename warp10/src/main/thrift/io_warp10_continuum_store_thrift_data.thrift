@@ -256,6 +256,29 @@ struct DirectoryStatsResponse {
   7: optional string error,
 }
 
+/**
+ * Compression codecs for the content of GTSWrapper
+ */
+ 
+enum GTSWrapperCodec {
+  /**
+   * gzip, possibly applied several times (@see compressionPasses)
+   */
+  GZIP = 0,
+  /**
+   * LZ4 block, prefixed with the uncompressed length as a 4 bytes big endian int
+   */
+  LZ4 = 1,
+  /**
+   * Snappy
+   */
+  SNAPPY = 2,
+  /**
+   * LZ4 block (as above) compressed by a single gzip pass
+   */
+  LZ4_GZIP = 3,
+}
+
 struct GTSWrapper {
   /**
    * Metadata for the GTS
@@ -299,6 +322,11 @@ struct GTSWrapper {
    * Number of compression passes done on the input data
    */
   10: optional i32 compressionPasses = 1,
+  
+  /**
+   * Codec used to compress 'encoded' when 'compressed' is true, gzip if not set
+   */
+  11: optional GTSWrapperCodec codec,
 }
 
 /**
@@ -0,0 +1,272 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.aggregator.Count;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSBucketsTest {
+
+  /**
+   * Generate a bucketized GTS with unique ticks in random order. Some ticks are off the grid,
+   * before the first bucket or after the last one, as if added after the GTS was bucketized.
+   */
+  private static GeoTimeSerie generate(Random random) {
+    long bucketspan = 1 + random.nextInt(20);
+    int bucketcount = 1 + random.nextInt(60);
+    long lastbucket = random.nextInt(2000) - 1000;
+
+    GeoTimeSerie gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 4);
+
+    int n = random.nextInt(bucketcount + 5);
+
+    Set<Long> ticks = new HashSet<Long>();
+
+    for (int i = 0; i < n; i++) {
+      long tick = lastbucket - bucketspan * (random.nextInt(bucketcount + 10) - 5);
+
+      if (0 == random.nextInt(5)) {
+        tick += random.nextInt((int) bucketspan);
+      }
+
+      if (!ticks.add(tick)) {
+        continue;
+      }
+
+      long location = random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : random.nextLong();
+      long elevation = random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(1000);
+      GTSHelper.setValue(gts, tick, location, elevation, (long) i, false);
+    }
+
+    return gts;
+  }
+
+  private static boolean onGrid(GeoTimeSerie gts, long tick) {
+    return 0 == (gts.lastbucket - tick) % gts.bucketspan;
+  }
+
+  /**
+   * @return the index of the datapoint on the grid with the greatest tick strictly less than 'tick' if 'before'
+   *         is true or with the smallest tick strictly greater than 'tick' otherwise, -1 if there is none
+   */
+  private static int neighbour(GeoTimeSerie gts, long tick, boolean before) {
+    int idx = -1;
+
+    for (int i = 0; i < gts.values; i++) {
+      long t = gts.ticks[i];
+
+      if (!onGrid(gts, t) || (before ? t >= tick : t <= tick)) {
+        continue;
+      }
+
+      if (-1 == idx || (before ? t > gts.ticks[idx] : t < gts.ticks[idx])) {
+        idx = i;
+      }
+    }
+
+    return idx;
+  }
+
+  private static int find(GeoTimeSerie gts, long tick) {
+    for (int i = 0; i < gts.values; i++) {
+      if (tick == gts.ticks[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void testView() {
+    Random random = new Random(1L);
+
+    for (int t = 0; t < 2000; t++) {
+      GeoTimeSerie gts = generate(random);
+      GTSBuckets buckets = new GTSBuckets(gts);
+
+      Assert.assertEquals(gts.bucketcount, buckets.bucketcount());
+
+      int cardinality = 0;
+
+      for (int bucket = 0; bucket < gts.bucketcount; bucket++) {
+        long tick = gts.lastbucket - (gts.bucketcount - 1 - bucket) * gts.bucketspan;
+        int idx = find(gts, tick);
+
+        Assert.assertEquals(tick, buckets.tick(bucket));
+        Assert.assertEquals(bucket, GTSBuckets.bucketIndex(gts, tick));
+        Assert.assertEquals(-1 != idx, buckets.isPresent(bucket));
+        Assert.assertEquals(idx, buckets.index(bucket));
+
+        if (-1 != idx) {
+          cardinality++;
+        }
+
+        int next = bucket;
+        while (next < gts.bucketcount && -1 == find(gts, buckets.tick(next))) {
+          next++;
+        }
+        Assert.assertEquals(next < gts.bucketcount ? next : -1, buckets.nextPresent(bucket));
+
+        int previous = bucket;
+        while (previous >= 0 && -1 == find(gts, buckets.tick(previous))) {
+          previous--;
+        }
+        Assert.assertEquals(previous, buckets.previousPresent(bucket));
+      }
+
+      Assert.assertEquals(cardinality, buckets.cardinality());
+      Assert.assertEquals(neighbour(gts, buckets.tick(0), true), buckets.before());
+      Assert.assertEquals(neighbour(gts, gts.lastbucket, false), buckets.after());
+
+      Assert.assertEquals(-1, GTSBuckets.bucketIndex(gts, gts.lastbucket + gts.bucketspan));
+      Assert.assertEquals(-1, GTSBuckets.bucketIndex(gts, buckets.tick(0) - gts.bucketspan));
+
+      if (gts.bucketspan > 1) {
+        Assert.assertEquals(-1, GTSBuckets.bucketIndex(gts, gts.lastbucket - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testFill() {
+    Random random = new Random(2L);
+
+    for (int t = 0; t < 2000; t++) {
+      GeoTimeSerie gts = generate(random);
+      GeoTimeSerie original = gts.clone();
+
+      GeoTimeSerie previous = GTSHelper.fillprevious(gts);
+      GeoTimeSerie next = GTSHelper.fillnext(gts);
+      GeoTimeSerie value = GTSHelper.fillvalue(gts, 42L, 43L, -1L);
+
+      // The input is left untouched
+      Assert.assertEquals(original.values, gts.values);
+      if (gts.values > 0) {
+        Assert.assertArrayEquals(Arrays.copyOf(original.ticks, original.values), Arrays.copyOf(gts.ticks, gts.values));
+      }
+
+      int filledPrevious = 0;
+      int filledNext = 0;
+
+      for (int bucket = 0; bucket < gts.bucketcount; bucket++) {
+        long tick = gts.lastbucket - (gts.bucketcount - 1 - bucket) * gts.bucketspan;
+        int idx = find(gts, tick);
+
+        if (-1 != idx) {
+          Assert.assertEquals(gts.longValues[idx], GTSHelper.valueAtTick(previous, tick));
+          Assert.assertEquals(gts.longValues[idx], GTSHelper.valueAtTick(next, tick));
+          Assert.assertEquals(gts.longValues[idx], GTSHelper.valueAtTick(value, tick));
+          continue;
+        }
+
+        int before = neighbour(gts, tick, true);
+
+        if (-1 == before) {
+          Assert.assertNull(GTSHelper.valueAtTick(previous, tick));
+        } else {
+          filledPrevious++;
+          int i = GTSHelper.indexAtTick(previous, tick);
+          Assert.assertEquals(gts.longValues[before], GTSHelper.valueAtIndex(previous, i));
+          Assert.assertEquals(GTSHelper.locationAtIndex(gts, before), GTSHelper.locationAtIndex(previous, i));
+          Assert.assertEquals(GTSHelper.elevationAtIndex(gts, before), GTSHelper.elevationAtIndex(previous, i));
+        }
+
+        int after = neighbour(gts, tick, false);
+
+        if (-1 == after) {
+          Assert.assertNull(GTSHelper.valueAtTick(next, tick));
+        } else {
+          filledNext++;
+          int i = GTSHelper.indexAtTick(next, tick);
+          Assert.assertEquals(gts.longValues[after], GTSHelper.valueAtIndex(next, i));
+          Assert.assertEquals(GTSHelper.locationAtIndex(gts, after), GTSHelper.locationAtIndex(next, i));
+          Assert.assertEquals(GTSHelper.elevationAtIndex(gts, after), GTSHelper.elevationAtIndex(next, i));
+        }
+
+        int i = GTSHelper.indexAtTick(value, tick);
+        Assert.assertEquals(-1L, GTSHelper.valueAtIndex(value, i));
+        Assert.assertEquals(42L, GTSHelper.locationAtIndex(value, i));
+        Assert.assertEquals(43L, GTSHelper.elevationAtIndex(value, i));
+      }
+
+      Assert.assertEquals(gts.values + filledPrevious, previous.values);
+      Assert.assertEquals(gts.values + filledNext, next.values);
+      Assert.assertEquals(gts.values + gts.bucketcount - new GTSBuckets(gts).cardinality(), value.values);
+    }
+  }
+
+  /**
+   * Check the O(1) lookup of ticks in bucketized series against a scan
+   */
+  @Test
+  public void testBucketizeValueAtTick() throws Exception {
+    Random random = new Random(3L);
+    WarpScriptBucketizerFunction count = new Count("count", false);
+
+    for (int t = 0; t < 2000; t++) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+
+      int n = random.nextInt(40);
+      long base = random.nextInt(2000) - 1000;
+      long spread = 1 + random.nextInt(random.nextBoolean() ? 50 : 5000);
+
+      for (int i = 0; i < n; i++) {
+        GTSHelper.setValue(gts, base + (long) (random.nextDouble() * spread), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) random.nextInt(10), false);
+      }
+
+      long bucketspan = 1 + random.nextInt(30);
+      int bucketcount = 1 + random.nextInt(60);
+      long lastbucket = random.nextBoolean() ? 0 : base + random.nextInt((int) spread + 100) - 50;
+
+      GeoTimeSerie bucketized = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, count, 1000000L);
+
+      int nonempty = 0;
+
+      for (int bucket = 0; bucket < bucketized.bucketcount; bucket++) {
+        long end = bucketized.lastbucket - bucket * bucketized.bucketspan;
+
+        long c = 0;
+        for (int i = 0; i < gts.values; i++) {
+          if (gts.ticks[i] > end - bucketized.bucketspan && gts.ticks[i] <= end) {
+            c++;
+          }
+        }
+
+        Object v = GTSHelper.valueAtTick(bucketized, end);
+
+        if (0 == c) {
+          Assert.assertNull(v);
+          Assert.assertEquals(-1, GTSHelper.indexAtTick(bucketized, end));
+        } else {
+          nonempty++;
+          Assert.assertEquals(c, ((Number) v).longValue());
+          Assert.assertEquals(end, GTSHelper.tickAtIndex(bucketized, GTSHelper.indexAtTick(bucketized, end)));
+        }
+      }
+
+      Assert.assertEquals(nonempty, bucketized.values);
+    }
+  }
+}
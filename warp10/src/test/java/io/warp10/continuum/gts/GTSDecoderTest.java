@@ -20,6 +20,8 @@ import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GeoTimeSerie;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -401,4 +403,125 @@ public class GTSDecoderTest {
     
     Assert.assertEquals(19, encoder.size());    
   }  
+  
+  @Test
+  public void testDecoder_window() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (int i = 0; i < 100; i++) {
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, i < 50 ? "A" + (i / 10) : "B" + i);
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+    
+    GTSDecoder decoder = encoder.getDecoder(true);
+    decoder.setWindow(15L, 60L, true);
+    
+    long count = 0;
+    
+    while(decoder.next()) {
+      long ts = decoder.getTimestamp();
+      Assert.assertTrue(ts >= 15L && ts <= 60L);
+      
+      if (0 == count % 2) {
+        Assert.assertEquals(ts < 50 ? "A" + (ts / 10) : "B" + ts, decoder.getValue());
+      } else {
+        Assert.assertEquals(ts, decoder.getValue());
+      }
+      count++;
+    }
+    
+    Assert.assertEquals(92, count);
+    // Decoding stopped at the first tick after the window
+    Assert.assertTrue(decoder.getRemainingSize() > 0);
+    
+    //
+    // Check that the encoder obtained from a windowed decoder is consistent
+    //
+    
+    encoder = new GTSEncoder(0L);
+    
+    for (int i = 0; i < 100; i++) {
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "A" + (i / 10));
+    }
+
+    decoder = encoder.getDecoder(true);
+    decoder.setWindow(15L, 15L, false);
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals("A1", decoder.getValue());
+    
+    GTSDecoder remaining = decoder.getEncoder().getDecoder();
+    
+    for (int i = 15; i < 100; i++) {
+      Assert.assertTrue(remaining.next());
+      Assert.assertEquals("A" + (i / 10), remaining.getValue());
+    }
+    
+    Assert.assertFalse(remaining.next());
+  }
+  
+  @Test
+  public void testDecoder_windowExhaustedGetEncoder() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    encoder.addValue(0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "a");
+    encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "b");
+    // Encoded as identical to the previous value
+    encoder.addValue(5L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "b");
+    encoder.addValue(6L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "c");
+    
+    //
+    // No tick falls in the window, the decoder stops at tick 5 without having materialized any String
+    //
+    
+    GTSDecoder decoder = encoder.getDecoder(true);
+    decoder.setWindow(2L, 3L, true);
+    
+    Assert.assertFalse(decoder.next());
+    
+    GTSDecoder remaining = decoder.getEncoder().getDecoder();
+    
+    Assert.assertTrue(remaining.next());
+    Assert.assertEquals(5L, remaining.getTimestamp());
+    Assert.assertEquals("b", remaining.getValue());
+    Assert.assertTrue(remaining.next());
+    Assert.assertEquals(6L, remaining.getTimestamp());
+    Assert.assertEquals("c", remaining.getValue());
+    Assert.assertFalse(remaining.next());
+  }
+  
+  @Test
+  public void testCustomBufferDecoder_window() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (int i = 0; i < 1000; i++) {
+      // Runs of identical values so skipped Strings are needed by the first datapoint of the window
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "S" + (i / 7));
+    }
+    
+    File file = File.createTempFile("GTSDecoderTest", ".bin");
+    file.deleteOnExit();
+    
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(encoder.getBytes());
+    out.close();
+    
+    long[][] windows = new long[][] { { 100L, 200L }, { 15L, 15L }, { 995L, 2000L }, { 2000L, 3000L } };
+    
+    for (long[] window: windows) {
+      for (boolean chronological: new boolean[] { false, true }) {
+        GTSDecoder decoder = new CustomBufferBasedGTSDecoder(0L, new FileBasedCustomBuffer(file.getAbsolutePath(), 64));
+        decoder.setWindow(window[0], window[1], chronological);
+        
+        long expected = window[0];
+        
+        while(decoder.next()) {
+          Assert.assertEquals(expected, decoder.getTimestamp());
+          Assert.assertEquals("S" + (expected / 7), decoder.getValue());
+          expected++;
+        }
+        
+        Assert.assertEquals(Math.max(window[0], Math.min(window[1] + 1, 1000L)), expected);
+      }
+    }
+  }
 }
@@ -613,4 +613,95 @@ public class GTSEncoderTest {
     Assert.assertEquals(1.0D, decoder.getTimestamp(), 0.000000000001D);
     Assert.assertEquals("1", decoder.getValue().toString());
   }
+
+  @Test
+  public void testStringDictionary() throws Exception {
+    String[] states = new String[] { "STARTING", "RUNNING", "STOPPING", "STOPPED" };
+    
+    GTSEncoder plain = new GTSEncoder(0L);
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setStringDictionary(true);
+    
+    for (int i = 0; i < 1000; i++) {
+      plain.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, states[(i * 7) % states.length]);
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, states[(i * 7) % states.length]);
+    }
+    
+    Assert.assertTrue(encoder.size() < plain.size() / 2);
+    
+    GTSDecoder decoder = encoder.getDecoder();
+    
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue(decoder.next());
+      Assert.assertEquals((long) i, decoder.getTimestamp());
+      Assert.assertEquals(states[(i * 7) % states.length], decoder.getValue());
+    }
+    
+    Assert.assertFalse(decoder.next());
+    
+    //
+    // Decoding into a GTS should produce a dictionary backed GTS with canonical values
+    //
+    
+    GeoTimeSerie gts = encoder.getDecoder().decode();
+    
+    Assert.assertEquals(1000, gts.size());
+    Assert.assertNotNull(gts.getStringDictionary());
+    Assert.assertEquals(states.length, gts.getStringDictionary().size());
+    Assert.assertSame(GTSHelper.valueAtIndex(gts, 1), GTSHelper.valueAtIndex(gts, 1 + states.length));
+  }
+  
+  @Test
+  public void testStringDictionary_getEncoderAndMerge() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setStringDictionary(true);
+    
+    encoder.addValue(0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "A");
+    encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "B");
+    encoder.addValue(2L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "A");
+    encoder.addValue(3L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "B");
+    
+    //
+    // Split the data in the middle, the second half only contains references
+    //
+    
+    GTSDecoder decoder = encoder.getDecoder();
+    decoder.next();
+    decoder.next();
+    decoder.next();
+    
+    GTSEncoder tail = decoder.getEncoder();
+    
+    decoder = tail.getDecoder();
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals("A", decoder.getValue());
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals("B", decoder.getValue());
+    Assert.assertFalse(decoder.next());
+    
+    //
+    // Merge two dictionary encoded encoders
+    //
+    
+    GTSEncoder other = new GTSEncoder(0L);
+    other.setStringDictionary(true);
+    other.addValue(4L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "C");
+    other.addValue(5L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "A");
+    other.addValue(6L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "C");
+    
+    encoder.merge(other);
+    encoder.merge(tail);
+    encoder.addValue(7L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "B");
+    
+    String[] expected = new String[] { "A", "B", "A", "B", "C", "A", "C", "A", "B", "B" };
+    
+    decoder = encoder.getDecoder();
+    
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertTrue(decoder.next());
+      Assert.assertEquals(expected[i], decoder.getValue());
+    }
+    
+    Assert.assertFalse(decoder.next());
+  }
 }
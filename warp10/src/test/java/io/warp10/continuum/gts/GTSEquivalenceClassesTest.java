@@ -0,0 +1,147 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSEquivalenceClassesTest {
+
+  /**
+   * Label values, "Aa" and "BB" have the same hash code so they end up in classes with colliding hashes
+   */
+  private static final String[] VALUES = new String[] { "Aa", "BB", "x", "y", "z" };
+
+  private static final String[] LABELS = new String[] { "a", "b", "c", "d" };
+
+  private static List<GeoTimeSerie> generate(Random random, int n) {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < n; i++) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("gts" + i);
+      Map<String,String> labels = new HashMap<String,String>();
+      for (String label: LABELS) {
+        if (0 != random.nextInt(4)) {
+          labels.put(label, VALUES[random.nextInt(VALUES.length)]);
+        }
+      }
+      gts.setLabels(labels);
+      series.add(gts);
+    }
+
+    return series;
+  }
+
+  /**
+   * Partition by building a map of the selected labels for each GTS
+   */
+  private static Map<Map<String,String>, List<GeoTimeSerie>> partition(List<GeoTimeSerie> series, List<String> bylabels) {
+    Map<Map<String,String>, List<GeoTimeSerie>> classes = new HashMap<Map<String,String>, List<GeoTimeSerie>>();
+    Map<Map<String,String>, Map<String,String>> labelsbyclass = new HashMap<Map<String,String>, Map<String,String>>();
+
+    for (GeoTimeSerie gts: series) {
+      Map<String,String> eqcls = new HashMap<String,String>();
+
+      for (Map.Entry<String,String> entry: gts.getLabels().entrySet()) {
+        if (null == bylabels || bylabels.contains(entry.getKey())) {
+          eqcls.put(entry.getKey(), entry.getValue());
+        }
+      }
+
+      if (!classes.containsKey(eqcls)) {
+        classes.put(eqcls, new ArrayList<GeoTimeSerie>());
+        labelsbyclass.put(eqcls, new HashMap<String,String>(gts.getLabels()));
+      }
+
+      classes.get(eqcls).add(gts);
+      labelsbyclass.get(eqcls).entrySet().retainAll(gts.getLabels().entrySet());
+    }
+
+    Map<Map<String,String>, List<GeoTimeSerie>> partition = new HashMap<Map<String,String>, List<GeoTimeSerie>>();
+
+    for (Map.Entry<Map<String,String>, List<GeoTimeSerie>> entry: classes.entrySet()) {
+      partition.put(labelsbyclass.get(entry.getKey()), entry.getValue());
+    }
+
+    return partition;
+  }
+
+  @Test
+  public void testPartition() throws Exception {
+    Random random = new Random(1L);
+
+    for (int t = 0; t < 2000; t++) {
+      List<GeoTimeSerie> series = generate(random, random.nextInt(200));
+
+      List<String> bylabels = null;
+
+      if (random.nextBoolean()) {
+        bylabels = new ArrayList<String>();
+        for (String label: LABELS) {
+          if (random.nextBoolean()) {
+            bylabels.add(label);
+          }
+        }
+      }
+
+      Map<String,String> before = new HashMap<String,String>();
+      for (GeoTimeSerie gts: series) {
+        before.put(gts.getName(), gts.getLabels().toString());
+      }
+
+      Assert.assertEquals(partition(series, bylabels), GTSHelper.partition(series, bylabels));
+
+      // The labels of the GTS are left untouched
+      for (GeoTimeSerie gts: series) {
+        Assert.assertEquals(before.get(gts.getName()), gts.getLabels().toString());
+      }
+    }
+  }
+
+  @Test
+  public void testCollisions() throws Exception {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (String value: new String[] { "Aa", "BB", "Aa", "BB" }) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName(value);
+      gts.setLabel("k", value);
+      gts.setLabel("id", Integer.toString(series.size()));
+      series.add(gts);
+    }
+
+    Map<Map<String,String>, List<GeoTimeSerie>> partition = GTSHelper.partition(series, Arrays.asList("k"));
+
+    Assert.assertEquals(2, partition.size());
+
+    for (Map.Entry<Map<String,String>, List<GeoTimeSerie>> entry: partition.entrySet()) {
+      String value = entry.getKey().get("k");
+      Assert.assertEquals(1, entry.getKey().size());
+      Assert.assertEquals(2, entry.getValue().size());
+      for (GeoTimeSerie gts: entry.getValue()) {
+        Assert.assertEquals(value, gts.getName());
+      }
+    }
+  }
+}
@@ -0,0 +1,386 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptMapperFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSHelperTest {
+
+  /**
+   * Generate an unsorted GTS of the given type with duplicate ticks
+   */
+  private static GeoTimeSerie generate(Random random, TYPE type, int n) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setName("gts");
+
+    for (int i = 0; i < n; i++) {
+      long tick = random.nextInt(200) - 100;
+      long location = random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : random.nextLong();
+      long elevation = random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(1000);
+
+      Object value;
+
+      switch (type) {
+        case LONG:
+          value = (long) i;
+          break;
+        case DOUBLE:
+          value = i + 0.5D;
+          break;
+        case STRING:
+          value = "s" + i;
+          break;
+        default:
+          value = random.nextBoolean();
+      }
+
+      GTSHelper.setValue(gts, tick, location, elevation, value, false);
+    }
+
+    return gts;
+  }
+
+  private static String datapoint(GeoTimeSerie gts, int idx) {
+    return GTSHelper.tickAtIndex(gts, idx) + "/" + GTSHelper.locationAtIndex(gts, idx) + "/" + GTSHelper.elevationAtIndex(gts, idx) + "/" + GTSHelper.valueAtIndex(gts, idx);
+  }
+
+  /**
+   * @return the datapoints of 'gts' whose tick is in [start,stop], in a canonical order
+   */
+  private static List<String> datapoints(GeoTimeSerie gts, long start, long stop) {
+    List<String> datapoints = new ArrayList<String>();
+
+    for (int i = 0; i < GTSHelper.nvalues(gts); i++) {
+      long tick = GTSHelper.tickAtIndex(gts, i);
+      if (tick >= start && tick <= stop) {
+        datapoints.add(datapoint(gts, i));
+      }
+    }
+
+    Collections.sort(datapoints);
+
+    return datapoints;
+  }
+
+  @Test
+  public void testSubSerie() throws Exception {
+    Random random = new Random(1L);
+
+    for (TYPE type: new TYPE[] { TYPE.LONG, TYPE.DOUBLE, TYPE.STRING, TYPE.BOOLEAN }) {
+      GeoTimeSerie subgts = null;
+
+      for (int t = 0; t < 500; t++) {
+        GeoTimeSerie gts = generate(random, type, random.nextInt(100));
+        GeoTimeSerie original = gts.clone();
+
+        long start = random.nextInt(240) - 120;
+        long stop = start + random.nextInt(60) - 5;
+
+        // Reuse the same instance across iterations and types, as BUCKETIZE and MAP do
+        subgts = GTSHelper.subSerie(gts, start, stop, false, false, subgts);
+
+        Assert.assertTrue(subgts.sorted);
+        Assert.assertEquals(datapoints(original, start, stop), datapoints(subgts, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        for (int i = 1; i < GTSHelper.nvalues(subgts); i++) {
+          Assert.assertTrue(GTSHelper.tickAtIndex(subgts, i - 1) <= GTSHelper.tickAtIndex(subgts, i));
+        }
+
+        //
+        // When overwriting, a single datapoint is retained per tick
+        //
+
+        GeoTimeSerie overwritten = GTSHelper.subSerie(gts, start, stop, true);
+        List<String> expected = datapoints(original, start, stop);
+
+        for (int i = 0; i < GTSHelper.nvalues(overwritten); i++) {
+          Assert.assertTrue(expected.contains(datapoint(overwritten, i)));
+          if (i > 0) {
+            Assert.assertTrue(GTSHelper.tickAtIndex(overwritten, i - 1) < GTSHelper.tickAtIndex(overwritten, i));
+          }
+        }
+
+        int distinct = 0;
+        for (long tick = start; tick <= stop; tick++) {
+          if (!datapoints(original, tick, tick).isEmpty()) {
+            distinct++;
+          }
+        }
+
+        Assert.assertEquals(distinct, GTSHelper.nvalues(overwritten));
+      }
+    }
+  }
+
+  @Test
+  public void testSubSerieIndexRange() throws Exception {
+    Random random = new Random(2L);
+
+    for (TYPE type: new TYPE[] { TYPE.LONG, TYPE.DOUBLE, TYPE.STRING, TYPE.BOOLEAN }) {
+      GeoTimeSerie subgts = null;
+
+      for (int t = 0; t < 500; t++) {
+        GeoTimeSerie gts = generate(random, type, 1 + random.nextInt(100));
+        GTSHelper.sort(gts);
+
+        int from = random.nextInt(GTSHelper.nvalues(gts));
+        int to = from + random.nextInt(GTSHelper.nvalues(gts) - from + 1);
+
+        subgts = GTSHelper.subSerie(gts, from, to, subgts);
+
+        Assert.assertEquals(to - from, GTSHelper.nvalues(subgts));
+        Assert.assertEquals("gts", subgts.getName());
+
+        for (int i = from; i < to; i++) {
+          Assert.assertEquals(datapoint(gts, i), datapoint(subgts, i - from));
+        }
+      }
+    }
+  }
+
+  /**
+   * Bucketizer and mapper recording the ticks of the datapoints passed at each call
+   */
+  private static class Recorder extends NamedWarpScriptFunction implements WarpScriptBucketizerFunction, WarpScriptMapperFunction {
+    private final List<String> calls = new ArrayList<String>();
+
+    Recorder() {
+      super("recorder");
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      long[] ticks = ((long[]) args[3]).clone();
+      Arrays.sort(ticks);
+      calls.add(args[0] + " " + Arrays.toString(ticks) + " " + ((Object[]) args[6]).length);
+      return new Object[] { args[0], GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) ticks.length };
+    }
+  }
+
+  @Test
+  public void testBucketizeArguments() throws Exception {
+    Random random = new Random(3L);
+
+    for (int t = 0; t < 1000; t++) {
+      GeoTimeSerie gts = generate(random, TYPE.LONG, random.nextInt(100));
+
+      long bucketspan = 1 + random.nextInt(20);
+      int bucketcount = 1 + random.nextInt(30);
+      // 0 would let bucketize pick the last bucket
+      long lastbucket = random.nextBoolean() ? 1 + random.nextInt(150) : -1 - random.nextInt(150);
+
+      Recorder recorder = new Recorder();
+      GeoTimeSerie bucketized = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, recorder, 1000000L);
+
+      //
+      // Buckets are computed from the most recent one, only non empty buckets are passed to the bucketizer
+      //
+
+      List<String> expected = new ArrayList<String>();
+
+      for (int i = 0; i < bucketcount; i++) {
+        long end = lastbucket - i * bucketspan;
+
+        List<Long> ticks = new ArrayList<Long>();
+        for (int j = 0; j < GTSHelper.nvalues(gts); j++) {
+          long tick = GTSHelper.tickAtIndex(gts, j);
+          if (tick > end - bucketspan && tick <= end) {
+            ticks.add(tick);
+          }
+        }
+
+        if (!ticks.isEmpty()) {
+          Collections.sort(ticks);
+          expected.add(end + " " + ticks + " " + ticks.size());
+        }
+      }
+
+      Assert.assertEquals(expected, recorder.calls);
+      Assert.assertEquals(expected.size(), GTSHelper.nvalues(bucketized));
+    }
+  }
+
+  @Test
+  public void testMapArguments() throws Exception {
+    Random random = new Random(4L);
+
+    for (int t = 0; t < 1000; t++) {
+      GeoTimeSerie gts = generate(random, TYPE.DOUBLE, 1 + random.nextInt(50));
+
+      // Windows expressed as durations (negative values)
+      long prewindow = -random.nextInt(20);
+      long postwindow = -random.nextInt(20);
+
+      Recorder recorder = new Recorder();
+      GTSHelper.map(gts, recorder, prewindow, postwindow, 0, false, 1, false, null);
+
+      List<Long> ticks = new ArrayList<Long>();
+      for (int j = 0; j < GTSHelper.nvalues(gts); j++) {
+        ticks.add(GTSHelper.tickAtIndex(gts, j));
+      }
+      Collections.sort(ticks);
+
+      List<String> expected = new ArrayList<String>();
+
+      //
+      // The mapper is called once per datapoint, the window of each call holds all the datapoints
+      // (including those sharing the boundary ticks) in [tick + prewindow, tick - postwindow]
+      //
+
+      for (long tick: ticks) {
+        List<Long> window = new ArrayList<Long>();
+        for (long other: ticks) {
+          if (other >= tick + prewindow && other <= tick - postwindow) {
+            window.add(other);
+          }
+        }
+        expected.add(tick + " " + window + " " + window.size());
+      }
+
+      Assert.assertEquals(expected, recorder.calls);
+    }
+  }
+
+  /**
+   * Generate a GTS whose ticks are random, in ascending or descending runs or near the bounds of LONGs
+   */
+  private static GeoTimeSerie generateForSort(Random random, TYPE type, int n) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+
+    int mode = random.nextInt(5);
+    boolean geo = random.nextBoolean();
+    long tick = random.nextInt(1000) - 500;
+
+    for (int i = 0; i < n; i++) {
+      long t;
+
+      switch (mode) {
+        case 0:
+          t = random.nextInt(200) - 100;
+          break;
+        case 1:
+          t = tick += random.nextInt(3);
+          break;
+        case 2:
+          t = tick -= random.nextInt(3);
+          break;
+        case 3:
+          // Descending runs starting at random ticks
+          if (0 == random.nextInt(50)) {
+            tick = random.nextInt(1000);
+          }
+          t = tick--;
+          break;
+        default:
+          t = random.nextBoolean() ? Long.MIN_VALUE + random.nextInt(3) : Long.MAX_VALUE - random.nextInt(3);
+      }
+
+      Object value;
+
+      switch (type) {
+        case LONG:
+          value = (long) random.nextInt(20) - 10;
+          break;
+        case DOUBLE:
+          int k = random.nextInt(10);
+          value = 0 == k ? -0.0D : (1 == k ? 0.0D : (random.nextInt(20) - 10) / 3.0D);
+          break;
+        case STRING:
+          value = "s" + random.nextInt(9);
+          break;
+        default:
+          value = random.nextBoolean();
+      }
+
+      GTSHelper.setValue(gts, t, geo ? random.nextInt(5) : GeoTimeSerie.NO_LOCATION, geo ? random.nextInt(5) : GeoTimeSerie.NO_ELEVATION, value, false);
+    }
+
+    return gts;
+  }
+
+  @Test
+  public void testSort() throws Exception {
+    Random random = new Random(5L);
+
+    for (int t = 0; t < 5000; t++) {
+      TYPE type = TYPE.values()[1 + random.nextInt(4)];
+      GeoTimeSerie gts = generateForSort(random, type, random.nextInt(0 == t % 10 ? 3000 : 60));
+      List<String> expected = datapoints(gts, Long.MIN_VALUE, Long.MAX_VALUE);
+
+      boolean reversed = random.nextBoolean();
+      GTSHelper.sort(gts, reversed);
+
+      Assert.assertEquals(expected, datapoints(gts, Long.MIN_VALUE, Long.MAX_VALUE));
+
+      for (int i = 1; i < GTSHelper.nvalues(gts); i++) {
+        long previous = GTSHelper.tickAtIndex(gts, i - 1);
+        long current = GTSHelper.tickAtIndex(gts, i);
+        Assert.assertTrue(reversed ? previous >= current : previous <= current);
+      }
+    }
+  }
+
+  @Test
+  public void testValueSort() throws Exception {
+    Random random = new Random(6L);
+
+    for (int t = 0; t < 5000; t++) {
+      TYPE type = TYPE.values()[1 + random.nextInt(4)];
+      GeoTimeSerie gts = generateForSort(random, type, random.nextInt(0 == t % 10 ? 3000 : 60));
+      List<String> expected = datapoints(gts, Long.MIN_VALUE, Long.MAX_VALUE);
+
+      // A sorted GTS is no longer sorted by ticks once sorted by values
+      if (random.nextBoolean()) {
+        GTSHelper.sort(gts);
+      }
+
+      boolean reversed = random.nextBoolean();
+      GTSHelper.valueSort(gts, reversed);
+
+      Assert.assertEquals(expected, datapoints(gts, Long.MIN_VALUE, Long.MAX_VALUE));
+      Assert.assertFalse(gts.sorted);
+
+      if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+        continue;
+      }
+
+      //
+      // Values are sorted, ties are sorted by ticks
+      //
+
+      for (int i = 1; i < GTSHelper.nvalues(gts); i++) {
+        double previous = ((Number) GTSHelper.valueAtIndex(gts, i - 1)).doubleValue();
+        double current = ((Number) GTSHelper.valueAtIndex(gts, i)).doubleValue();
+        int cmp = previous < current ? -1 : (previous > current ? 1 : Long.compare(GTSHelper.tickAtIndex(gts, i - 1), GTSHelper.tickAtIndex(gts, i)));
+        Assert.assertTrue(reversed ? cmp >= 0 : cmp <= 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.continuum.gts;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptLib;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib;
+
+public class GTSStreamingBucketizerTest {
+
+  private static final String[] STREAMING = {
+    "bucketizer.sum", "bucketizer.mean", "bucketizer.min", "bucketizer.max", "bucketizer.count", "bucketizer.first", "bucketizer.last",
+  };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static Metadata metadata() {
+    Metadata metadata = new Metadata();
+    metadata.setName("streaming");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    metadata.setAttributes(new HashMap<String,String>());
+    return metadata;
+  }
+
+  /**
+   * Generate datapoints with unique ticks, some of them with a location and/or an elevation
+   */
+  private static GeoTimeSerie generate(Random random, TYPE type) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setMetadata(metadata());
+
+    int n = random.nextInt(2000);
+    long base = random.nextInt(100000) - 50000;
+
+    for (int i = 0; i < n; i++) {
+      long tick = base + random.nextInt(100000);
+
+      if (null != GTSHelper.valueAtTick(gts, tick)) {
+        continue;
+      }
+
+      long location = random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : GeoXPLib.toGeoXPPoint(random.nextDouble() * 90.0D, random.nextDouble() * 180.0D);
+      long elevation = random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(10000);
+      Object value;
+
+      switch (type) {
+        case LONG:
+          value = (long) random.nextInt(1000) - 500;
+          break;
+        case DOUBLE:
+          value = random.nextGaussian() * 1000.0D;
+          break;
+        case BOOLEAN:
+          value = random.nextBoolean();
+          break;
+        default:
+          value = "v" + random.nextInt(100);
+      }
+
+      GTSHelper.setValue(gts, tick, location, elevation, value, false);
+    }
+
+    return gts;
+  }
+
+  private static void assertSameBuckets(GeoTimeSerie expected, GeoTimeSerie actual) {
+    Assert.assertEquals(expected.getName(), actual.getName());
+    Assert.assertEquals(expected.getLabels(), actual.getLabels());
+    Assert.assertEquals(expected.lastbucket, actual.lastbucket);
+    Assert.assertEquals(expected.bucketcount, actual.bucketcount);
+    Assert.assertEquals(expected.bucketspan, actual.bucketspan);
+    Assert.assertEquals(expected.size(), actual.size());
+
+    GTSHelper.sort(expected);
+    GTSHelper.sort(actual);
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(actual, i));
+      Assert.assertEquals(GTSHelper.locationAtIndex(expected, i), GTSHelper.locationAtIndex(actual, i));
+      Assert.assertEquals(GTSHelper.elevationAtIndex(expected, i), GTSHelper.elevationAtIndex(actual, i));
+
+      Object value = GTSHelper.valueAtIndex(expected, i);
+
+      if (value instanceof Double) {
+        // Sums are computed using compensated summation
+        double d = ((Double) value).doubleValue();
+        Assert.assertEquals(d, ((Double) GTSHelper.valueAtIndex(actual, i)).doubleValue(), 1e-9 * Math.max(1.0D, Math.abs(d)) * expected.size());
+      } else {
+        Assert.assertEquals(value, GTSHelper.valueAtIndex(actual, i));
+      }
+    }
+  }
+
+  /**
+   * Add the datapoints of 'gts' in random order and compare the result with GTSHelper.bucketize
+   */
+  private static GTSStreamingBucketizer check(Random random, GeoTimeSerie gts, String bucketizer, long bucketspan, int bucketcount, long lastbucket) throws Exception {
+    WarpScriptBucketizerFunction function = (WarpScriptBucketizerFunction) WarpScriptLib.getFunction(bucketizer);
+
+    List<Integer> order = new ArrayList<Integer>();
+    for (int i = 0; i < gts.size(); i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, random);
+
+    GTSStreamingBucketizer streaming = new GTSStreamingBucketizer(bucketspan, bucketcount, lastbucket, function, Long.MAX_VALUE, null);
+
+    for (int i: order) {
+      Assert.assertTrue(streaming.add(GTSHelper.tickAtIndex(gts, i), GTSHelper.locationAtIndex(gts, i), GTSHelper.elevationAtIndex(gts, i), GTSHelper.valueAtIndex(gts, i)));
+    }
+
+    Assert.assertEquals(gts.size(), streaming.getCount());
+
+    GeoTimeSerie expected = GTSHelper.bucketize(gts.clone(), bucketspan, bucketcount, lastbucket, function, Long.MAX_VALUE);
+    assertSameBuckets(expected, streaming.bucketize(gts.getMetadata()));
+
+    return streaming;
+  }
+
+  @Test
+  public void testStreaming() throws Exception {
+    Random random = new Random(1L);
+
+    for (int t = 0; t < 300; t++) {
+      GeoTimeSerie gts = generate(random, random.nextBoolean() ? TYPE.LONG : TYPE.DOUBLE);
+
+      long bucketspan = 1 + random.nextInt(5000);
+      int bucketcount = random.nextBoolean() ? 0 : 1 + random.nextInt(100);
+      long lastbucket = random.nextInt(120000) - 60000;
+
+      if (0 == lastbucket) {
+        lastbucket = 1;
+      }
+
+      for (String bucketizer: STREAMING) {
+        GTSStreamingBucketizer streaming = check(random, gts, bucketizer, bucketspan, bucketcount, lastbucket);
+        // Empty series never pick a mode
+        Assert.assertEquals(gts.size() > 0, streaming.isStreaming());
+      }
+    }
+  }
+
+  /**
+   * Series which cannot be aggregated as they are read are buffered
+   */
+  @Test
+  public void testBuffered() throws Exception {
+    Random random = new Random(2L);
+
+    for (int t = 0; t < 100; t++) {
+      GeoTimeSerie gts = generate(random, TYPE.DOUBLE);
+
+      if (0 == gts.size()) {
+        continue;
+      }
+
+      // Grid depending on the datapoints
+      Assert.assertFalse(check(random, gts, "bucketizer.sum", 1000, 0, 0).isStreaming());
+      Assert.assertFalse(check(random, gts, "bucketizer.mean", 0, 1 + random.nextInt(50), 200000).isStreaming());
+
+      // Bucketizer which is not incremental
+      Assert.assertFalse(check(random, gts, "bucketizer.median", 1000, 0, 10000).isStreaming());
+
+      // Type the bucketizer does not aggregate incrementally
+      gts = generate(random, random.nextBoolean() ? TYPE.STRING : TYPE.BOOLEAN);
+
+      if (gts.size() > 0) {
+        Assert.assertFalse(check(random, gts, "bucketizer.max", 1000, 0, 10000).isStreaming());
+        Assert.assertTrue(check(random, gts, "bucketizer.last", 1000, 0, 10000).isStreaming());
+      }
+    }
+  }
+
+  /**
+   * Values are converted to the type of the series, which is the one of the first value unless forced
+   */
+  @Test
+  public void testType() throws Exception {
+    WarpScriptBucketizerFunction sum = (WarpScriptBucketizerFunction) WarpScriptLib.getFunction("bucketizer.sum");
+
+    GTSStreamingBucketizer streaming = new GTSStreamingBucketizer(10, 0, 100, sum, Long.MAX_VALUE, null);
+    streaming.add(100, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+    streaming.add(99, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 2.5D);
+    streaming.add(98, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "3");
+    // Unsupported values are ignored
+    Assert.assertFalse(streaming.add(97, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, new Object()));
+    Assert.assertEquals(3L, streaming.getCount());
+
+    GeoTimeSerie bucketized = streaming.bucketize(metadata());
+    Assert.assertEquals(6L, GTSHelper.valueAtTick(bucketized, 100));
+
+    streaming = new GTSStreamingBucketizer(10, 0, 100, sum, Long.MAX_VALUE, TYPE.DOUBLE);
+    streaming.add(100, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+    streaming.add(99, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 2.5D);
+    Assert.assertEquals(3.5D, GTSHelper.valueAtTick(streaming.bucketize(metadata()), 100));
+  }
+
+  @Test
+  public void testMaxBuckets() throws Exception {
+    WarpScriptBucketizerFunction sum = (WarpScriptBucketizerFunction) WarpScriptLib.getFunction("bucketizer.sum");
+
+    GTSStreamingBucketizer streaming = new GTSStreamingBucketizer(10, 0, 100, sum, 5, null);
+
+    // Datapoints after the last bucket are skipped
+    streaming.add(1000, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+    streaming.add(51, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+
+    try {
+      streaming.add(50, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+      Assert.fail();
+    } catch (Exception e) {
+      Assert.assertTrue(e.getMessage().contains("exceed maximum"));
+    }
+
+    try {
+      new GTSStreamingBucketizer(10, 6, 100, sum, 5, null);
+      Assert.fail();
+    } catch (Exception e) {
+      Assert.assertTrue(e.getMessage().contains("exceed maximum"));
+    }
+  }
+}
@@ -0,0 +1,116 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSStringDictionaryTest {
+
+  @Test
+  public void testIntern() {
+    GTSStringDictionary dict = new GTSStringDictionary();
+
+    String a = new String("A");
+
+    Assert.assertSame(a, dict.intern(a));
+    Assert.assertSame(a, dict.intern(new String("A")));
+    Assert.assertEquals(0, dict.code("A"));
+    Assert.assertEquals(-1, dict.code("B"));
+    Assert.assertEquals(1, dict.add("B"));
+    Assert.assertEquals("B", dict.get(1));
+    Assert.assertNull(dict.get(2));
+    Assert.assertNull(dict.intern(null));
+    Assert.assertEquals(2, dict.size());
+  }
+
+  @Test
+  public void testFull() {
+    GTSStringDictionary dict = new GTSStringDictionary();
+
+    for (int i = 0; i < GTSStringDictionary.MAX_ENTRIES; i++) {
+      Assert.assertEquals(i, dict.add(Integer.toString(i)));
+    }
+
+    Assert.assertEquals(-1, dict.add("full"));
+
+    String value = new String("full");
+    Assert.assertSame(value, dict.intern(value));
+    Assert.assertEquals(GTSStringDictionary.MAX_ENTRIES, dict.size());
+  }
+
+  /**
+   * Empty clones only keep the dictionary while they hold STRING values
+   */
+  @Test
+  public void testCloneEmpty() {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    GTSHelper.useStringDictionary(gts);
+    GTSHelper.setValue(gts, 0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "A", false);
+
+    GeoTimeSerie strings = gts.cloneEmpty();
+    Assert.assertSame(gts.getStringDictionary(), strings.getStringDictionary());
+    GTSHelper.setValue(strings, 0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "B", false);
+    Assert.assertSame(gts.getStringDictionary(), strings.getStringDictionary());
+    Assert.assertEquals(1, gts.getStringDictionary().code("B"));
+
+    GeoTimeSerie longs = gts.cloneEmpty();
+    GTSHelper.setValue(longs, 0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L, false);
+    Assert.assertNull(longs.getStringDictionary());
+
+    // A GTS of another type never hands its dictionary out
+    GeoTimeSerie empty = new GeoTimeSerie();
+    GTSHelper.useStringDictionary(empty);
+    Assert.assertNull(empty.cloneEmpty().getStringDictionary());
+  }
+
+  @Test
+  public void testConcurrentIntern() throws Exception {
+    final GTSStringDictionary dict = new GTSStringDictionary();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    Thread[] threads = new Thread[8];
+
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              String value = Integer.toString(i % 5000);
+              String canonical = dict.intern(new String(value));
+              Assert.assertEquals(value, canonical);
+              Assert.assertSame(canonical, dict.get(dict.code(value)));
+            }
+          } catch (Throwable th) {
+            error.set(th);
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    Assert.assertNull(error.get());
+    Assert.assertEquals(5000, dict.size());
+  }
+}
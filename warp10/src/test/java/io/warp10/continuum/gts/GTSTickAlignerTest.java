@@ -0,0 +1,268 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptReducerFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSTickAlignerTest {
+
+  /**
+   * Generate 'n' series, bucketized on the same grid (with possibly fewer buckets for some) if 'bucketized' is true.
+   * If 'unique' is true each series has at most one datapoint per tick.
+   */
+  private static List<GeoTimeSerie> generate(Random random, int n, boolean bucketized, boolean unique) {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int k = 0; k < n; k++) {
+      int bucketcount = 50 + random.nextInt(51);
+      GeoTimeSerie gts = bucketized ? new GeoTimeSerie(1000L, bucketcount, 10L, 4) : new GeoTimeSerie();
+      gts.setName("n" + (k % 3));
+      gts.setLabel("k", Integer.toString(k));
+
+      int nvalues = random.nextInt(30);
+
+      for (int v = 0; v < nvalues; v++) {
+        long tick = bucketized ? 1000L - 10L * random.nextInt(bucketcount) : random.nextInt(50);
+
+        if (unique && GTSHelper.nvalues(gts) > 0) {
+          // Skip ticks already present
+          boolean present = false;
+          for (int i = 0; i < GTSHelper.nvalues(gts); i++) {
+            present |= tick == GTSHelper.tickAtIndex(gts, i);
+          }
+          if (present) {
+            continue;
+          }
+        }
+
+        GTSHelper.setValue(gts, tick, random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : random.nextInt(100), random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(100), (long) random.nextInt(9), false);
+      }
+
+      series.add(gts);
+    }
+
+    return series;
+  }
+
+  /**
+   * Sweep the series by scanning all of them at each step, rendering the tick and the values of the present series
+   */
+  private static String naiveSweep(List<GeoTimeSerie> series) {
+    StringBuilder sb = new StringBuilder();
+    int[] cursors = new int[series.size()];
+
+    for (GeoTimeSerie gts: series) {
+      GTSHelper.sort(gts);
+    }
+
+    while (true) {
+      long smallest = Long.MAX_VALUE;
+      boolean found = false;
+
+      for (int s = 0; s < cursors.length; s++) {
+        GeoTimeSerie gts = series.get(s);
+        if (cursors[s] < GTSHelper.nvalues(gts) && (!found || GTSHelper.tickAtIndex(gts, cursors[s]) < smallest)) {
+          smallest = GTSHelper.tickAtIndex(gts, cursors[s]);
+          found = true;
+        }
+      }
+
+      if (!found) {
+        break;
+      }
+
+      sb.append(smallest).append(":");
+
+      for (int s = 0; s < cursors.length; s++) {
+        GeoTimeSerie gts = series.get(s);
+        if (cursors[s] < GTSHelper.nvalues(gts) && smallest == GTSHelper.tickAtIndex(gts, cursors[s])) {
+          sb.append(" ").append(s).append("=").append(GTSHelper.locationAtIndex(gts, cursors[s])).append("/").append(GTSHelper.valueAtIndex(gts, cursors[s]));
+          cursors[s]++;
+        }
+      }
+
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  private static String alignerSweep(List<GeoTimeSerie> series) {
+    StringBuilder sb = new StringBuilder();
+    GTSTickAligner aligner = new GTSTickAligner(series);
+
+    while (aligner.next()) {
+      sb.append(aligner.tick()).append(":");
+
+      int[] indices = aligner.indices();
+      int[] present = aligner.present();
+
+      int npresent = 0;
+
+      for (int s = 0; s < series.size(); s++) {
+        if (indices[s] < 0) {
+          continue;
+        }
+        Assert.assertEquals(s, present[npresent++]);
+        GeoTimeSerie gts = series.get(s);
+        Assert.assertEquals(aligner.tick(), GTSHelper.tickAtIndex(gts, indices[s]));
+        sb.append(" ").append(s).append("=").append(GTSHelper.locationAtIndex(gts, indices[s])).append("/").append(GTSHelper.valueAtIndex(gts, indices[s]));
+      }
+
+      Assert.assertEquals(npresent, aligner.presentCount());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  private static List<GeoTimeSerie> copy(List<GeoTimeSerie> series) {
+    List<GeoTimeSerie> copies = new ArrayList<GeoTimeSerie>();
+    for (GeoTimeSerie gts: series) {
+      copies.add(gts.clone());
+    }
+    return copies;
+  }
+
+  @Test
+  public void testSweep() throws Exception {
+    Random random = new Random(7L);
+
+    for (int iter = 0; iter < 300; iter++) {
+      // Few series use the dense scan, many series the heap
+      int n = 1 + random.nextInt(0 == iter % 2 ? 40 : 6);
+      // Bucketized series with unique ticks are swept bucket by bucket
+      boolean bucketized = random.nextBoolean();
+      boolean unique = random.nextBoolean();
+
+      List<GeoTimeSerie> series = generate(random, n, bucketized, unique);
+
+      Assert.assertEquals(naiveSweep(copy(series)), alignerSweep(series));
+    }
+  }
+
+  @Test
+  public void testSweep_empty() throws Exception {
+    Assert.assertFalse(new GTSTickAligner(new ArrayList<GeoTimeSerie>()).next());
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < 20; i++) {
+      series.add(new GeoTimeSerie());
+    }
+
+    Assert.assertFalse(new GTSTickAligner(series).next());
+  }
+
+  /**
+   * Reducer recording its arguments
+   */
+  private static class Recorder extends NamedWarpScriptFunction implements WarpScriptReducerFunction {
+    private final StringBuilder sb = new StringBuilder();
+
+    Recorder() {
+      super("recorder");
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      sb.append(args[0]);
+      sb.append(Arrays.toString((String[]) args[1]));
+      sb.append(Arrays.toString((long[]) args[3]));
+      sb.append(Arrays.toString((long[]) args[4]));
+      sb.append(Arrays.toString((long[]) args[5]));
+      sb.append(Arrays.toString((Object[]) args[6]));
+      sb.append("\n");
+      return new Object[] { 0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
+    }
+  }
+
+  @Test
+  public void testReduceArguments() throws Exception {
+    Random random = new Random(7L);
+
+    for (int iter = 0; iter < 100; iter++) {
+      List<GeoTimeSerie> series = generate(random, 1 + random.nextInt(0 == iter % 2 ? 40 : 6), random.nextBoolean(), false);
+
+      //
+      // Build the expected reducer arguments from a naive sweep
+      //
+
+      StringBuilder expected = new StringBuilder();
+      List<GeoTimeSerie> sorted = copy(series);
+      int[] cursors = new int[sorted.size()];
+
+      for (GeoTimeSerie gts: sorted) {
+        GTSHelper.sort(gts);
+      }
+
+      while (true) {
+        long smallest = Long.MAX_VALUE;
+
+        for (int s = 0; s < cursors.length; s++) {
+          if (cursors[s] < GTSHelper.nvalues(sorted.get(s))) {
+            smallest = Math.min(smallest, GTSHelper.tickAtIndex(sorted.get(s), cursors[s]));
+          }
+        }
+
+        if (Long.MAX_VALUE == smallest) {
+          break;
+        }
+
+        String[] names = new String[cursors.length];
+        long[] ticks = new long[cursors.length];
+        long[] locations = new long[cursors.length];
+        long[] elevations = new long[cursors.length];
+        Object[] values = new Object[cursors.length];
+
+        for (int s = 0; s < cursors.length; s++) {
+          GeoTimeSerie gts = sorted.get(s);
+          names[s] = gts.getName();
+
+          if (cursors[s] < GTSHelper.nvalues(gts) && smallest == GTSHelper.tickAtIndex(gts, cursors[s])) {
+            ticks[s] = smallest;
+            locations[s] = GTSHelper.locationAtIndex(gts, cursors[s]);
+            elevations[s] = GTSHelper.elevationAtIndex(gts, cursors[s]);
+            values[s] = GTSHelper.valueAtIndex(gts, cursors[s]);
+            cursors[s]++;
+          } else {
+            ticks[s] = Long.MIN_VALUE;
+            locations[s] = GeoTimeSerie.NO_LOCATION;
+            elevations[s] = GeoTimeSerie.NO_ELEVATION;
+          }
+        }
+
+        expected.append(smallest).append(Arrays.toString(names)).append(Arrays.toString(ticks)).append(Arrays.toString(locations)).append(Arrays.toString(elevations)).append(Arrays.toString(values)).append("\n");
+      }
+
+      Recorder recorder = new Recorder();
+      GTSHelper.reduce(recorder, copy(series), new ArrayList<String>());
+
+      Assert.assertEquals(expected.toString(), recorder.sb.toString());
+    }
+  }
+}
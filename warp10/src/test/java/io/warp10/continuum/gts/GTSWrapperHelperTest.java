@@ -0,0 +1,199 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.continuum.store.thrift.data.GTSWrapperCodec;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSWrapperHelperTest {
+
+  @Test
+  public void testStringDictionary() throws Exception {
+    String[] states = new String[] { "STARTING", "RUNNING", "STOPPING", "STOPPED" };
+
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setName("states");
+    gts.setLabels(new HashMap<String,String>());
+
+    for (int i = 0; i < 1000; i++) {
+      GTSHelper.setValue(gts, i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, states[(i * 7) % states.length], false);
+    }
+
+    GTSWrapper plain = GTSWrapperHelper.fromGTSToGTSWrapper(gts, false, 1.0, false, false);
+    GTSWrapper dict = GTSWrapperHelper.fromGTSToGTSWrapper(gts, false, 1.0, false, true);
+
+    Assert.assertTrue(dict.getEncoded().length < plain.getEncoded().length / 2);
+
+    GeoTimeSerie unwrapped = GTSWrapperHelper.fromGTSWrapperToGTS(dict);
+
+    Assert.assertEquals(gts.size(), unwrapped.size());
+    Assert.assertEquals("states", unwrapped.getName());
+
+    for (int i = 0; i < gts.size(); i++) {
+      Assert.assertEquals(GTSHelper.tickAtIndex(gts, i), GTSHelper.tickAtIndex(unwrapped, i));
+      Assert.assertEquals(GTSHelper.valueAtIndex(gts, i), GTSHelper.valueAtIndex(unwrapped, i));
+    }
+
+    //
+    // The dictionary only applies to STRING GTS
+    //
+
+    GeoTimeSerie longs = new GeoTimeSerie();
+
+    for (int i = 0; i < 100; i++) {
+      GTSHelper.setValue(longs, i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) (i % 3), false);
+    }
+
+    Assert.assertArrayEquals(GTSWrapperHelper.fromGTSToGTSWrapper(longs, false, 1.0, false, false).getEncoded(),
+        GTSWrapperHelper.fromGTSToGTSWrapper(longs, false, 1.0, false, true).getEncoded());
+  }
+
+  private static GTSEncoder redundantEncoder() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    for (int i = 0; i < 100000; i++) {
+      encoder.addValue(i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) (i % 10));
+    }
+
+    return encoder;
+  }
+
+  private static void assertSameContent(GTSEncoder encoder, GTSWrapper wrapper) throws Exception {
+    GTSDecoder expected = encoder.getDecoder(true);
+    GTSDecoder decoder = GTSWrapperHelper.fromGTSWrapperToGTSDecoder(wrapper);
+
+    while(expected.next()) {
+      Assert.assertTrue(decoder.next());
+      Assert.assertEquals(expected.getTimestamp(), decoder.getTimestamp());
+      Assert.assertEquals(expected.getValue(), decoder.getValue());
+    }
+
+    Assert.assertFalse(decoder.next());
+  }
+
+  @Test
+  public void testCodecs() throws Exception {
+    GTSEncoder encoder = redundantEncoder();
+
+    for (GTSWrapperCodec codec: GTSWrapperCodec.values()) {
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, codec, 1.0, Integer.MAX_VALUE);
+
+      Assert.assertTrue(wrapper.isCompressed());
+      Assert.assertTrue(wrapper.getEncoded().length < encoder.size());
+      Assert.assertEquals(encoder.getCount(), wrapper.getCount());
+
+      if (GTSWrapperCodec.GZIP == codec) {
+        // GZIP wrappers are written as before the codecs were introduced so older versions can read them
+        Assert.assertFalse(wrapper.isSetCodec());
+      } else {
+        Assert.assertEquals(codec, wrapper.getCodec());
+      }
+
+      assertSameContent(encoder, wrapper);
+    }
+
+    //
+    // No codec or no compression leaves the content as is
+    //
+
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, null, 1.0, Integer.MAX_VALUE);
+    Assert.assertFalse(wrapper.isCompressed());
+    Assert.assertArrayEquals(encoder.getBytes(), wrapper.getEncoded());
+
+    wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, false, GTSWrapperCodec.LZ4, 1.0, Integer.MAX_VALUE);
+    Assert.assertFalse(wrapper.isCompressed());
+    assertSameContent(encoder, wrapper);
+  }
+
+  @Test
+  public void testCodecs_incompressible() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    Random random = new Random(0L);
+
+    for (int i = 0; i < 1000; i++) {
+      encoder.addValue(random.nextLong(), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, random.nextLong());
+    }
+
+    Assert.assertNull(GTSWrapperHelper.selectCodec(encoder.getBytes()));
+
+    for (GTSWrapperCodec codec: GTSWrapperCodec.values()) {
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, codec, 1.0, Integer.MAX_VALUE);
+      // Compression overhead is never kept
+      Assert.assertTrue(wrapper.getEncoded().length <= encoder.size());
+      Assert.assertEquals(wrapper.isCompressed(), wrapper.getEncoded().length < encoder.size());
+      assertSameContent(encoder, wrapper);
+    }
+  }
+
+  @Test
+  public void testSelectCodec() throws Exception {
+    Assert.assertNull(GTSWrapperHelper.selectCodec(new byte[0]));
+    Assert.assertEquals(GTSWrapperCodec.LZ4_GZIP, GTSWrapperHelper.selectCodec(redundantEncoder().getBytes()));
+
+    // Moderately redundant data, random bytes drawn from a small alphabet
+    byte[] bytes = new byte[100000];
+    Random random = new Random(0L);
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (0 == i % 4 ? random.nextInt() : i % 7);
+    }
+
+    Assert.assertEquals(GTSWrapperCodec.LZ4, GTSWrapperHelper.selectCodec(bytes));
+  }
+
+  @Test
+  public void testGzipPasses() throws Exception {
+    GTSEncoder encoder = redundantEncoder();
+
+    // A low compression ratio threshold leads to several gzip passes
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, GTSWrapperCodec.GZIP, 1.0, Integer.MAX_VALUE);
+    Assert.assertTrue(wrapper.getCompressionPasses() > 1);
+    assertSameContent(encoder, wrapper);
+
+    wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, GTSWrapperCodec.GZIP, 1.0, 1);
+    Assert.assertTrue(wrapper.isCompressed());
+    // A single pass is the default and is not stored
+    Assert.assertFalse(wrapper.isSetCompressionPasses());
+    assertSameContent(encoder, wrapper);
+  }
+
+  @Test
+  public void testCorruptedContent() throws Exception {
+    GTSEncoder encoder = redundantEncoder();
+
+    for (GTSWrapperCodec codec: new GTSWrapperCodec[] { GTSWrapperCodec.LZ4, GTSWrapperCodec.SNAPPY, GTSWrapperCodec.LZ4_GZIP }) {
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, codec, 1.0, Integer.MAX_VALUE);
+      byte[] encoded = wrapper.getEncoded();
+
+      // Claim an uncompressed length way above what the content could expand to
+      encoded[0] = (byte) 0x7F;
+      encoded[1] = (byte) 0xFF;
+
+      try {
+        GTSWrapperHelper.fromGTSWrapperToGTSDecoder(wrapper);
+        Assert.fail("Corrupted " + codec + " content was accepted.");
+      } catch (RuntimeException re) {
+        Assert.assertEquals("Invalid compressed content.", re.getMessage());
+      }
+    }
+  }
+}
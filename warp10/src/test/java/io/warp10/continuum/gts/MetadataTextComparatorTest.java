@@ -0,0 +1,100 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataTextComparatorTest {
+
+  /**
+   * Compare names, then the label names and values in label name order. Metadata without labels sort first,
+   * when the labels of one are a prefix of the labels of the other both compare as equal.
+   */
+  private static int compare(Metadata m1, Metadata m2) {
+    int comp = m1.getName().compareTo(m2.getName());
+
+    if (0 != comp) {
+      return comp;
+    }
+
+    if (m1.getLabelsSize() == 0 || m2.getLabelsSize() == 0) {
+      return m1.getLabelsSize() - m2.getLabelsSize();
+    }
+
+    Iterator<Map.Entry<String,String>> iter1 = new TreeMap<String,String>(m1.getLabels()).entrySet().iterator();
+    Iterator<Map.Entry<String,String>> iter2 = new TreeMap<String,String>(m2.getLabels()).entrySet().iterator();
+
+    while (iter1.hasNext() && iter2.hasNext()) {
+      Map.Entry<String,String> entry1 = iter1.next();
+      Map.Entry<String,String> entry2 = iter2.next();
+
+      comp = entry1.getKey().compareTo(entry2.getKey());
+
+      if (0 == comp) {
+        comp = entry1.getValue().compareTo(entry2.getValue());
+      }
+
+      if (0 != comp) {
+        return comp;
+      }
+    }
+
+    return 0;
+  }
+
+  @Test
+  public void testCompare() {
+    Random random = new Random(1L);
+    MetadataTextComparator comparator = new MetadataTextComparator(null);
+
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+
+    for (int i = 0; i < 500; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("c" + random.nextInt(3));
+
+      if (!metadatas.isEmpty() && 0 == random.nextInt(5)) {
+        // Share the label map of another Metadata, as the GTS of a partition class do
+        metadata.setLabels(metadatas.get(random.nextInt(metadatas.size())).getLabels());
+      } else {
+        metadata.setLabels(new HashMap<String,String>());
+        int n = random.nextInt(4);
+        for (int j = 0; j < n; j++) {
+          metadata.getLabels().put("l" + random.nextInt(4), "v" + random.nextInt(3));
+        }
+      }
+
+      metadatas.add(metadata);
+    }
+
+    for (Metadata m1: metadatas) {
+      for (Metadata m2: metadatas) {
+        Assert.assertEquals(Integer.signum(compare(m1, m2)), Integer.signum(comparator.compare(m1, m2)));
+      }
+    }
+  }
+}
@@ -0,0 +1,222 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.continuum.store;
+
+import io.warp10.SmartPattern;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataIndexTest {
+
+  private static final String[] CLASSES = { "a", "b", "c", "cpu", "mem" };
+
+  private static final String[][] SELECTORS = {
+    { "host", "=web-3" }, { "host", "~web-1.*" }, { "dc", "=dc1" }, { "dc", "~a?dc2" },
+    { "role", "=r1" }, { "role", "~.*" }, { "nope", "=x" }, { "host", "~.*" },
+  };
+
+  private static Metadata metadata(String name, long labelsId, Map<String,String> labels, Map<String,String> attributes) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabelsId(labelsId);
+    metadata.setLabels(labels);
+    metadata.setAttributes(attributes);
+    return metadata;
+  }
+
+  private static SmartPattern pattern(String expr) {
+    return expr.startsWith("=") ? new SmartPattern(expr.substring(1)) : new SmartPattern(Pattern.compile(expr.substring(1)));
+  }
+
+  private static boolean matches(Metadata metadata, List<String> names, List<SmartPattern> patterns) {
+    for (int i = 0; i < names.size(); i++) {
+      String value = metadata.getLabels().get(names.get(i));
+      if (null == value) {
+        value = metadata.getAttributes().get(names.get(i));
+      }
+      if (null == value || !patterns.get(i).matches(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test
+  public void testSelect() {
+    MetadataIndex index = new MetadataIndex();
+
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("host", "web-1");
+    Map<String,String> attributes = new HashMap<String,String>();
+    attributes.put("host", "attr");
+    attributes.put("role", "db");
+
+    Metadata m0 = metadata("cpu", 0L, labels, attributes);
+    Metadata m1 = metadata("cpu", 1L, new HashMap<String,String>(), new HashMap<String,String>());
+    index.add(m0);
+    index.add(m1);
+
+    Map<Long,Metadata> classMetadatas = new HashMap<Long,Metadata>();
+    classMetadatas.put(0L, m0);
+    classMetadatas.put(1L, m1);
+
+    // No narrowing pattern
+    Assert.assertNull(index.select(new ArrayList<String>(), new ArrayList<SmartPattern>()));
+    Assert.assertNull(index.select(Arrays.asList("host"), Arrays.asList(pattern("~.*"))));
+    Assert.assertEquals(2, index.select("cpu", null, classMetadatas).size());
+
+    // Unknown label name or value
+    Assert.assertTrue(index.select(Arrays.asList("nope"), Arrays.asList(pattern("=x"))).isEmpty());
+    Assert.assertTrue(index.select(Arrays.asList("host"), Arrays.asList(pattern("=web-2"))).isEmpty());
+
+    // Attributes are indexed unless a label has the same name
+    OrdinalBitmap selection = index.select(Arrays.asList("role"), Arrays.asList(pattern("=db")));
+    Assert.assertEquals(Arrays.asList(m0), new ArrayList<Metadata>(index.select("cpu", selection, classMetadatas)));
+    Assert.assertTrue(index.select(Arrays.asList("host"), Arrays.asList(pattern("=attr"))).isEmpty());
+
+    selection = index.select(Arrays.asList("host"), Arrays.asList(pattern("~web-.*")));
+    Assert.assertEquals(Arrays.asList(m0), new ArrayList<Metadata>(index.select("cpu", selection, classMetadatas)));
+    Assert.assertTrue(index.select("mem", selection, classMetadatas).isEmpty());
+
+    // Metadata no longer in the directory are not returned
+    classMetadatas.remove(0L);
+    Assert.assertTrue(index.select("cpu", selection, classMetadatas).isEmpty());
+
+    // The returned selection is not affected by later changes
+    index.remove(m0);
+    Assert.assertEquals(1, selection.cardinality());
+    Assert.assertTrue(index.select(Arrays.asList("role"), Arrays.asList(pattern("=db"))).isEmpty());
+
+    // Ordinals are reused, a stale selection does not return the new Metadata
+    Metadata m2 = metadata("cpu", 2L, new HashMap<String,String>(), new HashMap<String,String>());
+    index.add(m2);
+    classMetadatas.put(0L, m0);
+    Assert.assertTrue(index.select("cpu", selection, classMetadatas).isEmpty());
+  }
+
+  /**
+   * Check the selection against a scan of the directory after random removals and replacements
+   */
+  @Test
+  public void testRandom() {
+    Random random = new Random(42L);
+
+    MetadataIndex index = new MetadataIndex();
+    Map<String,Map<Long,Metadata>> directory = new HashMap<String,Map<Long,Metadata>>();
+    List<Metadata> all = new ArrayList<Metadata>();
+
+    for (int i = 0; i < 20000; i++) {
+      Map<String,String> labels = new HashMap<String,String>();
+      Map<String,String> attributes = new HashMap<String,String>();
+
+      labels.put("host", "web-" + random.nextInt(50));
+      if (random.nextBoolean()) {
+        labels.put("dc", "dc" + random.nextInt(3));
+      }
+      if (0 == random.nextInt(4)) {
+        attributes.put("dc", "adc" + random.nextInt(3));
+      }
+      if (0 == random.nextInt(3)) {
+        attributes.put("role", "r" + random.nextInt(4));
+      }
+
+      Metadata metadata = metadata(CLASSES[random.nextInt(CLASSES.length)], i, labels, attributes);
+
+      Map<Long,Metadata> classMetadatas = directory.get(metadata.getName());
+      if (null == classMetadatas) {
+        classMetadatas = new HashMap<Long,Metadata>();
+        directory.put(metadata.getName(), classMetadatas);
+      }
+      classMetadatas.put(metadata.getLabelsId(), metadata);
+      index.add(metadata);
+      all.add(metadata);
+    }
+
+    for (int i = 0; i < 5000; i++) {
+      Metadata metadata = all.get(random.nextInt(all.size()));
+      Map<Long,Metadata> classMetadatas = directory.get(metadata.getName());
+      Metadata current = classMetadatas.get(metadata.getLabelsId());
+
+      if (null == current) {
+        continue;
+      }
+
+      index.remove(current);
+
+      if (random.nextBoolean()) {
+        classMetadatas.remove(current.getLabelsId());
+      } else {
+        Metadata updated = new Metadata(current);
+        updated.getAttributes().put("role", "r" + random.nextInt(4));
+        classMetadatas.put(updated.getLabelsId(), updated);
+        index.add(updated);
+      }
+    }
+
+    int matched = 0;
+
+    for (int t = 0; t < 300; t++) {
+      List<String> names = new ArrayList<String>();
+      List<SmartPattern> patterns = new ArrayList<SmartPattern>();
+
+      int k = random.nextInt(3);
+      for (int j = 0; j < k; j++) {
+        String[] selector = SELECTORS[random.nextInt(SELECTORS.length)];
+        if (names.contains(selector[0])) {
+          continue;
+        }
+        names.add(selector[0]);
+        patterns.add(pattern(selector[1]));
+      }
+
+      String className = CLASSES[random.nextInt(CLASSES.length)];
+      Map<Long,Metadata> classMetadatas = directory.get(className);
+
+      Set<Metadata> expected = new HashSet<Metadata>();
+      for (Metadata metadata: classMetadatas.values()) {
+        if (matches(metadata, names, patterns)) {
+          expected.add(metadata);
+        }
+      }
+
+      Set<Metadata> selected = new HashSet<Metadata>();
+      Collection<Metadata> candidates = index.select(className, index.select(names, patterns), classMetadatas);
+      for (Metadata metadata: candidates) {
+        if (matches(metadata, names, patterns)) {
+          selected.add(metadata);
+        }
+      }
+
+      Assert.assertEquals(expected, selected);
+      matched += expected.size();
+    }
+
+    Assert.assertTrue(matched > 0);
+  }
+}
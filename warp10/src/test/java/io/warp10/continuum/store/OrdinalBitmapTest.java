@@ -0,0 +1,159 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.continuum.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OrdinalBitmapTest {
+
+  private static List<Integer> list(OrdinalBitmap bitmap) {
+    List<Integer> ordinals = new ArrayList<Integer>();
+    int ordinal = bitmap.next(0);
+    while (ordinal >= 0) {
+      ordinals.add(ordinal);
+      ordinal = bitmap.next(ordinal + 1);
+    }
+    return ordinals;
+  }
+
+  /**
+   * Dense chunks switch from the sorted array to the bitmap representation and back
+   */
+  @Test
+  public void testChunkConversion() {
+    OrdinalBitmap bitmap = new OrdinalBitmap();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+
+    Assert.assertTrue(bitmap.isEmpty());
+    Assert.assertEquals(-1, bitmap.next(0));
+
+    // Two chunks, the first one above the array threshold
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertTrue(bitmap.add(i * 3));
+      expected.add(i * 3);
+    }
+    Assert.assertFalse(bitmap.add(3));
+
+    Assert.assertEquals(expected.size(), bitmap.cardinality());
+    Assert.assertEquals(new ArrayList<Integer>(expected), list(bitmap));
+    Assert.assertTrue(bitmap.contains(29997));
+    Assert.assertFalse(bitmap.contains(29998));
+    Assert.assertEquals(29997, bitmap.next(29995));
+    Assert.assertEquals(-1, bitmap.next(29998));
+
+    // Shrink the chunks back below the threshold
+    for (int i = 0; i < 10000; i++) {
+      if (0 != i % 7) {
+        Assert.assertTrue(bitmap.remove(i * 3));
+        expected.remove(i * 3);
+      }
+    }
+    Assert.assertFalse(bitmap.remove(3));
+
+    Assert.assertEquals(expected.size(), bitmap.cardinality());
+    Assert.assertEquals(new ArrayList<Integer>(expected), list(bitmap));
+
+    for (int ordinal: new ArrayList<Integer>(expected)) {
+      Assert.assertTrue(bitmap.remove(ordinal));
+    }
+
+    Assert.assertTrue(bitmap.isEmpty());
+    Assert.assertEquals(0, bitmap.cardinality());
+    Assert.assertEquals(-1, bitmap.next(0));
+  }
+
+  @Test
+  public void testCopy() {
+    OrdinalBitmap bitmap = new OrdinalBitmap();
+    for (int i = 0; i < 5000; i++) {
+      bitmap.add(i);
+    }
+    bitmap.add(100000);
+
+    OrdinalBitmap copy = bitmap.copy();
+    copy.remove(0);
+    copy.add(5000);
+    copy.remove(100000);
+
+    Assert.assertTrue(bitmap.contains(0));
+    Assert.assertFalse(bitmap.contains(5000));
+    Assert.assertTrue(bitmap.contains(100000));
+    Assert.assertEquals(5001, bitmap.cardinality());
+    Assert.assertEquals(5000, copy.cardinality());
+  }
+
+  /**
+   * Check the operations against a TreeSet on random sets, sparse and dense
+   */
+  @Test
+  public void testRandom() {
+    Random random = new Random(42L);
+
+    for (int t = 0; t < 200; t++) {
+      int range = random.nextBoolean() ? 200000 : 70000;
+      int n = random.nextInt(30000);
+
+      OrdinalBitmap x = new OrdinalBitmap();
+      OrdinalBitmap y = new OrdinalBitmap();
+      TreeSet<Integer> sx = new TreeSet<Integer>();
+      TreeSet<Integer> sy = new TreeSet<Integer>();
+
+      for (int i = 0; i < n; i++) {
+        int v = random.nextInt(range);
+        Assert.assertEquals(sx.add(v), x.add(v));
+        v = random.nextInt(range / (1 + random.nextInt(3)));
+        Assert.assertEquals(sy.add(v), y.add(v));
+      }
+
+      for (int i = 0; i < n / 2; i++) {
+        int v = random.nextInt(range);
+        Assert.assertEquals(sx.remove(v), x.remove(v));
+      }
+
+      Assert.assertEquals(new ArrayList<Integer>(sx), list(x));
+      Assert.assertEquals(sx.size(), x.cardinality());
+      Assert.assertEquals(sx.isEmpty(), x.isEmpty());
+
+      for (int i = 0; i < 100; i++) {
+        int v = random.nextInt(range);
+        Assert.assertEquals(sx.contains(v), x.contains(v));
+        Integer next = sx.ceiling(v);
+        Assert.assertEquals(null == next ? -1 : next.intValue(), x.next(v));
+      }
+
+      TreeSet<Integer> intersection = new TreeSet<Integer>(sx);
+      intersection.retainAll(sy);
+      Assert.assertEquals(new ArrayList<Integer>(intersection), list(OrdinalBitmap.and(x, y)));
+
+      TreeSet<Integer> union = new TreeSet<Integer>(sx);
+      union.addAll(sy);
+      OrdinalBitmap u = x.copy();
+      u.addAll(y);
+      Assert.assertEquals(new ArrayList<Integer>(union), list(u));
+      Assert.assertEquals(union.size(), u.cardinality());
+
+      // The operands are left untouched
+      Assert.assertEquals(new ArrayList<Integer>(sx), list(x));
+      Assert.assertEquals(new ArrayList<Integer>(sy), list(y));
+    }
+  }
+}
@@ -0,0 +1,377 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BinaryStackCodecTest {
+
+  private static final double[] DOUBLES = new double[] {
+    0.0D, -0.0D, 0.1D, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+  };
+
+  private static final String[] STRINGS = new String[] {
+    "", "plain", "\u00e9\u20ac\ud83d\ude00", "new\nline",
+  };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static Object value(Random random, TYPE type) {
+    switch (type) {
+      case LONG:
+        return random.nextBoolean() ? random.nextLong() : (long) random.nextInt(100) - 50;
+      case DOUBLE:
+        return random.nextBoolean() ? DOUBLES[random.nextInt(DOUBLES.length)] : random.nextGaussian();
+      case BOOLEAN:
+        return random.nextBoolean();
+      default:
+        return STRINGS[random.nextInt(STRINGS.length)];
+    }
+  }
+
+  private static GeoTimeSerie gts(Random random, TYPE type, int n) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setName("class." + type);
+    gts.setLabel("label", STRINGS[random.nextInt(STRINGS.length)]);
+    gts.getMetadata().putToAttributes("attr", "value");
+
+    boolean locations = random.nextBoolean();
+    boolean elevations = random.nextBoolean();
+
+    for (int i = 0; i < n; i++) {
+      long tick = random.nextBoolean() ? random.nextLong() : i * 1000L;
+      long location = locations && random.nextBoolean() ? random.nextLong() : GeoTimeSerie.NO_LOCATION;
+      long elevation = elevations && random.nextBoolean() ? random.nextLong() : GeoTimeSerie.NO_ELEVATION;
+      GTSHelper.setValue(gts, tick, location, elevation, value(random, type), false);
+    }
+
+    return gts;
+  }
+
+  private static List<Object> roundTrip(MemoryWarpScriptStack stack) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryStackCodec.drain(out, stack);
+    Assert.assertEquals(0, stack.depth());
+    return BinaryStackCodec.decode(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  /**
+   * Check that 'actual', decoded, is the encoding of 'expected'
+   */
+  private static void check(Object expected, Object actual) {
+    if (expected instanceof Double) {
+      Assert.assertTrue(actual instanceof Double);
+      Assert.assertEquals(Double.doubleToRawLongBits((Double) expected), Double.doubleToRawLongBits((Double) actual));
+    } else if (expected instanceof byte[]) {
+      Assert.assertArrayEquals((byte[]) expected, (byte[]) actual);
+    } else if (expected instanceof List) {
+      Assert.assertTrue(actual instanceof List);
+      Assert.assertEquals(((List<?>) expected).size(), ((List<?>) actual).size());
+      for (int i = 0; i < ((List<?>) expected).size(); i++) {
+        check(((List<?>) expected).get(i), ((List<?>) actual).get(i));
+      }
+    } else if (expected instanceof Map) {
+      Assert.assertTrue(actual instanceof Map);
+      Assert.assertEquals(((Map<?,?>) expected).size(), ((Map<?,?>) actual).size());
+      Iterator<? extends Entry<?,?>> iter = ((Map<?,?>) actual).entrySet().iterator();
+      for (Entry<?,?> entry: ((Map<?,?>) expected).entrySet()) {
+        Entry<?,?> other = iter.next();
+        check(entry.getKey(), other.getKey());
+        check(entry.getValue(), other.getValue());
+      }
+    } else if (expected instanceof GeoTimeSerie) {
+      GeoTimeSerie gts = (GeoTimeSerie) expected;
+      GeoTimeSerie decoded = (GeoTimeSerie) actual;
+      check(gts.getMetadata(), decoded.getMetadata());
+      Assert.assertEquals(gts.size(), decoded.size());
+      if (gts.size() > 0) {
+        Assert.assertEquals(gts.getType(), decoded.getType());
+      }
+      for (int i = 0; i < gts.size(); i++) {
+        Assert.assertEquals(GTSHelper.tickAtIndex(gts, i), GTSHelper.tickAtIndex(decoded, i));
+        Assert.assertEquals(GTSHelper.locationAtIndex(gts, i), GTSHelper.locationAtIndex(decoded, i));
+        Assert.assertEquals(GTSHelper.elevationAtIndex(gts, i), GTSHelper.elevationAtIndex(decoded, i));
+        check(GTSHelper.valueAtIndex(gts, i), GTSHelper.valueAtIndex(decoded, i));
+      }
+    } else if (expected instanceof GTSEncoder) {
+      check(((GTSEncoder) expected).getMetadata(), ((GTSEncoder) actual).getMetadata());
+      GTSDecoder d1 = ((GTSEncoder) expected).getUnsafeDecoder(false);
+      GTSDecoder d2 = ((GTSEncoder) actual).getUnsafeDecoder(false);
+      while (d1.next()) {
+        Assert.assertTrue(d2.next());
+        Assert.assertEquals(d1.getTimestamp(), d2.getTimestamp());
+        Assert.assertEquals(d1.getLocation(), d2.getLocation());
+        Assert.assertEquals(d1.getElevation(), d2.getElevation());
+        check(d1.getValue(), d2.getValue());
+      }
+      Assert.assertFalse(d2.next());
+    } else if (expected instanceof Metadata) {
+      Metadata metadata = (Metadata) expected;
+      Metadata decoded = (Metadata) actual;
+      Assert.assertEquals(null == metadata.getName() ? "" : metadata.getName(), decoded.getName());
+      Assert.assertEquals(labels(metadata.getLabels()), decoded.getLabels());
+      Assert.assertEquals(labels(metadata.getAttributes()), decoded.getAttributes());
+    } else {
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
+  private static Map<String,String> labels(Map<String,String> labels) {
+    return null == labels ? new HashMap<String,String>() : labels;
+  }
+
+  @Test
+  public void testGTS() throws Exception {
+    Random random = new Random(0L);
+
+    for (TYPE type: Arrays.asList(TYPE.LONG, TYPE.DOUBLE, TYPE.BOOLEAN, TYPE.STRING)) {
+      for (int t = 0; t < 50; t++) {
+        // Sizes around multiples of 8 for the packed booleans
+        int n = random.nextBoolean() ? random.nextInt(20) : random.nextInt(1000);
+
+        List<Object> levels = new ArrayList<Object>();
+        levels.add(gts(random, type, n));
+
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(((GeoTimeSerie) levels.get(0)).getMetadata());
+        for (int i = 0; i < n; i++) {
+          TYPE etype = Arrays.asList(TYPE.LONG, TYPE.DOUBLE, TYPE.BOOLEAN, TYPE.STRING).get(random.nextInt(4));
+          encoder.addValue(random.nextLong(), random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : random.nextLong(), random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextLong(), value(random, etype));
+        }
+        levels.add(encoder);
+
+        MemoryWarpScriptStack stack = newStack();
+        for (int i = levels.size() - 1; i >= 0; i--) {
+          stack.push(levels.get(i));
+        }
+
+        check(levels, roundTrip(stack));
+      }
+    }
+  }
+
+  /**
+   * Doubles stored as decimals in encoders are decoded as BigDecimal, they must be encoded as doubles
+   */
+  @Test
+  public void testDecimalEncoder() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(new Metadata());
+    encoder.getMetadata().setName("decimal");
+
+    double[] values = new double[] { 1.5D, 0.1D, -42.25D, 1.0E-3D, Math.PI };
+
+    for (int i = 0; i < values.length; i++) {
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, new BigDecimal(Double.toString(values[i])));
+    }
+
+    MemoryWarpScriptStack stack = newStack();
+    stack.push(encoder);
+
+    GTSDecoder decoder = ((GTSEncoder) roundTrip(stack).get(0)).getUnsafeDecoder(false);
+
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertTrue(decoder.next());
+      Assert.assertEquals(i, decoder.getTimestamp());
+      Assert.assertTrue(decoder.getValue() instanceof Number);
+      Assert.assertEquals(values[i], ((Number) decoder.getValue()).doubleValue(), 0.0D);
+    }
+
+    Assert.assertFalse(decoder.next());
+  }
+
+  @Test
+  public void testAccepts() throws Exception {
+    Assert.assertFalse(BinaryStackCodec.accepts(null));
+    Assert.assertFalse(BinaryStackCodec.accepts("*/*"));
+    Assert.assertFalse(BinaryStackCodec.accepts("application/json"));
+    Assert.assertTrue(BinaryStackCodec.accepts("application/x-warp10-stack"));
+    Assert.assertTrue(BinaryStackCodec.accepts("text/html, application/x-warp10-stack;q=0.5"));
+
+    // Excluded
+    Assert.assertFalse(BinaryStackCodec.accepts("application/x-warp10-stack;q=0"));
+    Assert.assertFalse(BinaryStackCodec.accepts("application/x-warp10-stack; q=0.0, */*"));
+
+    // Quality against JSON
+    Assert.assertFalse(BinaryStackCodec.accepts("application/x-warp10-stack;q=0.5, application/json"));
+    Assert.assertTrue(BinaryStackCodec.accepts("application/json;q=0.5, application/x-warp10-stack"));
+    Assert.assertFalse(BinaryStackCodec.accepts("application/json, application/*;q=0.1, application/x-warp10-stack;q=0.5"));
+    Assert.assertTrue(BinaryStackCodec.accepts("application/json;q=0.1, */*, application/x-warp10-stack;q=0.5"));
+
+    // Ordering for equal qualities
+    Assert.assertTrue(BinaryStackCodec.accepts("application/x-warp10-stack, application/json"));
+    Assert.assertFalse(BinaryStackCodec.accepts("application/json, application/x-warp10-stack"));
+    Assert.assertTrue(BinaryStackCodec.accepts("*/*, application/x-warp10-stack"));
+  }
+
+  @Test
+  public void testScalars() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    Object[] pushed = new Object[] {
+      null, 0L, Long.MIN_VALUE, Long.MAX_VALUE, 42, (short) -3, (byte) 7, new AtomicLong(12L),
+      -0.0D, Double.NaN, 1.5F, true, false, "", STRINGS[2], new byte[] { 0, -1, 127 },
+      new BigDecimal("1.000000000000000000001"), new BigInteger("123456789012345678901234567890"),
+    };
+
+    Object[] expected = new Object[] {
+      null, 0L, Long.MIN_VALUE, Long.MAX_VALUE, 42L, -3L, 7L, 12L,
+      -0.0D, Double.NaN, 1.5D, true, false, "", STRINGS[2], new byte[] { 0, -1, 127 },
+      "1.000000000000000000001", "123456789012345678901234567890",
+    };
+
+    for (int i = pushed.length - 1; i >= 0; i--) {
+      stack.push(pushed[i]);
+    }
+
+    check(Arrays.asList(expected), roundTrip(stack));
+  }
+
+  @Test
+  public void testCollections() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    stack.exec("<% 1 + %> 'macro' STORE [ 1 2.0 'three' [ true ] { 'k' [] } ] { 1 'long' 2.0 'double' 'm' $macro } $macro");
+    stack.push(new Metadata(gts(new Random(1L), TYPE.LONG, 0).getMetadata()));
+
+    Object function = WarpScriptLib.getFunction("+");
+    Object metadata = stack.pop();
+    Object macro = stack.pop();
+
+    Map<Object,Object> map = new LinkedHashMap<Object,Object>();
+    map.put(1L, "long");
+    map.put(2.0D, "double");
+    map.put("m", macro.toString());
+
+    List<Object> expected = new ArrayList<Object>();
+    expected.add(WarpScriptStack.MACRO_START + " " + function.toString() + " " + WarpScriptStack.MACRO_END + " " + WarpScriptLib.EVAL);
+    expected.add(metadata);
+    expected.add(macro.toString());
+    expected.add(map);
+    expected.add(Arrays.asList(1L, 2.0D, "three", Arrays.asList(true), Collections.singletonMap("k", new ArrayList<Object>())));
+
+    stack.push(macro);
+    stack.push(metadata);
+    stack.push(function);
+
+    check(expected, roundTrip(stack));
+  }
+
+  /**
+   * Map keys of types without an encoding are output as strings like in JSON, other values as NULL
+   */
+  @Test
+  public void testOtherTypes() throws Exception {
+    Object other = new Object() {
+      @Override
+      public String toString() {
+        return "other";
+      }
+    };
+
+    Map<Object,Object> map = new HashMap<Object,Object>();
+    map.put(other, other);
+
+    MemoryWarpScriptStack stack = newStack();
+    stack.push(map);
+    stack.push(other);
+
+    check(Arrays.asList(null, Collections.singletonMap("other", null)), roundTrip(stack));
+
+    //
+    // Content nested too deep is output as NULL
+    //
+
+    List<Object> nested = new ArrayList<Object>();
+    List<Object> current = nested;
+    for (int i = 0; i <= WarpScriptStack.DEFAULT_MAX_RECURSION_LEVEL; i++) {
+      List<Object> l = new ArrayList<Object>();
+      current.add(l);
+      current = l;
+    }
+
+    stack.push(nested);
+    Object decoded = roundTrip(stack).get(0);
+    for (int i = 0; i < WarpScriptStack.DEFAULT_MAX_RECURSION_LEVEL; i++) {
+      decoded = ((List<?>) decoded).get(0);
+    }
+    Assert.assertEquals(Collections.singletonList(null), decoded);
+  }
+
+  /**
+   * Pending lazy lists are materialized before anything is written
+   */
+  @Test
+  public void testLazy() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS, 10L);
+    GeoTimeSerie gts = new GeoTimeSerie();
+    for (int i = 0; i < 100; i++) {
+      GTSHelper.setValue(gts, i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i, false);
+    }
+    stack.push(Arrays.asList(gts));
+    stack.exec("LAZYON [ SWAP bucketizer.sum 0 1 0 ] BUCKETIZE");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try {
+      BinaryStackCodec.drain(out, stack);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("maximum"));
+    }
+
+    Assert.assertEquals(0, out.size());
+  }
+}
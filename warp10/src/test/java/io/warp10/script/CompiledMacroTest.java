@@ -0,0 +1,182 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CompiledMacroTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack(int threshold) {
+    Properties props = new Properties();
+    props.setProperty(Configuration.WARPSCRIPT_MACRO_COMPILE_THRESHOLD, Integer.toString(threshold));
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, props);
+    stack.maxLimits();
+    return stack;
+  }
+
+  /**
+   * @return the levels of the stack and the number of ops after executing 'script', or the error
+   */
+  private static String exec(String script, int threshold, long maxops) {
+    MemoryWarpScriptStack stack = newStack(threshold);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_RECURSION_MAXDEPTH, 64);
+
+    if (maxops > 0) {
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_OPS, maxops);
+    }
+
+    List<Object> levels = new ArrayList<Object>();
+
+    try {
+      stack.execMulti(script);
+      for (int i = stack.depth() - 1; i >= 0; i--) {
+        levels.add(stack.get(i));
+      }
+    } catch (WarpScriptException wse) {
+      return "ERROR " + wse.getMessage() + " ops=" + stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS);
+    }
+
+    return levels + " ops=" + stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS);
+  }
+
+  @Test
+  public void testSameResults() throws Exception {
+    String[] scripts = new String[] {
+      "0 1 100 <% + %> FOR",
+      "0 1 100 <% + OPS DROP %> FOR OPS",
+      "[ 1 2 3 4 ] <% DUP * %> LMAP",
+      "0 'x' STORE <% $x 1 + 'x' STORE %> 'inc' STORE 1 30 <% DROP @inc %> FOR $x",
+      "<% 1 %> 'm' STORE 1 5 <% DROP @m %> FOR <% 2 %> 'm' STORE 1 5 <% DROP @m %> FOR",
+      "0 1 20 <% <% + %> EVAL %> FOR",
+      "<% DUP 0 > <% 1 - $f EVAL %> IFT %> 'f' STORE 10 $f EVAL",
+      // Errors, reported with the failing statement
+      "0 1 50 <% DUP 25 == <% 'boom' MSGFAIL %> IFT + %> FOR",
+      "0 1 50 <% DUP 25 == <% 'a' %> IFT + %> FOR",
+      "1 50 <% DUP 25 == <% DROP %> IFT + %> FOR",
+      "<% $f EVAL %> 'f' STORE $f EVAL",
+      // Control flow
+      "0 1 50 <% DUP 25 == <% RETURN %> IFT + %> FOR",
+      "0 1 50 <% DUP 25 == <% BREAK %> IFT + %> FOR",
+      "0 1 50 <% DUP 2 % 0 == <% DROP CONTINUE %> IFT + %> FOR",
+      "0 <% DUP 100 < %> <% 1 + DUP 50 == <% BREAK %> IFT %> WHILE",
+      "0 1 50 <% DUP 25 == <% STOP %> IFT + %> FOR",
+    };
+
+    for (String script: scripts) {
+      for (long maxops: new long[] { 0L, 50L, 173L, 400L }) {
+        String interpreted = exec(script, 0, maxops);
+        Assert.assertEquals(script, interpreted, exec(script, 1, maxops));
+        Assert.assertEquals(script, interpreted, exec(script, 3, maxops));
+      }
+    }
+  }
+
+  @Test
+  public void testCompilation() throws Exception {
+    MemoryWarpScriptStack stack = newStack(3);
+    stack.exec("<% 1 + %>");
+    Macro macro = (Macro) stack.pop();
+
+    for (int i = 0; i < 3; i++) {
+      stack.push(0L);
+      stack.push(macro);
+      stack.exec("EVAL");
+      Assert.assertEquals(1L, stack.pop());
+      Assert.assertEquals(i < 2, null == macro.compiled);
+    }
+
+    // Adding statements drops the compiled form
+    macro.add(2L);
+    Assert.assertNull(macro.compiled);
+
+    // So does appending to the statements directly
+    stack.push(0L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertNotNull(macro.compiled);
+    macro.statements().add(WarpScriptLib.getFunction("*"));
+
+    stack.push(0L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(2L, stack.pop());
+  }
+
+  /**
+   * Changes which keep the number of statements also discard the compiled form
+   */
+  @Test
+  public void testInPlaceChanges() throws Exception {
+    MemoryWarpScriptStack stack = newStack(1);
+    stack.exec("<% 1 + %>");
+    Macro macro = (Macro) stack.pop();
+
+    stack.push(10L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(11L, stack.pop());
+    Assert.assertNotNull(macro.compiled);
+
+    // Replace a statement
+    macro.statements().set(0, 2L);
+    stack.push(10L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(12L, stack.pop());
+
+    // Through a view of the statements
+    macro.statements().subList(1, 2).set(0, WarpScriptLib.getFunction("*"));
+    stack.push(10L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(20L, stack.pop());
+
+    // Through an iterator
+    ListIterator<Object> iter = macro.statements().listIterator();
+    iter.next();
+    iter.set(3L);
+    stack.push(10L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(30L, stack.pop());
+
+    // Remove then add a statement
+    macro.statements().subList(0, 1).clear();
+    macro.statements().add(0, 4L);
+    Assert.assertEquals(2, macro.size());
+    stack.push(10L);
+    stack.push(macro);
+    stack.exec("EVAL");
+    Assert.assertEquals(40L, stack.pop());
+  }
+}
@@ -0,0 +1,196 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LazyGTSListTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static List<GeoTimeSerie> generate() {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < 3; i++) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("c" + i);
+      for (int j = 0; j < 2; j++) {
+        GTSHelper.setValue(gts, j * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) -j, false);
+      }
+      series.add(gts);
+    }
+
+    return series;
+  }
+
+  private static String levels(WarpScriptStack stack) throws WarpScriptException {
+    List<Object> levels = new ArrayList<Object>();
+    for (int i = stack.depth() - 1; i >= 0; i--) {
+      levels.add(stack.get(i));
+    }
+    return String.valueOf(levels);
+  }
+
+  /**
+   * Run 'script' on a fresh stack holding the generated series, with and without lazy evaluation
+   *
+   * @return the levels of the stacks, the lazy one first
+   */
+  private static String[] run(String script) throws Exception {
+    String[] results = new String[2];
+
+    for (int i = 0; i < 2; i++) {
+      MemoryWarpScriptStack stack = newStack();
+      stack.push(generate());
+      stack.exec((0 == i ? "LAZYON " : "") + script);
+      results[i] = levels(stack);
+    }
+
+    return results;
+  }
+
+  @Test
+  public void testChain() throws Exception {
+    String[] results = run("[ SWAP bucketizer.sum 0 1000 0 ] BUCKETIZE FILLPREVIOUS [ SWAP mapper.abs 0 0 0 ] MAP [ SWAP 1 mapper.add 0 0 0 ] MAP");
+    Assert.assertEquals(results[1], results[0]);
+  }
+
+  /**
+   * A macro wrapped in another function must be executed when MAP is called, as it reads the symbol table
+   */
+  @Test
+  public void testWrappedMacroReadsSymbols() throws Exception {
+    String script = "1 'k' STORE [ SWAP <% DROP [ 0 NaN NaN NaN $k ] %> MACROMAPPER 0 10 STRICTMAPPER 0 0 0 ] MAP 999 'k' STORE 0 GET VALUES";
+    String[] results = run(script);
+    Assert.assertEquals(results[1], results[0]);
+    Assert.assertFalse(results[0].contains("999"));
+  }
+
+  /**
+   * The levels left on the stack by a wrapped macro must be below the levels pushed after MAP
+   */
+  @Test
+  public void testWrappedMacroStackEffects() throws Exception {
+    String script = "[ SWAP <% DROP 'marker' [ 0 NaN NaN NaN 1 ] %> MACROMAPPER 0 10 STRICTMAPPER 0 0 0 ] MAP SIZE 'top'";
+    String[] results = run(script);
+    Assert.assertEquals(results[1], results[0]);
+    Assert.assertTrue(results[0].endsWith("3, top]"));
+  }
+
+  /**
+   * Errors of the pending lists must be raised before any output is written
+   */
+  @Test
+  public void testErrorBeforeOutput() throws Exception {
+    String script = "LAZYON [ SWAP bucketizer.sum 0 1 0 ] BUCKETIZE";
+
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS, 10L);
+    stack.push(generate());
+    stack.exec(script);
+
+    // The bucketization is still pending
+    Assert.assertTrue(stack.peek() instanceof LazyGTSList);
+
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+
+    try {
+      StackUtils.drainToJSON(pw, stack);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("maximum"));
+    }
+
+    pw.flush();
+    Assert.assertEquals("", sw.toString());
+
+    stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS, 10L);
+    stack.push(generate());
+    stack.exec(script);
+
+    try {
+      LazyGTSList.materializeAll(stack);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("maximum"));
+    }
+  }
+
+  /**
+   * Pending lists nested in lists and maps are materialized
+   */
+  @Test
+  public void testMaterializeAll() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    List<GeoTimeSerie> series = generate();
+    stack.push(series);
+    stack.exec("LAZYON [ SWAP mapper.abs 0 0 0 ] MAP DUP 'pending' STORE");
+
+    Object lazy = stack.pop();
+    Map<Object,Object> map = new HashMap<Object,Object>();
+    map.put("lazy", Collections.singletonList(lazy));
+    stack.push(map);
+
+    // Input series are read when the list is materialized
+    series.get(0).setName("renamed");
+
+    LazyGTSList.materializeAll(stack);
+
+    series.get(1).setName("renamed");
+
+    Assert.assertEquals("renamed", ((GeoTimeSerie) ((List<?>) lazy).get(0)).getName());
+    Assert.assertEquals("c1", ((GeoTimeSerie) ((List<?>) lazy).get(1)).getName());
+
+    //
+    // LAZYOFF materializes the lists on the stack
+    //
+
+    stack = newStack();
+    series = generate();
+    stack.push(series);
+    stack.exec("LAZYON [ SWAP mapper.abs 0 0 0 ] MAP LAZYOFF");
+    series.get(0).setName("renamed");
+    Assert.assertEquals("c0", ((GeoTimeSerie) ((List<?>) stack.pop()).get(0)).getName());
+  }
+}
@@ -0,0 +1,236 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class MacroOptimizerTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    //
+    // Repository with a macro marked as inlinable, loaded on demand
+    //
+
+    File root = Files.createTempDir();
+    root.deleteOnExit();
+
+    File dir = new File(root, "test");
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    File file = new File(dir, "inc.mc2");
+    file.deleteOnExit();
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("MACROINLINE <% 1 + %>\n".getBytes(Charsets.UTF_8));
+    out.close();
+
+    Properties props = new Properties();
+    props.setProperty(Configuration.REPOSITORY_DIRECTORY, root.getAbsolutePath());
+    props.setProperty(Configuration.REPOSITORY_ONDEMAND, "true");
+    WarpScriptMacroRepository.init(props);
+  }
+
+  private static MemoryWarpScriptStack newStack(boolean optimize) {
+    Properties props = new Properties();
+    if (optimize) {
+      props.setProperty(Configuration.WARPSCRIPT_MACRO_OPTIMIZE, "true");
+    }
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, props);
+    stack.maxLimits();
+    return stack;
+  }
+
+  /**
+   * @return the levels of the stack after executing 'script', deepest first, or the error
+   */
+  private static String exec(String script, boolean optimize) {
+    MemoryWarpScriptStack stack = newStack(optimize);
+
+    List<Object> levels = new ArrayList<Object>();
+
+    try {
+      stack.execMulti(script);
+      for (int i = stack.depth() - 1; i >= 0; i--) {
+        Object level = stack.get(i);
+        levels.add(level instanceof Macro ? "MACRO" : level);
+      }
+    } catch (WarpScriptException wse) {
+      // Folded statements are reported as such in error messages
+      return "ERROR " + wse.getMessage().replaceAll("at statement '.*' in section", "in section");
+    }
+
+    return levels.toString();
+  }
+
+  /**
+   * @return the statements of the macro defined by 'script' when optimized, folded constants replaced by their value
+   */
+  private static List<Object> statements(String script) throws Exception {
+    MemoryWarpScriptStack stack = newStack(true);
+    stack.execMulti(script);
+
+    List<Object> statements = new ArrayList<Object>();
+
+    for (Object stmt: ((Macro) stack.pop()).statements()) {
+      statements.add(stmt instanceof MacroOptimizer.FoldedConstant ? ((MacroOptimizer.FoldedConstant) stmt).value() : stmt);
+    }
+
+    return statements;
+  }
+
+  /**
+   * @return the number of operations performed by 'script'
+   */
+  private static long ops(String script, boolean optimize) throws Exception {
+    MemoryWarpScriptStack stack = newStack(optimize);
+    stack.execMulti(script);
+    return ((Number) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS)).longValue();
+  }
+
+  @Test
+  public void testSameResults() throws Exception {
+    String[] scripts = new String[] {
+      "<% 1 2 + 3 * %> EVAL",
+      "<% 2 3 ** 7 % 'a' 'b' + %> EVAL",
+      "<% 1 h 24 * %> EVAL",
+      "<% 1 2 [ 3 ] + + %> EVAL",
+      // Expressions failing at run time
+      "<% 1 0 / %> EVAL",
+      "<% 1.0 0.0 / %> EVAL",
+      "<% { 'a' 1 'b' } %> EVAL",
+      "<% 'a' 1 - %>",
+      // Collections are modified in place
+      "<% [ 1 2 3 ] DUP 4 +! %> DUP EVAL SWAP EVAL",
+      "<% [ 1 [ 2 3 ] { 'a' [ 4 ] } ] %> 'm' STORE @m DUP 1 GET 5 +! DROP @m",
+      "<% [ 'a' 'b' ] 'l' STORE $l 'c' +! $l %> 'm' STORE @m @m",
+      "<% { 'a' 1 } 'mm' STORE $mm 'b' 2 PUT %> 'm' STORE @m @m",
+      "<% { 'a' 1 'a' 2 } %> EVAL",
+      "<% [ 1 2 3 ] <% 2 * %> LMAP %> EVAL",
+      "<% MARK 1 2 ] %> EVAL",
+      "1 <% [ SWAP 2 ] %> EVAL",
+      "<% 'x' 'y' + 'k' STORE 1 'x' 'y' + STORE $xy $k %> EVAL",
+      // Repository macros, and symbols with the same name
+      "<% 0 1 3 <% DROP @test/inc %> FOR %> EVAL",
+      "<% 10 @test/inc %> 'm' STORE @m <% 5 + %> 'test/inc' STORE @m",
+      "<% 1 2 %> 'a/b' STORE <% @a/b + %> EVAL",
+      "<% 'unknown/macro' RUN %> EVAL",
+    };
+
+    for (String script: scripts) {
+      Assert.assertEquals(script, exec(script, false), exec(script, true));
+    }
+  }
+
+  @Test
+  public void testFolding() throws Exception {
+    Assert.assertEquals(Arrays.<Object>asList(9L), statements("<% 1 2 + 3 * %>"));
+    Assert.assertEquals(Arrays.<Object>asList(24L * 3600L * 1000000L), statements("<% 1 h 24 * %>"));
+    Assert.assertEquals(Arrays.<Object>asList(1L, "ab"), statements("<% 2 3 ** 7 % 'a' 'b' + %>"));
+
+    // Failing expressions are kept
+    Assert.assertEquals(3, statements("<% 1 0 / %>").size());
+    Assert.assertEquals(3, statements("<% 1.0 0.0 / %>").size());
+
+    // Collections of constants are built once
+    List<Object> statements = statements("<% [ 1 [ 2 3 ] { 'a' 1 h } ] 'x' %>");
+    Assert.assertEquals(2, statements.size());
+    Assert.assertTrue(statements.get(0) instanceof MacroOptimizer.CollectionConstant);
+
+    // Calls to repository macros are replaced by calls binding to the loaded macro
+    Assert.assertEquals(1, statements("<% @test/inc %>").size());
+    Assert.assertTrue(statements("<% @test/inc %>").get(0) instanceof MacroOptimizer.MacroCall);
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    MemoryWarpScriptStack stack = newStack(true);
+    stack.execMulti("<% [ 1 2 h ] { 'a' 'b' 'c' + } 3 @test/inc %> 'm' STORE $m SNAPSHOT");
+
+    String snapshot = (String) stack.pop();
+    Macro macro = (Macro) stack.load("m");
+
+    // Folded values appear in the snapshot, which builds an equivalent macro
+    Assert.assertFalse(snapshot.contains(" h "));
+    Assert.assertTrue(snapshot.contains("7200000000"));
+
+    stack.execMulti(snapshot + " SNAPSHOT");
+    Assert.assertEquals(snapshot, stack.pop());
+
+    MemoryWarpScriptStack plain = newStack(false);
+    plain.execMulti(snapshot + " EVAL");
+    stack.push(macro);
+    stack.execMulti("EVAL");
+
+    Assert.assertEquals(3, stack.depth());
+    Assert.assertEquals(4L, stack.get(0));
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(plain.get(i).toString(), stack.get(i).toString());
+    }
+  }
+
+  /**
+   * Optimized macros count the operations of the statements they replaced
+   */
+  @Test
+  public void testOps() throws Exception {
+    String[] scripts = new String[] {
+      "<% 1 2 + 3 * %> EVAL",
+      "<% 1 h 24 * %> 'm' STORE 0 1 10 <% DROP @m + %> FOR",
+      "<% [ 1 [ 2 3 ] { 'a' 1 h } ] 'x' %> EVAL",
+      "<% 10 @test/inc 'test' '/inc' + RUN %> EVAL",
+      "<% 'x' 'y' + 'k' STORE 1 'x' 'y' + STORE $xy $k %> EVAL",
+    };
+
+    for (String script: scripts) {
+      Assert.assertEquals(script, ops(script, false), ops(script, true));
+    }
+
+    // The operations count of the optimized statements is checked against the limit
+    MemoryWarpScriptStack stack = newStack(true);
+    stack.execMulti("<% 1 h 24 * %>");
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_OPS, 0L);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_OPS, 3L);
+
+    try {
+      stack.execMulti("EVAL");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage(), wse.getMessage().contains("exceeded maximum of 3"));
+    }
+  }
+}
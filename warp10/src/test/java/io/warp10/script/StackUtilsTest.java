@@ -0,0 +1,226 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib;
+
+public class StackUtilsTest {
+
+  private static final double[] DOUBLES = new double[] {
+    0.0D, -0.0D, 1.0D, -2.5D, 0.1D, 1.0E-300D, 1.0E21D, 123456789.123D, Double.MIN_VALUE, Double.MAX_VALUE,
+    Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+  };
+
+  private static final String[] STRINGS = new String[] {
+    "", "plain", "quote \" and backslash \\", "new\nline\ttab", "\u0001\u001f", "\u00e9\u20ac\ud83d\ude00", "</script>",
+  };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static Object value(Random random, TYPE type) {
+    switch (type) {
+      case LONG:
+        return random.nextBoolean() ? random.nextLong() : (long) random.nextInt(100);
+      case DOUBLE:
+        return random.nextBoolean() ? DOUBLES[random.nextInt(DOUBLES.length)] : random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20);
+      case BOOLEAN:
+        return random.nextBoolean();
+      default:
+        return STRINGS[random.nextInt(STRINGS.length)];
+    }
+  }
+
+  private static String json(Object o, boolean strict) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    StackUtils.objectToJSON(null, pw, o, new AtomicInteger(0), strict);
+    pw.flush();
+    return sw.toString();
+  }
+
+  /**
+   * Serialize 'gts' boxing its values and passing them to the JSON serializer
+   */
+  private static String reference(GeoTimeSerie gts, boolean strict) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"c\":");
+    sb.append(json(gts.getName(), strict));
+    sb.append(",\"l\":");
+    sb.append(json(gts.getLabels(), strict));
+    sb.append(",\"a\":");
+    sb.append(json(gts.getMetadata().getAttributes(), strict));
+    sb.append(",\"v\":[");
+    for (int i = 0; i < gts.size(); i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append("[");
+      sb.append(GTSHelper.tickAtIndex(gts, i));
+      long location = GTSHelper.locationAtIndex(gts, i);
+      if (GeoTimeSerie.NO_LOCATION != location) {
+        double[] latlon = GeoXPLib.fromGeoXPPoint(location);
+        sb.append(",");
+        sb.append(latlon[0]);
+        sb.append(",");
+        sb.append(latlon[1]);
+      }
+      long elevation = GTSHelper.elevationAtIndex(gts, i);
+      if (GeoTimeSerie.NO_ELEVATION != elevation) {
+        sb.append(",");
+        sb.append(elevation);
+      }
+      sb.append(",");
+      sb.append(json(GTSHelper.valueAtIndex(gts, i), strict));
+      sb.append("]");
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+
+  /**
+   * Values of GTS are printed from the value arrays, check them against the output of the JSON serializer
+   */
+  @Test
+  public void testGTSValues() throws Exception {
+    Random random = new Random(0L);
+
+    for (TYPE type: Arrays.asList(TYPE.LONG, TYPE.DOUBLE, TYPE.BOOLEAN, TYPE.STRING)) {
+      for (int t = 0; t < 50; t++) {
+        GeoTimeSerie gts = new GeoTimeSerie();
+        gts.setName("class");
+        gts.setLabel("label", STRINGS[random.nextInt(STRINGS.length)]);
+
+        int n = random.nextInt(100);
+
+        for (int i = 0; i < n; i++) {
+          long tick = random.nextLong();
+          long location = random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : GeoXPLib.toGeoXPPoint(random.nextDouble() * 180.0D - 90.0D, random.nextDouble() * 360.0D - 180.0D);
+          long elevation = random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(100000) - 50000;
+          GTSHelper.setValue(gts, tick, location, elevation, value(random, type), false);
+        }
+
+        Assert.assertEquals(reference(gts, false), json(gts, false));
+        Assert.assertEquals(reference(gts, true), json(gts, true));
+      }
+    }
+  }
+
+  @Test
+  public void testStrict() throws Exception {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    GTSHelper.setValue(gts, 0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, Double.NaN, false);
+    GTSHelper.setValue(gts, 1L, GeoTimeSerie.NO_LOCATION, 10L, Double.NEGATIVE_INFINITY, false);
+    GTSHelper.setValue(gts, 2L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 0.5D, false);
+
+    Assert.assertEquals("{\"c\":\"\",\"l\":{},\"a\":{},\"v\":[[0,null],[1,10,null],[2,0.5]]}", json(gts, true));
+    Assert.assertEquals("{\"c\":\"\",\"l\":{},\"a\":{},\"v\":[[0,NaN],[1,10,-Infinity],[2,0.5]]}", json(gts, false));
+  }
+
+  /**
+   * The drained output is the same as the one of toJSON and the stack is left empty
+   */
+  @Test
+  public void testDrainToJSON() throws Exception {
+    Random random = new Random(1L);
+
+    for (boolean strict: new boolean[] { false, true }) {
+      List<Object> levels = new ArrayList<Object>();
+
+      for (TYPE type: Arrays.asList(TYPE.LONG, TYPE.DOUBLE, TYPE.BOOLEAN, TYPE.STRING)) {
+        GeoTimeSerie gts = new GeoTimeSerie();
+        gts.setName("c." + type);
+        for (int i = 0; i < 20; i++) {
+          GTSHelper.setValue(gts, i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, value(random, type), false);
+        }
+        levels.add(gts);
+        levels.add(Arrays.asList(gts, gts.getMetadata()));
+      }
+
+      Map<Object,Object> map = new LinkedHashMap<Object,Object>();
+      map.put("a", Arrays.asList(1L, Double.NaN, "x", true));
+      map.put("b", new LinkedHashMap<Object,Object>());
+      levels.add(map);
+      levels.add(STRINGS[2]);
+      levels.add(42L);
+      levels.add(Double.POSITIVE_INFINITY);
+      levels.add(false);
+      levels.add(new ArrayList<Object>());
+
+      StringWriter[] outputs = new StringWriter[2];
+
+      for (int i = 0; i < 2; i++) {
+        MemoryWarpScriptStack stack = newStack();
+        stack.setAttribute(WarpScriptStack.ATTRIBUTE_JSON_STRICT, strict);
+        for (Object level: levels) {
+          stack.push(level);
+        }
+
+        outputs[i] = new StringWriter();
+        PrintWriter pw = new PrintWriter(outputs[i]);
+
+        if (0 == i) {
+          StackUtils.toJSON(pw, stack);
+          Assert.assertEquals(levels.size(), stack.depth());
+        } else {
+          StackUtils.drainToJSON(pw, stack);
+          Assert.assertEquals(0, stack.depth());
+        }
+
+        pw.flush();
+      }
+
+      Assert.assertEquals(outputs[0].toString(), outputs[1].toString());
+    }
+
+    // Empty stack
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    StackUtils.drainToJSON(pw, newStack());
+    pw.flush();
+    Assert.assertEquals("[]", sw.toString());
+  }
+}
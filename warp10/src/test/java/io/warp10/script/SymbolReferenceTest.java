@@ -0,0 +1,186 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SymbolReferenceTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  /**
+   * @return the levels of the stack, deepest first
+   */
+  private static List<Object> levels(WarpScriptStack stack) throws WarpScriptException {
+    List<Object> levels = new ArrayList<Object>();
+    for (int i = stack.depth() - 1; i >= 0; i--) {
+      levels.add(stack.get(i));
+    }
+    return levels;
+  }
+
+  private static List<Object> exec(String script) throws Exception {
+    return exec(newStack(), script);
+  }
+
+  private static List<Object> exec(MemoryWarpScriptStack stack, String script) throws Exception {
+    stack.execMulti(script);
+    return levels(stack);
+  }
+
+  private static void fails(String script, String message) throws Exception {
+    fails(newStack(), script, message);
+  }
+
+  private static void fails(MemoryWarpScriptStack stack, String script, String message) throws Exception {
+    try {
+      exec(stack, script);
+      Assert.fail(script);
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage(), wse.getMessage().contains(message));
+    }
+  }
+
+  @Test
+  public void testLoadStore() throws Exception {
+    Assert.assertEquals(Arrays.<Object>asList(5050L), exec("0 's' STORE 1 100 <% $s + 's' STORE %> FOR $s"));
+    Assert.assertEquals(Arrays.<Object>asList(10L), exec("0 'i' STORE <% $i 10 < %> <% $i 1 + 'i' STORE %> WHILE $i"));
+    Assert.assertEquals(Arrays.<Object>asList(1L, 4L, 9L), exec("[ 1 2 3 ] <% 'e' STORE $e $e * %> FOREACH"));
+    Assert.assertEquals(Arrays.<Object>asList(7L), exec("<% 'q' STORE 'q' LOAD 1 + %> 'inc' STORE 5 @inc @inc"));
+
+    // The symbol name is not a constant of the macro
+    Assert.assertEquals(Arrays.<Object>asList(3L), exec("3 'k' STORE <% 'k' %> EVAL LOAD"));
+
+    // NULL values are loaded, undefined symbols are reported
+    Assert.assertEquals(Arrays.<Object>asList((Object) null), exec("NULL 'n' STORE <% $n %> EVAL"));
+    fails("<% $zz %> EVAL", "does not exist");
+
+    // Nested macros
+    Assert.assertEquals(Arrays.<Object>asList(9L), exec("<% <% $u %> 'inner' STORE 9 'u' STORE @inner %> EVAL"));
+  }
+
+  /**
+   * Slots must be looked up again once symbols have been removed or the symbol table restored
+   */
+  @Test
+  public void testRemovedSymbols() throws Exception {
+    Assert.assertEquals(Arrays.<Object>asList(3L, 4L), exec("<% $y %> 'm' STORE 3 'y' STORE @m 'y' FORGET 4 'y' STORE @m"));
+    fails("<% $y %> 'm' STORE 3 'y' STORE @m DROP 'y' FORGET @m", "does not exist");
+    Assert.assertEquals(Arrays.<Object>asList(3L, 4L), exec("<% $y %> 'm' STORE 3 'y' STORE @m CLEARSYMBOLS 4 'y' STORE <% $y %> 'm' STORE @m"));
+    Assert.assertEquals(Arrays.<Object>asList(2L, 1L), exec("1 'a' STORE SAVE 2 'a' STORE <% $a %> 'm' STORE @m SWAP RESTORE $a"));
+    Assert.assertEquals(Arrays.<Object>asList(5L, 1L), exec("1 'a' STORE <% SAVE 5 'a' STORE $a SWAP RESTORE $a %> EVAL"));
+  }
+
+  @Test
+  public void testMaxSymbols() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_SYMBOLS, 4);
+    Assert.assertEquals(Arrays.<Object>asList(3L, 4L), exec(stack, "1 'a' STORE 2 'b' STORE <% 'a' STORE $a %> 'm' STORE 3 @m 4 @m"));
+
+    // The limit also applies when storing into a resolved slot
+    fails(stack, "5 'c' STORE 6 @m", "maximum number of entries");
+  }
+
+  /**
+   * A macro run on several stacks accesses the symbols of the stack it runs on
+   */
+  @Test
+  public void testSharedMacro() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec("<% $v 1 + 'v' STORE $v %>");
+    Macro macro = (Macro) stack.pop();
+
+    for (long i = 0; i < 3; i++) {
+      MemoryWarpScriptStack other = newStack();
+      other.push(100L * i);
+      other.exec("'v' STORE");
+      for (int j = 0; j < 2; j++) {
+        other.push(macro);
+        other.exec("EVAL");
+      }
+      Assert.assertEquals(Arrays.<Object>asList(100L * i + 1, 100L * i + 2), levels(other));
+      Assert.assertEquals(100L * i + 2, other.load("v"));
+    }
+  }
+
+  /**
+   * Snapshots of macros are unchanged by the resolution of symbols
+   */
+  @Test
+  public void testSnapshot() throws Exception {
+    List<Object> levels = exec("<% 'x' STORE $x 'x' LOAD * %> DUP 7 SWAP EVAL 49 == ASSERT SNAPSHOT");
+    Assert.assertEquals(Arrays.<Object>asList("<% 'x'  STORE  'x'  LOAD  'x'  LOAD  *  %> "), levels);
+
+    // The snapshot builds an equivalent macro
+    Assert.assertEquals(Arrays.<Object>asList(36L), exec("6 " + levels.get(0) + " EVAL"));
+  }
+
+  /**
+   * Resolved macros perform as many operations as the statements they were built from
+   */
+  @Test
+  public void testOps() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec("<% 'x' STORE $x 'x' LOAD * %>");
+    Macro resolved = (Macro) stack.pop();
+
+    Macro plain = new Macro();
+    plain.add("x");
+    plain.add(WarpScriptLib.getFunction(WarpScriptLib.STORE));
+    plain.add("x");
+    plain.add(WarpScriptLib.getFunction(WarpScriptLib.LOAD));
+    plain.add("x");
+    plain.add(WarpScriptLib.getFunction(WarpScriptLib.LOAD));
+    plain.add(WarpScriptLib.getFunction("*"));
+
+    Assert.assertEquals(4, resolved.size());
+
+    long[] ops = new long[2];
+    Macro[] macros = new Macro[] { plain, resolved };
+
+    for (int i = 0; i < macros.length; i++) {
+      MemoryWarpScriptStack other = newStack();
+      other.push(7L);
+      other.setAttribute(WarpScriptStack.ATTRIBUTE_OPS, 0L);
+      other.push(macros[i]);
+      other.exec(WarpScriptLib.EVAL);
+      Assert.assertEquals(49L, other.pop());
+      ops[i] = (Long) other.getAttribute(WarpScriptStack.ATTRIBUTE_OPS);
+    }
+
+    Assert.assertEquals(ops[0], ops[1]);
+  }
+}
@@ -0,0 +1,390 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WarpScriptParallelTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    // Size the pool independently of the number of processors of the test host
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n" + Configuration.WARPSCRIPT_PARALLEL_THREADS + "=8\n" + Configuration.WARPSCRIPT_PARALLEL_TENANT_THREADS + "=4\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static List<GeoTimeSerie> generate(long seed) {
+    Random random = new Random(seed);
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < 64; i++) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("c" + (i % 3));
+      gts.setLabel("id", Integer.toString(i));
+      for (int j = 0; j < 200; j++) {
+        GTSHelper.setValue(gts, random.nextInt(1000), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) random.nextInt(100), false);
+      }
+      series.add(gts);
+    }
+
+    return series;
+  }
+
+  @Test
+  public void testRun() throws Exception {
+    List<Integer> results = WarpScriptParallel.run(null, 8, 1000, new WarpScriptParallel.Task<Integer>() {
+      @Override
+      public Integer call(int index) throws WarpScriptException {
+        return index * 2;
+      }
+    });
+
+    Assert.assertEquals(1000, results.size());
+
+    for (int i = 0; i < results.size(); i++) {
+      Assert.assertEquals(i * 2, results.get(i).intValue());
+    }
+
+    //
+    // The error of the failed call with the smallest index is rethrown
+    //
+
+    try {
+      WarpScriptParallel.run(null, 4, 100, new WarpScriptParallel.Task<Object>() {
+        @Override
+        public Object call(int index) throws WarpScriptException {
+          if (37 == index || 80 == index) {
+            throw new WarpScriptException("error " + index);
+          }
+          return index;
+        }
+      });
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertEquals("error 37", wse.getMessage());
+    }
+  }
+
+  @Test
+  public void testNeedsStack() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    stack.exec("<% %>");
+    Assert.assertTrue(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("<% %> MACROMAPPER");
+    Assert.assertTrue(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("<% %> MACROMAPPER 0 10 STRICTMAPPER");
+    Assert.assertTrue(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("<% %> MACROREDUCER STRICTREDUCER");
+    Assert.assertTrue(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("<% %> MACROFILTER");
+    Assert.assertTrue(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("mapper.max 0 10 STRICTMAPPER");
+    Assert.assertFalse(WarpScriptParallel.needsStack(stack.pop()));
+
+    stack.exec("reducer.sum STRICTREDUCER");
+    Assert.assertFalse(WarpScriptParallel.needsStack(stack.pop()));
+
+    Assert.assertEquals(1, WarpScriptParallel.getParallelism(stack, new Object()));
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_THREADS, 8L);
+    Assert.assertTrue(WarpScriptParallel.getParallelism(stack, new Object()) >= 1);
+    stack.exec("<% %> MACROMAPPER 0 10 STRICTMAPPER");
+    Assert.assertEquals(1, WarpScriptParallel.getParallelism(stack, stack.pop()));
+  }
+
+  /**
+   * A macro wrapped in STRICTMAPPER must run on the script thread only, it would otherwise use the stack
+   * and the symbol table from several threads at once
+   */
+  @Test
+  public void testWrappedMacroMapper() throws Exception {
+    String script = "[ SWAP <% 'context' STORE 1 50 <% %> FOR 50 DROPN $context 0 GET NaN NaN NaN $context 7 GET 0 GET 2 * 5 ->LIST %> MACROMAPPER 0 10 STRICTMAPPER 1 0 0 ] MAP";
+
+    MemoryWarpScriptStack stack = newStack();
+    stack.push(generate(0L));
+    stack.exec(script);
+    String expected = String.valueOf(stack.pop());
+
+    for (int i = 0; i < 10; i++) {
+      stack = newStack();
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_THREADS, 8L);
+      stack.push(generate(0L));
+      stack.exec(script);
+      Assert.assertEquals(1, stack.depth());
+      Assert.assertEquals(expected, String.valueOf(stack.pop()));
+    }
+  }
+
+  @Test
+  public void testTenant() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    Assert.assertNull(WarpScriptParallel.getTenant(null));
+    Assert.assertEquals(stack.getUUID(), WarpScriptParallel.getTenant(stack));
+
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_TOKEN, "token");
+    Assert.assertEquals("token", WarpScriptParallel.getTenant(stack));
+  }
+
+  private static boolean onPool() {
+    return "[WarpScript Parallel]".equals(Thread.currentThread().getName());
+  }
+
+  private static void await(CountDownLatch latch) throws WarpScriptException {
+    try {
+      if (!latch.await(30L, TimeUnit.SECONDS)) {
+        throw new WarpScriptException("Timed out.");
+      }
+    } catch (InterruptedException ie) {
+      throw new WarpScriptException(ie);
+    }
+  }
+
+  /**
+   * Start a thread calling 'run' on behalf of 'tenant'
+   */
+  private static Thread start(final Object tenant, final int parallelism, final int n, final WarpScriptParallel.Task<?> task, final List<Throwable> errors) {
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          WarpScriptParallel.run(tenant, parallelism, n, task);
+        } catch (Throwable th) {
+          synchronized(errors) {
+            errors.add(th);
+          }
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  /**
+   * When all the threads of the pool are busy, the caller runs its queued calls itself
+   */
+  @Test
+  public void testTakeBack() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger busy = new AtomicInteger();
+    List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> callers = new ArrayList<Thread>();
+
+    //
+    // Occupy all the threads of the pool, each blocking tenant running as many calls as it is allowed to
+    //
+
+    int blocking = (WarpScriptParallel.poolThreads + WarpScriptParallel.tenantThreads - 1) / WarpScriptParallel.tenantThreads;
+
+    for (int i = 0; i < blocking; i++) {
+      callers.add(start("blocking-" + i, WarpScriptParallel.tenantThreads + 1, WarpScriptParallel.tenantThreads + 1, new WarpScriptParallel.Task<Object>() {
+        @Override
+        public Object call(int index) throws WarpScriptException {
+          if (onPool()) {
+            busy.incrementAndGet();
+          }
+          await(release);
+          return null;
+        }
+      }, errors));
+    }
+
+    try {
+      long deadline = System.currentTimeMillis() + 30000L;
+
+      while (busy.get() < WarpScriptParallel.poolThreads) {
+        Assert.assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(10L);
+      }
+
+      final Thread caller = Thread.currentThread();
+
+      List<Boolean> results = WarpScriptParallel.run("tenant", WarpScriptParallel.poolThreads, 100, new WarpScriptParallel.Task<Boolean>() {
+        @Override
+        public Boolean call(int index) throws WarpScriptException {
+          return caller == Thread.currentThread();
+        }
+      });
+
+      Assert.assertEquals(100, results.size());
+      Assert.assertFalse(results.contains(false));
+    } finally {
+      release.countDown();
+      for (Thread t: callers) {
+        t.join();
+      }
+    }
+
+    Assert.assertEquals(Collections.emptyList(), errors);
+  }
+
+  /**
+   * A tenant never runs more calls on the pool than allowed, even from concurrent callers
+   */
+  @Test
+  public void testTenantThreads() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max = new AtomicInteger();
+    final AtomicInteger calls = new AtomicInteger();
+    List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> callers = new ArrayList<Thread>();
+
+    WarpScriptParallel.Task<Object> task = new WarpScriptParallel.Task<Object>() {
+      @Override
+      public Object call(int index) throws WarpScriptException {
+        calls.incrementAndGet();
+
+        if (!onPool()) {
+          return null;
+        }
+
+        int r = running.incrementAndGet();
+
+        synchronized(max) {
+          max.set(Math.max(max.get(), r));
+        }
+
+        try {
+          Thread.sleep(5L);
+        } catch (InterruptedException ie) {
+          throw new WarpScriptException(ie);
+        }
+
+        running.decrementAndGet();
+        return null;
+      }
+    };
+
+    for (int i = 0; i < 3; i++) {
+      callers.add(start("capped", 64, 64, task, errors));
+    }
+
+    for (Thread t: callers) {
+      t.join();
+    }
+
+    Assert.assertEquals(Collections.emptyList(), errors);
+    Assert.assertEquals(3 * 64, calls.get());
+    Assert.assertTrue(max.get() <= WarpScriptParallel.tenantThreads);
+  }
+
+  /**
+   * The pool takes the queued calls from the tenants in turn, so the calls of a tenant do not wait
+   * for the calls queued earlier by other tenants
+   */
+  @Test
+  public void testRotation() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger started = new AtomicInteger();
+    List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> callers = new ArrayList<Thread>();
+
+    //
+    // Flood the pool, the first call of each flooding tenant, run by its caller, blocks
+    // so the caller does not take back its queued calls
+    //
+
+    int flooding = (WarpScriptParallel.poolThreads + WarpScriptParallel.tenantThreads - 1) / WarpScriptParallel.tenantThreads;
+
+    for (int i = 0; i < flooding; i++) {
+      callers.add(start("flooding-" + i, 64, 64, new WarpScriptParallel.Task<Object>() {
+        @Override
+        public Object call(int index) throws WarpScriptException {
+          if (0 == index) {
+            await(release);
+            return null;
+          }
+
+          started.incrementAndGet();
+
+          try {
+            Thread.sleep(10L);
+          } catch (InterruptedException ie) {
+            throw new WarpScriptException(ie);
+          }
+          return null;
+        }
+      }, errors));
+    }
+
+    try {
+      long deadline = System.currentTimeMillis() + 30000L;
+
+      while (started.get() < WarpScriptParallel.poolThreads) {
+        Assert.assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(1L);
+      }
+
+      //
+      // The first call waits for the second one, which can then only be run by the pool
+      //
+
+      final CountDownLatch second = new CountDownLatch(1);
+      final AtomicInteger startedBefore = new AtomicInteger();
+
+      WarpScriptParallel.run("tenant", 2, 2, new WarpScriptParallel.Task<Object>() {
+        @Override
+        public Object call(int index) throws WarpScriptException {
+          if (0 == index) {
+            await(second);
+          } else {
+            Assert.assertTrue(onPool());
+            startedBefore.set(started.get());
+            second.countDown();
+          }
+          return null;
+        }
+      });
+
+      Assert.assertTrue(startedBefore.get() < flooding * 63);
+    } finally {
+      release.countDown();
+      for (Thread t: callers) {
+        t.join();
+      }
+    }
+
+    Assert.assertEquals(Collections.emptyList(), errors);
+  }
+}
@@ -0,0 +1,140 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.WarpDist;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WarpScriptParseCacheTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    if (null == WarpDist.getKeyStore()) {
+      KeyStore keystore = new UnsecureKeyStore();
+      keystore.setKey(KeyStore.AES_SECURESCRIPTS, new byte[32]);
+      WarpDist.setKeyStore(keystore);
+    }
+  }
+
+  /**
+   * Execute a script on a fresh stack
+   *
+   * @return the levels of the stack, deepest first
+   */
+  private static List<Object> exec(String script) throws Exception {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    stack.execMulti(script);
+
+    List<Object> levels = new ArrayList<Object>();
+    for (int i = stack.depth() - 1; i >= 0; i--) {
+      levels.add(stack.get(i));
+    }
+    return levels;
+  }
+
+  /**
+   * Check that executing a script gives the expected levels, both when parsing its lines and when getting them from the cache
+   */
+  private static void check(String script, Object... expected) throws Exception {
+    Assert.assertEquals(Arrays.asList(expected), exec(script));
+    Assert.assertEquals(Arrays.asList(expected), exec(script));
+  }
+
+  @Test
+  public void testCachedLines() throws Exception {
+    String line = "1 'two' 3.0 true + ";
+
+    WarpScriptParseCache.Statement[] statements = WarpScriptParseCache.get(line);
+
+    Assert.assertSame(statements, WarpScriptParseCache.get(line));
+    Assert.assertEquals(5, statements.length);
+
+    Assert.assertTrue(statements[0].literal);
+    Assert.assertEquals(1L, statements[0].value);
+    Assert.assertTrue(statements[1].literal);
+    Assert.assertEquals("two", statements[1].value);
+    Assert.assertEquals(3.0D, statements[2].value);
+    Assert.assertEquals(Boolean.TRUE, statements[3].value);
+
+    // Built-in functions are resolved
+    Assert.assertFalse(statements[4].literal);
+    Assert.assertSame(WarpScriptLib.getFunction("+"), statements[4].value);
+    Assert.assertEquals("+", statements[4].text);
+
+    // Dereferences are resolved when executed
+    statements = WarpScriptParseCache.get("$x @y !$z");
+
+    for (WarpScriptParseCache.Statement statement: statements) {
+      Assert.assertFalse(statement.literal);
+      Assert.assertNull(statement.value);
+    }
+  }
+
+  @Test
+  public void testStringLiterals() throws Exception {
+    check("'a b'  \"c%20d\" 'e+f' '%2B' 'a # b' '// c' 0x10 0b11 -2 1.5E1 F",
+        "a b", "c d", "e+f", "+", "a # b", "// c", 16L, 3L, -2L, 15.0D, false);
+
+    // Literals within macros
+    check("<% 'a b' 0x10 %> EVAL", "a b", 16L);
+  }
+
+  @Test
+  public void testComments() throws Exception {
+    check("1 // 2\n# 3\n/* 4 */ 5\n/*\n6 'a b'\n*/\n7 # 8", 1L, 5L, 7L);
+    check("'#' '//'", "#", "//");
+  }
+
+  @Test
+  public void testMultiline() throws Exception {
+    String line = "1  'x  y' // z";
+
+    // Cache the line, then use it within a multiline string where it must be kept as is
+    check(line, 1L, "x  y");
+    check("<'\n" + line + "\n  <% 2 %>\n'>\n" + line, line + "\n  <% 2 %>", 1L, "x  y");
+    check("<%\n<'\n" + line + "\n'>\n%> EVAL", line);
+  }
+
+  @Test
+  public void testSecureScript() throws Exception {
+    String script = "'key' SECUREKEY\n<S\n'a b' 1 // comment\n<'\n  c  'd'\n'>\nS>\nUNSECURE";
+
+    List<Object> levels = exec(script);
+    Assert.assertEquals(levels, exec(script));
+
+    String unsecured = levels.get(0).toString();
+
+    // The secure script is the text of the statements, strings are escaped
+    Assert.assertTrue(unsecured.startsWith(" 'a%20b' 1"));
+
+    Assert.assertEquals(Arrays.<Object>asList("a b", 1L, "  c  'd'"), exec(unsecured));
+  }
+}
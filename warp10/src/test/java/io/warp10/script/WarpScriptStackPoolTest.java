@@ -0,0 +1,278 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WarpScriptStackPoolTest {
+
+  private static final Properties PROPERTIES = new Properties();
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Long> elapsed(WarpScriptStack stack) {
+    return (List<Long>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_ELAPSED);
+  }
+
+  /**
+   * Execute 'script' on 'stack' as /exec does
+   *
+   * @return the levels of the stack, its symbols, redefined functions and the attributes which scripts modify
+   */
+  private static String run(MemoryWarpScriptStack stack, String script) throws Exception {
+    StringBuilder sb = new StringBuilder();
+
+    try {
+      stack.execMulti(script);
+      stack.checkBalanced();
+    } catch (WarpScriptException wse) {
+      sb.append("ERROR ").append(wse.getMessage()).append(" ");
+    }
+
+    for (int i = stack.depth() - 1; i >= 0; i--) {
+      sb.append(stack.get(i)).append(" ");
+    }
+
+    sb.append(" symbols=").append(new TreeMap<String,Object>(stack.getSymbolTable()).keySet());
+    sb.append(" defined=").append(stack.getDefined().keySet());
+
+    for (String attr: new String[] {
+        WarpScriptStack.ATTRIBUTE_OPS, WarpScriptStack.ATTRIBUTE_MAX_OPS, WarpScriptStack.ATTRIBUTE_MAX_DEPTH,
+        WarpScriptStack.ATTRIBUTE_FETCH_COUNT, WarpScriptStack.ATTRIBUTE_TIMINGS, WarpScriptStack.ATTRIBUTE_SECTION_NAME, "custom" }) {
+      sb.append(" ").append(attr).append("=").append(stack.getAttribute(attr));
+    }
+
+    // Only the number of timings can be compared
+    sb.append(" elapsed=").append(elapsed(stack).size());
+
+    return sb.toString();
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    String[] scripts = new String[] {
+      "1 2 +",
+      "42 'x' STORE <% 1 + %> 'inc' STORE 3 @inc",
+      "<% 'redefined' %> 'NOW' DEF NOW",
+      "NOW DROP 'x' DEFINED 'inc' DEFINED",
+      // Unbalanced constructs
+      "<% 1 2",
+      "<'\nhello",
+      "/* unterminated",
+      "<% 1 0 / %> EVAL",
+      "'sect' SECTION 1 2 3",
+      "0 1 100 <% + %> FOR",
+      "<% 1 RETURN 2 %> EVAL",
+      "TIMINGS 1 2 + ELAPSED",
+    };
+
+    WarpScriptStackPool pool = new WarpScriptStackPool(null, null, null, PROPERTIES, 2);
+
+    for (int pass = 0; pass < 3; pass++) {
+      for (String script: scripts) {
+        String expected = run(new MemoryWarpScriptStack(null, null, null, PROPERTIES), script);
+
+        MemoryWarpScriptStack stack = pool.checkout();
+        String actual = run(stack, script);
+
+        // Alter the attributes scripts and functions modify
+        stack.setAttribute("custom", "value");
+        stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_DEPTH, 5);
+        stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_OPS, 3L);
+        ((AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT)).addAndGet(7L);
+        elapsed(stack).add(1L);
+
+        pool.release(stack);
+
+        Assert.assertEquals(script, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testPool() throws Exception {
+    WarpScriptStackPool pool = new WarpScriptStackPool(null, null, null, PROPERTIES, 1);
+
+    MemoryWarpScriptStack first = pool.checkout();
+    MemoryWarpScriptStack second = pool.checkout();
+    Assert.assertNotSame(first, second);
+
+    String uuid = first.getUUID();
+
+    pool.release(first);
+    // The pool is full, the stack is discarded
+    pool.release(second);
+
+    MemoryWarpScriptStack stack = pool.checkout();
+    Assert.assertSame(first, stack);
+    Assert.assertFalse(uuid.equals(stack.getUUID()));
+
+    Assert.assertNotSame(first, pool.checkout());
+
+    // Pooling is disabled with a size of 0
+    pool = new WarpScriptStackPool(null, null, null, PROPERTIES, 0);
+    stack = pool.checkout();
+    pool.release(stack);
+    Assert.assertNotSame(stack, pool.checkout());
+  }
+
+  /**
+   * BOOTSTRAP function storing the value returned by 'value' in 'x' and counting its calls
+   */
+  private static abstract class Bootstrap extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+    private final AtomicInteger calls = new AtomicInteger(0);
+
+    private Bootstrap() {
+      super(WarpScriptLib.BOOTSTRAP);
+    }
+
+    protected abstract Object value();
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      calls.incrementAndGet();
+      stack.store("x", value());
+      return stack;
+    }
+  }
+
+  private static WarpScriptStack.StackContext context(WarpScriptStackFunction bootstrap) throws Exception {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, null, PROPERTIES);
+    stack.exec("'bootstrap' 'y' STORE");
+    stack.getDefined().put(WarpScriptLib.BOOTSTRAP, bootstrap);
+    stack.save();
+    return (WarpScriptStack.StackContext) stack.pop();
+  }
+
+  @Test
+  public void testBootstrap() throws Exception {
+    WarpScriptStackPool pool = new WarpScriptStackPool(null, null, null, PROPERTIES, 2);
+
+    Bootstrap immutable = new Bootstrap() {
+      @Override
+      protected Object value() {
+        return 42L;
+      }
+    };
+
+    WarpScriptStack.StackContext context = context(immutable);
+
+    String expected = null;
+
+    for (int i = 0; i < 3; i++) {
+      MemoryWarpScriptStack stack = pool.checkout();
+      pool.bootstrap(stack, context);
+      String actual = run(stack, "$x $y");
+      pool.release(stack);
+
+      if (null == expected) {
+        expected = actual;
+        Assert.assertTrue(expected, expected.startsWith("42 bootstrap "));
+      }
+
+      // The operations of BOOTSTRAP are charged even when it is not executed
+      Assert.assertEquals(expected, actual);
+    }
+
+    Assert.assertEquals(1, immutable.calls.get());
+
+    // BOOTSTRAP is executed again for a new bootstrap context
+    context = context(immutable);
+    MemoryWarpScriptStack stack = pool.checkout();
+    pool.bootstrap(stack, context);
+    Assert.assertEquals(expected, run(stack, "$x $y"));
+    pool.release(stack);
+    Assert.assertEquals(2, immutable.calls.get());
+
+    // Mutable values stored by BOOTSTRAP are not shared
+    Bootstrap mutable = new Bootstrap() {
+      @Override
+      protected Object value() {
+        return new ArrayList<Object>();
+      }
+    };
+
+    context = context(mutable);
+
+    MemoryWarpScriptStack first = pool.checkout();
+    MemoryWarpScriptStack second = pool.checkout();
+    pool.bootstrap(first, context);
+    pool.bootstrap(second, context);
+    Assert.assertEquals(2, mutable.calls.get());
+    Assert.assertNotSame(first.load("x"), second.load("x"));
+    pool.release(first);
+    pool.release(second);
+
+    // Without a bootstrap context BOOTSTRAP is the builtin NOOP
+    stack = pool.checkout();
+    pool.bootstrap(stack, null);
+    Assert.assertEquals(run(new MemoryWarpScriptStack(null, null, null, PROPERTIES), "BOOTSTRAP 1"), run(stack, "1"));
+    pool.release(stack);
+  }
+
+  @Test
+  public void testCheckouts() throws Exception {
+    final WarpScriptStackPool pool = new WarpScriptStackPool(null, null, null, PROPERTIES, 1, 1, 0L);
+
+    MemoryWarpScriptStack stack = pool.checkout();
+
+    try {
+      pool.checkout();
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("Too many scripts"));
+    }
+
+    pool.release(stack);
+    stack = pool.checkout();
+
+    // A checkout waits for a stack to be released
+    final WarpScriptStackPool waiting = new WarpScriptStackPool(null, null, null, PROPERTIES, 0, 1, 30000L);
+    final MemoryWarpScriptStack checkedout = waiting.checkout();
+
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException ie) {
+        }
+        waiting.release(checkedout);
+      }
+    };
+    releaser.start();
+
+    Assert.assertNotNull(waiting.checkout());
+    releaser.join();
+    pool.release(stack);
+  }
+}
@@ -0,0 +1,149 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SlidingWindowFunctionTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    Random random = new Random(42L);
+
+    for (int iter = 0; iter < 30; iter++) {
+      // Sliding mappers only apply to LONG and DOUBLE series
+      for (int type = 0; type < 2; type++) {
+        GeoTimeSerie gts = WindowFunctionTest.generate(random, type, 1 + random.nextInt(60), 0 != iter % 3);
+
+        for (Object mapper: WindowFunctionTest.aggregators()) {
+          if (!(mapper instanceof WarpScriptSlidingWindowFunction)) {
+            continue;
+          }
+
+          long pre = random.nextInt(9) - 4;
+          long post = random.nextInt(9) - 4;
+          if (random.nextBoolean()) {
+            pre *= 10L;
+            post *= 10L;
+          }
+          boolean overrideTick = random.nextBoolean();
+          int step = 1 + random.nextInt(3);
+
+          Assert.assertEquals(mapper.getClass().getSimpleName(),
+              WindowFunctionTest.map(gts, new WindowFunctionTest.ObjectArrayFlavor(mapper), pre, post, false, step, overrideTick),
+              WindowFunctionTest.map(gts, mapper, pre, post, false, step, overrideTick));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMap_nonFinite() throws Exception {
+    GeoTimeSerie gts = new GeoTimeSerie();
+
+    double[] values = new double[] { 1.0D, Double.NaN, 2.0D, Double.POSITIVE_INFINITY, 3.0D, Double.NEGATIVE_INFINITY, 4.0D, 5.0D, 6.0D, 7.0D };
+
+    for (int i = 0; i < values.length; i++) {
+      GTSHelper.setValue(gts, i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, values[i], false);
+    }
+
+    List<GeoTimeSerie> result = GTSHelper.map(gts, new Sum("sum", false), 1, 0);
+
+    Assert.assertEquals(1, result.size());
+    GeoTimeSerie sums = result.get(0);
+
+    Double[] expected = new Double[] { 1.0D, Double.NaN, Double.NaN, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 9.0D, 11.0D, 13.0D };
+
+    Assert.assertEquals(expected.length, sums.size());
+
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], GTSHelper.valueAtIndex(sums, i));
+    }
+  }
+
+  @Test
+  public void testCompensatedSum() {
+    CompensatedSum sum = new CompensatedSum();
+
+    sum.add(1.0e16D);
+    sum.add(1.0D);
+    sum.add(1.0D);
+    sum.remove(1.0e16D);
+
+    // Without compensation the small values would have been absorbed by the large one
+    Assert.assertEquals(2.0D, sum.value(), 0.0D);
+
+    sum.add(Double.NaN);
+    Assert.assertTrue(Double.isNaN(sum.value()));
+    sum.remove(Double.NaN);
+    Assert.assertEquals(2.0D, sum.value(), 0.0D);
+
+    sum.add(Double.POSITIVE_INFINITY);
+    Assert.assertEquals(Double.POSITIVE_INFINITY, sum.value(), 0.0D);
+    sum.add(Double.NEGATIVE_INFINITY);
+    Assert.assertTrue(Double.isNaN(sum.value()));
+    sum.remove(Double.POSITIVE_INFINITY);
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, sum.value(), 0.0D);
+    sum.remove(Double.NEGATIVE_INFINITY);
+    Assert.assertEquals(2.0D, sum.value(), 0.0D);
+
+    sum.clear();
+    Assert.assertEquals(0.0D, sum.value(), 0.0D);
+
+    //
+    // Sliding a window over many values must not drift
+    //
+
+    Random random = new Random(0L);
+    double[] values = new double[10000];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextDouble() * Math.pow(10.0D, random.nextInt(20) - 10);
+    }
+
+    for (int i = 0; i < values.length; i++) {
+      sum.add(values[i]);
+      if (i >= 10) {
+        sum.remove(values[i - 10]);
+      }
+    }
+
+    double expected = 0.0D;
+
+    for (int i = values.length - 10; i < values.length; i++) {
+      expected += values[i];
+    }
+
+    Assert.assertEquals(expected, sum.value(), Math.abs(expected) * 1.0e-12D);
+  }
+}
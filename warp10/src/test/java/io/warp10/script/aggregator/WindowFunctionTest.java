@@ -0,0 +1,242 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptReducerFunction;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the window flavor of the aggregators produces the same results as their Object[] flavor
+ */
+public class WindowFunctionTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    // Rate needs the time units
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  /**
+   * Wrapper only exposing the Object[] flavor of an aggregator
+   */
+  static class ObjectArrayFlavor extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+    private final WarpScriptMapperFunction function;
+
+    ObjectArrayFlavor(Object function) {
+      super("objectarray");
+      this.function = (WarpScriptMapperFunction) function;
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      return function.apply(args);
+    }
+  }
+
+  static Object[] aggregators() {
+    return new Object[] {
+      new Sum("sum", true), new Sum("sum", false),
+      new Mean("mean", true), new Mean("mean", false),
+      new Min("min", true), new Min("min", false),
+      new Max("max", true), new Max("max", false),
+      new Count("count", true), new Count("count", false),
+      new First("first"), new Last("last"), new Median("median"),
+      new Variance("var", true, false), new Variance("var", false, false),
+      new StandardDeviation("sd", true, false), new Rate("rate"),
+    };
+  }
+
+  /**
+   * Generate a GTS of the given type (0 LONG, 1 DOUBLE, 2 BOOLEAN, 3 STRING) with some locations and elevations.
+   * DOUBLE values are multiples of 0.25 so sums are exact whatever the order of the operations.
+   */
+  static GeoTimeSerie generate(Random random, int type, int n, boolean uniqueTicks) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setName("gts");
+
+    for (int i = 0; i < n; i++) {
+      long tick = (uniqueTicks ? (i * 7 + random.nextInt(7)) : random.nextInt(200)) * 10L;
+      long location = random.nextBoolean() ? GeoTimeSerie.NO_LOCATION : random.nextInt(1 << 20);
+      long elevation = random.nextBoolean() ? GeoTimeSerie.NO_ELEVATION : random.nextInt(1000);
+      Object value;
+
+      switch (type) {
+        case 0:
+          value = (long) random.nextInt(50);
+          break;
+        case 1:
+          value = random.nextInt(50) / 4.0D;
+          break;
+        case 2:
+          value = random.nextBoolean();
+          break;
+        default:
+          value = "s" + random.nextInt(5);
+      }
+
+      GTSHelper.setValue(gts, tick, location, elevation, value, false);
+    }
+
+    return gts;
+  }
+
+  /**
+   * Render series as text, an exception is rendered as its class so both flavors must fail the same way
+   */
+  static String dump(Collection<GeoTimeSerie> series) {
+    StringBuilder sb = new StringBuilder();
+
+    for (GeoTimeSerie gts: series) {
+      GTSHelper.sort(gts);
+      sb.append(gts.getName()).append(gts.getLabels()).append(":");
+      for (int i = 0; i < GTSHelper.nvalues(gts); i++) {
+        sb.append(GTSHelper.tickAtIndex(gts, i)).append("/");
+        sb.append(GTSHelper.locationAtIndex(gts, i)).append("/");
+        sb.append(GTSHelper.elevationAtIndex(gts, i)).append("/");
+        sb.append(GTSHelper.valueAtIndex(gts, i)).append(" ");
+      }
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  static String map(GeoTimeSerie gts, Object mapper, long pre, long post, boolean reversed, int step, boolean overrideTick) {
+    try {
+      return dump(GTSHelper.map(gts.clone(), mapper, pre, post, 0, reversed, step, overrideTick, null));
+    } catch (Throwable t) {
+      return t.getClass().getName();
+    }
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    Random random = new Random(42L);
+
+    for (int iter = 0; iter < 20; iter++) {
+      for (int type = 0; type < 4; type++) {
+        GeoTimeSerie gts = generate(random, type, 1 + random.nextInt(40), 0 != iter % 3);
+
+        for (Object aggregator: aggregators()) {
+          long pre = random.nextInt(9) - 4;
+          long post = random.nextInt(9) - 4;
+          if (random.nextBoolean()) {
+            // Time based windows
+            pre *= 10L;
+            post *= 10L;
+          }
+          boolean overrideTick = random.nextBoolean();
+          // Reversed MAP never uses the sliding flavor, only the window one
+          boolean reversed = random.nextBoolean();
+          int step = 1 + random.nextInt(3);
+
+          Assert.assertEquals(aggregator.getClass().getSimpleName(),
+              map(gts, new ObjectArrayFlavor(aggregator), pre, post, reversed, step, overrideTick),
+              map(gts, aggregator, pre, post, reversed, step, overrideTick));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBucketize() throws Exception {
+    Random random = new Random(42L);
+
+    for (int iter = 0; iter < 20; iter++) {
+      for (int type = 0; type < 4; type++) {
+        GeoTimeSerie gts = generate(random, type, 1 + random.nextInt(40), 0 != iter % 3);
+
+        for (Object aggregator: aggregators()) {
+          String expected;
+          String actual;
+
+          try {
+            expected = dump(Collections.singletonList(GTSHelper.bucketize(gts.clone(), 70L, 0, 0L, new ObjectArrayFlavor(aggregator), 100000, null)));
+          } catch (Throwable t) {
+            expected = t.getClass().getName();
+          }
+
+          try {
+            actual = dump(Collections.singletonList(GTSHelper.bucketize(gts.clone(), 70L, 0, 0L, aggregator, 100000, null)));
+          } catch (Throwable t) {
+            actual = t.getClass().getName();
+          }
+
+          Assert.assertEquals(aggregator.getClass().getSimpleName(), expected, actual);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReduce() throws Exception {
+    Random random = new Random(42L);
+
+    for (int iter = 0; iter < 20; iter++) {
+      for (int type = 0; type < 4; type++) {
+        for (Object aggregator: aggregators()) {
+          List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+          List<GeoTimeSerie> copies = new ArrayList<GeoTimeSerie>();
+
+          for (int k = 0; k < 3; k++) {
+            // Mostly series of the same type, sometimes mixed with LONG or DOUBLE ones
+            GeoTimeSerie gts = generate(random, random.nextInt(10) < 8 ? type : random.nextInt(2), 1 + random.nextInt(20), true);
+            gts.setLabel("k", Integer.toString(k));
+            gts.setLabel("p", Integer.toString(k % 2));
+            series.add(gts);
+            copies.add(gts.clone());
+          }
+
+          String expected;
+          String actual;
+
+          try {
+            expected = dump(GTSHelper.reduce(new ObjectArrayFlavor(aggregator), copies, Arrays.asList("p")));
+          } catch (Throwable t) {
+            expected = t.getClass().getName();
+          }
+
+          try {
+            actual = dump(GTSHelper.reduce((WarpScriptReducerFunction) aggregator, series, Arrays.asList("p")));
+          } catch (Throwable t) {
+            actual = t.getClass().getName();
+          }
+
+          Assert.assertEquals(aggregator.getClass().getSimpleName(), expected, actual);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script.ext.concurrent;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptParallel;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CEVALTest {
+
+  /**
+   * Function recording the number of threads calling it at once
+   */
+  private static class Probe extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger max = new AtomicInteger(0);
+
+    private Probe() {
+      super("PROBE");
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      int n = active.incrementAndGet();
+
+      while (true) {
+        int current = max.get();
+        if (n <= current || max.compareAndSet(current, n)) {
+          break;
+        }
+      }
+
+      try {
+        Thread.sleep(50L);
+      } catch (InterruptedException ie) {
+        throw new WarpScriptException(ie);
+      } finally {
+        active.decrementAndGet();
+      }
+
+      return stack;
+    }
+  }
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    // Size the pool independently of the number of processors of the test host
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n" + Configuration.WARPSCRIPT_PARALLEL_THREADS + "=8\n"));
+    WarpScriptLib.register(new ConcurrentWarpScriptExtension());
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  @Test
+  public void testResults() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    stack.exec("[ <% 2 * %> <% 3 * 'x' %> <% DROP %> <% 5 * %> ] 2 CEVAL");
+
+    List<?> results = (List<?>) stack.pop();
+
+    Assert.assertEquals(4, results.size());
+    Assert.assertEquals(Arrays.asList(2L), results.get(0));
+    Assert.assertEquals(Arrays.asList("x", 6L), results.get(1));
+    Assert.assertEquals(Arrays.asList(), results.get(2));
+    Assert.assertEquals(Arrays.asList(20L), results.get(3));
+    Assert.assertEquals(0, stack.depth());
+  }
+
+  @Test
+  public void testConcurrency() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    Probe probe = new Probe();
+
+    stack.store("probe", probe);
+    stack.exec("[ 1 8 <% DROP <% $probe EVAL %> %> FOR ] 4 CEVAL DROP");
+
+    // The pool is sized by the configuration of the first test class run in the JVM
+    if (WarpScriptParallel.getPoolThreads() > 1) {
+      Assert.assertTrue(probe.max.get() > 1);
+    }
+    Assert.assertTrue(probe.max.get() <= 4);
+  }
+
+  @Test
+  public void testSync() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    Probe probe = new Probe();
+
+    stack.store("probe", probe);
+    stack.exec("[ 1 8 <% DROP <% <% $probe EVAL %> SYNC %> %> FOR ] 4 CEVAL DROP");
+
+    Assert.assertEquals(1, probe.max.get());
+
+    // SYNC outside of CEVAL simply runs the macro
+    stack.exec("<% 42 %> SYNC");
+    Assert.assertEquals(42L, stack.pop());
+  }
+
+  @Test
+  public void testError() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    try {
+      stack.exec("[ <% %> <% 'failed' MSGFAIL %> <% %> ] 3 CEVAL");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("failed"));
+    }
+
+    // The stack is no longer in concurrent execution mode
+    stack.clear();
+    stack.exec("[ <% %> ] 1 CEVAL");
+    Assert.assertEquals(1, ((List<?>) stack.pop()).size());
+
+    try {
+      stack.exec("[ <% [ <% %> ] 1 CEVAL %> ] 1 CEVAL");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("concurrent execution"));
+    }
+  }
+}
@@ -0,0 +1,465 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.Tokens;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.standalone.StandaloneDirectoryClient;
+import io.warp10.standalone.StandaloneMemoryStore;
+import io.warp10.standalone.StandalonePlasmaHandlerInterface;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class FETCHTest {
+
+  private static final String TOKEN = "FETCHTest";
+
+  private static final String OWNER = UUID.randomUUID().toString();
+
+  private static StandaloneDirectoryClient directory;
+
+  private static StandaloneMemoryStore store;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    KeyStore keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+
+    directory = new StandaloneDirectoryClient(null, keystore);
+    store = new StandaloneMemoryStore(keystore, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    Tokens.UUIDByEgressToken.put(TOKEN, OWNER);
+
+    //
+    // Store a few series, each one in several encoders
+    //
+
+    Random random = new Random(0L);
+
+    for (int i = 0; i < 10; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("test.fetch." + (i % 2));
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.getLabels().put("id", Integer.toString(i));
+      metadata.getLabels().put(Constants.OWNER_LABEL, OWNER);
+      metadata.getLabels().put(Constants.PRODUCER_LABEL, OWNER);
+      metadata.setSource(Configuration.INGRESS_METADATA_SOURCE);
+
+      directory.register(metadata);
+
+      for (int j = 0; j < 3; j++) {
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+        for (int k = 0; k < 100; k++) {
+          encoder.addValue(1 + random.nextInt(1000000), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) random.nextInt(100));
+        }
+        store.store(encoder);
+      }
+    }
+  }
+
+  static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(store, directory, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static String fetch(String extra) {
+    return fetch(extra, "FETCH");
+  }
+
+  private static String fetch(String extra, String function) {
+    return "{ 'token' '" + TOKEN + "' 'class' '~test.fetch.*' 'labels' {} 'end' 1000000 'timespan' 1000000 " + extra + " } " + function;
+  }
+
+  /**
+   * @return the string representations of the GTS of the list on top of the stack, sorted
+   */
+  private static List<String> series(WarpScriptStack stack) throws WarpScriptException {
+    List<String> series = new ArrayList<String>();
+    for (Object gts: (List<?>) stack.pop()) {
+      series.add(gts.toString());
+    }
+    Collections.sort(series);
+    return series;
+  }
+
+  @Test
+  public void testBucketize() throws Exception {
+    String[][] cases = new String[][] {
+      { "'bucketizer' bucketizer.sum 'bucketspan' 10000", "bucketizer.sum 0 10000 0" },
+      { "'bucketizer' bucketizer.last 'bucketcount' 7", "bucketizer.last 0 0 7" },
+      { "'bucketizer' bucketizer.count 'bucketspan' 1000 'bucketcount' 100 'lastbucket' 500000", "bucketizer.count 500000 1000 100" },
+      // Aggregated as the datapoints are decoded
+      { "'bucketizer' bucketizer.mean 'bucketspan' 10000 'lastbucket' 1000000", "bucketizer.mean 1000000 10000 0" },
+      { "'bucketizer' bucketizer.min 'bucketspan' 3000 'lastbucket' 800000 'bucketcount' 50", "bucketizer.min 800000 3000 50" },
+      { "'bucketizer' bucketizer.max 'bucketspan' 3000 'lastbucket' 800000", "bucketizer.max 800000 3000 0" },
+      { "'bucketizer' bucketizer.first 'bucketspan' 20000 'lastbucket' 990000", "bucketizer.first 990000 20000 0" },
+      { "'bucketizer' bucketizer.last 'bucketspan' 20000 'lastbucket' 990000 'bucketcount' 10", "bucketizer.last 990000 20000 10" },
+      { "'bucketizer' bucketizer.sum 'bucketspan' 5000 'lastbucket' 1000000 'type' 'DOUBLE'", "bucketizer.sum 1000000 5000 0", "'type' 'DOUBLE'" },
+      { "'bucketizer' bucketizer.first 'bucketspan' 5000 'lastbucket' 1000000 'type' 'STRING'", "bucketizer.first 1000000 5000 0", "'type' 'STRING'" },
+      // Not incremental, only the datapoints of the buckets are retained
+      { "'bucketizer' bucketizer.median 'bucketspan' 10000 'lastbucket' 600000 'bucketcount' 20", "bucketizer.median 600000 10000 20" },
+    };
+
+    for (String[] c: cases) {
+      MemoryWarpScriptStack stack = newStack();
+      stack.exec(fetch(c.length > 2 ? c[2] : "") + " [ SWAP " + c[1] + " ] BUCKETIZE");
+      List<String> expected = series(stack);
+      long expectedCount = ((AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT)).get();
+
+      Assert.assertEquals(10, expected.size());
+      Assert.assertEquals(3000L, expectedCount);
+
+      stack = newStack();
+      stack.exec(fetch(c[0]));
+      Assert.assertEquals(expected, series(stack));
+
+      //
+      // Only the bucketized datapoints count toward the fetch limit
+      //
+
+      long bucketized = 0L;
+      stack.exec(fetch(c[0]));
+      for (Object gts: (List<?>) stack.pop()) {
+        bucketized += ((GeoTimeSerie) gts).size();
+      }
+
+      Assert.assertEquals(2 * bucketized, ((AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT)).get());
+      Assert.assertEquals(2 * 3000L, ((AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_COUNT)).get());
+    }
+  }
+
+  @Test
+  public void testRawLimit() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_LIMIT, 1000L);
+
+    try {
+      stack.exec(fetch("'bucketizer' bucketizer.sum 'bucketspan' 10000"));
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("raw datapoints"));
+    }
+
+    // The raw limit does not apply to plain fetches
+    stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_RAW_LIMIT, 1000L);
+    stack.exec(fetch(""));
+    Assert.assertEquals(10, series(stack).size());
+  }
+
+  @Test
+  public void testBucketizeParameters() throws Exception {
+    String[] invalid = new String[] {
+      // Macros are not supported
+      "'bucketizer' <% %> 'bucketspan' 10",
+      "'bucketizer' <% %> MACROBUCKETIZER 'bucketspan' 10",
+      // Not a bucketizer
+      "'bucketizer' 'sum' 'bucketspan' 10",
+      // Span and count cannot both be 0
+      "'bucketizer' bucketizer.sum",
+      // Bucketization parameters are LONGs
+      "'bucketizer' bucketizer.sum 'bucketspan' 10.0",
+      // Per type ventilation is not supported
+      "'bucketizer' bucketizer.sum 'bucketspan' 10 'typeattr' 'type'",
+    };
+
+    for (String params: invalid) {
+      try {
+        newStack().exec(fetch(params));
+        Assert.fail(params);
+      } catch (WarpScriptException wse) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec(fetch(""));
+    List<String> expected = series(stack);
+
+    stack = newStack();
+    stack.exec(fetch("", "FETCHASYNC") + " " + fetch("", "FETCHASYNC"));
+    Assert.assertEquals(2, ((List<?>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_PENDING)).size());
+
+    stack.exec("FETCHJOIN");
+    Assert.assertEquals(expected, series(stack));
+    stack.exec("FETCHJOIN");
+    Assert.assertEquals(expected, series(stack));
+
+    Assert.assertEquals(0, ((List<?>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_PENDING)).size());
+    Assert.assertEquals(2 * 3000L, ((AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT)).get());
+
+    // A fetch is joined only once
+    try {
+      stack.exec(fetch("", "FETCHASYNC") + " DUP FETCHJOIN DROP FETCHJOIN");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("already joined"));
+    }
+  }
+
+  /**
+   * Errors of the fetch are raised when it is joined
+   */
+  @Test
+  public void testAsyncError() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, 5L);
+
+    stack.exec(fetch("", "FETCHASYNC"));
+
+    try {
+      stack.exec("FETCHJOIN");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("exceeded limit of 5 Geo Time Series"));
+    }
+
+    Assert.assertEquals(0, stack.depth());
+  }
+
+  @Test
+  public void testAsyncLimit() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_LIMIT, 2L);
+
+    stack.exec(fetch("", "FETCHASYNC") + " " + fetch("", "FETCHASYNC"));
+
+    try {
+      stack.exec(fetch("", "FETCHASYNC"));
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("exceeded limit of 2"));
+    }
+
+    // Joined fetches no longer count toward the limit
+    stack.exec("FETCHJOIN DROP " + fetch("", "FETCHASYNC") + " FETCHJOIN");
+    Assert.assertEquals(10, series(stack).size());
+  }
+
+  /**
+   * Store whose fetches block until they are interrupted
+   */
+  private static final class BlockingStore implements StoreClient {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) throws IOException {
+      started.countDown();
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      } catch (InterruptedException ie) {
+        interrupted.countDown();
+      }
+      throw new IOException("Interrupted.");
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+      store.store(encoder);
+    }
+
+    @Override
+    public void archive(int chunk, GTSEncoder encoder) throws IOException {
+      store.archive(chunk, encoder);
+    }
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return store.delete(token, metadata, start, end);
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+  }
+
+  /**
+   * Fetches which were not joined are cancelled when the script ends or when the stack is reset
+   */
+  @Test
+  public void testAsyncCancel() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      BlockingStore blocking = new BlockingStore();
+      MemoryWarpScriptStack stack = new MemoryWarpScriptStack(blocking, directory, new Properties());
+      stack.maxLimits();
+
+      stack.exec(fetch("", "FETCHASYNC") + " DUP");
+      Assert.assertTrue(blocking.started.await(30L, TimeUnit.SECONDS));
+
+      if (0 == i) {
+        FETCH.cancelPending(stack);
+        Assert.assertTrue(blocking.interrupted.await(30L, TimeUnit.SECONDS));
+
+        try {
+          stack.exec("FETCHJOIN");
+          Assert.fail();
+        } catch (WarpScriptException wse) {
+          Assert.assertTrue(wse.getMessage().contains("cancelled"));
+        }
+      } else {
+        Object future = stack.pop();
+        stack.reset();
+        Assert.assertTrue(blocking.interrupted.await(30L, TimeUnit.SECONDS));
+        Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_ASYNC_PENDING));
+        Assert.assertTrue(future.toString().endsWith("(done)"));
+      }
+    }
+  }
+
+  /**
+   * Store whose fetches performed by the asynchronous fetch pool wait until the gate is opened
+   */
+  private static final class GatedStore implements StoreClient {
+    private final AtomicInteger started = new AtomicInteger(0);
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    @Override
+    public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) throws IOException {
+      if (Thread.currentThread().getName().contains("Async Fetch")) {
+        started.incrementAndGet();
+        try {
+          gate.await();
+        } catch (InterruptedException ie) {
+          throw new IOException("Interrupted.");
+        }
+      }
+      return store.fetch(token, metadatas, now, timespan, fromArchive, writeTimestamp);
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+      store.store(encoder);
+    }
+
+    @Override
+    public void archive(int chunk, GTSEncoder encoder) throws IOException {
+      store.archive(chunk, encoder);
+    }
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return store.delete(token, metadata, start, end);
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 30000L;
+      while (started.get() < count && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L);
+      }
+      Assert.assertEquals(count, started.get());
+    }
+  }
+
+  /**
+   * A tenant has at most 'warpscript.fetch.async.tenant' fetches on the shared pool, the others are performed on the script thread
+   */
+  @Test
+  public void testAsyncTenant() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec(fetch(""));
+    List<String> expected = series(stack);
+
+    GatedStore gated = new GatedStore();
+
+    stack = new MemoryWarpScriptStack(gated, directory, new Properties());
+    stack.maxLimits();
+
+    MemoryWarpScriptStack other = new MemoryWarpScriptStack(gated, directory, new Properties());
+    other.maxLimits();
+
+    int pooled = 0;
+
+    try {
+      //
+      // Start fetches until one is performed on the script thread, the cap depends on the configuration
+      // of the first test class run in the JVM
+      //
+
+      while (true) {
+        stack.exec(fetch("", "FETCHASYNC"));
+
+        if (stack.peek().toString().endsWith("(done)")) {
+          break;
+        }
+
+        pooled++;
+        gated.awaitStarted(pooled);
+        Assert.assertTrue(pooled < 64);
+      }
+
+      Assert.assertTrue(pooled > 0);
+
+      // The fetch of another tenant still goes to the pool
+      other.exec(fetch("", "FETCHASYNC"));
+      gated.awaitStarted(pooled + 1);
+      Assert.assertTrue(other.peek().toString().endsWith("(pending)"));
+    } finally {
+      gated.gate.countDown();
+    }
+
+    for (int i = 0; i <= pooled; i++) {
+      stack.exec("FETCHJOIN");
+      Assert.assertEquals(expected, series(stack));
+    }
+
+    other.exec("FETCHJOIN");
+    Assert.assertEquals(expected, series(other));
+  }
+}
@@ -0,0 +1,135 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.script.functions;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PROFILETest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static MemoryWarpScriptStack newStack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static long calls(Map<?,?> profile, String name) {
+    return (Long) ((List<?>) profile.get(name)).get(0);
+  }
+
+  private static long nanos(Map<?,?> profile, String name) {
+    return (Long) ((List<?>) profile.get(name)).get(1);
+  }
+
+  @Test
+  public void testProfile() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec("<% 1 + %> 'inc' STORE");
+    stack.exec("0 <% 1 10 <% DROP @inc %> FOR %> PROFILE");
+
+    Map<?,?> profile = (Map<?,?>) stack.pop();
+
+    Assert.assertEquals(10L, stack.pop());
+    Assert.assertEquals(0, stack.depth());
+
+    Assert.assertEquals(1L, calls(profile, "FOR"));
+    Assert.assertEquals(10L, calls(profile, "DROP"));
+    Assert.assertEquals(10L, calls(profile, "@inc"));
+    // @inc is executed by RUN
+    Assert.assertEquals(10L, calls(profile, "RUN"));
+    Assert.assertEquals(10L, calls(profile, "+"));
+
+    // Times are inclusive
+    Assert.assertTrue(nanos(profile, "FOR") >= nanos(profile, "@inc"));
+    Assert.assertTrue(nanos(profile, "@inc") >= nanos(profile, "+"));
+
+    // Literals are not profiled
+    Assert.assertEquals(5, profile.size());
+
+    Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER));
+  }
+
+  @Test
+  public void testNested() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+    stack.exec("<% 1 2 + DROP <% 3 4 + DROP 5 6 * DROP %> PROFILE %> PROFILE");
+
+    Map<?,?> outer = (Map<?,?>) stack.pop();
+    Map<?,?> inner = (Map<?,?>) stack.pop();
+
+    Assert.assertEquals(0, stack.depth());
+
+    Assert.assertEquals(1L, calls(inner, "+"));
+    Assert.assertEquals(1L, calls(inner, "*"));
+    Assert.assertEquals(2L, calls(inner, "DROP"));
+    Assert.assertEquals(3, inner.size());
+
+    // The inner calls are also accounted for in the outer profile, along with the inner PROFILE itself
+    Assert.assertEquals(2L, calls(outer, "+"));
+    Assert.assertEquals(1L, calls(outer, "*"));
+    Assert.assertEquals(3L, calls(outer, "DROP"));
+    Assert.assertEquals(1L, calls(outer, "PROFILE"));
+    Assert.assertEquals(4, outer.size());
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    MemoryWarpScriptStack stack = newStack();
+
+    try {
+      stack.exec("'x' PROFILE");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(wse.getMessage().contains("expects a macro"));
+    }
+
+    //
+    // The profiler is removed when the macro fails, even when nested
+    //
+
+    stack = newStack();
+
+    try {
+      stack.exec("<% <% 'a' 1 + %> PROFILE %> PROFILE");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      // expected
+    }
+
+    Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER));
+
+    stack = newStack();
+    stack.exec("<% 1 %> PROFILE");
+    Assert.assertTrue(((Map<?,?>) stack.pop()).isEmpty());
+    Assert.assertEquals(1L, stack.pop());
+  }
+}
@@ -0,0 +1,231 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class StandaloneDirectoryClientTest {
+
+  private static final String[] CLASSES = { "a", "b", "cpu" };
+
+  private static final String[][] SELECTORS = {
+    { "~.*", "host", "=web-7" }, { "cpu", "host", "~web-1.*" }, { "~c.*", "dc", "=upd" },
+    { "a", "dc", "~a?dc1" }, { "~.*", "dc", "~.*" }, { "b", null, null }, { "=nope", null, null },
+  };
+
+  private static KeyStore keystore;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+    keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+  }
+
+  private static List<Map<String,String>> all() {
+    return Collections.singletonList((Map<String,String>) new HashMap<String,String>());
+  }
+
+  /**
+   * Register random series, some of them updated with new attributes
+   */
+  private static StandaloneDirectoryClient generate(Random random) throws Exception {
+    StandaloneDirectoryClient sdc = new StandaloneDirectoryClient(null, keystore);
+    List<Metadata> registered = new ArrayList<Metadata>();
+
+    for (int i = 0; i < 10000; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName(CLASSES[random.nextInt(CLASSES.length)]);
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("host", "web-" + random.nextInt(100));
+      labels.put("i", Integer.toString(i));
+      if (random.nextBoolean()) {
+        labels.put("dc", "dc" + random.nextInt(3));
+      }
+      Map<String,String> attributes = new HashMap<String,String>();
+      if (0 == random.nextInt(3)) {
+        attributes.put("dc", "adc" + random.nextInt(2));
+      }
+      metadata.setLabels(labels);
+      metadata.setAttributes(attributes);
+      metadata.setSource("ingress");
+      sdc.register(metadata);
+      registered.add(metadata);
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      Metadata metadata = new Metadata(registered.get(random.nextInt(registered.size())));
+      metadata.getAttributes().put("dc", "upd");
+      metadata.setSource("update");
+      sdc.register(metadata);
+    }
+
+    return sdc;
+  }
+
+  private static boolean matches(String expr, String value) {
+    if (expr.startsWith("~")) {
+      return Pattern.matches(expr.substring(1), value);
+    } else {
+      return (expr.startsWith("=") ? expr.substring(1) : expr).equals(value);
+    }
+  }
+
+  private static String key(Metadata metadata) {
+    return metadata.getName() + metadata.getLabels() + metadata.getAttributes();
+  }
+
+  /**
+   * Check find against a scan of all the series of the directory
+   */
+  @Test
+  public void testFind() throws Exception {
+    Random random = new Random(1L);
+    StandaloneDirectoryClient sdc = generate(random);
+
+    List<Metadata> series = sdc.find(Collections.singletonList("~.*"), all());
+
+    for (int t = 0; t < 50; t++) {
+      List<String> classSelectors = new ArrayList<String>();
+      List<Map<String,String>> labelsSelectors = new ArrayList<Map<String,String>>();
+
+      int k = 1 + random.nextInt(2);
+
+      for (int j = 0; j < k; j++) {
+        String[] selector = SELECTORS[random.nextInt(SELECTORS.length)];
+        classSelectors.add(selector[0]);
+        Map<String,String> labels = new HashMap<String,String>();
+        if (null != selector[1]) {
+          labels.put(selector[1], selector[2]);
+        }
+        labelsSelectors.add(labels);
+      }
+
+      Set<String> expected = new HashSet<String>();
+
+      for (Metadata metadata: series) {
+        for (int j = 0; j < k; j++) {
+          boolean match = matches(classSelectors.get(j), metadata.getName());
+
+          for (Entry<String,String> entry: labelsSelectors.get(j).entrySet()) {
+            String value = metadata.getLabels().get(entry.getKey());
+            if (null == value) {
+              value = metadata.getAttributes().get(entry.getKey());
+            }
+            match = match && null != value && matches(entry.getValue(), value);
+          }
+
+          if (match) {
+            expected.add(key(metadata));
+          }
+        }
+      }
+
+      List<String> found = new ArrayList<String>();
+      for (Metadata metadata: sdc.find(classSelectors, labelsSelectors)) {
+        found.add(key(metadata));
+      }
+
+      // Series matching several selectors are returned once
+      Assert.assertEquals(found.size(), new HashSet<String>(found).size());
+      Assert.assertEquals(expected, new HashSet<String>(found));
+    }
+  }
+
+  @Test
+  public void testReadOnlyViews() throws Exception {
+    StandaloneDirectoryClient sdc = generate(new Random(2L));
+
+    Metadata metadata = sdc.find(Collections.singletonList("a"), all()).get(0);
+
+    try {
+      metadata.getLabels().put("x", "y");
+      Assert.fail();
+    } catch (UnsupportedOperationException uoe) {
+    }
+
+    try {
+      metadata.getAttributes().put("x", "y");
+      Assert.fail();
+    } catch (UnsupportedOperationException uoe) {
+    }
+
+    Assert.assertTrue(metadata.isSetClassId());
+    Assert.assertTrue(metadata.isSetLabelsId());
+  }
+
+  /**
+   * Series can be unregistered while the iterator is consumed
+   */
+  @Test
+  public void testUnregisterWhileIterating() throws Exception {
+    StandaloneDirectoryClient sdc = generate(new Random(3L));
+
+    int total = sdc.find(Collections.singletonList("~.*"), all()).size();
+    int n = 0;
+
+    MetadataIterator iter = sdc.iterator(Arrays.asList("~.*", "a"), Arrays.asList((Map<String,String>) new HashMap<String,String>(), new HashMap<String,String>()));
+
+    try {
+      while (iter.hasNext()) {
+        sdc.unregister(iter.next());
+        n++;
+      }
+    } finally {
+      iter.close();
+    }
+
+    Assert.assertEquals(total, n);
+    Assert.assertTrue(sdc.find(Collections.singletonList("~.*"), all()).isEmpty());
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    StandaloneDirectoryClient sdc = generate(new Random(4L));
+
+    MetadataIterator iter = sdc.iterator(Collections.singletonList("~.*"), all());
+    Assert.assertTrue(iter.hasNext());
+    iter.next();
+    iter.close();
+    Assert.assertFalse(iter.hasNext());
+
+    iter = new NullDirectoryClient(keystore).iterator(Collections.singletonList("~.*"), all());
+    Assert.assertFalse(iter.hasNext());
+    iter.close();
+  }
+}